@@ -18,19 +18,29 @@ package fr.umlv.ig.bipbip.poi;
 
 import java.util.Date;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Point a interest that can be reported by a client.
+ *
+ * The counters can be updated concurrently by several clients.
+ *
+ * Two POIs are equal if they have the same type, position and date. The
+ * identifier is not compared, since it can be given after the POI is stored
+ * in a hash based collection.
  */
 public abstract class AbstractReportedPoi implements Poi {
 
+    private static final AtomicIntegerFieldUpdater<AbstractReportedPoi> CONFIRMATIONS_UPDATER = AtomicIntegerFieldUpdater.newUpdater(AbstractReportedPoi.class, "confirmations");
+    private static final AtomicIntegerFieldUpdater<AbstractReportedPoi> REFUTATIONS_UPDATER = AtomicIntegerFieldUpdater.newUpdater(AbstractReportedPoi.class, "refutations");
+    private volatile long id = UNDEFINED_ID;
     private final double latitude;
     private final double longitude;
     private final PoiType type;
     private final Date date;
-    private Date removedDate = null;
-    private int confirmations;
-    private int refutations;
+    private volatile Date removedDate = null;
+    private volatile int confirmations;
+    private volatile int refutations;
 
     /**
      * Creates a reported point of interest. (POI)
@@ -65,6 +75,26 @@ public abstract class AbstractReportedPoi implements Poi {
         this.refutations = 0;
     }
 
+    /**
+     * Gets the identifier of the POI.
+     *
+     * @return The identifier, or UNDEFINED_ID.
+     */
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Sets the identifier of the POI.
+     *
+     * @param id The identifier.
+     */
+    @Override
+    public void setId(long id) {
+        this.id = id;
+    }
+
     /**
      * Gets the type of the POI.
      *
@@ -145,6 +175,26 @@ public abstract class AbstractReportedPoi implements Poi {
         this.refutations = refutations;
     }
 
+    /**
+     * Atomically increments the number of confirmations of this POI.
+     *
+     * @return The new number of confirmations.
+     */
+    @Override
+    public int incrementConfirmations() {
+        return CONFIRMATIONS_UPDATER.incrementAndGet(this);
+    }
+
+    /**
+     * Atomically increments the number of refutations of this POI.
+     *
+     * @return The new number of refutations.
+     */
+    @Override
+    public int incrementRefutations() {
+        return REFUTATIONS_UPDATER.incrementAndGet(this);
+    }
+
     /**
      * Gets the date when the Poi is removed.
      * 
@@ -201,6 +251,6 @@ public abstract class AbstractReportedPoi implements Poi {
 
     @Override
     public String toString() {
-        return "POI " + type + " coordinates:" + latitude + "," + longitude + " date:" + date;
+        return "POI " + id + " " + type + " coordinates:" + latitude + "," + longitude + " date:" + date;
     }
 }
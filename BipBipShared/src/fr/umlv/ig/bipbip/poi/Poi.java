@@ -25,6 +25,28 @@ import java.util.Date;
  */
 public interface Poi {
 
+    /**
+     * Identifier of a POI that has not been registered by the server yet.
+     */
+    long UNDEFINED_ID = 0;
+
+    /**
+     * Gets the identifier of the POI.
+     *
+     * The identifier is assigned by the server, and never changes once
+     * assigned.
+     *
+     * @return The identifier, or UNDEFINED_ID.
+     */
+    long getId();
+
+    /**
+     * Sets the identifier of the POI.
+     *
+     * @param id The identifier.
+     */
+    void setId(long id);
+
     /**
      * Gets the X position of the POI.
      *
@@ -80,6 +102,20 @@ public interface Poi {
      * @param refutations The number of refuses.
      */
     void setRefutations(int refutations);
+
+    /**
+     * Atomically increments the number of confirmations of this POI.
+     *
+     * @return The new number of confirmations.
+     */
+    int incrementConfirmations();
+
+    /**
+     * Atomically increments the number of refutations of this POI.
+     *
+     * @return The new number of refutations.
+     */
+    int incrementRefutations();
     
     /**
      * Gets the date when the Poi is removed.
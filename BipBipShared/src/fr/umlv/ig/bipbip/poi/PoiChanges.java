@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.poi;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Changes of the POIs of an area since a version of the list of POI.
+ *
+ * A full change set holds all the POIs of the area, the other ones only the
+ * POIs added or updated since the version and the identifiers of the removed
+ * ones.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class PoiChanges {
+
+    private final long version;
+    private final boolean full;
+    private final List<Poi> pois;
+    private final List<Long> removed;
+
+    /**
+     * Creates a set of changes.
+     *
+     * @param version Version of the list the changes lead to.
+     * @param full true if the POIs are all the POIs of the area.
+     * @param pois The added or updated POIs, or all of them.
+     * @param removed Identifiers of the removed POIs.
+     */
+    public PoiChanges(long version, boolean full, List<Poi> pois, List<Long> removed) {
+        Objects.requireNonNull(pois);
+        Objects.requireNonNull(removed);
+
+        this.version = version;
+        this.full = full;
+        this.pois = pois;
+        this.removed = removed;
+    }
+
+    /**
+     * Gets the version of the list the changes lead to.
+     *
+     * @return The version, to give to the next request. 0 if the list has no
+     * version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Tells whether the changes hold all the POIs of the area.
+     *
+     * @return true if the POIs not in the changes are not in the area anymore.
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Gets the POIs added or updated since the version, or all the POIs of
+     * the area if the changes are full.
+     *
+     * @return The POIs.
+     */
+    public List<Poi> getPois() {
+        return pois;
+    }
+
+    /**
+     * Gets the identifiers of the POIs removed from the area since the
+     * version.
+     *
+     * @return The identifiers, empty if the changes are full.
+     */
+    public List<Long> getRemoved() {
+        return removed;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.protocol;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * Binary protocol, version 2.
+ *
+ * A session starts with the text protocol. The client sends HELLO 2 and the
+ * server answers HELLO with the version they will use: 1 keeps the text
+ * protocol, 2 switches both of them to frames after the end of the answer.
+ * The servers which do not know HELLO close the connection, and the client
+ * goes on with the text protocol on a new one.
+ *
+ * A frame is the length of the rest of the frame, on 4 bytes big endian, an
+ * opcode byte and the fields of the command:
+ *
+ * SUBMIT POI, NOT_SEEN POI, NOT_SEEN_ID id, GET_INFOS latitude longitude,
+ * and the answer INFOS more POI... where more is 1 if another INFOS frame
+ * follows with the rest of the POI. NOT_SEEN refutes the POIs dated in the
+ * same second as the given one.
+ *
+ * GET_INFOS can end with the version of the POIs given by a previous answer,
+ * or 0 if the client has none, as a varint. The answer is then CHANGES flags version record... where the
+ * flags are MORE if another CHANGES frame follows and FULL if the records
+ * are all the POIs of the area, because the version was too old. A record is
+ * an added or updated POI, or REMOVED followed by the identifier of a removed
+ * POI. The version is the one to give with the next GET_INFOS.
+ *
+ * A POI is its type byte (the ordinal of PoiType), its coordinates, its date
+ * in seconds since the epoch as a signed varint, its confirmations and its
+ * identifier as varints. The coordinates are ints of micro-degrees, about 11
+ * centimeters. The varints are the 7 bits groups of LEB128, lowest first, and
+ * the signed ones are zigzag encoded. An INFO line of about 90 bytes is a
+ * record of about 20 bytes.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public final class BinaryProtocol {
+
+    /**
+     * Version of this protocol.
+     */
+    public static final int VERSION = 2;
+    /**
+     * Version of the text protocol.
+     */
+    public static final int TEXT_VERSION = 1;
+    /**
+     * Milliseconds of the unit of the dates of the POIs: they are sent in
+     * seconds.
+     */
+    public static final long DATE_UNIT = 1000;
+    public static final byte SUBMIT = 1;
+    public static final byte NOT_SEEN = 2;
+    public static final byte NOT_SEEN_ID = 3;
+    public static final byte GET_INFOS = 4;
+    public static final byte INFOS = 5;
+    public static final byte CHANGES = 6;
+    /**
+     * Flag of a CHANGES frame followed by another one.
+     */
+    public static final int MORE = 1;
+    /**
+     * Flag of a CHANGES frame giving all the POIs of the area.
+     */
+    public static final int FULL = 2;
+    /**
+     * First byte of a removed POI record, which is not a POI type.
+     */
+    public static final byte REMOVED = 0x7F;
+    /**
+     * Length of the length of a frame.
+     */
+    public static final int LENGTH_SIZE = 4;
+    /**
+     * A longer frame, length not included, is a protocol error.
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    /**
+     * Longest encoded POI, longer than a REMOVED record.
+     */
+    public static final int MAX_POI_LENGTH = 1 + 4 + 4 + 10 + 5 + 10;
+    private static final PoiType[] POI_TYPES = PoiType.values();
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Starts a frame.
+     *
+     * @param out Buffer, in write mode.
+     * @param opcode Opcode of the frame.
+     * @return Position of the frame, for endFrame.
+     */
+    public static int beginFrame(ByteBuffer out, byte opcode) {
+        int start = out.position();
+        out.putInt(0).put(opcode);
+        return start;
+    }
+
+    /**
+     * Ends a frame, writing its length.
+     *
+     * @param out Buffer, in write mode.
+     * @param start Position returned by beginFrame.
+     */
+    public static void endFrame(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start - LENGTH_SIZE);
+    }
+
+    /**
+     * Gets the length of a frame, once its 4 first bytes are read.
+     *
+     * @param buffer The buffer.
+     * @param index Index of the frame.
+     * @return The length of the frame, length not included.
+     * @throws ProtocolException If the length is invalid.
+     */
+    public static int frameLength(ByteBuffer buffer, int index) throws ProtocolException {
+        int length = buffer.getInt(index);
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Puts an unsigned varint.
+     */
+    public static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Gets an unsigned varint.
+     *
+     * @throws ProtocolException If the varint is truncated or too long.
+     */
+    public static long getVarLong(ByteBuffer in) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new ProtocolException("Truncated frame");
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Invalid varint");
+    }
+
+    /**
+     * Gets an unsigned varint fitting in an int.
+     *
+     * @throws ProtocolException If the varint is invalid or too large.
+     */
+    public static int getVarInt(ByteBuffer in) throws ProtocolException {
+        long value = getVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Invalid varint " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Puts a signed varint.
+     */
+    public static void putSignedVarLong(ByteBuffer out, long value) {
+        putVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Gets a signed varint.
+     *
+     * @throws ProtocolException If the varint is truncated or too long.
+     */
+    public static long getSignedVarLong(ByteBuffer in) throws ProtocolException {
+        long value = getVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Puts coordinates, in micro-degrees.
+     */
+    public static void putCoordinates(ByteBuffer out, double latitude, double longitude) {
+        out.putInt((int) Math.round(latitude * 1e6)).putInt((int) Math.round(longitude * 1e6));
+    }
+
+    /**
+     * Gets a coordinate.
+     *
+     * @throws ProtocolException If the frame is truncated.
+     */
+    public static double getCoordinate(ByteBuffer in) throws ProtocolException {
+        if (in.remaining() < 4) {
+            throw new ProtocolException("Truncated frame");
+        }
+        return in.getInt() / 1e6;
+    }
+
+    /**
+     * Puts a POI, with its identifier.
+     */
+    public static void putPoi(ByteBuffer out, Poi poi) {
+        out.put((byte) poi.getType().ordinal());
+        putCoordinates(out, poi.getLat(), poi.getLon());
+        long millis = poi.getDate().getTime();
+        putSignedVarLong(out, millis >= 0 ? millis / 1000 : (millis - 999) / 1000);
+        putVarLong(out, poi.getConfirmations());
+        putVarLong(out, poi.getId());
+    }
+
+    /**
+     * Gets a POI, with its identifier.
+     *
+     * @throws ProtocolException If the POI is invalid or truncated, or its
+     * date cannot be written by TimestampCodec.
+     */
+    public static Poi getPoi(ByteBuffer in) throws ProtocolException {
+        if (!in.hasRemaining()) {
+            throw new ProtocolException("Truncated frame");
+        }
+        int type = in.get();
+        if (type < 0 || type >= POI_TYPES.length) {
+            throw new ProtocolException("Invalid POI type " + type);
+        }
+        double latitude = getCoordinate(in);
+        double longitude = getCoordinate(in);
+        long seconds = getSignedVarLong(in);
+        if (seconds < TimestampCodec.MIN_MILLIS / 1000 || seconds > TimestampCodec.MAX_MILLIS / 1000) {
+            throw new ProtocolException("Invalid date " + seconds);
+        }
+        Date date = new Date(seconds * 1000);
+        Poi poi = POI_TYPES[type].constructPoi(latitude, longitude, date, getVarInt(in));
+        poi.setId(getVarLong(in));
+        return poi;
+    }
+}
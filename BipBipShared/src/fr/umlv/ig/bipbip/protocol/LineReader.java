@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.protocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reader of the lines of the text protocol from a blocking channel, and of
+ * the frames of the binary one once a session switches to it.
+ *
+ * The bytes are read in one reusable buffer, and the lines are handed to a
+ * LineTokenizer in place, without any copy. A line or a frame stays valid
+ * until the next one is read.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public final class LineReader {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    /**
+     * A longer line is a protocol error.
+     */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+    private final ReadableByteChannel channel;
+    /**
+     * Bytes read. The lines not read yet are between the position and the
+     * limit.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Index from which an end of line is searched.
+     */
+    private int scanned;
+    private boolean ended;
+    /**
+     * View of the buffer giving the frames. null until the first one.
+     */
+    private ByteBuffer frame;
+
+    /**
+     * Creates a reader.
+     *
+     * @param channel Channel to read, in blocking mode.
+     */
+    public LineReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer.limit(0);
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * The last line of the stream may have no end of line.
+     *
+     * @param tokenizer Tokenizer reset on the line.
+     * @return false at the end of the stream.
+     * @throws ProtocolException If the line is longer than MAX_LINE_LENGTH.
+     * @throws IOException If the channel cannot be read.
+     */
+    public boolean readLine(LineTokenizer tokenizer) throws IOException {
+        while (true) {
+            for (; scanned < buffer.limit(); scanned++) {
+                if (buffer.get(scanned) == '\n') {
+                    tokenizer.reset(buffer, buffer.position(), scanned);
+                    buffer.position(++scanned);
+                    return true;
+                }
+            }
+            if (ended) {
+                if (buffer.hasRemaining()) { // Last line.
+                    tokenizer.reset(buffer, buffer.position(), buffer.limit());
+                    buffer.position(buffer.limit());
+                    return true;
+                }
+                return false;
+            }
+
+            // Reads more bytes, after the pending line.
+            int pending = buffer.remaining();
+            if (buffer.capacity() >= MAX_LINE_LENGTH && pending == buffer.capacity()) {
+                throw new ProtocolException("Line too long");
+            }
+            fill(pending + 1);
+            scanned = pending;
+        }
+    }
+
+    /**
+     * Reads the next frame of the binary protocol.
+     *
+     * @return The frame, from its opcode to its end, or null at the end of
+     * the stream.
+     * @throws ProtocolException If the frame is invalid or truncated.
+     * @throws IOException If the channel cannot be read.
+     * @see BinaryProtocol
+     */
+    public ByteBuffer readFrame() throws IOException {
+        int length = -1;
+        while (true) {
+            if (length < 0 && buffer.remaining() >= BinaryProtocol.LENGTH_SIZE) {
+                length = BinaryProtocol.frameLength(buffer, buffer.position());
+            }
+            if (length >= 0 && buffer.remaining() >= BinaryProtocol.LENGTH_SIZE + length) {
+                break;
+            }
+            if (ended) {
+                if (buffer.hasRemaining()) {
+                    throw new ProtocolException("Truncated frame");
+                }
+                return null;
+            }
+            fill(BinaryProtocol.LENGTH_SIZE + Math.max(length, 0));
+        }
+        int start = buffer.position() + BinaryProtocol.LENGTH_SIZE;
+        buffer.position(start + length);
+        scanned = buffer.position();
+        if (frame == null) {
+            frame = buffer.duplicate();
+        }
+        frame.limit(start + length).position(start);
+        return frame;
+    }
+
+    /**
+     * Reads more bytes, after the pending ones.
+     *
+     * @param required Number of bytes the buffer must hold, pending ones
+     * included.
+     */
+    private void fill(int required) throws IOException {
+        buffer.compact();
+        if (buffer.capacity() < required) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+            frame = null;
+        }
+        ended = channel.read(buffer) < 0;
+        buffer.flip();
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tokenizer of a line of the text protocol, working in place in a buffer.
+ *
+ * The words are separated by spaces. They are parsed straight from the
+ * bytes, without any intermediate String: the parsing of a command allocates
+ * nothing. Only the errors build a message.
+ *
+ * The methods reading a word take the name of the expected value, for the
+ * error messages: nextDouble("latitude") throws "Missing latitude" at the end
+ * of the line, or "Invalid latitude: foo".
+ *
+ * A tokenizer is reused line after line, and is not thread safe.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public final class LineTokenizer {
+
+    /**
+     * Greatest integer exactly represented by a double.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    /**
+     * Digits parsed in place: 18, the greatest count fitting in a long.
+     */
+    private static final long MAX_MANTISSA = 999999999999999999L;
+    /**
+     * Powers of ten exactly represented by a double.
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    /**
+     * Powers of ten fitting in a long.
+     */
+    private static final long[] LONG_POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        LONG_POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    private ByteBuffer buffer;
+    private int start;
+    private int position;
+    private int end;
+
+    /**
+     * Tokenizes a line.
+     *
+     * The bytes must not change until the line is parsed. The end of line is
+     * not part of the line, a trailing carriage return is ignored.
+     *
+     * @param buffer Buffer holding the line. Its position and limit are not
+     * used.
+     * @param start Index of the first byte of the line.
+     * @param end Index following the last byte of the line.
+     */
+    public void reset(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.position = start;
+        this.end = end;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private void skipSeparators() {
+        while (position < end && isSeparator(buffer.get(position))) {
+            position++;
+        }
+    }
+
+    /**
+     * Gets the index following the word starting at the position.
+     */
+    private int wordEnd() {
+        int i = position;
+        while (i < end && !isSeparator(buffer.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns if another word follows.
+     */
+    public boolean hasNext() {
+        skipSeparators();
+        return position < end;
+    }
+
+    /**
+     * Returns if the next word is an integer, without reading it.
+     */
+    public boolean hasNextLong() {
+        if (!hasNext()) {
+            return false;
+        }
+        int wordEnd = wordEnd();
+        int i = position;
+        if (buffer.get(i) == '-' && i + 1 < wordEnd) {
+            i++;
+        }
+        for (; i < wordEnd; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return false;
+            }
+        }
+        return wordEnd - position <= 19;
+    }
+
+    /**
+     * Reads a word which must be a given keyword.
+     *
+     * @param keyword Expected keyword, in ASCII.
+     * @return false if the next word is another one. It is not read then.
+     */
+    public boolean nextIs(String keyword) {
+        if (!hasNext()) {
+            return false;
+        }
+        int wordEnd = wordEnd();
+        if (wordEnd - position != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (buffer.get(position + i) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        position = wordEnd;
+        return true;
+    }
+
+    /**
+     * Reads the name of an enumeration constant.
+     *
+     * @param values The constants. Cache the array of values(), it is a copy.
+     * @param what Name of the value, for the error messages.
+     * @return The constant.
+     * @throws ProtocolException If no constant has this name.
+     */
+    public <E extends Enum<E>> E nextEnum(E[] values, String what) throws ProtocolException {
+        if (!hasNext()) {
+            throw missing(what);
+        }
+        for (E value : values) {
+            if (nextIs(value.name())) {
+                return value;
+            }
+        }
+        throw invalid(what, wordEnd());
+    }
+
+    /**
+     * Reads an integer.
+     *
+     * @param what Name of the value, for the error messages.
+     * @return The value.
+     * @throws ProtocolException If the word is not an int.
+     */
+    public int nextInt(String what) throws ProtocolException {
+        if (!hasNext()) {
+            throw missing(what);
+        }
+        int wordStart = position;
+        int wordEnd = wordEnd();
+        long value = nextLong(what);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            position = wordStart;
+            throw invalid(what, wordEnd);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a long integer.
+     *
+     * @param what Name of the value, for the error messages.
+     * @return The value.
+     * @throws ProtocolException If the word is not a long.
+     */
+    public long nextLong(String what) throws ProtocolException {
+        if (!hasNext()) {
+            throw missing(what);
+        }
+        int wordEnd = wordEnd();
+        int i = position;
+        boolean negative = buffer.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == wordEnd || wordEnd - i > 19) {
+            throw invalid(what, wordEnd);
+        }
+        long value = 0;
+        for (; i < wordEnd; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || value < Long.MIN_VALUE / 10) {
+                throw invalid(what, wordEnd);
+            }
+            value = value * 10 - digit; // Negative, to reach Long.MIN_VALUE.
+            if (value > 0) {
+                throw invalid(what, wordEnd);
+            }
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw invalid(what, wordEnd);
+            }
+            value = -value;
+        }
+        position = wordEnd;
+        return value;
+    }
+
+    /**
+     * Reads a decimal number, as written by Double.toString.
+     *
+     * The numbers without exponent, with at most 18 digits and not below
+     * 0.001, as the coordinates, are parsed in place and exactly rounded. The
+     * other ones are handed to Double.parseDouble.
+     *
+     * @param what Name of the value, for the error messages.
+     * @return The value.
+     * @throws ProtocolException If the word is not a number.
+     */
+    public double nextDouble(String what) throws ProtocolException {
+        if (!hasNext()) {
+            throw missing(what);
+        }
+        int wordEnd = wordEnd();
+        int i = position;
+        boolean negative = buffer.get(i) == '-';
+        if (negative || buffer.get(i) == '+') {
+            i++;
+        }
+        long mantissa = 0;
+        int decimals = 0;
+        boolean digit = false;
+        boolean point = false;
+        boolean simple = true;
+        for (; i < wordEnd && simple; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                digit = true;
+                mantissa = mantissa * 10 + b - '0';
+                if (point) {
+                    decimals++;
+                }
+                simple = mantissa <= MAX_MANTISSA;
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                simple = false; // Exponent, NaN, Infinity or garbage.
+            }
+        }
+        double value = Double.NaN;
+        if (simple && digit && decimals < LONG_POWERS_OF_TEN.length) {
+            if (mantissa <= MAX_EXACT_MANTISSA) {
+                // Both are exact, so the division is exactly rounded.
+                value = mantissa / POWERS_OF_TEN[decimals];
+            } else {
+                value = round(mantissa, decimals);
+            }
+            if (negative) {
+                value = -value;
+            }
+        }
+        if (Double.isNaN(value)) {
+            StringBuilder word = new StringBuilder(wordEnd - position);
+            for (int j = position; j < wordEnd; j++) {
+                word.append((char) (buffer.get(j) & 0xFF));
+            }
+            try {
+                value = Double.parseDouble(word.toString());
+            } catch (NumberFormatException e) {
+                throw invalid(what, wordEnd);
+            }
+        }
+        position = wordEnd;
+        return value;
+    }
+
+    /**
+     * Rounds a decimal number to the nearest double.
+     *
+     * The quotient of the doubles is within a few units in the last place of
+     * the number. It is then moved to the nearest double, the number being
+     * compared with the midpoints between the doubles in integer arithmetic.
+     *
+     * @param mantissa Digits of the number, more than 2^53.
+     * @param decimals Number of digits after the point.
+     * @return The double, or NaN if the number is out of the range handled
+     * here.
+     */
+    private static double round(long mantissa, int decimals) {
+        double value = mantissa / POWERS_OF_TEN[decimals];
+        while (true) {
+            int above = compareToMidpoint(mantissa, decimals, value);
+            if (above == Integer.MIN_VALUE) {
+                return Double.NaN;
+            }
+            if (above > 0 || (above == 0 && isOdd(value))) {
+                value = Math.nextUp(value);
+                continue;
+            }
+            double previous = Math.nextAfter(value, 0);
+            int below = compareToMidpoint(mantissa, decimals, previous);
+            if (below == Integer.MIN_VALUE) {
+                return Double.NaN;
+            }
+            if (below < 0 || (below == 0 && isOdd(value))) {
+                value = previous;
+                continue;
+            }
+            return value;
+        }
+    }
+
+    private static boolean isOdd(double value) {
+        return (Double.doubleToRawLongBits(value) & 1) != 0;
+    }
+
+    /**
+     * Compares mantissa / 10^decimals with the midpoint between a positive
+     * double and the next one, exactly.
+     *
+     * With the double being M * 2^E, the midpoint is (2M + 1) * 2^(E - 1).
+     * Both sides are multiplied by 2^(1 - E) * 10^decimals, which gives two
+     * integers of at most 128 bits.
+     *
+     * @return The sign of the difference, or Integer.MIN_VALUE if the
+     * integers do not fit in 128 bits.
+     */
+    private static int compareToMidpoint(long mantissa, int decimals, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        int exponent = (int) (bits >>> 52) & 0x7FF;
+        int shift = 1075 + 1 - exponent; // 1 - E.
+        if (exponent == 0 || shift < 1 || shift > 64) {
+            return Integer.MIN_VALUE;
+        }
+        // mantissa * 2^(1 - E)
+        long leftHigh = shift == 64 ? mantissa : mantissa >>> (64 - shift);
+        long leftLow = shift == 64 ? 0 : mantissa << shift;
+        // (2M + 1) * 10^decimals, M having at most 53 bits and the power 60.
+        long a = ((bits & 0xFFFFFFFFFFFFFL) | (1L << 52)) * 2 + 1;
+        long b = LONG_POWERS_OF_TEN[decimals];
+        long aLow = a & 0xFFFFFFFFL;
+        long aHigh = a >>> 32;
+        long bLow = b & 0xFFFFFFFFL;
+        long bHigh = b >>> 32;
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + aLow * bHigh;
+        long rightHigh = aHigh * bHigh + (highLow >>> 32) + (cross >>> 32);
+        long rightLow = (cross << 32) | (lowLow & 0xFFFFFFFFL);
+
+        if (leftHigh != rightHigh) {
+            return leftHigh < rightHigh ? -1 : 1;
+        }
+        if (leftLow != rightLow) {
+            // Unsigned comparison.
+            return (leftLow ^ Long.MIN_VALUE) < (rightLow ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a timestamp of the protocol: yyyy-MM-dd'T'HH:mm:ss.SSS followed
+     * by Z or an offset from UTC, as +0200 or +02:00.
+     *
+     * @param what Name of the value, for the error messages.
+     * @return Milliseconds since the epoch.
+     * @throws ProtocolException If the word is not a timestamp.
+     */
+    public long nextTimestamp(String what) throws ProtocolException {
+        if (!hasNext()) {
+            throw missing(what);
+        }
+        int wordEnd = wordEnd();
+        long millis = TimestampCodec.WIRE.parse(buffer, position, wordEnd);
+        if (millis == Long.MIN_VALUE) {
+            throw invalid(what, wordEnd);
+        }
+        position = wordEnd;
+        return millis;
+    }
+
+    private ProtocolException missing(String what) {
+        return new ProtocolException("Missing " + what + ": " + this);
+    }
+
+    private ProtocolException invalid(String what, int wordEnd) {
+        return new ProtocolException("Invalid " + what + " " + text(position, wordEnd) + ": " + this);
+    }
+
+    private String text(int from, int to) {
+        StringBuilder text = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            text.append((char) (buffer.get(i) & 0xFF));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Gets the whole line, for the logs and the error messages.
+     */
+    @Override
+    public String toString() {
+        int lineEnd = end;
+        while (lineEnd > start && isSeparator(buffer.get(lineEnd - 1))) {
+            lineEnd--;
+        }
+        return text(start, lineEnd);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of the timestamps, in UTC with milliseconds.
+ *
+ * WIRE writes the format of the protocol, yyyy-MM-dd'T'HH:mm:ss.SSSZ, as
+ * 2012-05-21T14:03:27.512+0000. ISO writes the ISO-8601 form of the files,
+ * 2012-05-21T14:03:27.512Z. Both read Z, +HHMM and +HH:MM offsets, so the
+ * timestamps written by SimpleDateFormat in any time zone.
+ *
+ * Unlike SimpleDateFormat, a codec is immutable and thread safe. The digits
+ * are parsed and written by hand. The formatted date and time of the last
+ * second are cached, so the timestamps of the same second, as the ones of
+ * now, only write their milliseconds.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public final class TimestampCodec {
+
+    /**
+     * Format of the protocol.
+     */
+    public static final TimestampCodec WIRE = new TimestampCodec("+0000");
+    /**
+     * ISO-8601 format, of the files.
+     */
+    public static final TimestampCodec ISO = new TimestampCodec("Z");
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    /**
+     * First formattable timestamp, 0000-01-01T00:00:00.000Z.
+     */
+    public static final long MIN_MILLIS = -719528 * MILLIS_PER_DAY;
+    /**
+     * Last formattable timestamp, 9999-12-31T23:59:59.999Z.
+     */
+    public static final long MAX_MILLIS = 2932897 * MILLIS_PER_DAY - 1;
+    /**
+     * Length of yyyy-MM-dd'T'HH:mm:ss. with the point.
+     */
+    private static final int PREFIX_LENGTH = 20;
+    private final String zone;
+    private final int length;
+    /**
+     * Last second formatted. Replaced, never modified.
+     */
+    private volatile Prefix last = new Prefix(0);
+
+    private TimestampCodec(String zone) {
+        this.zone = zone;
+        this.length = PREFIX_LENGTH + 3 + zone.length();
+    }
+
+    /**
+     * Formatted date and time of a second.
+     */
+    private static final class Prefix {
+
+        private final long second;
+        private final char[] chars = new char[PREFIX_LENGTH];
+
+        private Prefix(long second) {
+            this.second = second;
+            long days = second >= 0 ? second / 86400 : (second - 86399) / 86400;
+            int time = (int) (second - days * 86400);
+
+            // Civil date of the day, with the algorithm of Howard Hinnant.
+            long z = days + 719468;
+            long era = (z >= 0 ? z : z - 146096) / 146097;
+            int dayOfEra = (int) (z - era * 146097);
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int shiftedMonth = (5 * dayOfYear + 2) / 153;
+            int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+            int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+            if (year < 0 || year > 9999) {
+                throw new IllegalArgumentException("Year out of range: " + year);
+            }
+
+            put(chars, 0, (int) year, 4);
+            chars[4] = '-';
+            put(chars, 5, month, 2);
+            chars[7] = '-';
+            put(chars, 8, day, 2);
+            chars[10] = 'T';
+            put(chars, 11, time / 3600, 2);
+            chars[13] = ':';
+            put(chars, 14, time / 60 % 60, 2);
+            chars[16] = ':';
+            put(chars, 17, time % 60, 2);
+            chars[19] = '.';
+        }
+    }
+
+    private static void put(char[] chars, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static int milliseconds(long millis) {
+        int milliseconds = (int) (millis % 1000);
+        return milliseconds < 0 ? milliseconds + 1000 : milliseconds;
+    }
+
+    private Prefix prefix(long millis) {
+        long second = millis >= 0 ? millis / 1000 : (millis - 999) / 1000;
+        Prefix prefix = last;
+        if (prefix.second != second) {
+            prefix = new Prefix(second);
+            last = prefix;
+        }
+        return prefix;
+    }
+
+    /**
+     * Gets the length of the formatted timestamps.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Formats a timestamp.
+     *
+     * @param millis Milliseconds since the epoch, between the years 0 and
+     * 9999.
+     * @return The formatted timestamp.
+     */
+    public String format(long millis) {
+        char[] chars = new char[length];
+        Prefix prefix = prefix(millis);
+        System.arraycopy(prefix.chars, 0, chars, 0, PREFIX_LENGTH);
+        put(chars, PREFIX_LENGTH, milliseconds(millis), 3);
+        zone.getChars(0, zone.length(), chars, PREFIX_LENGTH + 3);
+        return new String(chars);
+    }
+
+    /**
+     * Formats a timestamp at the end of a StringBuilder.
+     *
+     * @param millis Milliseconds since the epoch, between the years 0 and
+     * 9999.
+     * @param out Where to write.
+     */
+    public void format(long millis, StringBuilder out) {
+        out.append(prefix(millis).chars);
+        int milliseconds = milliseconds(millis);
+        out.append((char) ('0' + milliseconds / 100)).append((char) ('0' + milliseconds / 10 % 10)).append((char) ('0' + milliseconds % 10));
+        out.append(zone);
+    }
+
+    /**
+     * Formats a timestamp in ASCII at the position of a buffer.
+     *
+     * @param millis Milliseconds since the epoch, between the years 0 and
+     * 9999.
+     * @param out Where to write, with getLength() bytes remaining at least.
+     */
+    public void format(long millis, ByteBuffer out) {
+        char[] chars = prefix(millis).chars;
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            out.put((byte) chars[i]);
+        }
+        int milliseconds = milliseconds(millis);
+        out.put((byte) ('0' + milliseconds / 100)).put((byte) ('0' + milliseconds / 10 % 10)).put((byte) ('0' + milliseconds % 10));
+        for (int i = 0; i < zone.length(); i++) {
+            out.put((byte) zone.charAt(i));
+        }
+    }
+
+    /**
+     * Parses a timestamp.
+     *
+     * @param text The timestamp.
+     * @return Milliseconds since the epoch, between MIN_MILLIS and
+     * MAX_MILLIS.
+     * @throws IllegalArgumentException If the text is not a timestamp, or a
+     * timestamp which cannot be formatted.
+     */
+    public long parse(CharSequence text) {
+        long millis = parse(text, null, 0, text.length());
+        if (millis == Long.MIN_VALUE) {
+            throw new IllegalArgumentException("Invalid timestamp: " + text);
+        }
+        return millis;
+    }
+
+    /**
+     * Parses a timestamp written in ASCII in a buffer.
+     *
+     * @param buffer The buffer. Its position and limit are not used.
+     * @param start Index of the first byte of the timestamp.
+     * @param end Index following the last byte of the timestamp.
+     * @return Milliseconds since the epoch, or Long.MIN_VALUE if the bytes
+     * are not a timestamp, or a timestamp which cannot be formatted.
+     */
+    public long parse(ByteBuffer buffer, int start, int end) {
+        return parse(null, buffer, start, end);
+    }
+
+    /**
+     * Parses the characters of a text or the bytes of a buffer.
+     */
+    private static long parse(CharSequence text, ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (length < 24 || at(text, buffer, start + 4) != '-' || at(text, buffer, start + 7) != '-'
+                || at(text, buffer, start + 10) != 'T' || at(text, buffer, start + 13) != ':'
+                || at(text, buffer, start + 16) != ':' || at(text, buffer, start + 19) != '.') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(text, buffer, start, 4);
+        int month = digits(text, buffer, start + 5, 2);
+        int day = digits(text, buffer, start + 8, 2);
+        int hours = digits(text, buffer, start + 11, 2);
+        int minutes = digits(text, buffer, start + 14, 2);
+        int seconds = digits(text, buffer, start + 17, 2);
+        int millis = digits(text, buffer, start + 20, 3);
+        int offset;
+        int zone = at(text, buffer, start + 23);
+        if (zone == 'Z' && length == 24) {
+            offset = 0;
+        } else if ((zone == '+' || zone == '-') && (length == 28 || (length == 29 && at(text, buffer, start + 26) == ':'))) {
+            int offsetHours = digits(text, buffer, start + 24, 2);
+            int offsetMinutes = digits(text, buffer, start + (length == 28 ? 26 : 27), 2);
+            if (offsetHours < 0 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return Long.MIN_VALUE;
+            }
+            offset = (offsetHours * 60 + offsetMinutes) * 60000;
+            if (zone == '-') {
+                offset = -offset;
+            }
+        } else {
+            return Long.MIN_VALUE;
+        }
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hours < 0 || hours > 23 || minutes < 0
+                || minutes > 59 || seconds < 0 || seconds > 59 || millis < 0) {
+            return Long.MIN_VALUE;
+        }
+
+        // Days since the epoch of the civil date, with the algorithm of
+        // Howard Hinnant.
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = (int) (y - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+
+        long timestamp = days * MILLIS_PER_DAY + ((hours * 60 + minutes) * 60 + seconds) * 1000L + millis - offset;
+        if (timestamp < MIN_MILLIS || timestamp > MAX_MILLIS) { // Out of the years 0 to 9999 once in UTC.
+            return Long.MIN_VALUE;
+        }
+        return timestamp;
+    }
+
+    private static int at(CharSequence text, ByteBuffer buffer, int index) {
+        return text != null ? text.charAt(index) : buffer.get(index);
+    }
+
+    /**
+     * Parses a fixed number of digits.
+     *
+     * @return The value, or -1 if a character is not a digit.
+     */
+    private static int digits(CharSequence text, ByteBuffer buffer, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = at(text, buffer, i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -17,17 +17,20 @@
 package fr.umlv.ig.bipbip.client;
 
 import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiChanges;
 import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.BinaryProtocol;
+import fr.umlv.ig.bipbip.protocol.LineReader;
+import fr.umlv.ig.bipbip.protocol.LineTokenizer;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Locale;
+import java.util.Date;
 import java.util.Objects;
-import java.util.Scanner;
 import org.openstreetmap.gui.jmapviewer.Coordinate;
 
 /**
@@ -38,27 +41,20 @@ import org.openstreetmap.gui.jmapviewer.Coordinate;
 public class ServerCommunication {
 
     private static final int CONNECTION_TIMEOUT = 10000;
-    private final static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ROOT);
     private final SocketAddress address;
     private SocketChannel channel;
-
+    private LineReader reader;
+    private final LineTokenizer line = new LineTokenizer();
+    private static final PoiType[] POI_TYPES = PoiType.values();
     /**
-     * Lazy loading regex of supported POI types
+     * Version of the protocol: the latest one until the server answers
+     * HELLO, the text one with the servers which do not know it.
      */
-    private static class Regex {
-
-        private static String supportedPoiTypes;
-
-        static {
-            StringBuilder sb = new StringBuilder();
-            PoiType[] supportedTypes = PoiType.values();
-            for (PoiType type : supportedTypes) {
-                sb.append(type.name()).append("|");
-            }
-            sb.deleteCharAt(sb.length() - 1);
-            supportedPoiTypes = sb.toString();
-        }
-    }
+    private int version = BinaryProtocol.VERSION;
+    /**
+     * Frame of a command of the binary protocol.
+     */
+    private final ByteBuffer request = ByteBuffer.allocate(64);
 
     public ServerCommunication(SocketAddress address) {
         Objects.requireNonNull(address);
@@ -83,9 +79,16 @@ public class ServerCommunication {
             connect();
         }
 
-        String cmd = "SUBMIT " + poi.getType().name() + " " + poi.getLat() + " " + poi.getLon() + " " + dateFormat.format(poi.getDate()) + "\n";
+        ByteBuffer cmd;
+        if (version == BinaryProtocol.VERSION) {
+            int frame = beginFrame(BinaryProtocol.SUBMIT);
+            BinaryProtocol.putPoi(request, poi);
+            cmd = endFrame(frame);
+        } else {
+            cmd = ByteBuffer.wrap(("SUBMIT " + poi.getType().name() + " " + poi.getLat() + " " + poi.getLon() + " " + TimestampCodec.WIRE.format(poi.getDate().getTime()) + "\n").getBytes());
+        }
         try {
-            channel.write(ByteBuffer.wrap(cmd.getBytes()));
+            write(cmd);
         } catch (IOException e) {
             channel.close();
             throw new IOException("Unable to submit the POI to the server", e);
@@ -97,6 +100,7 @@ public class ServerCommunication {
      *
      * A NOT_SEEN command is supposed to have the following form: NOT_SEEN <POI
      * type> <latitude> <longitude> <date> <date> = yyyy-MM-dd'T'HH:mm:ss.SSSZ
+     * or NOT_SEEN <id> if the server gave an identifier to the POI.
      *
      * @param poi
      * @throws IOException
@@ -108,9 +112,24 @@ public class ServerCommunication {
             connect();
         }
 
-        String cmd = "NOT_SEEN " + poi.getType().name() + " " + poi.getLat() + " " + poi.getLon() + " " + dateFormat.format(poi.getDate()) + "\n";
+        ByteBuffer cmd;
+        if (version == BinaryProtocol.VERSION) {
+            int frame;
+            if (poi.getId() != Poi.UNDEFINED_ID) {
+                frame = beginFrame(BinaryProtocol.NOT_SEEN_ID);
+                BinaryProtocol.putVarLong(request, poi.getId());
+            } else {
+                frame = beginFrame(BinaryProtocol.NOT_SEEN);
+                BinaryProtocol.putPoi(request, poi);
+            }
+            cmd = endFrame(frame);
+        } else if (poi.getId() != Poi.UNDEFINED_ID) {
+            cmd = ByteBuffer.wrap(("NOT_SEEN " + poi.getId() + "\n").getBytes());
+        } else {
+            cmd = ByteBuffer.wrap(("NOT_SEEN " + poi.getType().name() + " " + poi.getLat() + " " + poi.getLon() + " " + TimestampCodec.WIRE.format(poi.getDate().getTime()) + "\n").getBytes());
+        }
         try {
-            channel.write(ByteBuffer.wrap(cmd.getBytes()));
+            write(cmd);
         } catch (IOException e) {
             channel.close();
             throw new IOException("Unable to report the POI as not seen to the server", e);
@@ -126,84 +145,200 @@ public class ServerCommunication {
      * where N is the number of lines of information. Each line is of the form:
      *
      * <line N> = INFO <POI type> <latitude> <longitude> <date> <nb
-     * confirmation> <date> = yyyy-MM-dd'T'HH:mm:ss.SSSZ
+     * confirmation> [<id>] <date> = yyyy-MM-dd'T'HH:mm:ss.SSSZ
      *
      * @param coordinate
      * @return
      * @throws IOException
      */
     public ArrayList<Poi> getPois(Coordinate coordinate) throws IOException {
+        return new ArrayList<Poi>(getChanges(coordinate, 0).getPois());
+    }
+
+    /**
+     * Get the changes of the POI around the coordinate since a previous
+     * request
+     *
+     * The answer is INFOS N <version> followed by all the POI, or CHANGES N
+     * <version> followed by the INFO lines of the added or updated POI and
+     * the REMOVED <id> lines of the removed ones. The older servers answer
+     * INFOS N without version: the changes are full, of version 0. With the
+     * binary protocol, the answer is made of CHANGES frames.
+     *
+     * @param coordinate
+     * @param since Version of the changes of the previous request around
+     * the same coordinate, or 0 to get all the POI.
+     * @return The changes, full if the version is 0, unknown by the server
+     * or too old.
+     * @throws IOException
+     */
+    public PoiChanges getChanges(Coordinate coordinate, long since) throws IOException {
         Objects.requireNonNull(coordinate);
 
         if (channel == null || !channel.isConnected()) {
             connect();
         }
 
-        String cmd = "GET_INFOS " + coordinate.getLat() + " " + coordinate.getLon() + "\n";
+        ByteBuffer cmd;
+        if (version == BinaryProtocol.VERSION) {
+            int frame = beginFrame(BinaryProtocol.GET_INFOS);
+            BinaryProtocol.putCoordinates(request, coordinate.getLat(), coordinate.getLon());
+            BinaryProtocol.putVarLong(request, since);
+            cmd = endFrame(frame);
+        } else { // Only the versions given by the server, the older ones do not expect any.
+            cmd = ByteBuffer.wrap(("GET_INFOS " + coordinate.getLat() + " " + coordinate.getLon() + (since != 0 ? " " + since : "") + "\n").getBytes());
+        }
         try {
-            channel.write(ByteBuffer.wrap(cmd.getBytes()));
+            write(cmd);
         } catch (IOException e) {
             channel.close();
             throw new IOException("Unable to request POIs from the server", e);
         }
 
-        Scanner scanner = new Scanner(channel);
-        if (!scanner.hasNextLine()) {
-            channel.close();
-            throw new IOException("No response from the server");
-        }
-
-        String line = scanner.nextLine();
-        if (!line.matches("INFOS \\d+")) {
-            channel.close();
-            throw new IOException("Invalide answer " + line);
-        }
-
-        int nbPoi;
-        try {
-            nbPoi = Integer.parseInt(line.split(" ")[1]);
-        } catch (NumberFormatException e) {
-            channel.close();
-            throw new IOException("Invalid number of POI: " + line, e);
-        }
-
         ArrayList<Poi> pois = new ArrayList<Poi>();
-        for (int i = 0; i < nbPoi; i++) {
-            if (!scanner.hasNextLine()) {
+        ArrayList<Long> removed = new ArrayList<Long>();
+        try {
+            if (version == BinaryProtocol.VERSION) {
+                return readBinaryChanges(pois, removed);
+            }
+            if (!reader.readLine(line)) {
                 channel.close();
-                throw new IOException("Missing INFO answer");
+                throw new IOException("No response from the server");
             }
-            line = scanner.nextLine();
+            boolean full = !line.nextIs("CHANGES");
+            if (full && !line.nextIs("INFOS")) {
+                throw new ProtocolException("Invalide answer " + line);
+            }
+            int nbPoi = line.nextInt("number of POI");
+            long newVersion = line.hasNext() ? line.nextLong("version") : 0; // Not sent by the older servers.
 
-            if (!line.matches("INFO (" + Regex.supportedPoiTypes + ") \\-?\\d{1,2}.\\d+ \\-?\\d{1,3}.\\d+ \\d\\d\\d\\d\\-\\d\\d\\-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d\\d\\d[+-]\\d\\d\\d\\d \\d+")) {
-                channel.close();
-                throw new IOException("Invalide answer " + line);
+            for (int i = 0; i < nbPoi; i++) {
+                if (!reader.readLine(line)) {
+                    channel.close();
+                    throw new IOException("Missing INFO answer");
+                }
+                if (!full && line.nextIs("REMOVED")) {
+                    removed.add(line.nextLong("identifier"));
+                    continue;
+                }
+                if (!line.nextIs("INFO")) {
+                    throw new ProtocolException("Invalide answer " + line);
+                }
+                PoiType type = line.nextEnum(POI_TYPES, "POI type");
+                double latitude = line.nextDouble("latitude");
+                double longitude = line.nextDouble("longitude");
+                Date date = new Date(line.nextTimestamp("date"));
+                Poi poi = type.constructPoi(latitude, longitude, date, line.nextInt("number of confirmations"));
+                if (line.hasNext()) { // Identifier, not sent by the older servers.
+                    poi.setId(line.nextLong("identifier"));
+                }
+                pois.add(poi);
             }
+            return new PoiChanges(newVersion, full, pois, removed);
+        } catch (ProtocolException e) {
+            channel.close();
+            throw new IOException("Invalid answer: " + e.getMessage(), e);
+        }
+    }
 
-            String[] split = line.split(" ");
-            PoiType type = PoiType.valueOf(split[1]);
-            try {
-                pois.add(type.constructPoi(Double.parseDouble(split[2]), Double.parseDouble(split[3]), dateFormat.parse(split[4]), Integer.parseInt(split[5])));
-            } catch (NumberFormatException e) {
-                channel.close();
-                throw new IOException("Invalid answer: " + e.getMessage(), e);
-            } catch (ParseException e) {
+    /**
+     * Reads the CHANGES frames of the binary protocol.
+     */
+    private PoiChanges readBinaryChanges(ArrayList<Poi> pois, ArrayList<Long> removed) throws IOException {
+        int flags = BinaryProtocol.MORE;
+        long newVersion = 0;
+        while ((flags & BinaryProtocol.MORE) != 0) {
+            ByteBuffer frame = reader.readFrame();
+            if (frame == null) {
                 channel.close();
-                throw new IOException("Invalid date format: " + split[4], e);
+                throw new IOException("No response from the server");
+            }
+            if (frame.get() != BinaryProtocol.CHANGES || !frame.hasRemaining()) {
+                throw new ProtocolException("Invalide answer frame");
+            }
+            flags = frame.get();
+            newVersion = BinaryProtocol.getVarLong(frame);
+            while (frame.hasRemaining()) {
+                if (frame.get(frame.position()) == BinaryProtocol.REMOVED) {
+                    frame.get();
+                    removed.add(BinaryProtocol.getVarLong(frame));
+                } else {
+                    pois.add(BinaryProtocol.getPoi(frame));
+                }
             }
         }
+        return new PoiChanges(newVersion, (flags & BinaryProtocol.FULL) != 0, pois, removed);
+    }
+
+    private int beginFrame(byte opcode) {
+        request.clear();
+        return BinaryProtocol.beginFrame(request, opcode);
+    }
 
-        return pois;
+    private ByteBuffer endFrame(int frame) {
+        BinaryProtocol.endFrame(request, frame);
+        request.flip();
+        return request;
     }
 
+    private void write(ByteBuffer cmd) throws IOException {
+        while (cmd.hasRemaining()) {
+            channel.write(cmd);
+        }
+    }
+
+    /**
+     * Connects to the server.
+     *
+     * The binary protocol is negotiated with HELLO. The servers which do not
+     * know it close the connection: the client connects again and keeps the
+     * text protocol with them.
+     *
+     * @throws IOException If the server cannot be reached.
+     */
     public void connect() throws IOException {
         try {
-            channel = SocketChannel.open(address);
-            channel.socket().setSoTimeout(CONNECTION_TIMEOUT);
+            open();
+            if (version == BinaryProtocol.TEXT_VERSION) {
+                return;
+            }
+            write(ByteBuffer.wrap(("HELLO " + BinaryProtocol.VERSION + "\n").getBytes()));
+            if (!reader.readLine(line)) { // HELLO unknown.
+                channel.close();
+                version = BinaryProtocol.TEXT_VERSION;
+                open();
+                return;
+            }
+            if (!line.nextIs("HELLO")) {
+                channel.close();
+                throw new ProtocolException("Invalide answer " + line);
+            }
+            int agreed = line.nextInt("version");
+            if (agreed < BinaryProtocol.TEXT_VERSION || agreed > BinaryProtocol.VERSION) {
+                channel.close();
+                throw new ProtocolException("Invalid version " + agreed);
+            }
+            version = agreed;
         } catch (IOException e) {
             throw new IOException("Unable to connect to the server", e);
         }
     }
+
+    private void open() throws IOException {
+        channel = SocketChannel.open(address);
+        channel.socket().setSoTimeout(CONNECTION_TIMEOUT);
+        reader = new LineReader(channel);
+    }
+
+    /**
+     * Gets the version of the protocol used with the server.
+     *
+     * @return The version negotiated by the last connection, or the latest
+     * one before it.
+     */
+    public int getVersion() {
+        return version;
+    }
     
     public void close() throws IOException {
         if (channel != null) {
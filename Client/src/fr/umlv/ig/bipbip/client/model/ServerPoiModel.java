@@ -18,6 +18,7 @@ package fr.umlv.ig.bipbip.client.model;
 
 import fr.umlv.ig.bipbip.client.ServerCommunication;
 import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiChanges;
 import fr.umlv.ig.bipbip.poi.PoiEvent;
 import java.io.IOException;
 import java.nio.channels.UnresolvedAddressException;
@@ -39,6 +40,12 @@ public class ServerPoiModel implements PoiModel, Runnable {
     private final ConcurrentLinkedQueue<PoiCommunicationListener> communicationListener = new ConcurrentLinkedQueue<PoiCommunicationListener>();
     private final ServerCommunication server;
     private final Timer timer = new Timer();
+    /**
+     * Version of the POIs given by the server, 0 if unknown, and the
+     * coordinate they are around. Only used by the update tasks.
+     */
+    private long version;
+    private Coordinate versionCoordinate;
 
     public ServerPoiModel(ServerCommunication server) {
         this.server = server;
@@ -260,32 +267,17 @@ public class ServerPoiModel implements PoiModel, Runnable {
         @Override
         public void run() {
             try {
-                ArrayList<Poi> newPois = (ArrayList<Poi>) server.getPois(coordinate);
-
-                // Delete each old POI
-                for (Poi poi : pois) {
-                    if (!newPois.contains(poi)) {
-                        removePoi(poi);
-                    }
-                }
-
-                // Add or update each new POI
-                for (Poi newPoi : newPois) {
-                    boolean found = false;
-                    for (Poi poi : pois) {
-                        if (newPoi.equals(poi)) {
-                            if (newPoi.getConfirmations() != poi.getConfirmations()
-                                    || newPoi.getRefutations() != poi.getRefutations()) {
-                                updatePoi(poi, newPoi);
-                            }
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        addPoi(newPoi);
-                    }
+                // Only the changes since the previous update of the same area.
+                boolean sameArea = versionCoordinate != null && versionCoordinate.getLat() == coordinate.getLat()
+                        && versionCoordinate.getLon() == coordinate.getLon();
+                PoiChanges changes = server.getChanges(coordinate, sameArea ? version : 0);
+                if (changes.isFull()) {
+                    replacePois(changes.getPois());
+                } else {
+                    applyChanges(changes);
                 }
+                version = changes.getVersion();
+                versionCoordinate = coordinate;
 
                 PoiEvent event = new PoiEvent(this, null);
                 for (PoiCommunicationListener listener : communicationListener) {
@@ -303,5 +295,70 @@ public class ServerPoiModel implements PoiModel, Runnable {
                 }
             }
         }
+
+        /**
+         * Replaces the POIs by all the POIs of the area.
+         */
+        private void replacePois(List<Poi> newPois) {
+            // Delete each old POI
+            for (Poi poi : pois) {
+                if (!newPois.contains(poi)) {
+                    removePoi(poi);
+                }
+            }
+
+            // Add or update each new POI
+            for (Poi newPoi : newPois) {
+                boolean found = false;
+                for (Poi poi : pois) {
+                    if (newPoi.equals(poi)) {
+                        if (newPoi.getConfirmations() != poi.getConfirmations()
+                                || newPoi.getRefutations() != poi.getRefutations()) {
+                            updatePoi(poi, newPoi);
+                        }
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    addPoi(newPoi);
+                }
+            }
+        }
+
+        /**
+         * Applies the changes of the area since the previous update.
+         */
+        private void applyChanges(PoiChanges changes) {
+            for (long id : changes.getRemoved()) {
+                Poi poi = findPoi(id);
+                if (poi != null) {
+                    removePoi(poi);
+                }
+            }
+
+            for (Poi newPoi : changes.getPois()) {
+                Poi poi = findPoi(newPoi.getId());
+                if (poi == null) {
+                    addPoi(newPoi);
+                } else if (poi.getType() != newPoi.getType() || poi.getLat() != newPoi.getLat()
+                        || poi.getLon() != newPoi.getLon()) { // Moved.
+                    removePoi(poi);
+                    addPoi(newPoi);
+                } else if (newPoi.getConfirmations() != poi.getConfirmations()
+                        || newPoi.getRefutations() != poi.getRefutations()) {
+                    updatePoi(poi, newPoi);
+                }
+            }
+        }
+
+        private Poi findPoi(long id) {
+            for (Poi poi : pois) {
+                if (poi.getId() == id) {
+                    return poi;
+                }
+            }
+            return null;
+        }
     }
 }
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.server.data.PoiSnapshot;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark of the persistence of the list of POI.
+ *
+ * For each size, a synthetic dataset is generated, then the save and load of
+ * the binary snapshots and of the XML files are measured, as the journal and
+ * the recovery, from an intact and from a truncated journal. The truncated
+ * snapshots must be detected. The results go to a JSON report, one entry per
+ * measure, so that two runs can be compared.
+ *
+ * The peak heap is the sum of the peaks of the heap pools during the measure:
+ * an upper bound. The 10 million POIs need a heap of several gigabytes.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipBenchmark {
+
+    private static final String USAGE = "Usage: BipbipBenchmark [-sizes <n,n,...>] [-removed <ratio>] [-journalOps <n>]\n"
+            + "                       [-seed <n>] [-dir <work directory>] [-report <file>]";
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    /**
+     * Number of cities around which the POIs are generated.
+     */
+    private static final int CITIES = 200;
+    private final File directory;
+    private final double removedRatio;
+    private final int journalOperations;
+    private final long seed;
+    private final List<String> results = new ArrayList<String>();
+    private boolean warmingUp;
+
+    private BipbipBenchmark(File directory, double removedRatio, int journalOperations, long seed) {
+        this.directory = directory;
+        this.removedRatio = removedRatio;
+        this.journalOperations = journalOperations;
+        this.seed = seed;
+    }
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {10000, 100000, 1000000};
+        double removedRatio = 0.5;
+        int journalOperations = 10000;
+        long seed = 42;
+        File directory = null;
+        File report = new File("benchmark.json");
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-sizes")) {
+                    String[] values = value.split(",");
+                    sizes = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        sizes[j] = Integer.parseInt(values[j].trim());
+                    }
+                } else if (arg.equals("-removed")) {
+                    removedRatio = Double.parseDouble(value);
+                    if (removedRatio < 0 || removedRatio > 1) {
+                        throw new IllegalArgumentException("Invalid ratio " + value);
+                    }
+                } else if (arg.equals("-journalOps")) {
+                    journalOperations = Integer.parseInt(value);
+                } else if (arg.equals("-seed")) {
+                    seed = Long.parseLong(value);
+                } else if (arg.equals("-dir")) {
+                    directory = new File(value);
+                } else if (arg.equals("-report")) {
+                    report = new File(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        boolean temporary = directory == null;
+        if (temporary) {
+            directory = Files.createTempDirectory("bipbip-benchmark").toFile();
+        } else if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        BipbipBenchmark benchmark = new BipbipBenchmark(directory, removedRatio, journalOperations, seed);
+        try {
+            // Warm-up, so the first size is not measured with the interpreter.
+            benchmark.warmingUp = true;
+            benchmark.run(Math.min(10000, sizes[0]));
+            benchmark.warmingUp = false;
+
+            for (int size : sizes) {
+                benchmark.run(size);
+            }
+        } finally {
+            if (temporary) {
+                delete(directory);
+            }
+        }
+        benchmark.writeReport(report, sizes);
+        System.out.println("Report written to " + report);
+    }
+
+    /**
+     * Measures everything for one size of dataset.
+     */
+    private void run(int size) throws Exception {
+        File dataset = new File(directory, "dataset-" + size + ".bin");
+        generate(size, dataset);
+
+        // Binary snapshot.
+        long start = begin();
+        ServerPoiList poiList = ServerPoiList.readFromSnapshot(dataset);
+        record(size, "binary", "load", start, dataset.length(), "ok");
+
+        File snapshot = new File(directory, "snapshot-" + size + ".bin");
+        start = begin();
+        poiList.saveToSnapshot(snapshot);
+        record(size, "binary", "save", start, snapshot.length(), "ok");
+
+        // XML file.
+        File xml = new File(directory, "database-" + size + ".xml");
+        start = begin();
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(xml), 64 * 1024);
+        try {
+            poiList.saveToFile(output);
+        } finally {
+            output.close();
+        }
+        record(size, "xml", "save", start, xml.length(), "ok");
+
+        int activeCount = poiList.getSize();
+        poiList = null;
+        start = begin();
+        InputStream input = new BufferedInputStream(new FileInputStream(xml), 64 * 1024);
+        try {
+            poiList = ServerPoiList.readFromFile(input);
+        } finally {
+            input.close();
+        }
+        record(size, "xml", "load", start, xml.length(), poiList.getSize() == activeCount ? "ok" : "mismatch");
+        poiList = null;
+
+        // Journal and recovery.
+        File journalDirectory = new File(directory, "journal-" + size);
+        File tornDirectory = new File(directory, "journal-" + size + "-torn");
+        journalDirectory.mkdirs();
+        tornDirectory.mkdirs();
+        copy(dataset, new File(journalDirectory, ServerPoiList.SNAPSHOT_PREFIX + 0 + ServerPoiList.SNAPSHOT_SUFFIX));
+        writeJournal(size, journalDirectory);
+
+        File lastSegment = null;
+        for (File file : journalDirectory.listFiles()) {
+            copy(file, new File(tornDirectory, file.getName()));
+            if (segmentNumber(file) > (lastSegment == null ? -1 : segmentNumber(lastSegment))) {
+                lastSegment = file;
+            }
+        }
+        truncate(new File(tornDirectory, lastSegment.getName()), 5); // Tears the last record.
+
+        int expected = activeCount + journalOperations;
+        start = begin();
+        poiList = ServerPoiList.recover(journalDirectory);
+        poiList.getJournal().close();
+        record(size, "journal", "recover", start, directorySize(journalDirectory), poiList.getSize() == expected ? "ok" : "lost " + (expected - poiList.getSize()));
+        poiList = null;
+
+        start = begin();
+        poiList = ServerPoiList.recover(tornDirectory);
+        poiList.getJournal().close();
+        int lost = expected - poiList.getSize();
+        record(size, "journal", "recover-truncated", start, directorySize(tornDirectory), lost == 1 ? "ok" : "lost " + lost);
+        poiList = null;
+
+        // A truncated snapshot must be refused, not half read.
+        File truncated = new File(directory, "truncated-" + size + ".bin");
+        copy(snapshot, truncated);
+        truncate(truncated, 17);
+        start = begin();
+        String outcome = "undetected";
+        try {
+            ServerPoiList.readFromSnapshot(truncated);
+        } catch (IOException e) {
+            outcome = "detected";
+        }
+        record(size, "binary", "load-truncated", start, truncated.length(), outcome);
+
+        truncated = new File(directory, "truncated-" + size + ".xml");
+        copy(xml, truncated);
+        truncate(truncated, xml.length() / 3);
+        start = begin();
+        outcome = "undetected";
+        input = new BufferedInputStream(new FileInputStream(truncated), 64 * 1024);
+        try {
+            ServerPoiList.readFromFile(input);
+        } catch (Exception e) {
+            outcome = "detected";
+        } finally {
+            input.close();
+        }
+        record(size, "xml", "load-truncated", start, truncated.length(), outcome);
+
+        delete(dataset);
+        delete(snapshot);
+        delete(xml);
+        delete(truncated);
+        delete(new File(directory, "truncated-" + size + ".bin"));
+        delete(journalDirectory);
+        delete(tornDirectory);
+    }
+
+    /**
+     * Generates a dataset: POIs around cities, reported during the last year.
+     * The removed ones lived a few days.
+     */
+    private void generate(int size, File file) throws IOException {
+        Random random = new Random(seed + size);
+        double[] cityLatitudes = new double[CITIES];
+        double[] cityLongitudes = new double[CITIES];
+        for (int i = 0; i < CITIES; i++) {
+            cityLatitudes[i] = 42 + random.nextDouble() * 9;
+            cityLongitudes[i] = -5 + random.nextDouble() * 13;
+        }
+        PoiType[] types = PoiType.values();
+        long now = System.currentTimeMillis();
+
+        ArrayList<Poi> active = new ArrayList<Poi>();
+        ArrayList<Poi> removed = new ArrayList<Poi>();
+        for (int i = 0; i < size; i++) {
+            int city = (int) (Math.abs(random.nextGaussian()) * CITIES / 3) % CITIES; // Some cities are bigger.
+            double latitude = cityLatitudes[city] + random.nextGaussian() * 0.2;
+            double longitude = cityLongitudes[city] + random.nextGaussian() * 0.2;
+            long date = now - (long) (random.nextDouble() * 365 * DAY);
+            int confirmations = 1;
+            while (random.nextDouble() < 0.6 && confirmations < 50) {
+                confirmations++;
+            }
+
+            Poi poi = types[random.nextInt(types.length)].constructPoi(latitude, longitude, new Date(date), confirmations);
+            poi.setId(i + 1);
+            if (random.nextDouble() < removedRatio) {
+                long lifetime = (long) (-Math.log(1 - random.nextDouble()) * 2 * DAY);
+                poi.setRefutations(random.nextInt(ServerPoiList.NB_REFUTATION_FOR_DELETE + 1));
+                poi.setRemovedDate(new Date(Math.min(now, date + lifetime)));
+                removed.add(poi);
+            } else {
+                active.add(poi);
+            }
+        }
+        PoiSnapshot.write(active, removed, file);
+    }
+
+    /**
+     * Adds POIs through the journal, far from the generated ones so that each
+     * one is a new POI.
+     */
+    private void writeJournal(int size, File journalDirectory) throws Exception {
+        final ServerPoiList poiList = ServerPoiList.recover(journalDirectory);
+        final PoiType[] types = PoiType.values();
+        final int threads = 4;
+
+        long start = begin();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            writers[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = first; i < journalOperations; i += threads) {
+                        double latitude = -50 + (i / 1000) * 0.01;
+                        double longitude = -100 + (i % 1000) * 0.01;
+                        poiList.addPoi(types[i % types.length].constructPoi(latitude, longitude, new Date()));
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long journalSize = 0;
+        for (File file : journalDirectory.listFiles()) {
+            if (segmentNumber(file) >= 0) {
+                journalSize += file.length();
+            }
+        }
+        record(size, "journal", "write", start, journalOperations, journalSize, "ok");
+        poiList.getJournal().close();
+    }
+
+    /**
+     * Collects the garbage and resets the peaks of the heap.
+     *
+     * @return The start time.
+     */
+    private static long begin() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        return System.nanoTime();
+    }
+
+    private void record(int size, String format, String operation, long start, long bytes, String outcome) {
+        record(size, format, operation, start, size, bytes, outcome);
+    }
+
+    private void record(int size, String format, String operation, long start, long items, long bytes, String outcome) {
+        long duration = System.nanoTime() - start;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        double perSecond = items * 1e9 / Math.max(1, duration);
+        if (warmingUp) {
+            return;
+        }
+
+        results.add(String.format(Locale.ROOT, "{\"pois\":%d,\"format\":\"%s\",\"operation\":\"%s\",\"millis\":%.1f,"
+                + "\"itemsPerSecond\":%.0f,\"bytes\":%d,\"megabytesPerSecond\":%.1f,\"peakHeapBytes\":%d,\"outcome\":\"%s\"}",
+                size, format, operation, duration / 1e6, perSecond, bytes, bytes * 1e9 / Math.max(1, duration) / 1e6, peakHeap, outcome));
+        System.out.println(String.format(Locale.ROOT, "%,11d POIs  %-8s %-18s %10.1f ms %,13.0f items/s %,15d bytes  peak heap %,6d MB  %s",
+                size, format, operation, duration / 1e6, perSecond, bytes, peakHeap / (1024 * 1024), outcome));
+    }
+
+    private void writeReport(File file, int[] sizes) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            StringBuilder sizeList = new StringBuilder();
+            for (int size : sizes) {
+                sizeList.append(sizeList.length() == 0 ? "" : ",").append(size);
+            }
+            writer.write(String.format(Locale.ROOT, "{\"timestamp\":%d,\"java\":\"%s\",\"processors\":%d,\"maxHeapBytes\":%d,"
+                    + "\"sizes\":[%s],\"removedRatio\":%s,\"journalOps\":%d,\"seed\":%d,\"results\":[\n",
+                    System.currentTimeMillis(), System.getProperty("java.version"), Runtime.getRuntime().availableProcessors(),
+                    Runtime.getRuntime().maxMemory(), sizeList, removedRatio, journalOperations, seed));
+            for (int i = 0; i < results.size(); i++) {
+                writer.write(results.get(i));
+                writer.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            writer.write("]}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        Files.copy(from.toPath(), to.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void truncate(File file, long bytes) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = output.getChannel();
+            channel.truncate(Math.max(0, channel.size() - bytes));
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Gets the number of a journal segment file, -1 for the other files.
+     */
+    private static long segmentNumber(File file) {
+        String name = file.getName();
+        if (!name.startsWith("journal-") || !name.endsWith(".log")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long directorySize(File directory) {
+        long size = 0;
+        for (File file : directory.listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.LineTokenizer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Microbenchmark of the decoding of the text protocol, on one thread.
+ *
+ * The commands received by the server and the INFO lines received by the
+ * client are decoded in place by LineTokenizer, and for comparison as before
+ * it: a Scanner per line and a SimpleDateFormat on the server, a regular
+ * expression and String.split on the client. For each one, the number of
+ * lines per second and the bytes allocated per line are printed.
+ *
+ * The allocations are measured by com.sun.management.ThreadMXBean, so they
+ * are only reported by the JVMs which have it.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipCodecBenchmark {
+
+    private static final String USAGE = "Usage: BipbipCodecBenchmark [-lines <n>] [-rounds <n>]";
+    private static final PoiType[] POI_TYPES = PoiType.values();
+    private static final String INFO_REGEX;
+
+    static {
+        StringBuilder types = new StringBuilder();
+        for (PoiType type : POI_TYPES) {
+            types.append(types.length() == 0 ? "" : "|").append(type.name());
+        }
+        INFO_REGEX = "INFO (" + types + ") \\-?\\d{1,2}.\\d+ \\-?\\d{1,3}.\\d+ \\d\\d\\d\\d\\-\\d\\d\\-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d\\d\\d[+-]\\d\\d\\d\\d \\d+( \\d+)?";
+    }
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ROOT);
+    private final LineTokenizer tokenizer = new LineTokenizer();
+    /**
+     * Sum of the decoded values, so that the JIT cannot drop the decoding.
+     */
+    private double checksum;
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        int lineCount = 100000;
+        int rounds = 5;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-lines")) {
+                    lineCount = Integer.parseInt(value);
+                } else if (arg.equals("-rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // Lines as sent by the client and by the server.
+        Random random = new Random(42);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ROOT);
+        String[] commands = new String[lineCount];
+        String[] infos = new String[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            PoiType type = POI_TYPES[random.nextInt(POI_TYPES.length)];
+            double latitude = 43 + random.nextDouble() * 7;
+            double longitude = 1 + random.nextDouble() * 7; // The former client rejected the exponents of Double.toString.
+            String date = format.format(new Date(System.currentTimeMillis() - random.nextInt(1000000000)));
+            switch (i % 4) {
+                case 0:
+                    commands[i] = "SUBMIT " + type.name() + " " + latitude + " " + longitude + " " + date;
+                    break;
+                case 1:
+                    commands[i] = "NOT_SEEN " + type.name() + " " + latitude + " " + longitude + " " + date;
+                    break;
+                case 2:
+                    commands[i] = "NOT_SEEN " + random.nextInt(10000000);
+                    break;
+                default:
+                    commands[i] = "GET_INFOS " + latitude + " " + longitude;
+                    break;
+            }
+            infos[i] = "INFO " + type.name() + " " + latitude + " " + longitude + " " + date + " " + random.nextInt(20) + " " + random.nextInt(10000000);
+        }
+        ByteBuffer commandBuffer = toBuffer(commands);
+        ByteBuffer infoBuffer = toBuffer(infos);
+        System.out.println(lineCount + " lines, " + rounds + " rounds, the best one is printed");
+
+        BipbipCodecBenchmark benchmark = new BipbipCodecBenchmark();
+        benchmark.measure("server commands, Scanner", commandBuffer, lineCount, rounds, 0);
+        benchmark.measure("server commands, LineTokenizer", commandBuffer, lineCount, rounds, 1);
+        benchmark.measure("client INFO lines, regex", infoBuffer, lineCount, rounds, 2);
+        benchmark.measure("client INFO lines, LineTokenizer", infoBuffer, lineCount, rounds, 3);
+        if (benchmark.checksum == 42) {
+            System.out.println(); // Never, uses the checksum.
+        }
+    }
+
+    /**
+     * Concatenates the lines, as they arrive on a socket.
+     */
+    private static ByteBuffer toBuffer(String[] lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void measure(String name, ByteBuffer buffer, int lineCount, int rounds, int decoder) throws Exception {
+        long bestTime = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            int lineStart = 0;
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) != '\n') {
+                    continue;
+                }
+                switch (decoder) {
+                    case 0:
+                        decodeCommandWithScanner(buffer, lineStart, i);
+                        break;
+                    case 1:
+                        decodeCommand(buffer, lineStart, i);
+                        break;
+                    case 2:
+                        decodeInfoWithRegex(buffer, lineStart, i);
+                        break;
+                    default:
+                        decodeInfo(buffer, lineStart, i);
+                        break;
+                }
+                lineStart = i + 1;
+            }
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            bestBytes = Math.min(bestBytes, allocatedBytes() - bytes);
+        }
+        System.out.println(String.format(Locale.ROOT, "%-34s %,12.0f lines/s %8.1f ns/line %,10.1f bytes/line",
+                name, lineCount * 1e9 / bestTime, (double) bestTime / lineCount, bestBytes < 0 ? Double.NaN : (double) bestBytes / lineCount));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return Long.MAX_VALUE; // Reported as NaN.
+    }
+
+    /**
+     * Decodes a command as the server did, from the line decoded by the
+     * Scanner of the socket.
+     */
+    private void decodeCommandWithScanner(ByteBuffer buffer, int start, int end) throws ParseException {
+        String line = new String(buffer.array(), start, end - start, StandardCharsets.US_ASCII);
+        Scanner scanner = new Scanner(line);
+        String command = scanner.next();
+        if (command.equals("GET_INFOS")) {
+            checksum += scanner.nextDouble() + scanner.nextDouble();
+        } else if (command.equals("NOT_SEEN") && scanner.hasNextLong()) {
+            checksum += scanner.nextLong();
+        } else {
+            checksum += PoiType.valueOf(scanner.next()).ordinal() + scanner.nextDouble() + scanner.nextDouble();
+            checksum += dateFormat.parse(scanner.next()).getTime();
+        }
+    }
+
+    private void decodeCommand(ByteBuffer buffer, int start, int end) throws Exception {
+        LineTokenizer line = tokenizer;
+        line.reset(buffer, start, end);
+        if (line.nextIs("GET_INFOS")) {
+            checksum += line.nextDouble("latitude") + line.nextDouble("longitude");
+        } else if (line.nextIs("NOT_SEEN") && line.hasNextLong()) {
+            checksum += line.nextLong("identifier");
+        } else {
+            line.nextIs("SUBMIT");
+            checksum += line.nextEnum(POI_TYPES, "type").ordinal() + line.nextDouble("latitude") + line.nextDouble("longitude");
+            checksum += line.nextTimestamp("date");
+        }
+    }
+
+    /**
+     * Decodes an INFO line as the client did.
+     */
+    private void decodeInfoWithRegex(ByteBuffer buffer, int start, int end) throws ParseException {
+        String line = new String(buffer.array(), start, end - start, StandardCharsets.US_ASCII);
+        if (!line.matches(INFO_REGEX)) {
+            throw new IllegalStateException("Invalid line " + line);
+        }
+        String[] split = line.split(" ");
+        Poi poi = PoiType.valueOf(split[1]).constructPoi(Double.parseDouble(split[2]), Double.parseDouble(split[3]),
+                dateFormat.parse(split[4]), Integer.parseInt(split[5]));
+        poi.setId(Long.parseLong(split[6]));
+        checksum += poi.getLat();
+    }
+
+    private void decodeInfo(ByteBuffer buffer, int start, int end) throws Exception {
+        LineTokenizer line = tokenizer;
+        line.reset(buffer, start, end);
+        line.nextIs("INFO");
+        PoiType type = line.nextEnum(POI_TYPES, "type");
+        double latitude = line.nextDouble("latitude");
+        double longitude = line.nextDouble("longitude");
+        Poi poi = type.constructPoi(latitude, longitude, new Date(line.nextTimestamp("date")), line.nextInt("confirmations"));
+        poi.setId(line.nextLong("identifier"));
+        checksum += poi.getLat();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiChanges;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.server.communication.ServerCommand;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark of the GET_INFOS polls of a client which does not move, with and
+ * without the version of its previous poll.
+ *
+ * Between two polls, a few POIs of the area are confirmed, refuted or added.
+ * Each poll is answered with all the POIs of the area, as before the
+ * versions, and with the changes since the previous poll, in both protocols:
+ * bytes and server time per poll, the lookup included. The changes are
+ * applied to a copy of the area, which must end with the same POIs as the
+ * list, else the exit code is 1.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipDeltaBenchmark {
+
+    private static final String USAGE = "Usage: BipbipDeltaBenchmark [-pois <n>] [-changes <n>] [-polls <n>] [-rounds <n>]";
+    private static final PoiType[] POI_TYPES = PoiType.values();
+    private static final double LATITUDE = 48.85;
+    private static final double LONGITUDE = 2.35;
+    /**
+     * Radius of the GET_INFOS area, in meter.
+     */
+    private static final double RADIUS = 20000;
+    private static final String[] NAMES = {"full, text", "changes, text", "full, binary", "changes, binary"};
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        int poiCount = 2000;
+        int changes = 5;
+        int polls = 2000;
+        int rounds = 5;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-pois")) {
+                    poiCount = Integer.parseInt(value);
+                } else if (arg.equals("-changes")) {
+                    changes = Integer.parseInt(value);
+                } else if (arg.equals("-polls")) {
+                    polls = Integer.parseInt(value);
+                } else if (arg.equals("-rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // A grid of POIs per type around the client, far enough not to be merged.
+        ServerPoiList list = new ServerPoiList();
+        int side = (int) Math.ceil(Math.sqrt((double) poiCount / POI_TYPES.length));
+        double step = 0.25 / side;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < poiCount; i++) {
+            int cell = i / POI_TYPES.length;
+            list.addPoi(POI_TYPES[i % POI_TYPES.length].constructPoi(LATITUDE - 0.125 + (cell / side) * step,
+                    LONGITUDE - 0.125 + (cell % side) * step, new Date(now)));
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%d POIs in the area, %d changes between two polls, %d polls, %d rounds, the best one is printed",
+                list.getPoisInArea(LATITUDE, LONGITUDE, RADIUS).size(), changes, polls, rounds));
+        Random random = new Random(42);
+        CountingChannel channel = new CountingChannel();
+        HashMap<Long, Poi> copy = new HashMap<Long, Poi>();
+        long[] bestTimes = new long[NAMES.length];
+        long[] bytes = new long[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            bestTimes[i] = Long.MAX_VALUE;
+        }
+        for (int round = 0; round < rounds; round++) {
+            PoiChanges first = list.getChangesInArea(LATITUDE, LONGITUDE, RADIUS, 0);
+            apply(copy, first);
+            long textVersion = first.getVersion();
+            long binaryVersion = first.getVersion();
+            long[] times = new long[NAMES.length];
+            for (int i = 0; i < NAMES.length; i++) {
+                bytes[i] = 0;
+            }
+            for (int poll = 0; poll < polls; poll++) {
+                change(list, random, changes);
+
+                for (int kind = 0; kind < NAMES.length; kind++) {
+                    channel.bytes = 0;
+                    long start = System.nanoTime();
+                    switch (kind) {
+                        case 0:
+                            ServerCommand.sendInfos(channel, list.getPoisInArea(LATITUDE, LONGITUDE, RADIUS), true);
+                            break;
+                        case 1: {
+                            PoiChanges delta = list.getChangesInArea(LATITUDE, LONGITUDE, RADIUS, textVersion);
+                            ServerCommand.sendChanges(channel, delta);
+                            textVersion = delta.getVersion();
+                            break;
+                        }
+                        case 2:
+                            ServerCommand.sendBinaryInfos(channel, list.getPoisInArea(LATITUDE, LONGITUDE, RADIUS));
+                            break;
+                        default: {
+                            PoiChanges delta = list.getChangesInArea(LATITUDE, LONGITUDE, RADIUS, binaryVersion);
+                            ServerCommand.sendBinaryChanges(channel, delta);
+                            binaryVersion = delta.getVersion();
+                            apply(copy, delta);
+                            break;
+                        }
+                    }
+                    times[kind] += System.nanoTime() - start;
+                    bytes[kind] += channel.bytes;
+                }
+            }
+            for (int i = 0; i < NAMES.length; i++) {
+                bestTimes[i] = Math.min(bestTimes[i], times[i]);
+            }
+        }
+
+        for (int i = 0; i < NAMES.length; i++) {
+            System.out.println(String.format(Locale.ROOT, "%-16s %,10.0f bytes/poll %,10.1f us/poll",
+                    NAMES[i], (double) bytes[i] / polls, bestTimes[i] / 1e3 / polls));
+        }
+
+        List<Poi> area = list.getPoisInArea(LATITUDE, LONGITUDE, RADIUS);
+        boolean same = copy.size() == area.size();
+        for (Poi poi : area) {
+            Poi copied = copy.get(poi.getId());
+            same &= copied == poi && copied.getConfirmations() == poi.getConfirmations();
+        }
+        if (!same) {
+            System.err.println("The changes do not give the POIs of the area");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Confirms, refutes or adds POIs of the area, as the clients would.
+     */
+    private static void change(ServerPoiList list, Random random, int changes) {
+        for (int i = 0; i < changes; i++) {
+            double latitude = LATITUDE - 0.125 + random.nextDouble() * 0.25;
+            double longitude = LONGITUDE - 0.125 + random.nextDouble() * 0.25;
+            PoiType type = POI_TYPES[random.nextInt(POI_TYPES.length)];
+            List<Poi> around = list.getPoisInArea(latitude, longitude, ServerPoiList.PRECISION * 4, type);
+            if (around.isEmpty() || random.nextBoolean()) {
+                list.addPoi(type.constructPoi(latitude, longitude, new Date()));
+            } else {
+                list.notSeen(around.get(0).getId());
+            }
+        }
+    }
+
+    /**
+     * Applies changes to a copy of the area, as a client would.
+     */
+    private static void apply(HashMap<Long, Poi> copy, PoiChanges changes) {
+        if (changes.isFull()) {
+            copy.clear();
+        }
+        for (long id : changes.getRemoved()) {
+            copy.remove(id);
+        }
+        for (Poi poi : changes.getPois()) {
+            copy.put(poi.getId(), poi);
+        }
+    }
+
+    /**
+     * Counts the bytes written, and drops them.
+     */
+    private static final class CountingChannel implements WritableByteChannel {
+
+        private long bytes;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            src.position(src.limit());
+            bytes += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.server.data.GeoArea;
+import fr.umlv.ig.bipbip.server.data.GeoDistance;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark and validation of the distance kernels of GeoDistance and
+ * GeoArea.
+ *
+ * The kernels are first checked against reference distances: the exact ones
+ * of a meridian degree, of a quarter of meridian and of antipodes, then
+ * random pairs of points up to 500 m, 20 km, 50 km and around the world,
+ * against the Vincenty formula of the sphere, which stays accurate at every
+ * distance. The haversine formula must be exact to 10 micrometers. The
+ * relative error of the equirectangular approximation under
+ * EQUIRECTANGULAR_MAX_DISTANCE, and of GeoDistance.distance, must be under
+ * 1e-4, and 1e-5 under the 60th parallel. The bounding box must contain
+ * every point of the area, and GeoArea.contains can only be wrong for the
+ * points within this error of the border. Else the exit code is 1. The error
+ * of the formula used before GeoDistance, which took the degrees for
+ * radians, is printed for comparison.
+ *
+ * Then the kernels are timed on pairs of points at most 20 km apart: calls
+ * per second of each one, and of the lookup test of an area.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipDistanceBenchmark {
+
+    private static final String USAGE = "Usage: BipbipDistanceBenchmark [-pairs <n>] [-rounds <n>] [-seed <n>]";
+    private static final double[] RANGES = {500, 20000, GeoDistance.EQUIRECTANGULAR_MAX_DISTANCE, 20000000};
+    private static final String[] KERNELS = {"haversine", "equirectangular", "distance", "area contains", "before GeoDistance"};
+    /**
+     * Relative error allowed to the approximations, up to the 80th parallel.
+     * Ten times less under the 60th.
+     */
+    private static final double MAX_RELATIVE_ERROR = 1e-4;
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) {
+        int pairs = 1000000;
+        int rounds = 5;
+        long seed = 42;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-pairs")) {
+                    pairs = Integer.parseInt(value);
+                } else if (arg.equals("-rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else if (arg.equals("-seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        boolean valid = checkExact();
+        Random random = new Random(seed);
+        for (double range : RANGES) {
+            valid &= checkRange(random, range, pairs);
+        }
+        measure(random, pairs, rounds);
+        if (!valid) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks the kernels on the distances known exactly.
+     */
+    private static boolean checkExact() {
+        double quarter = Math.PI / 2 * GeoDistance.EARTH_RADIUS;
+        double[][] cases = {
+            // latitude1, longitude1, latitude2, longitude2, distance
+            {45, 3, 46, 3, GeoDistance.METER_PER_DEGREE},
+            {0, 179.5, 0, -179.5, GeoDistance.METER_PER_DEGREE},
+            {0, 10, 90, 0, quarter},
+            {0, 0, 0, 90, quarter},
+            {30, 20, -30, -160, 2 * quarter}};
+        boolean valid = true;
+        for (double[] c : cases) {
+            double haversine = GeoDistance.haversine(c[0], c[1], c[2], c[3]);
+            double distance = GeoDistance.distance(c[0], c[1], c[2], c[3]);
+            boolean ok = Math.abs(haversine - c[4]) < 1e-6 && Math.abs(distance - c[4]) < 1e-6;
+            System.out.println(String.format(Locale.ROOT, "(%6.1f, %6.1f) to (%6.1f, %6.1f)  expected %,15.3f m   haversine %,15.3f m   distance %,15.3f m%s",
+                    c[0], c[1], c[2], c[3], c[4], haversine, distance, ok ? "" : "   WRONG"));
+            valid &= ok;
+        }
+        return valid;
+    }
+
+    /**
+     * Checks the kernels on random pairs at most range apart.
+     */
+    private static boolean checkRange(Random random, double range, int pairs) {
+        double haversineError = 0;
+        double beforeError = 0;
+        // Relative errors, of all the pairs and of the ones under the 60th parallel.
+        double[] equirectangularErrors = new double[2];
+        double[] distanceErrors = new double[2];
+        int outsideBox = 0;
+        int wrongContains = 0;
+        for (int i = 0; i < pairs; i++) {
+            double[] p = randomPair(random, range);
+            double reference = vincenty(p[0], p[1], p[2], p[3]);
+            haversineError = Math.max(haversineError, Math.abs(GeoDistance.haversine(p[0], p[1], p[2], p[3]) - reference));
+            beforeError = Math.max(beforeError, Math.abs(before(p[0], p[1], p[2], p[3]) - reference));
+            double scale = Math.max(reference, 1);
+            double equirectangularError = Math.abs(GeoDistance.equirectangular(p[0], p[1], p[2], p[3]) - reference) / scale;
+            double distanceError = Math.abs(GeoDistance.distance(p[0], p[1], p[2], p[3]) - reference) / scale;
+            for (int j = 0; j < (Math.abs(p[0]) <= 60 ? 2 : 1); j++) {
+                equirectangularErrors[j] = Math.max(equirectangularErrors[j], equirectangularError);
+                distanceErrors[j] = Math.max(distanceErrors[j], distanceError);
+            }
+
+            // An area whose border is close to the point.
+            double radius = reference * (0.98 + random.nextDouble() * 0.04);
+            GeoArea area = new GeoArea(p[0], p[1], radius);
+            if (reference <= radius && !area.inBoundingBox(p[2], p[3])) {
+                outsideBox++;
+            }
+            if (area.contains(p[2], p[3]) != (reference <= radius) && Math.abs(reference - radius) > MAX_RELATIVE_ERROR * radius) {
+                wrongContains++;
+            }
+        }
+
+        boolean approximated = range <= GeoDistance.EQUIRECTANGULAR_MAX_DISTANCE;
+        boolean valid = haversineError < 1e-5 && distanceErrors[0] < MAX_RELATIVE_ERROR && distanceErrors[1] < MAX_RELATIVE_ERROR / 10
+                && (!approximated || equirectangularErrors[0] < MAX_RELATIVE_ERROR && equirectangularErrors[1] < MAX_RELATIVE_ERROR / 10)
+                && outsideBox == 0 && wrongContains == 0;
+        System.out.println(String.format(Locale.ROOT, "up to %,10.0f m   haversine %.1e m   relative, all and under 60 degree: equirectangular %.1e %.1e  distance %.1e %.1e   before %,10.0f m   %d outside the box, %d wrong contains%s",
+                range, haversineError, equirectangularErrors[0], equirectangularErrors[1], distanceErrors[0], distanceErrors[1], beforeError,
+                outsideBox, wrongContains, valid ? "" : "   INVALID"));
+        return valid;
+    }
+
+    /**
+     * Times the kernels on pairs at most 20 km apart.
+     */
+    private static void measure(Random random, int pairs, int rounds) {
+        double[][] points = new double[pairs][];
+        GeoArea[] areas = new GeoArea[1024];
+        for (int i = 0; i < pairs; i++) {
+            points[i] = randomPair(random, 20000);
+        }
+        for (int i = 0; i < areas.length; i++) {
+            areas[i] = new GeoArea(points[i][0], points[i][1], 10000);
+        }
+
+        long[] best = new long[KERNELS.length];
+        double sink = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int k = 0; k < KERNELS.length; k++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < pairs; i++) {
+                    double[] p = points[i];
+                    switch (k) {
+                        case 0:
+                            sink += GeoDistance.haversine(p[0], p[1], p[2], p[3]);
+                            break;
+                        case 1:
+                            sink += GeoDistance.equirectangular(p[0], p[1], p[2], p[3]);
+                            break;
+                        case 2:
+                            sink += GeoDistance.distance(p[0], p[1], p[2], p[3]);
+                            break;
+                        case 3:
+                            sink += areas[i & (areas.length - 1)].contains(p[2], p[3]) ? 1 : 0;
+                            break;
+                        default:
+                            sink += before(p[0], p[1], p[2], p[3]);
+                    }
+                }
+                long time = System.nanoTime() - start;
+                if (round == 0 || time < best[k]) {
+                    best[k] = time;
+                }
+            }
+        }
+        for (int k = 0; k < KERNELS.length; k++) {
+            System.out.println(String.format(Locale.ROOT, "%-20s %8.1f ns/call %,14.0f calls/s", KERNELS[k], (double) best[k] / pairs, pairs * 1e9 / best[k]));
+        }
+        if (Double.isNaN(sink)) { // Keeps the results alive.
+            System.out.println();
+        }
+    }
+
+    /**
+     * Gets two points at most range apart, anywhere but too close to the
+     * poles for the pairs to make sense in degree.
+     */
+    private static double[] randomPair(Random random, double range) {
+        double latitude = random.nextDouble() * 160 - 80;
+        double longitude = random.nextDouble() * 360 - 180;
+        double distance = random.nextDouble() * range;
+        if (range > GeoDistance.EQUIRECTANGULAR_MAX_DISTANCE) {
+            return new double[]{latitude, longitude, Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1)), random.nextDouble() * 360 - 180};
+        }
+        double bearing = random.nextDouble() * 2 * Math.PI;
+        double latitude2 = latitude + GeoDistance.latitudeDelta(distance * Math.cos(bearing));
+        double longitude2 = longitude + GeoDistance.latitudeDelta(distance * Math.sin(bearing)) / Math.cos(Math.toRadians(latitude));
+        if (longitude2 > 180) {
+            longitude2 -= 360;
+        } else if (longitude2 < -180) {
+            longitude2 += 360;
+        }
+        return new double[]{latitude, longitude, latitude2, longitude2};
+    }
+
+    /**
+     * Reference distance: the Vincenty formula for a sphere, accurate at
+     * every distance, the antipodes included.
+     */
+    private static double vincenty(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double phi1 = Math.toRadians(latitude1);
+        double phi2 = Math.toRadians(latitude2);
+        double lambda = Math.toRadians(longitude2 - longitude1);
+        double a = Math.cos(phi2) * Math.sin(lambda);
+        double b = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(lambda);
+        double c = Math.sin(phi1) * Math.sin(phi2) + Math.cos(phi1) * Math.cos(phi2) * Math.cos(lambda);
+        return GeoDistance.EARTH_RADIUS * Math.atan2(Math.sqrt(a * a + b * b), c);
+    }
+
+    /**
+     * The distance of PoiList before GeoDistance, which took the degrees for
+     * radians.
+     */
+    private static double before(double latitude1, double longitude1, double latitude2, double longitude2) {
+        return 1852 * 60 * Math.acos(Math.sin(latitude1) * Math.sin(latitude2) + Math.cos(latitude1) * Math.cos(latitude2) * Math.cos(longitude2 - longitude1));
+    }
+}
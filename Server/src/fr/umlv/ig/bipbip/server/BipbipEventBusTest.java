@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiEvent;
+import fr.umlv.ig.bipbip.poi.PoiListener;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.server.data.PoiEventBus;
+import fr.umlv.ig.bipbip.server.data.PoiResyncListener;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Test of the event bus with a listener that cannot keep up.
+ *
+ * The executor of the listeners is stalled while many more events than the
+ * capacity of the bus are published, then released. A PoiResyncListener
+ * must be reloaded once and see the same POIs as the publisher, then get
+ * the next events as usual. A plain listener loses events.
+ *
+ * Exits with the status 1 if the resync listener misses a change.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipEventBusTest {
+
+    private static final String USAGE = "Usage: BipbipEventBusTest [-capacity <n>] [-events <n>]";
+
+    /**
+     * Executor running nothing until released.
+     */
+    private static final class StalledExecutor implements Executor {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        private void release() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Keeps its own copy of the active POIs, as the table models.
+     */
+    private static final class Mirror implements PoiResyncListener {
+
+        private final Set<Poi> published;
+        private final Set<Poi> pois = Collections.newSetFromMap(new IdentityHashMap<Poi, Boolean>());
+        private int events;
+        private int reloads;
+
+        private Mirror(Set<Poi> published) {
+            this.published = published;
+        }
+
+        @Override
+        public void poiAdded(PoiEvent event) {
+            events++;
+            pois.add(event.getPoi());
+        }
+
+        @Override
+        public void poiUpdated(PoiEvent event) {
+            events++;
+        }
+
+        @Override
+        public void poiRemoved(PoiEvent event) {
+            events++;
+            pois.remove(event.getPoi());
+        }
+
+        @Override
+        public void poisReloaded() {
+            reloads++;
+            pois.clear();
+            pois.addAll(published);
+        }
+    }
+
+    /**
+     * Launch the test.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) {
+        int capacity = 100;
+        int eventCount = 10000;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-capacity")) {
+                    capacity = Integer.parseInt(value);
+                } else if (arg.equals("-events")) {
+                    eventCount = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Set<Poi> published = Collections.newSetFromMap(new IdentityHashMap<Poi, Boolean>());
+        PoiEventBus bus = new PoiEventBus(capacity);
+        StalledExecutor executor = new StalledExecutor();
+        Mirror mirror = new Mirror(published);
+        final Mirror plain = new Mirror(published);
+        bus.subscribe(mirror, executor);
+        bus.subscribe(new PoiListener() { // Not a resync listener.
+
+            @Override
+            public void poiAdded(PoiEvent event) {
+                plain.poiAdded(event);
+            }
+
+            @Override
+            public void poiUpdated(PoiEvent event) {
+                plain.poiUpdated(event);
+            }
+
+            @Override
+            public void poiRemoved(PoiEvent event) {
+                plain.poiRemoved(event);
+            }
+        }, executor);
+
+        // Stalled: many more events than the capacity.
+        Random random = new Random(42);
+        ArrayList<Poi> pois = new ArrayList<Poi>();
+        publish(bus, published, pois, random, eventCount);
+        long dropped = bus.getDroppedEvents();
+        executor.release();
+        boolean reloaded = mirror.reloads == 1 && mirror.pois.equals(published);
+        System.out.println(String.format(Locale.ROOT, "stalled:  %,d events, capacity %,d   resync listener: %d reload, %,d events, %,d POIs of %,d   plain listener: %,d events, %,d POIs, %,d dropped",
+                eventCount, capacity, mirror.reloads, mirror.events, mirror.pois.size(), published.size(), plain.events, plain.pois.size(), dropped));
+
+        // Keeping up again: delivered one by one.
+        int events = mirror.events;
+        publish(bus, published, pois, random, capacity / 2);
+        executor.release();
+        boolean resumed = mirror.reloads == 1 && mirror.events > events && mirror.pois.equals(published);
+        System.out.println(String.format(Locale.ROOT, "resumed:  %,d events   resync listener: %d reload, %,d events, %,d POIs of %,d",
+                capacity / 2, mirror.reloads, mirror.events - events, mirror.pois.size(), published.size()));
+
+        if (!reloaded || !resumed || dropped == 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Publishes random additions, updates and removals.
+     */
+    private static void publish(PoiEventBus bus, Set<Poi> published, ArrayList<Poi> pois, Random random, int count) {
+        PoiType[] types = PoiType.values();
+        Date now = new Date();
+        for (int i = 0; i < count; i++) {
+            int action = random.nextInt(4);
+            if (pois.isEmpty() || action < 2) {
+                Poi poi = types[random.nextInt(types.length)].constructPoi(48 + random.nextDouble(), 2 + random.nextDouble(), now);
+                pois.add(poi);
+                published.add(poi);
+                bus.publishAdded(new PoiEvent(bus, poi));
+            } else if (action == 2) {
+                bus.publishUpdated(new PoiEvent(bus, pois.get(random.nextInt(pois.size()))));
+            } else {
+                Poi poi = pois.remove(random.nextInt(pois.size()));
+                published.remove(poi);
+                bus.publishRemoved(new PoiEvent(bus, poi));
+            }
+        }
+    }
+}
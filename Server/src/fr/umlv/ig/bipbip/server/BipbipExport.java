@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import fr.umlv.ig.bipbip.server.data.HistoryArchive;
+import fr.umlv.ig.bipbip.server.data.PoiExporter;
+import fr.umlv.ig.bipbip.server.data.PoiSnapshot;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import java.io.*;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Command line export of the POIs, without any GUI nor running server.
+ *
+ * The active and removed POIs are read from the last checkpoint of a journal
+ * directory, the archived ones from a history directory. The changes made
+ * after the last checkpoint are not exported.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipExport {
+
+    private static final String USAGE = "Usage: BipbipExport [-journal <dir>] [-history <dir>] [-format csv|geojson] [-gzip]\n"
+            + "                    [-from <date>] [-to <date>] [-bbox <minLat,minLon,maxLat,maxLon>] <output file|->\n"
+            + "Dates are yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss.SSSZ, in UTC. The output is gzipped if its name ends with .gz.";
+
+    /**
+     * Launch the export.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) {
+        File journalDirectory = null;
+        File historyDirectory = null;
+        PoiExporter.Format format = null;
+        boolean gzip = false;
+        Date from = null;
+        Date to = null;
+        double[] box = null;
+        String output = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-journal")) {
+                    journalDirectory = new File(value(args, ++i));
+                } else if (arg.equals("-history")) {
+                    historyDirectory = new File(value(args, ++i));
+                } else if (arg.equals("-format")) {
+                    format = PoiExporter.Format.valueOf(value(args, ++i).toUpperCase(Locale.ROOT));
+                } else if (arg.equals("-gzip")) {
+                    gzip = true;
+                } else if (arg.equals("-from")) {
+                    from = parseDate(value(args, ++i));
+                } else if (arg.equals("-to")) {
+                    to = parseDate(value(args, ++i));
+                } else if (arg.equals("-bbox")) {
+                    String[] values = value(args, ++i).split(",");
+                    if (values.length != 4) {
+                        throw new IllegalArgumentException("Invalid bounding box");
+                    }
+                    box = new double[4];
+                    for (int j = 0; j < 4; j++) {
+                        box[j] = Double.parseDouble(values[j]);
+                    }
+                } else if (output == null && (arg.equals("-") || !arg.startsWith("-"))) {
+                    output = arg;
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (output == null) {
+                throw new IllegalArgumentException("No output file");
+            }
+            if (journalDirectory == null && historyDirectory == null) {
+                throw new IllegalArgumentException("Nothing to export");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (format == null) {
+            format = output.contains(".json") || output.contains(".geojson") ? PoiExporter.Format.GEOJSON : PoiExporter.Format.CSV;
+        }
+        gzip |= output.endsWith(".gz");
+
+        try {
+            PoiSnapshot snapshot = null;
+            if (journalDirectory != null) {
+                File file = ServerPoiList.findSnapshot(journalDirectory);
+                if (file == null) {
+                    throw new FileNotFoundException("No checkpoint in " + journalDirectory);
+                }
+                snapshot = PoiSnapshot.open(file); // Kept even if a checkpoint replaces the file meanwhile.
+            }
+            HistoryArchive archive = null;
+            if (historyDirectory != null) {
+                if (!historyDirectory.isDirectory()) {
+                    throw new FileNotFoundException("No history in " + historyDirectory);
+                }
+                archive = new HistoryArchive(historyDirectory, 1);
+            }
+
+            long start = System.nanoTime();
+            OutputStream stream = output.equals("-") ? System.out : new FileOutputStream(output);
+            if (gzip) {
+                stream = new GZIPOutputStream(stream, 64 * 1024);
+            }
+            PoiExporter exporter = new PoiExporter(stream, format);
+            try {
+                exporter.setTimeRange(from, to);
+                if (box != null) {
+                    exporter.setArea(box[0], box[1], box[2], box[3]);
+                }
+                if (snapshot != null && archive != null) {
+                    exporter.export(snapshot, archive);
+                } else if (snapshot != null) {
+                    exporter.export(snapshot);
+                } else if (archive != null) {
+                    exporter.export(archive);
+                }
+            } finally {
+                exporter.close();
+            }
+            System.err.println(exporter.getCount() + " POIs exported in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Export failed. " + e.getLocalizedMessage());
+            System.exit(1);
+        }
+    }
+
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value of " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static Date parseDate(String text) {
+        try {
+            return new Date(TimestampCodec.ISO.parse(text.length() == 10 ? text + "T00:00:00.000Z" : text));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid date " + text);
+        }
+    }
+
+}
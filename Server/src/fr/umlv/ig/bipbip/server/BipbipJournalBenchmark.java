@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.server.data.PoiJournal;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Benchmark of the sustained SUBMIT throughput with the journal.
+ *
+ * For each number of writer threads, the writers submit POIs at random
+ * positions of France to a list holding some POIs already, as fast as they
+ * can during a while, without journal then with it. Each SUBMIT returns once
+ * its record is on the disk, the waiting writers sharing the same force
+ * (group commit): SUBMITs per second, latency of a SUBMIT, forces and SUBMITs
+ * per force. Then the journaled list is recovered from its directory: it must
+ * have the same POIs and confirmations, else the exit code is 1.
+ *
+ * The journal must be on the disk measured, see -dir.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipJournalBenchmark {
+
+    private static final String USAGE = "Usage: BipbipJournalBenchmark [-threads <n,n,...>] [-duration <seconds>] [-pois <n>] [-dir <directory>]\n"
+            + "                              [-seed <n>]";
+    private static final PoiType[] POI_TYPES = PoiType.values();
+    // Area of the POIs, France.
+    private static final double MIN_LATITUDE = 42;
+    private static final double MAX_LATITUDE = 51;
+    private static final double MIN_LONGITUDE = -5;
+    private static final double MAX_LONGITUDE = 8;
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 4, 16, 64};
+        int duration = 5;
+        int poiCount = 100000;
+        File directory = null;
+        long seed = 42;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-threads")) {
+                    String[] values = value.split(",");
+                    threadCounts = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        threadCounts[j] = Integer.parseInt(values[j].trim());
+                    }
+                } else if (arg.equals("-duration")) {
+                    duration = Integer.parseInt(value);
+                } else if (arg.equals("-pois")) {
+                    poiCount = Integer.parseInt(value);
+                } else if (arg.equals("-dir")) {
+                    directory = new File(value);
+                } else if (arg.equals("-seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Logger.getLogger("fr.umlv.ig.bipbip").setLevel(Level.WARNING);
+        boolean temporary = directory == null;
+        if (temporary) {
+            directory = Files.createTempDirectory("bipbip-journal").toFile();
+        } else if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%,d POIs, SUBMITs during %d s, journal in %s", poiCount, duration, directory));
+        Random random = new Random(seed);
+        List<Poi> dataset = randomPois(random, poiCount);
+        boolean failed = false;
+        try {
+            // Warm-up, so the first run is not measured with the interpreter.
+            submit(newList(dataset, null), 4, 1000, new Random(seed));
+
+            for (int threads : threadCounts) {
+                ServerPoiList list = newList(dataset, null);
+                print("memory", threads, submit(list, threads, duration * 1000L, random), 0, true);
+
+                File journalDirectory = new File(directory, "journal-" + threads);
+                list = newList(dataset, journalDirectory);
+                PoiJournal journal = list.getJournal();
+                long forces = journal.getForceCount();
+                Latencies latencies = submit(list, threads, duration * 1000L, random);
+                forces = journal.getForceCount() - forces;
+                journal.close();
+
+                ServerPoiList recovered = ServerPoiList.recover(journalDirectory);
+                recovered.getJournal().close();
+                boolean same = recovered.getSize() == list.getSize() && confirmations(recovered) == confirmations(list);
+                print("journal", threads, latencies, forces, same);
+                failed |= !same;
+                delete(journalDirectory);
+            }
+        } finally {
+            if (temporary) {
+                delete(directory);
+            }
+        }
+        if (failed) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+    }
+
+    private static void print(String way, int threads, Latencies latencies, long forces, boolean recovered) {
+        System.out.println(String.format(Locale.ROOT, "%-8s %3d threads %,9.0f SUBMITs/s   latency p50 %8.1f us p99 %8.1f us   %s",
+                way, threads, latencies.count * 1000.0 / latencies.duration, latencies.percentile(0.5) / 1e3, latencies.percentile(0.99) / 1e3,
+                way.equals("memory") ? "" : String.format(Locale.ROOT, "%,8d forces %6.1f SUBMITs/force   %s",
+                forces, forces == 0 ? Double.NaN : (double) latencies.count / forces, recovered ? "recovered" : "RECOVERY DIFFERENT")));
+    }
+
+    /**
+     * Creates a list holding the dataset, journaled in a new directory if
+     * one is given.
+     */
+    private static ServerPoiList newList(List<Poi> dataset, File journalDirectory) throws Exception {
+        ArrayList<Poi> copy = new ArrayList<Poi>(dataset.size());
+        for (Poi poi : dataset) {
+            copy.add(poi.getType().constructPoi(poi.getLat(), poi.getLon(), poi.getDate(), poi.getConfirmations()));
+        }
+        if (journalDirectory == null) {
+            ServerPoiList list = new ServerPoiList();
+            list.merge(copy);
+            return list;
+        }
+        delete(journalDirectory);
+        ServerPoiList list = ServerPoiList.recover(journalDirectory);
+        list.merge(copy);
+        list.checkpoint();
+        return list;
+    }
+
+    /**
+     * Submits random POIs from several threads during a while.
+     *
+     * @return The latencies of the SUBMITs.
+     */
+    private static Latencies submit(final ServerPoiList list, int threadCount, final long duration, Random random) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + duration;
+        final Latencies[] latencies = new Latencies[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Random threadRandom = new Random(random.nextLong());
+            final Latencies threadLatencies = new Latencies();
+            latencies[t] = threadLatencies;
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < deadline) {
+                        Poi poi = randomPoi(threadRandom);
+                        long start = System.nanoTime();
+                        list.addPoi(poi);
+                        threadLatencies.add(System.nanoTime() - start);
+                    }
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Latencies all = new Latencies();
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+            all.addAll(latencies[t]);
+        }
+        all.duration = System.currentTimeMillis() - start;
+        return all;
+    }
+
+    private static List<Poi> randomPois(Random random, int count) {
+        ArrayList<Poi> pois = new ArrayList<Poi>(count);
+        for (int i = 0; i < count; i++) {
+            pois.add(randomPoi(random));
+        }
+        return pois;
+    }
+
+    private static Poi randomPoi(Random random) {
+        return POI_TYPES[random.nextInt(POI_TYPES.length)].constructPoi(
+                MIN_LATITUDE + random.nextDouble() * (MAX_LATITUDE - MIN_LATITUDE),
+                MIN_LONGITUDE + random.nextDouble() * (MAX_LONGITUDE - MIN_LONGITUDE), new Date());
+    }
+
+    private static long confirmations(ServerPoiList list) {
+        long sum = 0;
+        for (Poi poi : list.getPois()) {
+            sum += poi.getConfirmations();
+        }
+        return sum;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Latencies of SUBMITs, in nanoseconds.
+     */
+    private static final class Latencies {
+
+        private long[] values = new long[1024];
+        private int count;
+        /**
+         * Duration of the run, in milliseconds.
+         */
+        private long duration;
+
+        private void add(long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+
+        private void addAll(Latencies other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        /**
+         * Gets a percentile, in nanoseconds.
+         */
+        private double percentile(double rank) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) (rank * count))];
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.server.communication.Server;
+import fr.umlv.ig.bipbip.server.communication.ServerMode;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection scaling load test of the server.
+ *
+ * For every server mode, a server is started in this JVM and many clients
+ * connect to it. Every client sends one GET_INFOS as soon as it is connected:
+ * the clients answered before the timeout are the served ones. Then a few of
+ * them poll as fast as they can during a while, the others staying connected
+ * and idle, as the drivers between two polls.
+ *
+ * The clients are multiplexed on one selector, so that thousands of them do
+ * not need thousands of threads. They share the CPU with the server.
+ *
+ * Each connection takes a descriptor on both sides: with -server fork, every
+ * server runs in its own JVM, so that the connections are limited by the
+ * descriptors of a process and not of both. The forked server prints the
+ * most platform threads it had; the virtual threads are not counted.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipLoadTest {
+
+    private static final String USAGE = "Usage: BipbipLoadTest [-modes <mode,mode,...>] [-connections <n>] [-active <n>]\n"
+            + "                      [-duration <seconds>] [-timeout <seconds>] [-pois <n>] [-port <port>] [-seed <n>]\n"
+            + "                      [-server <same|fork>]";
+    // Area of the POIs, around Paris. A query returns some hundreds of them.
+    private static final double MIN_LATITUDE = 47.5;
+    private static final double MAX_LATITUDE = 49.5;
+    private static final double MIN_LONGITUDE = 0.8;
+    private static final double MAX_LONGITUDE = 3.8;
+    private final int connectionCount;
+    private final int activeCount;
+    private final long duration;
+    private final long timeout;
+    private final Random random;
+
+    private BipbipLoadTest(int connectionCount, int activeCount, long duration, long timeout, long seed) {
+        this.connectionCount = connectionCount;
+        this.activeCount = activeCount;
+        this.duration = duration;
+        this.timeout = timeout;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Launch the load test.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        List<ServerMode> modes = Arrays.asList(ServerMode.values());
+        int connections = 2000;
+        int active = 50;
+        int duration = 10;
+        int timeout = 10;
+        int poiCount = 20000;
+        int port = 7000;
+        long seed = 42;
+        boolean fork = false;
+        ServerMode serve = null; // Set in the forked JVMs.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-modes")) {
+                    modes = new ArrayList<ServerMode>();
+                    for (String mode : value.split(",")) {
+                        modes.add(ServerMode.valueOf(mode.trim().toUpperCase(Locale.ROOT)));
+                    }
+                } else if (arg.equals("-connections")) {
+                    connections = Integer.parseInt(value);
+                } else if (arg.equals("-active")) {
+                    active = Integer.parseInt(value);
+                } else if (arg.equals("-duration")) {
+                    duration = Integer.parseInt(value);
+                } else if (arg.equals("-timeout")) {
+                    timeout = Integer.parseInt(value);
+                } else if (arg.equals("-pois")) {
+                    poiCount = Integer.parseInt(value);
+                } else if (arg.equals("-port")) {
+                    port = Integer.parseInt(value);
+                } else if (arg.equals("-seed")) {
+                    seed = Long.parseLong(value);
+                } else if (arg.equals("-server")) {
+                    fork = value.equals("fork");
+                    if (!fork && !value.equals("same")) {
+                        throw new IllegalArgumentException("Unknown server " + value);
+                    }
+                } else if (arg.equals("-serve")) {
+                    serve = ServerMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // The servers log every command.
+        Logger.getLogger("fr.umlv.ig.bipbip").setLevel(Level.WARNING);
+        Logger.getLogger("fr.umlv.ig.bipbip.server.ClientCommandHandler").setLevel(Level.WARNING);
+
+        if (serve != null) {
+            serve(serve, port, newPoiList(poiCount, seed));
+            return;
+        }
+        ServerPoiList poiList = fork ? null : newPoiList(poiCount, seed);
+        System.out.println(poiCount + " POIs, " + connections + " connections, " + active + " active during " + duration + " s"
+                + (fork ? ", servers forked" : "") + ", Java " + System.getProperty("java.version"));
+
+        BipbipLoadTest test = new BipbipLoadTest(connections, active, duration * 1000L, timeout * 1000L, seed);
+        for (ServerMode mode : modes) {
+            if (fork) {
+                Process process = fork(mode, port, poiCount, seed);
+                try {
+                    test.run(mode, port);
+                } finally {
+                    stop(mode, process);
+                }
+            } else {
+                Server server = new Server(port, poiList, mode);
+                server.serve();
+                try {
+                    test.run(mode, port);
+                } finally {
+                    server.disconnect();
+                }
+            }
+            port++; // The previous one may still be in TIME_WAIT.
+            Thread.sleep(1000);
+        }
+    }
+
+    private static ServerPoiList newPoiList(int poiCount, long seed) {
+        Random random = new Random(seed);
+        ArrayList<Poi> pois = new ArrayList<Poi>(poiCount);
+        PoiType[] types = PoiType.values();
+        Date now = new Date();
+        for (int i = 0; i < poiCount; i++) {
+            pois.add(types[random.nextInt(types.length)].constructPoi(
+                    MIN_LATITUDE + random.nextDouble() * (MAX_LATITUDE - MIN_LATITUDE),
+                    MIN_LONGITUDE + random.nextDouble() * (MAX_LONGITUDE - MIN_LONGITUDE), now));
+        }
+        ServerPoiList poiList = new ServerPoiList();
+        poiList.merge(pois);
+        return poiList;
+    }
+
+    /**
+     * Starts the server of a mode in another JVM, and waits until it accepts
+     * the connections.
+     */
+    private static Process fork(ServerMode mode, int port, int poiCount, long seed) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), BipbipLoadTest.class.getName(),
+                "-serve", mode.name(), "-port", Integer.toString(port), "-pois", Integer.toString(poiCount), "-seed", Long.toString(seed));
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+        String line = reader.readLine();
+        if (!"READY".equals(line)) {
+            process.destroy();
+            throw new IOException("The server " + mode + " did not start: " + line);
+        }
+        return process;
+    }
+
+    /**
+     * Stops a forked server, and prints the most threads it had.
+     */
+    private static void stop(ServerMode mode, Process process) throws IOException, InterruptedException {
+        process.getOutputStream().close();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+        String threads = reader.readLine();
+        process.waitFor();
+        System.out.println(String.format(Locale.ROOT, "%-29s server   %s platform threads at most", mode, threads));
+    }
+
+    /**
+     * Serves until the standard input is closed, in a forked JVM.
+     */
+    private static void serve(ServerMode mode, int port, ServerPoiList poiList) throws IOException {
+        Server server = new Server(port, poiList, mode);
+        server.serve();
+        System.out.println("READY");
+        System.out.flush();
+        while (System.in.read() >= 0) {
+            // Waits for the end of the test.
+        }
+        System.out.println(String.format(Locale.ROOT, "%,d", ManagementFactory.getThreadMXBean().getPeakThreadCount()));
+        System.out.flush();
+        server.disconnect();
+        System.exit(0);
+    }
+
+    private void run(ServerMode mode, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+        Selector selector = Selector.open();
+        ArrayList<Client> clients = new ArrayList<Client>(connectionCount);
+        try {
+            // Every client connects and asks once.
+            long start = System.nanoTime();
+            for (int i = 0; i < connectionCount; i++) {
+                Client client = new Client(SocketChannel.open());
+                client.channel.configureBlocking(false);
+                client.channel.connect(address);
+                client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+                clients.add(client);
+            }
+            Latencies first = new Latencies();
+            long deadline = System.nanoTime() + timeout * 1000000;
+            while (first.count < connectionCount && System.nanoTime() < deadline) {
+                poll(selector, first, false);
+            }
+            int connected = 0;
+            for (Client client : clients) {
+                if (client.channel.isConnected()) {
+                    connected++;
+                }
+            }
+            System.out.println(String.format(Locale.ROOT, "%-29s connect  %,6d connected %,6d served in %5.1f s   first response p50 %7.1f ms p99 %7.1f ms   %,5d threads",
+                    mode, connected, first.count, (System.nanoTime() - start) / 1e9, first.percentile(0.5), first.percentile(0.99),
+                    ManagementFactory.getThreadMXBean().getThreadCount()));
+
+            // A few served clients poll, the others idle.
+            int active = 0;
+            for (Client client : clients) {
+                client.active = client.served && active < activeCount;
+                if (client.active) {
+                    active++;
+                    client.request(random);
+                }
+            }
+            Latencies polls = new Latencies();
+            start = System.nanoTime();
+            deadline = start + duration * 1000000;
+            while (System.nanoTime() < deadline) {
+                poll(selector, polls, true);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int still = 0;
+            for (Client client : clients) {
+                if (client.served && client.channel.isOpen()) {
+                    still++;
+                }
+            }
+            System.out.println(String.format(Locale.ROOT, "%-29s poll     %,6d active %,9.0f responses/s %,6d lines/response   latency p50 %7.1f ms p99 %7.1f ms   %,6d still connected",
+                    mode, active, polls.count / seconds, polls.count == 0 ? 0 : polls.lines / polls.count, polls.percentile(0.5),
+                    polls.percentile(0.99), still));
+        } finally {
+            for (Client client : clients) {
+                client.channel.close();
+            }
+            selector.close();
+        }
+    }
+
+    private void poll(Selector selector, Latencies latencies, boolean again) throws IOException {
+        selector.select(100);
+        for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+            SelectionKey key = it.next();
+            it.remove();
+            Client client = (Client) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    client.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    client.request(random);
+                } else if (key.isReadable() && client.read()) {
+                    latencies.add(System.nanoTime() - client.requestTime, client.lines);
+                    client.served = true;
+                    if (again && client.active) {
+                        client.request(random);
+                    }
+                }
+            } catch (IOException e) { // Closed by the server.
+                key.cancel();
+                client.channel.close();
+            }
+        }
+    }
+
+    /**
+     * A client, waiting for the response to its last request.
+     */
+    private static final class Client {
+
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        private final StringBuilder header = new StringBuilder();
+        private long requestTime;
+        /**
+         * Number of INFO lines announced, -1 while the header is read.
+         */
+        private int expected;
+        private int lines;
+        private boolean served;
+        private boolean active;
+
+        private Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void request(Random random) throws IOException {
+            String command = String.format(Locale.ROOT, "GET_INFOS %f %f\n",
+                    MIN_LATITUDE + 0.25 + random.nextDouble() * (MAX_LATITUDE - MIN_LATITUDE - 0.5),
+                    MIN_LONGITUDE + 0.4 + random.nextDouble() * (MAX_LONGITUDE - MIN_LONGITUDE - 0.8));
+            header.setLength(0);
+            expected = -1;
+            lines = 0;
+            requestTime = System.nanoTime();
+            ByteBuffer request = ByteBuffer.wrap(command.getBytes(StandardCharsets.US_ASCII));
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+        }
+
+        /**
+         * Reads the available bytes of the response.
+         *
+         * @return true once the whole response is read.
+         */
+        private boolean read() throws IOException {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Closed");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (expected < 0) {
+                    if (b != '\n') {
+                        header.append((char) b);
+                        continue;
+                    }
+                    String[] words = header.toString().trim().split(" ");
+                    if (words.length != 2 || !words[0].equals("INFOS")) {
+                        throw new IOException("Invalid answer " + header);
+                    }
+                    expected = Integer.parseInt(words[1]);
+                } else if (b == '\n') {
+                    lines++;
+                }
+                if (lines == expected) {
+                    expected = Integer.MAX_VALUE; // Nothing more expected.
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Response times, in nanoseconds.
+     */
+    private static final class Latencies {
+
+        private long[] values = new long[1024];
+        private int count;
+        private long lines;
+
+        private void add(long value, int responseLines) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+            lines += responseLines;
+        }
+
+        /**
+         * Gets a percentile, in milliseconds.
+         */
+        private double percentile(double rank) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) (rank * count))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.server.data.ColumnarPoiStore;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark of the memory taken by the removed POIs.
+ *
+ * For each size, the same removed POIs are kept as objects in a list, as
+ * PoiList did before the columnar store, then in a ColumnarPoiStore of each
+ * storage. The memory is the one still used after a full collection: the heap,
+ * and the direct and mapped buffers. The time of a full collection with the
+ * POIs alive is printed too, since the objects have to be traced and the
+ * columns do not.
+ *
+ * The 10 million POIs as objects need a heap of about 2 GB.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipMemoryBenchmark {
+
+    private static final String USAGE = "Usage: BipbipMemoryBenchmark [-sizes <n,n,...>] [-seed <n>]";
+    private static final PoiType[] POI_TYPES = PoiType.values();
+    private static final String OBJECTS = "objects";
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int[] sizes = {1000000, 10000000};
+        long seed = 42;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-sizes")) {
+                    String[] values = value.split(",");
+                    sizes = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        sizes[j] = Integer.parseInt(values[j].trim());
+                    }
+                } else if (arg.equals("-seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        StringBuilder collectors = new StringBuilder();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collectors.append(collectors.length() == 0 ? "" : ", ").append(collector.getName());
+        }
+        System.out.println(String.format(Locale.ROOT, "Max heap %,d MB, collectors: %s",
+                Runtime.getRuntime().maxMemory() >> 20, collectors));
+        for (int size : sizes) {
+            measure(OBJECTS, size, seed);
+            for (ColumnarPoiStore.Storage storage : ColumnarPoiStore.Storage.values()) {
+                measure(storage.name().toLowerCase(Locale.ROOT), size, seed);
+            }
+        }
+    }
+
+    /**
+     * Keeps POIs in a way, and prints the memory they take.
+     */
+    private static void measure(String way, int size, long seed) throws InterruptedException {
+        long[] before = used();
+        long start = System.nanoTime();
+        Object kept;
+        if (way.equals(OBJECTS)) {
+            ArrayList<Poi> list = new ArrayList<Poi>();
+            Random random = new Random(seed);
+            for (int i = 0; i < size; i++) {
+                list.add(removedPoi(random, i));
+            }
+            kept = list;
+        } else {
+            ColumnarPoiStore store = new ColumnarPoiStore(ColumnarPoiStore.Storage.valueOf(way.toUpperCase(Locale.ROOT)));
+            Random random = new Random(seed);
+            for (int i = 0; i < size; i++) {
+                store.add(removedPoi(random, i));
+            }
+            kept = store;
+        }
+        long fill = System.nanoTime() - start;
+
+        long[] after = used();
+        start = System.nanoTime();
+        System.gc();
+        long collection = System.nanoTime() - start;
+        long heap = after[0] - before[0];
+        long offHeap = after[1] - before[1];
+        System.out.println(String.format(Locale.ROOT, "%,11d POIs %-8s heap %,7d MB  off-heap %,7d MB  %6.1f bytes/POI   filled in %6.1f s   full collection %,6d ms",
+                size, way, heap >> 20, offHeap >> 20, (double) (heap + offHeap) / size, fill / 1e9, collection / 1000000));
+        if (kept.hashCode() == 0) { // Keeps the POIs alive until here.
+            System.out.println();
+        }
+    }
+
+    /**
+     * Gets a removed POI of the last year, in France.
+     */
+    private static Poi removedPoi(Random random, int id) {
+        long date = System.currentTimeMillis() - (long) (random.nextDouble() * 365 * 24 * 3600 * 1000L);
+        Poi poi = POI_TYPES[random.nextInt(POI_TYPES.length)].constructPoi(42 + random.nextDouble() * 9, -5 + random.nextDouble() * 13,
+                new Date(date), random.nextInt(20));
+        poi.setId(id + 1);
+        poi.setRefutations(3);
+        poi.setRemovedDate(new Date(date + random.nextInt(48 * 3600 * 1000)));
+        return poi;
+    }
+
+    /**
+     * Gets the heap and the buffers still used after full collections.
+     */
+    private static long[] used() throws InterruptedException {
+        // The buffers are freed once their cleaners ran, after a collection.
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        long buffers = 0;
+        List<BufferPoolMXBean> pools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        for (BufferPoolMXBean pool : pools) {
+            buffers += pool.getMemoryUsed();
+        }
+        return new long[]{ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), buffers};
+    }
+}
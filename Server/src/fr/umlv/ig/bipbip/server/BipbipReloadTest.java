@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.server.communication.Server;
+import fr.umlv.ig.bipbip.server.communication.ServerMode;
+import fr.umlv.ig.bipbip.server.data.GeoArea;
+import fr.umlv.ig.bipbip.server.data.PoiList;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Test of the replacement of the database while the clients submit POIs.
+ *
+ * A journaled list is served, and writer threads submit new POIs to the list
+ * in use, as the client commands do, while the database is replaced. Then:
+ * <ul>
+ * <li>every submitted POI must be either in the replaced list, made before
+ * the replacement, or in the new one;</li>
+ * <li>the list recovered from the journal directory must be the new list,
+ * with every POI submitted on it.</li>
+ * </ul>
+ *
+ * Exits with the status 1 if a POI is lost.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipReloadTest {
+
+    private static final String USAGE = "Usage: BipbipReloadTest [-pois <n>] [-writers <n>] [-rounds <n>] [-seed <n>]";
+    // Area of the databases, around Paris.
+    private static final double MIN_LATITUDE = 47.5;
+    private static final double MAX_LATITUDE = 49.5;
+    private static final double MIN_LONGITUDE = 0.8;
+    private static final double MAX_LONGITUDE = 3.8;
+    // The submitted POIs are on a grid further south, more than PRECISION
+    // apart, so every submission is a new POI.
+    private static final int GRID_COLUMNS = 1000;
+    private static final int MAX_SUBMITS = 400 * GRID_COLUMNS;
+    // Next position of the grid, for all the rounds.
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Launch the test.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        int poiCount = 200000;
+        int writerCount = 4;
+        int rounds = 3;
+        long seed = 42;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-pois")) {
+                    poiCount = Integer.parseInt(value);
+                } else if (arg.equals("-writers")) {
+                    writerCount = Integer.parseInt(value);
+                } else if (arg.equals("-rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else if (arg.equals("-seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Logger.getLogger("fr.umlv.ig.bipbip").setLevel(Level.WARNING);
+
+        Random random = new Random(seed);
+        File directory = Files.createTempDirectory("bipbip-reload").toFile();
+        boolean failed = false;
+        try {
+            ServerPoiList poiList = ServerPoiList.recover(directory);
+            poiList.merge(generate(random, poiCount));
+            poiList.checkpoint();
+            Server server = new Server(0, poiList, ServerMode.SELECTOR);
+
+            for (int round = 1; round <= rounds; round++) {
+                failed |= !run(round, server, directory, generate(random, poiCount), writerCount);
+            }
+            server.getPoiList().getJournal().close();
+        } finally {
+            delete(directory);
+        }
+        if (failed) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Replaces the database once, while the writers submit.
+     *
+     * @return false if a POI is lost.
+     */
+    private static boolean run(int round, final Server server, File directory, List<Poi> dataset, int writerCount) throws Exception {
+        ServerPoiList newPoiList = new ServerPoiList();
+        newPoiList.merge(dataset);
+
+        final List<Poi> submitted = Collections.synchronizedList(new ArrayList<Poi>());
+        final List<Poi> duringReplacement = Collections.synchronizedList(new ArrayList<Poi>());
+        final Date date = new Date();
+        final AtomicBoolean replaced = new AtomicBoolean();
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] writers = new Thread[writerCount];
+        for (int i = 0; i < writerCount; i++) {
+            writers[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    PoiType[] types = PoiType.values();
+                    int n;
+                    while (!stop.get() && (n = counter.getAndIncrement()) < MAX_SUBMITS) {
+                        Poi poi = types[n % types.length].constructPoi(40 + (n / GRID_COLUMNS) * 0.01, -4 + (n % GRID_COLUMNS) * 0.015, date);
+                        boolean before = !replaced.get();
+                        server.getPoiList().addPoi(poi);
+                        submitted.add(poi);
+                        if (before) {
+                            duringReplacement.add(poi);
+                        }
+                    }
+                }
+            }, "Writer-" + i);
+            writers[i].start();
+        }
+
+        Thread.sleep(200);
+        long start = System.nanoTime();
+        ServerPoiList previous = server.setPoiList(newPoiList);
+        double duration = (System.nanoTime() - start) / 1e6;
+        replaced.set(true);
+        Thread.sleep(200);
+        stop.set(true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // Every submission is in one of the lists.
+        int inPrevious = 0;
+        int inNew = 0;
+        int forwarded = 0;
+        int lost = 0;
+        for (Poi poi : submitted) {
+            boolean old = contains(previous, poi);
+            boolean current = contains(newPoiList, poi);
+            if (old == current) {
+                lost++;
+            } else if (old) {
+                inPrevious++;
+            } else {
+                inNew++;
+            }
+        }
+        for (Poi poi : duringReplacement) {
+            if (contains(newPoiList, poi)) {
+                forwarded++;
+            }
+        }
+
+        // The recovered list is the new one. Recovered from a copy of the
+        // directory, as it would be found after a crash.
+        File copy = Files.createTempDirectory("bipbip-recovery").toFile();
+        ServerPoiList recovered;
+        try {
+            for (File file : directory.listFiles()) {
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            recovered = ServerPoiList.recover(copy);
+            recovered.getJournal().close();
+        } finally {
+            delete(copy);
+        }
+        int missing = 0;
+        for (Poi poi : newPoiList.getPois()) {
+            Poi p = recovered.getPoi(poi.getId());
+            if (p == null || p.getType() != poi.getType() || p.getLat() != poi.getLat() || p.getLon() != poi.getLon()
+                    || p.getConfirmations() != poi.getConfirmations()) {
+                missing++;
+            }
+        }
+        int extra = recovered.getSize() - newPoiList.getSize();
+
+        System.out.println(String.format(Locale.ROOT, "round %d: replaced %,d POIs by %,d in %.1f ms   submitted %,d: %,d before, %,d after (%,d started before the end of the replacement), %,d lost   recovered %,d POIs, %,d missing, %,d extra",
+                round, previous.getSize(), newPoiList.getSize() - inNew, duration, submitted.size(), inPrevious, inNew, forwarded, lost, recovered.getSize(), missing, extra));
+        return lost == 0 && missing == 0 && extra == 0 && inNew > 0;
+    }
+
+    private static boolean contains(PoiList poiList, Poi poi) {
+        return !poiList.getPoisInArea(new GeoArea(poi.getLat(), poi.getLon(), 1), poi.getType(), null).isEmpty();
+    }
+
+    private static List<Poi> generate(Random random, int count) {
+        ArrayList<Poi> pois = new ArrayList<Poi>(count);
+        PoiType[] types = PoiType.values();
+        Date now = new Date();
+        for (int i = 0; i < count; i++) {
+            pois.add(types[random.nextInt(types.length)].constructPoi(
+                    MIN_LATITUDE + random.nextDouble() * (MAX_LATITUDE - MIN_LATITUDE),
+                    MIN_LONGITUDE + random.nextDouble() * (MAX_LONGITUDE - MIN_LONGITUDE), now));
+        }
+        return pois;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.BinaryProtocol;
+import fr.umlv.ig.bipbip.protocol.LineTokenizer;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import fr.umlv.ig.bipbip.server.communication.NetUtils;
+import fr.umlv.ig.bipbip.server.communication.ServerCommand;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark of the sending of the INFOS responses.
+ *
+ * ServerCommand.sendInfos encodes a response in one buffer and writes it at
+ * once. For comparison, the responses are also sent as before it: one String
+ * and one write per line. ServerCommand.sendBinaryInfos sends the same
+ * response in the binary protocol. They are measured on a channel which drops
+ * the bytes, for the encoding alone, and on a loopback socket drained by
+ * another thread, where every write is a system call: responses per second,
+ * writes per response, bytes per write and bytes allocated per response.
+ * Then the decoding of both protocols by the client is measured.
+ *
+ * The text responses must be the same bytes, and the binary one the same POI
+ * to the micro-degree and to the second, else the exit code is 1.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipResponseBenchmark {
+
+    private static final String USAGE = "Usage: BipbipResponseBenchmark [-pois <n>] [-responses <n>] [-rounds <n>] [-port <port>]";
+    private static final PoiType[] POI_TYPES = PoiType.values();
+    private static final int LINE_BY_LINE = 0;
+    private static final int AT_ONCE = 1;
+    private static final int BINARY = 2;
+    /**
+     * Sum of the decoded values, so that the JIT cannot drop the decoding.
+     */
+    private static long checksum;
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        int poiCount = 300;
+        int responses = 5000;
+        int rounds = 5;
+        int port = 7100;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-pois")) {
+                    poiCount = Integer.parseInt(value);
+                } else if (arg.equals("-responses")) {
+                    responses = Integer.parseInt(value);
+                } else if (arg.equals("-rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else if (arg.equals("-port")) {
+                    port = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // The POI of a query in a city.
+        Random random = new Random(42);
+        ArrayList<Poi> pois = new ArrayList<Poi>(poiCount);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < poiCount; i++) {
+            Poi poi = POI_TYPES[random.nextInt(POI_TYPES.length)].constructPoi(48.6 + random.nextDouble() * 0.5,
+                    2.1 + random.nextDouble() * 0.5, new Date(now - random.nextInt(100000000)), random.nextInt(20));
+            poi.setId(random.nextInt(10000000));
+            pois.add(poi);
+        }
+
+        ByteArrayOutputStream lineByLine = new ByteArrayOutputStream();
+        sendLineByLine(Channels.newChannel(lineByLine), pois);
+        ByteArrayOutputStream atOnce = new ByteArrayOutputStream();
+        ServerCommand.sendInfos(Channels.newChannel(atOnce), pois, true);
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        ServerCommand.sendBinaryInfos(Channels.newChannel(binary), pois);
+        ByteBuffer text = ByteBuffer.wrap(atOnce.toByteArray());
+        ByteBuffer frames = ByteBuffer.wrap(binary.toByteArray());
+        if (!Arrays.equals(lineByLine.toByteArray(), atOnce.toByteArray()) || !sameBinaryPois(frames, pois)) {
+            System.err.println("The responses differ");
+            System.exit(1);
+        }
+        System.out.println(String.format(Locale.ROOT, "%d POIs per response, %,d bytes in text (%.1f per POI), %,d bytes in binary (%.1f per POI)",
+                poiCount, atOnce.size(), (double) atOnce.size() / poiCount, binary.size(), (double) binary.size() / poiCount));
+        System.out.println(responses + " responses, " + rounds + " rounds, the best one is printed");
+
+        CountingChannel dropped = new CountingChannel(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int length = src.remaining();
+                src.position(src.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        measure("encoding, line by line", dropped, pois, responses, rounds, LINE_BY_LINE);
+        measure("encoding, at once", dropped, pois, responses, rounds, AT_ONCE);
+        measure("encoding, binary", dropped, pois, responses, rounds, BINARY);
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", port));
+        final SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", port));
+        SocketChannel accepted = server.accept();
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                try {
+                    while (client.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) { // Closed.
+                }
+            }
+        }, "Drainer");
+        drainer.start();
+        try {
+            CountingChannel socket = new CountingChannel(accepted);
+            measure("loopback socket, line by line", socket, pois, responses, rounds, LINE_BY_LINE);
+            measure("loopback socket, at once", socket, pois, responses, rounds, AT_ONCE);
+            measure("loopback socket, binary", socket, pois, responses, rounds, BINARY);
+        } finally {
+            accepted.close();
+            client.close();
+            server.close();
+            drainer.join();
+        }
+
+        decode("client decoding, text", text, responses, rounds, false);
+        decode("client decoding, binary", frames, responses, rounds, true);
+        if (checksum == 42) {
+            System.out.println(); // Never, uses the checksum.
+        }
+    }
+
+    /**
+     * Checks that the binary response gives the POI.
+     */
+    private static boolean sameBinaryPois(ByteBuffer frames, ArrayList<Poi> pois) throws IOException {
+        ArrayList<Poi> decoded = new ArrayList<Poi>();
+        decodeBinary(frames, decoded);
+        if (decoded.size() != pois.size()) {
+            return false;
+        }
+        for (int i = 0; i < pois.size(); i++) {
+            Poi expected = pois.get(i);
+            Poi poi = decoded.get(i);
+            if (poi.getId() != expected.getId() || poi.getType() != expected.getType()
+                    || Math.abs(poi.getLat() - expected.getLat()) > 5e-7 || Math.abs(poi.getLon() - expected.getLon()) > 5e-7
+                    || poi.getDate().getTime() != expected.getDate().getTime() / 1000 * 1000
+                    || poi.getConfirmations() != expected.getConfirmations()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a response as the client does, the response being read.
+     */
+    private static void decode(String name, ByteBuffer response, int responses, int rounds, boolean binary) throws IOException {
+        ArrayList<Poi> pois = new ArrayList<Poi>();
+        LineTokenizer line = new LineTokenizer();
+        long bestTime = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < responses; i++) {
+                pois.clear();
+                if (binary) {
+                    decodeBinary(response, pois);
+                } else {
+                    decodeText(response, line, pois);
+                }
+                checksum += pois.size();
+            }
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            bestBytes = Math.min(bestBytes, allocatedBytes() - allocated);
+        }
+        System.out.println(String.format(Locale.ROOT, "%-31s %,9.0f responses/s %,10.0f ns/response %,10.0f bytes allocated/response",
+                name, responses * 1e9 / bestTime, (double) bestTime / responses, bestBytes < 0 ? Double.NaN : (double) bestBytes / responses));
+    }
+
+    private static void decodeText(ByteBuffer response, LineTokenizer line, ArrayList<Poi> pois) throws IOException {
+        int start = 0;
+        for (int i = 0; i < response.limit(); i++) {
+            if (response.get(i) != '\n') {
+                continue;
+            }
+            line.reset(response, start, i);
+            start = i + 1;
+            if (line.nextIs("INFOS")) {
+                continue;
+            }
+            line.nextIs("INFO");
+            PoiType type = line.nextEnum(POI_TYPES, "POI type");
+            double latitude = line.nextDouble("latitude");
+            double longitude = line.nextDouble("longitude");
+            Date date = new Date(line.nextTimestamp("date"));
+            Poi poi = type.constructPoi(latitude, longitude, date, line.nextInt("number of confirmations"));
+            poi.setId(line.nextLong("identifier"));
+            pois.add(poi);
+        }
+    }
+
+    private static void decodeBinary(ByteBuffer response, ArrayList<Poi> pois) throws IOException {
+        ByteBuffer frame = response.duplicate();
+        int position = 0;
+        while (position < response.limit()) {
+            int length = BinaryProtocol.frameLength(response, position);
+            frame.limit(position + BinaryProtocol.LENGTH_SIZE + length).position(position + BinaryProtocol.LENGTH_SIZE + 2);
+            while (frame.hasRemaining()) {
+                pois.add(BinaryProtocol.getPoi(frame));
+            }
+            position = frame.limit();
+        }
+    }
+
+    /**
+     * Sends a response as ServerCommand did before: one String and one write
+     * per line.
+     */
+    private static void sendLineByLine(WritableByteChannel channel, ArrayList<Poi> list) throws IOException {
+        NetUtils.writeLine(channel, "INFOS " + list.size());
+        for (Poi e : list) {
+            NetUtils.writeLine(channel, "INFO " + e.getType().name() + " " + e.getLat() + " " + e.getLon() + " "
+                    + TimestampCodec.WIRE.format(e.getDate().getTime()) + " " + e.getConfirmations() + " " + e.getId());
+        }
+    }
+
+    private static void measure(String name, CountingChannel channel, ArrayList<Poi> pois, int responses, int rounds,
+            int encoding) throws IOException {
+        long bestTime = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            channel.writes = 0;
+            channel.bytes = 0;
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < responses; i++) {
+                if (encoding == AT_ONCE) {
+                    ServerCommand.sendInfos(channel, pois, true);
+                } else if (encoding == BINARY) {
+                    ServerCommand.sendBinaryInfos(channel, pois);
+                } else {
+                    sendLineByLine(channel, pois);
+                }
+            }
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            bestBytes = Math.min(bestBytes, allocatedBytes() - allocated);
+        }
+        System.out.println(String.format(Locale.ROOT, "%-31s %,9.0f responses/s %8.1f writes/response %,8.0f bytes/write %,10.0f bytes allocated/response",
+                name, responses * 1e9 / bestTime, (double) channel.writes / responses, (double) channel.bytes / channel.writes,
+                bestBytes < 0 ? Double.NaN : (double) bestBytes / responses));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return Long.MAX_VALUE; // Reported as NaN.
+    }
+
+    /**
+     * Counts the writes and the bytes written.
+     */
+    private static final class CountingChannel implements WritableByteChannel {
+
+        private final WritableByteChannel channel;
+        private long writes;
+        private long bytes;
+
+        private CountingChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = channel.write(src);
+            writes++;
+            bytes += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
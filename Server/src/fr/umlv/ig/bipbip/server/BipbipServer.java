@@ -16,15 +16,26 @@
  */
 package fr.umlv.ig.bipbip.server;
 
+import fr.umlv.ig.bipbip.server.communication.SelectorEngine;
 import fr.umlv.ig.bipbip.server.communication.Server;
 import fr.umlv.ig.bipbip.server.communication.ServerCommunication;
+import fr.umlv.ig.bipbip.server.communication.ServerMode;
+import fr.umlv.ig.bipbip.server.data.HistoryArchive;
+import fr.umlv.ig.bipbip.server.data.PoiJournal;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import fr.umlv.ig.bipbip.server.data.XMLDatabaseException;
 import fr.umlv.ig.bipbip.server.gui.ServerJFrame;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.xml.stream.XMLStreamException;
 
 /**
  * BipBip server.
@@ -33,6 +44,56 @@ import java.util.logging.Logger;
  */
 public class BipbipServer {
 
+    /**
+     * System property giving the directory of the history archive. The
+     * history is kept in memory if undefined.
+     */
+    public static final String HISTORY_DIRECTORY_PROPERTY = "bipbip.history.dir";
+    /**
+     * System property giving the age, in days, after which the removed POIs
+     * are archived.
+     */
+    public static final String HISTORY_MAX_AGE_PROPERTY = "bipbip.history.maxAgeDays";
+    /**
+     * System property giving the number of archive segments kept in memory.
+     */
+    public static final String HISTORY_CACHED_SEGMENTS_PROPERTY = "bipbip.history.cachedSegments";
+    /**
+     * System property giving the directory of the journal and of the
+     * snapshot. The changes are not journaled if undefined.
+     */
+    public static final String JOURNAL_DIRECTORY_PROPERTY = "bipbip.journal.dir";
+    /**
+     * System property giving the period, in minutes, of the checkpoints of
+     * the journal.
+     */
+    public static final String CHECKPOINT_PERIOD_PROPERTY = "bipbip.checkpoint.periodMinutes";
+    /**
+     * System property giving how the connections are handled: selector (the
+     * default), thread_per_connection, virtual_thread_per_connection or
+     * threads.
+     *
+     * @see ServerMode
+     */
+    public static final String SERVER_MODE_PROPERTY = "bipbip.server.mode";
+    /**
+     * System property giving the number of event loops of the selector mode.
+     */
+    public static final String EVENT_LOOPS_PROPERTY = "bipbip.server.eventLoops";
+    /**
+     * System property giving the number of threads running the commands in
+     * the selector mode.
+     */
+    public static final String WORKERS_PROPERTY = "bipbip.server.workers";
+    /**
+     * System property giving the time, in seconds, after which an idle
+     * connection is closed in the selector mode. 0 to keep them open.
+     */
+    public static final String IDLE_TIMEOUT_PROPERTY = "bipbip.server.idleTimeoutSeconds";
+    private static final int DEFAULT_CHECKPOINT_PERIOD = 10;
+    private static final int DEFAULT_HISTORY_MAX_AGE = 30;
+    private static final long HISTORY_ARCHIVING_PERIOD = 60L * 60 * 1000;
+
     /**
      * Launch bipbip server.
      *
@@ -56,6 +117,14 @@ public class BipbipServer {
             }
         }
 
+        ServerMode mode;
+        try {
+            mode = ServerMode.valueOf(System.getProperty(SERVER_MODE_PROPERTY, ServerMode.SELECTOR.name()).toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            System.err.println("Unknown server mode " + System.getProperty(SERVER_MODE_PROPERTY));
+            return;
+        }
+
         ArrayList<Logger> loggersToDisplayInGui = new ArrayList<Logger>();
 
         // Setting up loggers.
@@ -70,6 +139,8 @@ public class BipbipServer {
         
         ServerCommunication.logger.setLevel(Level.ALL);
         loggersToDisplayInGui.add(ServerCommunication.logger);
+        SelectorEngine.logger.setLevel(Level.ALL);
+        loggersToDisplayInGui.add(SelectorEngine.logger);
 
         // Poi operations Debug logger.
         Logger poiLogger = Logger.getLogger("fr.umlv.ig.bipbip.server.ServerPoiList");
@@ -83,7 +154,82 @@ public class BipbipServer {
          * doubles and dates
          */
         Locale.setDefault(Locale.ROOT);
-        Server server = new Server(port);
+        // Recovering the POIs from the journal.
+        String journalDirectory = System.getProperty(JOURNAL_DIRECTORY_PROPERTY);
+        ServerPoiList poiList;
+        if (journalDirectory == null) {
+            poiList = new ServerPoiList();
+        } else {
+            try {
+                poiList = ServerPoiList.recover(new File(journalDirectory));
+            } catch (XMLStreamException e) {
+                System.err.println("Cannot read the snapshot. " + e.getLocalizedMessage());
+                return;
+            } catch (XMLDatabaseException e) {
+                System.err.println("Cannot read the snapshot. " + e.getLocalizedMessage());
+                return;
+            }
+
+            final PoiJournal journal = poiList.getJournal();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        Server.logger.log(Level.SEVERE, "Unable to close the journal", e);
+                    }
+                }
+            });
+        }
+        final Server server = new Server(port, poiList, mode);
+        server.setEventLoopCount(Integer.getInteger(EVENT_LOOPS_PROPERTY, Server.DEFAULT_EVENT_LOOP_COUNT));
+        server.setWorkerCount(Integer.getInteger(WORKERS_PROPERTY, Server.DEFAULT_WORKER_COUNT));
+        server.setIdleTimeout(Long.getLong(IDLE_TIMEOUT_PROPERTY, Server.DEFAULT_IDLE_TIMEOUT / 1000) * 1000);
+        if (journalDirectory != null) {
+            // Checkpointing in background, the first time right now in order
+            // to forget the replayed journal. The list is read at each
+            // checkpoint, since a reload of the database replaces it.
+            long checkpointPeriod = Integer.getInteger(CHECKPOINT_PERIOD_PROPERTY, DEFAULT_CHECKPOINT_PERIOD) * 60L * 1000;
+            new Timer("Checkpoint", true).schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    try {
+                        ServerPoiList.Checkpoint checkpoint = server.getPoiList().checkpoint();
+                        Server.logger.log(Level.INFO, "Checkpoint of {0} POIs in {1} ms, writers blocked {2} ms", new Object[]{checkpoint.getPoiCount(), checkpoint.getDuration() / 1000000, checkpoint.getBlockedTime() / 1000000.0});
+                    } catch (IOException e) {
+                        Server.logger.log(Level.SEVERE, "Unable to checkpoint the journal", e);
+                    } catch (IllegalStateException e) {
+                        // The list has been replaced meanwhile, and the new one checkpointed.
+                        Server.logger.log(Level.FINE, "Checkpoint skipped, the database has been reloaded");
+                    }
+                }
+            }, 0, checkpointPeriod);
+        }
+
+        // Archiving the old history, the first time right now in order to
+        // drop the POIs archived before a crash, still in the snapshot.
+        String historyDirectory = System.getProperty(HISTORY_DIRECTORY_PROPERTY);
+        if (historyDirectory != null) {
+            final long maxAge = Integer.getInteger(HISTORY_MAX_AGE_PROPERTY, DEFAULT_HISTORY_MAX_AGE) * 24L * 60 * 60 * 1000;
+            int cachedSegments = Integer.getInteger(HISTORY_CACHED_SEGMENTS_PROPERTY, HistoryArchive.DEFAULT_CACHED_SEGMENTS);
+            server.getPoiList().setHistoryArchive(new HistoryArchive(new File(historyDirectory), cachedSegments));
+
+            new Timer("History archiving", true).schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    try {
+                        int archived = server.getPoiList().archiveHistory(new Date(System.currentTimeMillis() - maxAge));
+                        Server.logger.log(Level.INFO, "{0} POIs archived", archived);
+                    } catch (IOException e) {
+                        Server.logger.log(Level.SEVERE, "Unable to archive the history", e);
+                    }
+                }
+            }, 0, HISTORY_ARCHIVING_PERIOD);
+        }
 
         // Launching the server GUI.
         ServerJFrame frame = new ServerJFrame(server, loggersToDisplayInGui, server.getPoiList());
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.server.data.GeoArea;
+import fr.umlv.ig.bipbip.server.data.GeoDistance;
+import fr.umlv.ig.bipbip.server.data.PoiList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark of the area lookups of PoiList as the dataset grows.
+ *
+ * The POIs are spread with the same density whatever their number, on a
+ * square centered on Paris which grows with them, as a country with more
+ * roads: a GET_INFOS area gets about the same POIs at every size. The
+ * lookups of the spatial index are measured at random positions of the
+ * square, and compared with a scan of all the POIs, as getPoisInArea did
+ * before the index. Both must return the same POIs, else the exit code is 1.
+ *
+ * The lookups touch the same number of cells and POIs at every size, but the
+ * smallest datasets fit in the caches of the processor. The 3 million POIs
+ * need a heap of about 2 GB.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipSpatialBenchmark {
+
+    private static final String USAGE = "Usage: BipbipSpatialBenchmark [-sizes <n,n,...>] [-density <POIs per km2>] [-queries <n>]\n"
+            + "                              [-scans <n>] [-rounds <n>] [-seed <n>]";
+    private static final PoiType[] POI_TYPES = PoiType.values();
+    private static final double LATITUDE = 48.85;
+    private static final double LONGITUDE = 2.35;
+    /**
+     * Radius of the GET_INFOS area, in meter.
+     */
+    private static final double RADIUS = 20000;
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) {
+        int[] sizes = {10000, 100000, 1000000, 3000000};
+        double density = 0.25;
+        int queries = 2000;
+        int scans = 50;
+        int rounds = 3;
+        long seed = 42;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-sizes")) {
+                    String[] values = value.split(",");
+                    sizes = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        sizes[j] = Integer.parseInt(values[j].trim());
+                    }
+                } else if (arg.equals("-density")) {
+                    density = Double.parseDouble(value);
+                } else if (arg.equals("-queries")) {
+                    queries = Integer.parseInt(value);
+                } else if (arg.equals("-scans")) {
+                    scans = Integer.parseInt(value);
+                } else if (arg.equals("-rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else if (arg.equals("-seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%.2f POIs per km2, areas of %.0f km, %d lookups and %d scans per round, %d rounds, the best one is printed",
+                density, RADIUS / 1000, queries, scans, rounds));
+        boolean failed = false;
+        for (int size : sizes) {
+            failed |= !run(size, density, queries, scans, rounds, new Random(seed));
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Measures the lookups at a size.
+     *
+     * @return false if the index and the scan did not return the same POIs.
+     */
+    private static boolean run(int size, double density, int queries, int scans, int rounds, Random random) {
+        // Half side of the square, in degree of latitude, then of longitude.
+        double latitudeDelta = GeoDistance.latitudeDelta(Math.sqrt(size / density) * 1000 / 2);
+        double longitudeDelta = latitudeDelta / Math.cos(Math.toRadians(LATITUDE));
+        PoiList list = new PoiList();
+        ArrayList<Poi> all = new ArrayList<Poi>(size);
+        Date now = new Date();
+        for (int i = 0; i < size; i++) {
+            Poi poi = POI_TYPES[random.nextInt(POI_TYPES.length)].constructPoi(
+                    LATITUDE + (random.nextDouble() * 2 - 1) * latitudeDelta,
+                    LONGITUDE + (random.nextDouble() * 2 - 1) * longitudeDelta, now);
+            list.addPoi(poi);
+            all.add(poi);
+        }
+
+        // The areas are inside the square, so that they all see the same density.
+        double margin = GeoDistance.latitudeDelta(RADIUS);
+        double[] latitudes = new double[queries];
+        double[] longitudes = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            latitudes[i] = LATITUDE + (random.nextDouble() * 2 - 1) * Math.max(0, latitudeDelta - margin);
+            longitudes[i] = LONGITUDE + (random.nextDouble() * 2 - 1) * Math.max(0, longitudeDelta - margin / Math.cos(Math.toRadians(LATITUDE)));
+        }
+
+        long[] best = null;
+        long bestScan = Long.MAX_VALUE;
+        long found = 0;
+        boolean same = true;
+        for (int round = 0; round < rounds; round++) {
+            long[] times = new long[queries];
+            found = 0;
+            for (int i = 0; i < queries; i++) {
+                long start = System.nanoTime();
+                List<Poi> result = list.getPoisInArea(latitudes[i], longitudes[i], RADIUS);
+                times[i] = System.nanoTime() - start;
+                found += result.size();
+            }
+            Arrays.sort(times);
+            if (best == null || times[queries / 2] < best[queries / 2]) {
+                best = times;
+            }
+
+            long scanTime = 0;
+            for (int i = 0; i < Math.min(scans, queries); i++) {
+                long start = System.nanoTime();
+                ArrayList<Poi> scanned = scan(all, latitudes[i], longitudes[i]);
+                scanTime += System.nanoTime() - start;
+                if (round == 0) {
+                    same &= new HashSet<Poi>(scanned).equals(new HashSet<Poi>(list.getPoisInArea(latitudes[i], longitudes[i], RADIUS)));
+                }
+            }
+            bestScan = Math.min(bestScan, scanTime);
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%,10d POIs  %,6.0f POIs/lookup   index p50 %8.1f us p99 %8.1f us   scan mean %10.1f us%s",
+                size, (double) found / queries, best[queries / 2] / 1e3, best[Math.min(queries - 1, (int) (queries * 0.99))] / 1e3,
+                scans == 0 ? Double.NaN : bestScan / 1e3 / Math.min(scans, queries), same ? "" : "   DIFFERENT RESULTS"));
+        return same;
+    }
+
+    /**
+     * Looks up the POIs of an area by testing all of them.
+     */
+    private static ArrayList<Poi> scan(List<Poi> all, double latitude, double longitude) {
+        GeoArea area = new GeoArea(latitude, longitude, RADIUS);
+        ArrayList<Poi> result = new ArrayList<Poi>();
+        for (Poi poi : all) {
+            if (area.contains(poi.getLat(), poi.getLon())) {
+                result.add(poi);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.LineReader;
+import fr.umlv.ig.bipbip.protocol.LineTokenizer;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import fr.umlv.ig.bipbip.server.communication.Server;
+import fr.umlv.ig.bipbip.server.communication.ServerMode;
+import fr.umlv.ig.bipbip.server.data.GeoDistance;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stress test of the SUBMITs of the same POI at the same time.
+ *
+ * Threads wait for each other, then submit the same accident at once, a
+ * few meters apart, as many drivers passing by. First directly to
+ * ServerPoiList.addPoi, then through the network, each thread sending its
+ * SUBMIT lines on its own connection followed by a GET_INFOS, whose answer
+ * tells that its SUBMITs are done. The list must end with exactly one POI,
+ * confirmed by every SUBMIT but the first one, else the exit code is 1.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipSubmitStressTest {
+
+    private static final String USAGE = "Usage: BipbipSubmitStressTest [-threads <n>] [-submits <n>] [-rounds <n>] [-mode <mode>] [-port <port>]\n"
+            + "                              [-seed <n>]";
+    private static final double LATITUDE = 48.85;
+    private static final double LONGITUDE = 2.35;
+    /**
+     * Distance of the SUBMITs to the spot, at most. Far less than PRECISION.
+     */
+    private static final double SPREAD = 100;
+
+    /**
+     * Launch the test.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = 64;
+        int submits = 10000;
+        int rounds = 5;
+        ServerMode mode = ServerMode.SELECTOR;
+        int port = 7300;
+        long seed = 42;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-threads")) {
+                    threads = Integer.parseInt(value);
+                } else if (arg.equals("-submits")) {
+                    submits = Integer.parseInt(value);
+                } else if (arg.equals("-rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else if (arg.equals("-mode")) {
+                    mode = ServerMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+                } else if (arg.equals("-port")) {
+                    port = Integer.parseInt(value);
+                } else if (arg.equals("-seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // The server logs every command.
+        Logger.getLogger("fr.umlv.ig.bipbip").setLevel(Level.WARNING);
+        Logger.getLogger("fr.umlv.ig.bipbip.server.ClientCommandHandler").setLevel(Level.WARNING);
+
+        System.out.println(String.format(Locale.ROOT, "%,d SUBMITs of the same accident by %d threads, less than %.0f m apart, %d rounds",
+                submits, threads, SPREAD * 2, rounds));
+        Random random = new Random(seed);
+        boolean failed = false;
+        for (int round = 1; round <= rounds; round++) {
+            ServerPoiList list = new ServerPoiList();
+            long time = submitToList(list, submitsOf(random, submits), threads);
+            failed |= !check("list", round, list, submits, time);
+
+            list = new ServerPoiList();
+            Server server = new Server(port, list, mode);
+            server.serve();
+            try {
+                time = submitToServer(port, submitsOf(random, submits), threads);
+            } finally {
+                server.disconnect();
+            }
+            failed |= !check("network " + mode.name().toLowerCase(Locale.ROOT), round, list, submits, time);
+            port++; // The previous one may still be in TIME_WAIT.
+        }
+        if (failed) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Gets the POIs of the SUBMITs: the same accident, seen from positions
+     * around the spot.
+     */
+    private static List<Poi> submitsOf(Random random, int submits) {
+        double latitudeDelta = GeoDistance.latitudeDelta(SPREAD);
+        double longitudeDelta = GeoDistance.longitudeDelta(LATITUDE, SPREAD);
+        Date date = new Date();
+        ArrayList<Poi> pois = new ArrayList<Poi>(submits);
+        for (int i = 0; i < submits; i++) {
+            pois.add(PoiType.ACCIDENT.constructPoi(LATITUDE + (random.nextDouble() * 2 - 1) * latitudeDelta,
+                    LONGITUDE + (random.nextDouble() * 2 - 1) * longitudeDelta, date));
+        }
+        return pois;
+    }
+
+    /**
+     * Checks that the list has one POI confirmed by all the SUBMITs but the
+     * first one.
+     */
+    private static boolean check(String way, int round, ServerPoiList list, int submits, long time) {
+        List<Poi> pois = list.getPois();
+        int confirmations = pois.isEmpty() ? -1 : pois.get(0).getConfirmations();
+        boolean ok = pois.size() == 1 && confirmations == submits - 1;
+        System.out.println(String.format(Locale.ROOT, "round %d %-29s %,10.0f SUBMITs/s   %d POI, %,d confirmations%s",
+                round, way, submits * 1e9 / time, pois.size(), confirmations, ok ? "" : "   expected 1 POI and " + (submits - 1)));
+        return ok;
+    }
+
+    /**
+     * Submits the POIs to the list from several threads at once.
+     *
+     * @return The time taken, in nanoseconds.
+     */
+    private static long submitToList(final ServerPoiList list, final List<Poi> pois, int threadCount) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final List<Poi> part = pois.subList(t * pois.size() / threadCount, (t + 1) * pois.size() / threadCount);
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (Poi poi : part) {
+                        list.addPoi(poi);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Sends the POIs to the server from several connections at once.
+     *
+     * @return The time taken, in nanoseconds.
+     */
+    private static long submitToServer(int port, List<Poi> pois, int threadCount) throws IOException, InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            StringBuilder commands = new StringBuilder();
+            for (Poi poi : pois.subList(t * pois.size() / threadCount, (t + 1) * pois.size() / threadCount)) {
+                commands.append("SUBMIT ").append(poi.getType().name()).append(' ').append(poi.getLat()).append(' ').append(poi.getLon())
+                        .append(' ').append(TimestampCodec.WIRE.format(poi.getDate().getTime())).append(" 0\n");
+            }
+            commands.append("GET_INFOS ").append(LATITUDE).append(' ').append(LONGITUDE).append('\n');
+            final ByteBuffer request = ByteBuffer.wrap(commands.toString().getBytes(StandardCharsets.US_ASCII));
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (request.hasRemaining()) {
+                            channel.write(request);
+                        }
+                        // The commands of a connection are run in order.
+                        LineReader reader = new LineReader(channel);
+                        LineTokenizer line = new LineTokenizer();
+                        if (!reader.readLine(line) || !line.nextIs("INFOS")) {
+                            throw new IOException("Invalid answer " + line);
+                        }
+                        for (int i = line.nextInt("count"); i > 0; i--) {
+                            if (!reader.readLine(line)) {
+                                throw new IOException("Missing INFO line");
+                            }
+                        }
+                    } catch (IOException e) {
+                        error.compareAndSet(null, e);
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            // Nothing more to read.
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long time = System.nanoTime() - begin;
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return time;
+    }
+}
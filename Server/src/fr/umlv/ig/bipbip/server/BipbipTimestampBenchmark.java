@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server;
+
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of the timestamp codec against SimpleDateFormat.
+ *
+ * First, threads convert timestamps back and forth at the same time, with one
+ * SimpleDateFormat shared by all of them, as the server did, then with
+ * TimestampCodec. The wrong round trips are counted: the exit code is 1 if
+ * the codec made one.
+ *
+ * Then the formatting and the parsing are measured on one thread, with a
+ * SimpleDateFormat per thread and with the codec: conversions per second and
+ * bytes allocated per conversion. The timestamps are the ones of the INFO
+ * lines, some days old, and the ones of now, which hit the cache of the
+ * codec.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class BipbipTimestampBenchmark {
+
+    private static final String USAGE = "Usage: BipbipTimestampBenchmark [-threads <n>] [-conversions <n>] [-rounds <n>]";
+    private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+    /**
+     * Sum of the converted values, so that the JIT cannot drop the
+     * conversions.
+     */
+    private static long checksum;
+
+    /**
+     * Launch the benchmark.
+     *
+     * @param args Options, see the usage.
+     */
+    public static void main(String[] args) throws Exception {
+        int threadCount = 4;
+        int conversions = 200000;
+        int rounds = 5;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("-threads")) {
+                    threadCount = Integer.parseInt(value);
+                } else if (arg.equals("-conversions")) {
+                    conversions = Integer.parseInt(value);
+                } else if (arg.equals("-rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        long[] old = new long[conversions];
+        long[] recent = new long[conversions];
+        for (int i = 0; i < conversions; i++) {
+            old[i] = now - random.nextInt(1000000000);
+            recent[i] = now + i / 100; // A hundred timestamps per millisecond.
+        }
+
+        System.out.println(threadCount + " threads converting " + conversions + " timestamps each");
+        int shared = roundTrips(threadCount, old, null);
+        int codec = roundTrips(threadCount, old, TimestampCodec.WIRE);
+        System.out.println(String.format(Locale.ROOT, "%-34s %,10d wrong round trips", "shared SimpleDateFormat", shared));
+        System.out.println(String.format(Locale.ROOT, "%-34s %,10d wrong round trips", "TimestampCodec", codec));
+
+        System.out.println();
+        System.out.println("One thread, " + rounds + " rounds, the best one is printed");
+        String[] texts = new String[conversions];
+        for (int i = 0; i < conversions; i++) {
+            texts[i] = TimestampCodec.WIRE.format(old[i]);
+        }
+        SimpleDateFormat format = new SimpleDateFormat(PATTERN, Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (int kind = 0; kind < 6; kind++) {
+            long bestTime = Long.MAX_VALUE;
+            long bestBytes = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < conversions; i++) {
+                    switch (kind) {
+                        case 0:
+                            checksum += format.format(new Date(old[i])).length();
+                            break;
+                        case 1:
+                            checksum += TimestampCodec.WIRE.format(old[i]).length();
+                            break;
+                        case 2:
+                            checksum += format.format(new Date(recent[i])).length();
+                            break;
+                        case 3:
+                            checksum += TimestampCodec.WIRE.format(recent[i]).length();
+                            break;
+                        case 4:
+                            checksum += format.parse(texts[i]).getTime();
+                            break;
+                        default:
+                            checksum += TimestampCodec.WIRE.parse(texts[i]);
+                            break;
+                    }
+                }
+                bestTime = Math.min(bestTime, System.nanoTime() - start);
+                bestBytes = Math.min(bestBytes, allocatedBytes() - bytes);
+            }
+            String[] names = {"format, SimpleDateFormat", "format, TimestampCodec", "format now, SimpleDateFormat",
+                "format now, TimestampCodec", "parse, SimpleDateFormat", "parse, TimestampCodec"};
+            System.out.println(String.format(Locale.ROOT, "%-34s %,12.0f conversions/s %8.1f ns %,8.1f bytes/conversion",
+                    names[kind], conversions * 1e9 / bestTime, (double) bestTime / conversions,
+                    bestBytes < 0 ? Double.NaN : (double) bestBytes / conversions));
+        }
+        if (checksum == 42) {
+            System.out.println(); // Never, uses the checksum.
+        }
+        if (codec != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Formats and parses back the timestamps on several threads at the same
+     * time.
+     *
+     * @param codec The codec, or null for one SimpleDateFormat shared by the
+     * threads.
+     * @return The number of round trips giving another timestamp or failing.
+     */
+    private static int roundTrips(int threadCount, final long[] timestamps, final TimestampCodec codec) throws InterruptedException {
+        final SimpleDateFormat format = new SimpleDateFormat(PATTERN, Locale.ROOT);
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < timestamps.length; i++) {
+                        long timestamp = timestamps[(i + offset * 7919) % timestamps.length];
+                        try {
+                            long parsed = codec == null ? format.parse(format.format(new Date(timestamp))).getTime()
+                                    : codec.parse(codec.format(timestamp));
+                            if (parsed != timestamp) {
+                                wrong.incrementAndGet();
+                            }
+                        } catch (Exception e) { // Also the corrupted states of SimpleDateFormat.
+                            wrong.incrementAndGet();
+                        }
+                    }
+                }
+            }, "Converter-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return wrong.get();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return Long.MAX_VALUE; // Reported as NaN.
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.communication;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.protocol.BinaryProtocol;
+import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles a client command of the binary protocol.
+ *
+ * The commands are the ones of the text protocol, see ClientCommandHandler.
+ *
+ * @see BinaryProtocol
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public enum BinaryCommandHandler {
+
+    SUBMIT(BinaryProtocol.SUBMIT) {
+
+        @Override
+        public void handle(WritableByteChannel out, ByteBuffer args, ServerPoiList poiList) throws IOException {
+            Poi poi = BinaryProtocol.getPoi(args);
+
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "CLIENT: SUBMIT " + poi);
+            }
+
+            poiList.addPoi(poi.getType().constructPoi(poi.getLat(), poi.getLon(), poi.getDate()));
+        }
+    },
+    NOT_SEEN(BinaryProtocol.NOT_SEEN) {
+
+        @Override
+        public void handle(WritableByteChannel out, ByteBuffer args, ServerPoiList poiList) throws IOException {
+            Poi poi = BinaryProtocol.getPoi(args);
+
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "CLIENT: NOT_SEEN " + poi);
+            }
+
+            // The date has been truncated to the second.
+            poiList.notSeen(poi.getType().constructPoi(poi.getLat(), poi.getLon(), poi.getDate()), BinaryProtocol.DATE_UNIT);
+        }
+    },
+    NOT_SEEN_ID(BinaryProtocol.NOT_SEEN_ID) {
+
+        @Override
+        public void handle(WritableByteChannel out, ByteBuffer args, ServerPoiList poiList) throws IOException {
+            long id = BinaryProtocol.getVarLong(args);
+            logger.log(Level.INFO, "CLIENT: NOT_SEEN " + id);
+            poiList.notSeen(id);
+        }
+    },
+    GET_INFOS(BinaryProtocol.GET_INFOS) {
+
+        @Override
+        public void handle(WritableByteChannel out, ByteBuffer args, ServerPoiList poiList) throws IOException {
+            double latitude = BinaryProtocol.getCoordinate(args);
+            double longitude = BinaryProtocol.getCoordinate(args);
+            if (args.hasRemaining()) { // Version of the previous answer.
+                long since = BinaryProtocol.getVarLong(args);
+                if (logger.isLoggable(Level.INFO)) {
+                    logger.log(Level.INFO, "CLIENT: GET_INFOS " + latitude + " " + longitude + " " + since);
+                }
+                ServerCommand.sendBinaryChanges(out, poiList.getChangesInArea(latitude, longitude, ClientCommandHandler.SQUARE_AREA, since));
+                return;
+            }
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "CLIENT: GET_INFOS " + latitude + " " + longitude);
+            }
+
+            ArrayList<Poi> points = poiList.getPoisInArea(latitude, longitude, ClientCommandHandler.SQUARE_AREA);
+            ServerCommand.sendBinaryInfos(out, points);
+        }
+    };
+    /**
+     * Commands by opcode.
+     */
+    private static final BinaryCommandHandler[] COMMANDS;
+
+    static {
+        COMMANDS = new BinaryCommandHandler[BinaryProtocol.INFOS];
+        for (BinaryCommandHandler command : values()) {
+            COMMANDS[command.opcode] = command;
+        }
+    }
+    // Logger
+    private static final Logger logger = Logger.getLogger("fr.umlv.ig.bipbip.server.ClientCommandHandler");
+    private final byte opcode;
+
+    private BinaryCommandHandler(byte opcode) {
+        this.opcode = opcode;
+    }
+
+    /**
+     * Reads the command of a frame and runs it.
+     *
+     * @param out Channel the responses are written to.
+     * @param frame The frame, from its opcode to its end.
+     * @param poiList List of POI the command works on.
+     * @throws IOException If the command is invalid or the response cannot
+     * be written.
+     */
+    public static void execute(WritableByteChannel out, ByteBuffer frame, ServerPoiList poiList) throws IOException {
+        int opcode = frame.get();
+        if (opcode < 0 || opcode >= COMMANDS.length || COMMANDS[opcode] == null) {
+            throw new ProtocolException("Invalid opcode " + opcode);
+        }
+        COMMANDS[opcode].handle(out, frame, poiList);
+        if (frame.hasRemaining()) {
+            throw new ProtocolException("Unexpected bytes at the end of the frame " + opcode);
+        }
+    }
+
+    /**
+     * Runs the command.
+     *
+     * @param out Channel the responses are written to.
+     * @param args The frame, positioned on the arguments of the command.
+     * @param poiList List of POI the command works on.
+     * @throws IOException If the command is invalid or the response cannot
+     * be written.
+     */
+    public abstract void handle(WritableByteChannel out, ByteBuffer args, ServerPoiList poiList) throws IOException;
+}
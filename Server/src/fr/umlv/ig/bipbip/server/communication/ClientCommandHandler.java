@@ -18,12 +18,15 @@ package fr.umlv.ig.bipbip.server.communication;
 
 import fr.umlv.ig.bipbip.poi.Poi;
 import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.BinaryProtocol;
+import fr.umlv.ig.bipbip.protocol.LineTokenizer;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
 import fr.umlv.ig.bipbip.server.data.ServerPoiList;
 import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.net.ProtocolException;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Scanner;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,53 +44,25 @@ public enum ClientCommandHandler {
          *
          * SUBMIT EVENT X Y DATE NB_CONFIRMATION
          *
-         * where X and Y are double, and DATE is a full Date in the US locale.
+         * where X and Y are double, and DATE is a timestamp
+         * yyyy-MM-dd'T'HH:mm:ss.SSSZ.
          *
          * SUBMIT is used by a client that want to report the existence of
          * something
          */
         @Override
-        public void handle(SocketChannel sc, Scanner scanner, ServerPoiList poiList) throws IOException {
-            if (!scanner.hasNext()) {
-                throw new IOException("Invalid command");
-            }
-            PoiType type;
-            double latitude, longitude;
-            Date date;
-            try {
-                type = PoiType.valueOf(scanner.next());
-            } catch (IllegalArgumentException e) {
-                throw new IOException("Invalid event type");
-            }
-            if (!scanner.hasNextDouble()) {
-                throw new IOException("Missing X coordinate");
-            }
-            latitude = scanner.nextDouble();
-            if (!scanner.hasNextDouble()) {
-                throw new IOException("Missing Y coordinate");
-            }
-            longitude = scanner.nextDouble();
-            if (!scanner.hasNext()) {
-                throw new IOException("Missing time coordinate");
-            }
-            String d = scanner.next();
-            try {
-                /*
-                 * We have to remove leading spaces, because they will disturb
-                 * DateFormat.parse()
-                 */
-                while (d.startsWith(" ")) {
-                    d = d.substring(1);
-                }
-                date = NetUtils.getDateformat().parse(d);
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new IOException("Invalid date: " + d);
-            }
+        public int handle(WritableByteChannel out, LineTokenizer args, ServerPoiList poiList, int version) throws IOException {
+            PoiType type = args.nextEnum(POI_TYPES, "event type");
+            double latitude = args.nextDouble("X coordinate");
+            double longitude = args.nextDouble("Y coordinate");
+            Date date = new Date(args.nextTimestamp("date"));
 
-            logger.log(Level.INFO, "CLIENT: SUBMIT " + type.name() + " " + latitude + " " + longitude + " " + NetUtils.getDateformat().format(date));
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "CLIENT: SUBMIT " + type.name() + " " + latitude + " " + longitude + " " + TimestampCodec.WIRE.format(date.getTime()));
+            }
 
             poiList.addPoi(type.constructPoi(latitude, longitude, date));
+            return version;
         }
     },
     NOT_SEEN {
@@ -97,53 +72,35 @@ public enum ClientCommandHandler {
          *
          * NOT_SEEN EVENT X Y DATE
          *
-         * where X and Y are double, and DATE is a full Date in the US locale
+         * where X and Y are double, and DATE is a timestamp
+         * yyyy-MM-dd'T'HH:mm:ss.SSSZ
+         *
+         * or, with the identifier sent in the INFO line:
+         *
+         * NOT_SEEN ID
          *
          * NOT_SEEN is used by a client that want to report that he/she didn't
          * see an event reported by the server
          */
         @Override
-        public void handle(SocketChannel sc, Scanner scanner, ServerPoiList poiList) throws IOException {
-            if (!scanner.hasNext()) {
-                throw new IOException("Invalid command");
-            }
-            PoiType type;
-            double latitude, longitude;
-            Date date;
-            try {
-                type = PoiType.valueOf(scanner.next());
-            } catch (IllegalArgumentException e) {
-                throw new IOException("Invalid event type");
-            }
-            if (!scanner.hasNextDouble()) {
-                throw new IOException("Missing latitude coordinate");
-            }
-            latitude = scanner.nextDouble();
-            if (!scanner.hasNextDouble()) {
-                throw new IOException("Missing longitude coordinate");
-            }
-            longitude = scanner.nextDouble();
-            if (!scanner.hasNext()) {
-                throw new IOException("Missing time coordinate");
-            }
-            String d = scanner.nextLine();
-            try {
-                /*
-                 * We have to remove leading spaces, because they will disturb
-                 * DateFormat.parse()
-                 */
-                while (d.startsWith(" ")) {
-                    d = d.substring(1);
-                }
-                date = NetUtils.getDateformat().parse(d);
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new IOException("Invalid date: " + d);
+        public int handle(WritableByteChannel out, LineTokenizer args, ServerPoiList poiList, int version) throws IOException {
+            if (args.hasNextLong()) {
+                long id = args.nextLong("identifier");
+                logger.log(Level.INFO, "CLIENT: NOT_SEEN " + id);
+                poiList.notSeen(id);
+                return version;
             }
+            PoiType type = args.nextEnum(POI_TYPES, "event type");
+            double latitude = args.nextDouble("latitude coordinate");
+            double longitude = args.nextDouble("longitude coordinate");
+            Date date = new Date(args.nextTimestamp("date"));
 
-            logger.log(Level.INFO, "CLIENT: NOT_SEEN " + type.name() + " " + latitude + " " + longitude + " " + NetUtils.getDateformat().format(date));
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "CLIENT: NOT_SEEN " + type.name() + " " + latitude + " " + longitude + " " + TimestampCodec.WIRE.format(date.getTime()));
+            }
 
             poiList.notSeen(type.constructPoi(latitude, longitude, date));
+            return version;
         }
     },
     GET_INFOS {
@@ -151,31 +108,68 @@ public enum ClientCommandHandler {
         /**
          * A GET_INFOS command is supposed to have the following form:
          *
-         * GET_INFOS X Y
+         * GET_INFOS X Y [VERSION]
          *
-         * where X and Y are double
+         * where X and Y are double, and VERSION the one given by the answer
+         * of a previous GET_INFOS. With a version, the answer is INFOS N
+         * VERSION if all the POI are sent, or CHANGES N VERSION followed by
+         * INFO lines for the added or updated POI and REMOVED ID lines for the
+         * removed ones.
+         *
+         * The INFO lines end with the identifier of the POI, except for the
+         * sessions which did not send HELLO: the first clients expect the
+         * number of confirmations last.
          */
         @Override
-        public void handle(SocketChannel sc, Scanner scanner, ServerPoiList poiList) throws IOException {
-            double latitude, longitude;
-            if (!scanner.hasNextDouble()) {
-                throw new IOException("Missing latitude coordinate");
-            }
-            latitude = scanner.nextDouble();
-            if (!scanner.hasNextDouble()) {
-                throw new IOException("Missing longitude coordinate");
-            }
-            longitude = scanner.nextDouble();
+        public int handle(WritableByteChannel out, LineTokenizer args, ServerPoiList poiList, int version) throws IOException {
+            double latitude = args.nextDouble("latitude coordinate");
+            double longitude = args.nextDouble("longitude coordinate");
             /*
              * Retrieving what the client requested.
              */
-            logger.log(Level.INFO, "CLIENT: GET_INFOS " + latitude + " " + longitude);
+            if (args.hasNextLong()) {
+                long since = args.nextLong("version");
+                if (logger.isLoggable(Level.INFO)) {
+                    logger.log(Level.INFO, "CLIENT: GET_INFOS " + latitude + " " + longitude + " " + since);
+                }
+                ServerCommand.sendChanges(out, poiList.getChangesInArea(latitude, longitude, SQUARE_AREA, since));
+                return version;
+            }
+            if (logger.isLoggable(Level.INFO)) {
+                logger.log(Level.INFO, "CLIENT: GET_INFOS " + latitude + " " + longitude);
+            }
 
             // Getting the points 40km square.
             ArrayList<Poi> points = poiList.getPoisInArea(latitude, longitude, SQUARE_AREA);
 
             // Sending the answer.
-            ServerCommand.sendInfos(sc, points);
+            ServerCommand.sendInfos(out, points, version != LEGACY_VERSION);
+            return version;
+        }
+    },
+    HELLO {
+
+        /**
+         * A HELLO command is supposed to have the following form:
+         *
+         * HELLO VERSION
+         *
+         * where VERSION is the latest version of the protocol known by the
+         * client. The server answers HELLO with the version both of them
+         * use from now on, the text protocol being the version 1.
+         *
+         * @see BinaryProtocol
+         */
+        @Override
+        public int handle(WritableByteChannel out, LineTokenizer args, ServerPoiList poiList, int version) throws IOException {
+            int agreed = Math.min(args.nextInt("version"), BinaryProtocol.VERSION);
+            if (agreed < BinaryProtocol.TEXT_VERSION) {
+                throw new ProtocolException("Invalid version: " + args);
+            }
+            logger.log(Level.INFO, "CLIENT: HELLO " + agreed);
+
+            NetUtils.writeLine(out, "HELLO " + agreed);
+            return agreed;
         }
     };
     /**
@@ -183,9 +177,47 @@ public enum ClientCommandHandler {
      *
      * Area of event that will be sent to the client.
      */
-    private static final double SQUARE_AREA = 20000;
+    static final double SQUARE_AREA = 20000;
+    /**
+     * Version of a session which did not send HELLO: the text protocol of
+     * the first clients, without the identifiers of the POI.
+     */
+    public static final int LEGACY_VERSION = -1;
+    private static final PoiType[] POI_TYPES = PoiType.values();
+    private static final ClientCommandHandler[] COMMANDS = values();
     // Logger
     private static final Logger logger = Logger.getLogger("fr.umlv.ig.bipbip.server.ClientCommandHandler");
 
-    public abstract void handle(SocketChannel sc, Scanner scanner, ServerPoiList poiList) throws IOException;
+    /**
+     * Reads the command of a line and runs it.
+     *
+     * @param out Channel the responses are written to.
+     * @param line The line.
+     * @param poiList List of POI the command works on.
+     * @param version Version of the protocol of the session,
+     * {@link #LEGACY_VERSION} until HELLO.
+     * @return The version of the protocol of the next commands, or 0 if the
+     * line is empty, which ends the session.
+     * @throws IOException If the command is invalid or the response cannot
+     * be written.
+     */
+    public static int execute(WritableByteChannel out, LineTokenizer line, ServerPoiList poiList, int version) throws IOException {
+        if (!line.hasNext()) {
+            return 0;
+        }
+        return line.nextEnum(COMMANDS, "command").handle(out, line, poiList, version);
+    }
+
+    /**
+     * Runs the command.
+     *
+     * @param out Channel the responses are written to.
+     * @param args Tokenizer positioned on the arguments of the command.
+     * @param poiList List of POI the command works on.
+     * @param version Version of the protocol of the session.
+     * @return The version of the protocol of the next commands.
+     * @throws IOException If the command is invalid or the response cannot
+     * be written.
+     */
+    public abstract int handle(WritableByteChannel out, LineTokenizer args, ServerPoiList poiList, int version) throws IOException;
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.communication;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiChanges;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.BinaryProtocol;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encoder of the responses of the server, in one buffer sent at once.
+ *
+ * The responses are the ones of the text protocol, or of the binary one.
+ *
+ * The lines are encoded in ASCII directly in the buffer, without any String,
+ * and the buffer is written when full or when the response is complete: a
+ * response of hundreds of lines takes one write instead of one per line.
+ *
+ * The encoders are pooled. The first MAX_POOLED ones have a direct buffer,
+ * written by the socket without any copy; the ones made when they are all in
+ * use have a heap buffer and are dropped after use, so that a burst of
+ * connections does not pin direct memory.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+final class ResponseEncoder {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 64;
+    /**
+     * Longest INFO line: type, two doubles, timestamp, int and long.
+     */
+    private static final int MAX_LINE_LENGTH = 160;
+    private static final ConcurrentLinkedQueue<ResponseEncoder> pool = new ConcurrentLinkedQueue<ResponseEncoder>();
+    private static final AtomicInteger pooledCount = new AtomicInteger();
+    /**
+     * "INFO <type> " of each type, by ordinal.
+     */
+    private static final byte[][] INFO_PREFIXES;
+
+    static {
+        PoiType[] types = PoiType.values();
+        INFO_PREFIXES = new byte[types.length][];
+        for (PoiType type : types) {
+            INFO_PREFIXES[type.ordinal()] = ("INFO " + type.name() + " ").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+    private final ByteBuffer buffer;
+    private final boolean pooled;
+    /**
+     * Formatting of the doubles, which appends them without allocating.
+     */
+    private final StringBuilder number = new StringBuilder(32);
+    private WritableByteChannel channel;
+    /**
+     * Frame of records being encoded: its position, its opcode and the
+     * header repeated by the next frames.
+     */
+    private int frame;
+    private byte recordsOpcode;
+    private int recordsFlags;
+    private long recordsVersion;
+
+    private ResponseEncoder(boolean pooled) {
+        this.pooled = pooled;
+        this.buffer = pooled ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Gets an encoder from the pool.
+     *
+     * @param channel Where the response is written. It must be blocking, or
+     * take all the bytes, as the output of SelectorEngine.
+     * @return The encoder, to release once the response is sent.
+     */
+    static ResponseEncoder acquire(WritableByteChannel channel) {
+        ResponseEncoder encoder = pool.poll();
+        if (encoder == null) {
+            if (pooledCount.incrementAndGet() <= MAX_POOLED) {
+                encoder = new ResponseEncoder(true);
+            } else {
+                pooledCount.decrementAndGet();
+                encoder = new ResponseEncoder(false);
+            }
+        }
+        encoder.channel = channel;
+        return encoder;
+    }
+
+    /**
+     * Gives the encoder back to the pool. The bytes not flushed are lost.
+     */
+    void release() {
+        channel = null;
+        buffer.clear();
+        if (pooled) {
+            pool.offer(this);
+        }
+    }
+
+    /**
+     * Encodes the header of an INFOS response.
+     */
+    void infos(int count) throws IOException {
+        reserve(MAX_LINE_LENGTH);
+        putAscii("INFOS ");
+        putLong(count);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Encodes an INFO line, ended by the identifier of the POI if
+     * identified.
+     */
+    void info(Poi poi, boolean identified) throws IOException {
+        reserve(MAX_LINE_LENGTH);
+        buffer.put(INFO_PREFIXES[poi.getType().ordinal()]);
+        putDouble(poi.getLat());
+        buffer.put((byte) ' ');
+        putDouble(poi.getLon());
+        buffer.put((byte) ' ');
+        TimestampCodec.WIRE.format(poi.getDate().getTime(), buffer);
+        buffer.put((byte) ' ');
+        putLong(poi.getConfirmations());
+        if (identified) {
+            buffer.put((byte) ' ');
+            putLong(poi.getId());
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Encodes the header of an INFOS response giving the version of the POIs.
+     */
+    void infos(int count, long version) throws IOException {
+        reserve(MAX_LINE_LENGTH);
+        putAscii("INFOS ");
+        putLong(count);
+        buffer.put((byte) ' ');
+        putLong(version);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Encodes the header of a CHANGES response.
+     */
+    void changes(int count, long version) throws IOException {
+        reserve(MAX_LINE_LENGTH);
+        putAscii("CHANGES ");
+        putLong(count);
+        buffer.put((byte) ' ');
+        putLong(version);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Encodes a REMOVED line.
+     */
+    void removed(long id) throws IOException {
+        reserve(MAX_LINE_LENGTH);
+        putAscii("REMOVED ");
+        putLong(id);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Encodes an INFOS response of the binary protocol, in as many frames as
+     * the buffer needs.
+     */
+    void binaryInfos(List<Poi> pois) throws IOException {
+        beginRecords(BinaryProtocol.INFOS, 0, 0);
+        for (Poi poi : pois) {
+            nextRecord();
+            BinaryProtocol.putPoi(buffer, poi);
+        }
+        BinaryProtocol.endFrame(buffer, frame);
+    }
+
+    /**
+     * Encodes a CHANGES response of the binary protocol, in as many frames as
+     * the buffer needs.
+     */
+    void binaryChanges(PoiChanges changes) throws IOException {
+        beginRecords(BinaryProtocol.CHANGES, changes.isFull() ? BinaryProtocol.FULL : 0, changes.getVersion());
+        for (Poi poi : changes.getPois()) {
+            nextRecord();
+            BinaryProtocol.putPoi(buffer, poi);
+        }
+        for (long id : changes.getRemoved()) {
+            nextRecord();
+            buffer.put(BinaryProtocol.REMOVED);
+            BinaryProtocol.putVarLong(buffer, id);
+        }
+        BinaryProtocol.endFrame(buffer, frame);
+    }
+
+    /**
+     * Starts a frame of records: INFOS and its more byte, or CHANGES with its
+     * flags and version.
+     */
+    private void beginRecords(byte opcode, int flags, long version) throws IOException {
+        reserve(BinaryProtocol.LENGTH_SIZE + 2 + 10);
+        recordsOpcode = opcode;
+        recordsFlags = flags;
+        recordsVersion = version;
+        frame = BinaryProtocol.beginFrame(buffer, opcode);
+        buffer.put((byte) flags);
+        if (opcode == BinaryProtocol.CHANGES) {
+            BinaryProtocol.putVarLong(buffer, version);
+        }
+    }
+
+    /**
+     * Makes room for a record, going on in another frame if needed.
+     */
+    private void nextRecord() throws IOException {
+        if (buffer.remaining() < BinaryProtocol.MAX_POI_LENGTH) {
+            buffer.put(frame + BinaryProtocol.LENGTH_SIZE + 1, (byte) (recordsFlags | BinaryProtocol.MORE));
+            BinaryProtocol.endFrame(buffer, frame);
+            flush();
+            beginRecords(recordsOpcode, recordsFlags, recordsVersion);
+        }
+    }
+
+    /**
+     * Writes the encoded bytes, even if the channel takes them in several
+     * times.
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void reserve(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void putAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Puts a double as Double.toString writes it.
+     */
+    private void putDouble(double value) {
+        number.setLength(0);
+        number.append(value);
+        putAscii(number);
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                putAscii(Long.toString(value));
+                return;
+            }
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+            digits++;
+        }
+        int end = buffer.position() + digits;
+        for (int i = end - 1; i >= end - digits; i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+}
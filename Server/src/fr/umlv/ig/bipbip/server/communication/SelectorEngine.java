@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.communication;
+
+import fr.umlv.ig.bipbip.protocol.BinaryProtocol;
+import fr.umlv.ig.bipbip.protocol.LineTokenizer;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking connection engine.
+ *
+ * A few event loops multiplex all the connections on their selectors: they
+ * accept, read and write, and never block. The complete lines read from a
+ * connection, or frames once it switched to the binary protocol, are handed
+ * to a pool of workers, which run the commands and write the responses in
+ * the output buffer of the connection. The event loop then sends them.
+ *
+ * A connection reads nothing while its commands run or while its responses
+ * are not sent, so a client which does not read its responses fills its own
+ * socket buffers, not the memory of the server. The connections idle for too
+ * long are closed.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class SelectorEngine {
+
+    public static final Logger logger = Logger.getLogger(SelectorEngine.class.getName());
+    private static final int INPUT_BUFFER_SIZE = 512;
+    /**
+     * A longer line closes the connection.
+     */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+    /**
+     * The commands of a connection are suspended once that much responses
+     * wait to be sent.
+     */
+    private static final int OUTPUT_HIGH_WATER = 256 * 1024;
+    private static final long IDLE_CHECK_PERIOD = 1000;
+    private final ServerSocketChannel ssc;
+    private final Server server;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final long idleTimeout;
+    private volatile boolean shutdown;
+
+    /**
+     * Creates an engine.
+     *
+     * @param ssc Bound server socket channel. Set in non-blocking mode.
+     * @param server Server holding the database of the points of interests.
+     * @param loopCount Number of event loops.
+     * @param workerCount Number of threads running the commands.
+     * @param idleTimeout Time, in milliseconds, after which a connection
+     * without any activity is closed. 0 to keep them open.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public SelectorEngine(ServerSocketChannel ssc, Server server, int loopCount, int workerCount, long idleTimeout) throws IOException {
+        if (loopCount < 1 || workerCount < 1 || idleTimeout < 0) {
+            throw new IllegalArgumentException("Invalid engine settings");
+        }
+        this.ssc = ssc;
+        this.server = server;
+        this.idleTimeout = idleTimeout;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+        final AtomicInteger workerNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Command worker-" + workerNumber.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Starts the event loops. The first one accepts the connections and
+     * deals them out to all the loops.
+     *
+     * @throws IOException If the server socket cannot be registered.
+     */
+    public void start() throws IOException {
+        ssc.configureBlocking(false);
+        ssc.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "Event loop-" + (i + 1)).start();
+        }
+    }
+
+    /**
+     * Stops the event loops and closes all the connections. The commands
+     * already running end.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * An event loop, with its selector.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        /**
+         * Channels accepted for this loop, not registered yet.
+         */
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+        /**
+         * Connections whose commands have run.
+         */
+        private final Queue<Connection> resumed = new ConcurrentLinkedQueue<Connection>();
+        /**
+         * Next loop receiving an accepted channel. Only used by the first
+         * loop.
+         */
+        private int nextLoop;
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            long nextIdleCheck = System.currentTimeMillis() + IDLE_CHECK_PERIOD;
+            try {
+                while (!shutdown) {
+                    selector.select(IDLE_CHECK_PERIOD);
+                    long now = System.currentTimeMillis();
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            ((Connection) key.attachment()).readable(now);
+                        } else if (key.isWritable()) {
+                            ((Connection) key.attachment()).writable(now);
+                        }
+                    }
+
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        register(channel, now);
+                    }
+                    Connection connection;
+                    while ((connection = resumed.poll()) != null) {
+                        connection.resumed();
+                    }
+
+                    if (idleTimeout > 0 && now >= nextIdleCheck) {
+                        closeIdle(now);
+                        nextIdleCheck = now + IDLE_CHECK_PERIOD;
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Event loop stopped", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).disconnect();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void accept() {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = ssc.accept();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Accept " + e.getLocalizedMessage());
+                    return;
+                }
+                if (channel == null) {
+                    return;
+                }
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.accepted.add(channel);
+                if (loop != this) {
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        private void register(SocketChannel channel, long now) {
+            try {
+                logger.log(Level.INFO, "Accept " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                Connection connection = new Connection(channel, this, now);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Accept " + e.getLocalizedMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && !connection.running && now - connection.lastActivity > idleTimeout) {
+                    logger.log(Level.INFO, "Closing idle connection");
+                    connection.disconnect();
+                }
+            }
+        }
+
+        private void resume(Connection connection) {
+            resumed.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A connection with a client.
+     *
+     * The buffers belong to the event loop, except while the commands run:
+     * they belong to the worker then, and the loop does not touch them. The
+     * handlers write their responses to the connection, as to a channel.
+     */
+    private final class Connection implements WritableByteChannel, Runnable {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private SelectionKey key;
+        /**
+         * Bytes read, in write mode.
+         */
+        private ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        /**
+         * Line being run. Only used by the worker.
+         */
+        private final LineTokenizer line = new LineTokenizer();
+        /**
+         * Number of bytes of the input already searched for an end of line.
+         */
+        private int scanned;
+        /**
+         * Version of the protocol of the session. Changed by the worker
+         * only.
+         */
+        private int version = ClientCommandHandler.LEGACY_VERSION;
+        /**
+         * View of the input giving the frames to the worker. null until the
+         * first one, or once the input grows.
+         */
+        private ByteBuffer frame;
+        /**
+         * Responses not sent yet, in write mode. null if none.
+         */
+        private ByteBuffer output;
+        private long lastActivity;
+        /**
+         * If the commands are handed to a worker. Only used by the loop.
+         */
+        private boolean running;
+        /**
+         * If the connection is closed once the responses are sent.
+         */
+        private boolean closing;
+
+        private Connection(SocketChannel channel, EventLoop loop, long now) {
+            this.channel = channel;
+            this.loop = loop;
+            this.lastActivity = now;
+        }
+
+        private void readable(long now) {
+            int read;
+            try {
+                read = channel.read(input);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getLocalizedMessage());
+                disconnect();
+                return;
+            }
+            if (read < 0) {
+                disconnect();
+                return;
+            }
+            lastActivity = now;
+            dispatch();
+        }
+
+        private void writable(long now) {
+            int before = output.position();
+            if (!flush()) {
+                return;
+            }
+            if (output == null || output.position() < before) {
+                lastActivity = now;
+            }
+            if (output == null) {
+                if (closing) {
+                    disconnect();
+                } else {
+                    dispatch();
+                }
+            }
+        }
+
+        /**
+         * Hands the complete lines or frames to a worker, or waits for more
+         * bytes.
+         */
+        private void dispatch() {
+            int required;
+            if (version != BinaryProtocol.VERSION) {
+                for (; scanned < input.position(); scanned++) {
+                    if (input.get(scanned) == '\n') {
+                        execute();
+                        return;
+                    }
+                }
+                if (input.hasRemaining()) {
+                    required = 0;
+                } else if (input.capacity() >= MAX_LINE_LENGTH) {
+                    logger.log(Level.SEVERE, "Line too long, closing the connection");
+                    disconnect();
+                    return;
+                } else {
+                    required = input.capacity() * 2;
+                }
+            } else {
+                required = BinaryProtocol.LENGTH_SIZE;
+                if (input.position() >= BinaryProtocol.LENGTH_SIZE) {
+                    try {
+                        required += BinaryProtocol.frameLength(input, 0);
+                    } catch (ProtocolException e) {
+                        logger.log(Level.SEVERE, e.getLocalizedMessage() + ", closing the connection");
+                        disconnect();
+                        return;
+                    }
+                    if (input.position() >= required) {
+                        execute();
+                        return;
+                    }
+                }
+            }
+            if (input.capacity() < required) {
+                ByteBuffer larger = ByteBuffer.allocate(required);
+                input.flip();
+                larger.put(input);
+                input = larger;
+                frame = null;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Hands the commands to a worker.
+         */
+        private void execute() {
+            running = true;
+            key.interestOps(0);
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) { // Shutting down.
+                disconnect();
+            }
+        }
+
+        /**
+         * Runs the complete lines or frames, in a worker.
+         */
+        @Override
+        public void run() {
+            try {
+                input.flip();
+                while (!closing && (output == null || output.position() < OUTPUT_HIGH_WATER)) {
+                    if (version == BinaryProtocol.VERSION) {
+                        if (!nextFrame()) {
+                            break;
+                        }
+                        runFrame();
+                        continue;
+                    }
+                    int end = input.position();
+                    while (end < input.limit() && input.get(end) != '\n') {
+                        end++;
+                    }
+                    if (end == input.limit()) {
+                        break;
+                    }
+                    line.reset(input, input.position(), end);
+                    input.position(end + 1);
+                    runLine();
+                }
+                input.compact();
+                scanned = 0;
+            } finally {
+                loop.resume(this);
+            }
+        }
+
+        /**
+         * Moves the frame view on the next complete frame of the input.
+         *
+         * @return false if there is none.
+         */
+        private boolean nextFrame() {
+            if (input.remaining() < BinaryProtocol.LENGTH_SIZE) {
+                return false;
+            }
+            int length;
+            try {
+                length = BinaryProtocol.frameLength(input, input.position());
+            } catch (ProtocolException e) {
+                logger.log(Level.SEVERE, e.getLocalizedMessage());
+                closing = true;
+                return false;
+            }
+            if (input.remaining() < BinaryProtocol.LENGTH_SIZE + length) {
+                return false;
+            }
+            int start = input.position() + BinaryProtocol.LENGTH_SIZE;
+            input.position(start + length);
+            if (frame == null) {
+                frame = input.duplicate();
+            }
+            frame.limit(start + length).position(start);
+            return true;
+        }
+
+        private void runFrame() {
+            try {
+                BinaryCommandHandler.execute(this, frame, server.getPoiList());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Invalid frame: " + e.getLocalizedMessage());
+                closing = true;
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Command failed", e);
+                closing = true;
+            }
+        }
+
+        private void runLine() {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Command " + line);
+            }
+            try {
+                version = ClientCommandHandler.execute(this, line, server.getPoiList(), version);
+                if (version == 0) { // An empty line ends the session.
+                    closing = true;
+                }
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.SEVERE, "Invalid command: " + line);
+                closing = true;
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getLocalizedMessage());
+                closing = true;
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Command failed: " + line, e);
+                closing = true;
+            }
+        }
+
+        /**
+         * Sends the responses and reads again, once the commands have run.
+         */
+        private void resumed() {
+            running = false;
+            if (!key.isValid() || !flush()) {
+                return;
+            }
+            if (output != null) {
+                return; // Goes on once written.
+            }
+            if (closing) {
+                disconnect();
+            } else {
+                dispatch();
+            }
+        }
+
+        /**
+         * Sends as much of the responses as the socket takes.
+         *
+         * @return false if the connection is closed.
+         */
+        private boolean flush() {
+            if (output == null) {
+                return true;
+            }
+            output.flip();
+            try {
+                channel.write(output);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getLocalizedMessage());
+                disconnect();
+                return false;
+            }
+            if (output.hasRemaining()) {
+                output.compact();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                output = null;
+            }
+            return true;
+        }
+
+        private void disconnect() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            logger.info("...end of client connection");
+        }
+
+        /**
+         * Appends a response to the output buffer.
+         */
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            if (output == null) {
+                output = ByteBuffer.allocate(Math.max(OUTPUT_BUFFER_SIZE, length));
+            } else if (output.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + length));
+                output.flip();
+                larger.put(output);
+                output = larger;
+            }
+            output.put(src);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closing && channel.isOpen();
+        }
+
+        /**
+         * Closes the connection once the responses are sent.
+         */
+        @Override
+        public void close() {
+            closing = true;
+        }
+    }
+}
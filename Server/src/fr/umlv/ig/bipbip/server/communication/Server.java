@@ -19,9 +19,14 @@ package fr.umlv.ig.bipbip.server.communication;
 import fr.umlv.ig.bipbip.server.data.ServerPoiList;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
-import java.util.HashMap;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,13 +41,34 @@ public class Server {
     public static final Logger logger = Logger.getLogger(Server.class.getName());
     // Network related things.
     private final static int MAX_CONNECTIONS = 32;
+    private final static int BACKLOG = 1024;
     private ServerSocketChannel ssc;
     public static final int DEFAULT_PORT = 6996;
-    // POI.
-    private ServerPoiList poiList = new ServerPoiList();
+    /**
+     * Default time, in milliseconds, after which an idle connection is
+     * closed. The clients poll every 30 seconds.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+    /**
+     * Default number of event loops of the selector mode.
+     */
+    public static final int DEFAULT_EVENT_LOOP_COUNT = Math.min(4, Runtime.getRuntime().availableProcessors());
+    /**
+     * Default number of threads running the commands in the selector mode.
+     * The submissions wait for the journal, so more threads give larger
+     * group commits.
+     */
+    public static final int DEFAULT_WORKER_COUNT = 16;
+    private final ServerMode mode;
+    private int eventLoopCount = DEFAULT_EVENT_LOOP_COUNT;
+    private int workerCount = DEFAULT_WORKER_COUNT;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private SelectorEngine engine;
+    // POI. Replaced by a reload of the database.
+    private volatile ServerPoiList poiList;
     private final int port;
     // List of current communications.
-    private final Map<ServerCommunication, Thread> communications = new HashMap<ServerCommunication, Thread>();
+    private final Map<ServerCommunication, Thread> communications = new ConcurrentHashMap<ServerCommunication, Thread>();
 
     /**
      * Instantiates a server.
@@ -50,7 +76,60 @@ public class Server {
      * @param port Port to bind to.
      */
     public Server(int port) {
+        this(port, new ServerPoiList(), ServerMode.SELECTOR);
+    }
+
+    /**
+     * Instantiates a server.
+     *
+     * @param port Port to bind to.
+     * @param poiList List of POI served.
+     * @param mode How the connections are handled.
+     */
+    public Server(int port, ServerPoiList poiList, ServerMode mode) {
+        Objects.requireNonNull(poiList);
+        Objects.requireNonNull(mode);
+
         this.port = port;
+        this.poiList = poiList;
+        this.mode = mode;
+    }
+
+    /**
+     * Gets how the connections are handled.
+     */
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the number of event loops of the selector mode. To call before
+     * serve().
+     *
+     * @param eventLoopCount Number of event loops.
+     */
+    public void setEventLoopCount(int eventLoopCount) {
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    /**
+     * Sets the number of threads running the commands in the selector mode.
+     * To call before serve().
+     *
+     * @param workerCount Number of threads.
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Sets the time after which an idle connection is closed, in the
+     * selector mode. To call before serve().
+     *
+     * @param idleTimeout Time in milliseconds. 0 to keep them open.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
     }
 
     /**
@@ -79,6 +158,9 @@ public class Server {
         } catch (IOException ex) {
             logger.log(Level.SEVERE, ex.getLocalizedMessage());
         }
+        if (engine != null) {
+            engine.shutdown();
+        }
         for (Map.Entry<ServerCommunication, Thread> entry : communications.entrySet()) {
             entry.getKey().shutdown();
         }
@@ -89,23 +171,112 @@ public class Server {
      * Launch the server.
      */
     public void serve() {
-        logger.log(Level.INFO, "Starting the server on port "+ port);
+        logger.log(Level.INFO, "Starting the server on port " + port + " (" + mode + " mode)");
         try {
             ssc = ServerSocketChannel.open();
-            ssc.socket().bind(new InetSocketAddress(this.port), MAX_CONNECTIONS);
+            switch (mode) {
+                case SELECTOR:
+                    ssc.socket().bind(new InetSocketAddress(this.port), BACKLOG);
+                    engine = new SelectorEngine(ssc, this, eventLoopCount, workerCount, idleTimeout);
+                    engine.start();
+                    break;
+                case THREAD_PER_CONNECTION:
+                case VIRTUAL_THREAD_PER_CONNECTION:
+                    ssc.socket().bind(new InetSocketAddress(this.port), BACKLOG);
+                    final ThreadFactory threadFactory = newConnectionThreadFactory(mode == ServerMode.VIRTUAL_THREAD_PER_CONNECTION);
+                    Thread acceptor = new Thread(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            acceptConnections(threadFactory);
+                        }
+                    }, "Acceptor");
+                    acceptor.start();
+                    break;
+                case THREADS:
+                    ssc.socket().bind(new InetSocketAddress(this.port), MAX_CONNECTIONS);
+                    for (int i = 0; i < MAX_CONNECTIONS; i++) {
+                        ServerCommunication communication = new ServerCommunication(ssc, this);
+                        Thread t = new Thread(communication);
+                        communications.put(communication, t);
+                        t.start();
+                    }
+                    break;
+            }
         } catch (IOException ex) {
             logger.log(Level.SEVERE, ex.getLocalizedMessage());
             return;
         }
 
-        for (int i = 0; i < MAX_CONNECTIONS; i++) {
-            ServerCommunication communication = new ServerCommunication(ssc, poiList);
-            Thread t = new Thread(communication);
+        logger.log(Level.INFO, "Server started.");
+    }
+
+    /**
+     * Accepts the connections and starts a thread for each one, until the
+     * server is closed.
+     *
+     * @param threadFactory Factory of the threads of the connections.
+     */
+    private void acceptConnections(ThreadFactory threadFactory) {
+        while (true) {
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+                logger.log(Level.INFO, "Accept " + sc.getRemoteAddress());
+            } catch (ClosedChannelException e) {
+                return; // Server is closed.
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Accept " + e.getLocalizedMessage());
+                continue;
+            }
+
+            final ServerCommunication communication = new ServerCommunication(sc, this);
+            Thread t = threadFactory.newThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        communication.run();
+                    } finally {
+                        communications.remove(communication);
+                    }
+                }
+            });
             communications.put(communication, t);
             t.start();
         }
+    }
 
-        logger.log(Level.INFO, "Server started.");
+    /**
+     * Creates the factory of the threads of the connections, named Client-n.
+     *
+     * The virtual threads are looked up by reflection, since the server is
+     * built for Java 7. Without them, platform threads are created.
+     *
+     * @param virtual If virtual threads are wanted.
+     */
+    private static ThreadFactory newConnectionThreadFactory(boolean virtual) {
+        if (virtual) {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Client-", 1L);
+                ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                logger.log(Level.INFO, "One virtual thread per connection");
+                return factory;
+            } catch (ReflectiveOperationException e) {
+                logger.log(Level.WARNING, "No virtual threads in this JVM, one platform thread per connection");
+            }
+        }
+
+        final AtomicLong number = new AtomicLong();
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Client-" + number.incrementAndGet());
+            }
+        };
     }
 
     /**
@@ -116,4 +287,33 @@ public class Server {
     public ServerPoiList getPoiList() {
         return poiList;
     }
+
+    /**
+     * Replaces the list of POI, while the server keeps serving.
+     *
+     * The commands already running on the previous list are made on the new
+     * one, the next ones use the new list. The new list takes over the
+     * journal and the history archive of the previous one.
+     *
+     * @param poiList The new list of POI, already loaded.
+     * @return The previous list.
+     * @throws IOException If the snapshot of the new list cannot be written.
+     * The previous list is still served and journaled then.
+     *
+     * @see ServerPoiList#takeOver(ServerPoiList, Runnable)
+     */
+    public synchronized ServerPoiList setPoiList(final ServerPoiList poiList) throws IOException {
+        Objects.requireNonNull(poiList);
+
+        ServerPoiList previous = this.poiList;
+        poiList.takeOver(previous, new Runnable() {
+
+            @Override
+            public void run() {
+                Server.this.poiList = poiList;
+            }
+        });
+        logger.log(Level.INFO, "Database replaced, {0} POIs", poiList.getSize());
+        return previous;
+    }
 }
@@ -17,8 +17,9 @@
 package fr.umlv.ig.bipbip.server.communication;
 
 import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiChanges;
 import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 
 /**
@@ -28,14 +29,84 @@ import java.util.ArrayList;
  */
 public class ServerCommand {
 
-    public static void sendInfos(SocketChannel sc, ArrayList<Poi> list) throws IOException {
-        NetUtils.writeLine(sc, "INFOS " + list.size());
-        for (Poi e : list) {
-            sendEventInfo(sc, e);
+    /**
+     * Sends the POI of a GET_INFOS request.
+     *
+     * The response is encoded in a pooled buffer and written at once, in as
+     * few writes as the channel needs.
+     *
+     * @param identified If the INFO lines end with the identifiers of the
+     * POI, which the clients not sending HELLO do not expect.
+     */
+    public static void sendInfos(WritableByteChannel sc, ArrayList<Poi> list, boolean identified) throws IOException {
+        ResponseEncoder encoder = ResponseEncoder.acquire(sc);
+        try {
+            encoder.infos(list.size());
+            for (Poi e : list) {
+                encoder.info(e, identified);
+            }
+            encoder.flush();
+        } finally {
+            encoder.release();
         }
     }
 
-    private static void sendEventInfo(SocketChannel sc, Poi e) throws IOException {
-        NetUtils.writeLine(sc, "INFO " + e.getType().name() + " " + e.getLat() + " " + e.getLon() + " " + NetUtils.getDateformat().format(e.getDate()) + " " + e.getConfirmations());
+    /**
+     * Sends the POI of a GET_INFOS request of the binary protocol.
+     *
+     * @see #sendInfos(WritableByteChannel, ArrayList, boolean)
+     */
+    public static void sendBinaryInfos(WritableByteChannel sc, ArrayList<Poi> list) throws IOException {
+        ResponseEncoder encoder = ResponseEncoder.acquire(sc);
+        try {
+            encoder.binaryInfos(list);
+            encoder.flush();
+        } finally {
+            encoder.release();
+        }
+    }
+
+    /**
+     * Sends the changes of a GET_INFOS request giving a version: INFOS and
+     * the version if they are full, CHANGES otherwise. Only the clients
+     * knowing the identifiers give a version: the INFO lines always end with
+     * them.
+     *
+     * @see #sendInfos(WritableByteChannel, ArrayList, boolean)
+     */
+    public static void sendChanges(WritableByteChannel sc, PoiChanges changes) throws IOException {
+        ResponseEncoder encoder = ResponseEncoder.acquire(sc);
+        try {
+            if (changes.isFull()) {
+                encoder.infos(changes.getPois().size(), changes.getVersion());
+            } else {
+                encoder.changes(changes.getPois().size() + changes.getRemoved().size(), changes.getVersion());
+            }
+            for (Poi e : changes.getPois()) {
+                encoder.info(e, true);
+            }
+            for (long id : changes.getRemoved()) {
+                encoder.removed(id);
+            }
+            encoder.flush();
+        } finally {
+            encoder.release();
+        }
+    }
+
+    /**
+     * Sends the changes of a GET_INFOS request of the binary protocol giving
+     * a version.
+     *
+     * @see #sendChanges(WritableByteChannel, PoiChanges)
+     */
+    public static void sendBinaryChanges(WritableByteChannel sc, PoiChanges changes) throws IOException {
+        ResponseEncoder encoder = ResponseEncoder.acquire(sc);
+        try {
+            encoder.binaryChanges(changes);
+            encoder.flush();
+        } finally {
+            encoder.release();
+        }
     }
 }
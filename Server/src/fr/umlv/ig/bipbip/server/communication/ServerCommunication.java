@@ -16,12 +16,14 @@
  */
 package fr.umlv.ig.bipbip.server.communication;
 
-import fr.umlv.ig.bipbip.server.data.ServerPoiList;
+import fr.umlv.ig.bipbip.protocol.BinaryProtocol;
+import fr.umlv.ig.bipbip.protocol.LineReader;
+import fr.umlv.ig.bipbip.protocol.LineTokenizer;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Scanner;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,21 +38,35 @@ public class ServerCommunication implements Runnable {
     public static final Logger logger = Logger.getLogger(ServerCommunication.class.getName());
     private final ServerSocketChannel ssc;
     private SocketChannel sc;
-    private Scanner scanner;
-    private final ServerPoiList poiList;
+    private final Server server;
     private final AtomicBoolean requestShutdown = new AtomicBoolean(false);
 
     /**
      * Instantiate a server/client communication.
      *
      * @param ssc Server socket channel to use.
-     * @param poiList Database holdings the points of interests.
+     * @param server Server holding the database of the points of interests.
+     * The database is read again for every command, so a reloaded database
+     * is used at once.
      *
      * @see #run()
      */
-    public ServerCommunication(ServerSocketChannel ssc, ServerPoiList poiList) {
+    public ServerCommunication(ServerSocketChannel ssc, Server server) {
         this.ssc = ssc;
-        this.poiList = poiList;
+        this.server = server;
+    }
+
+    /**
+     * Instantiate a communication with a client already accepted. It ends
+     * with the client session.
+     *
+     * @param sc SocketChannel with the client.
+     * @param server Server holding the database of the points of interests.
+     */
+    public ServerCommunication(SocketChannel sc, Server server) {
+        this.ssc = null;
+        this.sc = sc;
+        this.server = server;
     }
 
     /**
@@ -64,16 +80,14 @@ public class ServerCommunication implements Runnable {
             } catch (IOException ignored) {
             }
         }
-        if (scanner != null) {
-            try {
-                scanner.close();
-            } catch (IllegalStateException ignored) {
-            }
-        }
     }
 
     @Override
     public void run() {
+        if (ssc == null) {
+            serveClient(sc);
+            return;
+        }
         while (requestShutdown.get() == false) {
             synchronized (ssc) {
                 try {
@@ -106,21 +120,32 @@ public class ServerCommunication implements Runnable {
      */
     private void serveClient(final SocketChannel sc) {
         logger.fine("Dealing with client...");
-        scanner = new Scanner(sc);
+        LineReader reader = new LineReader(sc);
+        LineTokenizer line = new LineTokenizer();
+        int version = ClientCommandHandler.LEGACY_VERSION;
         try {
-            while (requestShutdown.get() == false && scanner.hasNextLine()) {
-                logger.log(Level.FINE, "Lecture depuis le réseau. " + sc.getRemoteAddress().toString());
-                String line = scanner.nextLine();
-                Scanner tmp_scanner = new Scanner(line);
-                if (!tmp_scanner.hasNext()) {
+            while (requestShutdown.get() == false) {
+                if (version == BinaryProtocol.VERSION) {
+                    ByteBuffer frame = reader.readFrame();
+                    if (frame == null) {
+                        break;
+                    }
+                    BinaryCommandHandler.execute(sc, frame, server.getPoiList());
+                    continue;
+                }
+                if (!reader.readLine(line)) {
                     break;
                 }
-                String foo = tmp_scanner.next();
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "Lecture depuis le réseau. " + sc.getRemoteAddress().toString());
+                }
                 try {
-                    ClientCommandHandler cmd = ClientCommandHandler.valueOf(foo);
-                    cmd.handle(sc, tmp_scanner, poiList);
+                    version = ClientCommandHandler.execute(sc, line, server.getPoiList(), version);
+                    if (version == 0) {
+                        break;
+                    }
                 } catch (IllegalArgumentException e) {
-                    throw new IOException("Invalid command: " + line);
+                    throw new IOException("Invalid command: " + line, e);
                 }
             }
         } catch (IOException ie) {
@@ -130,7 +155,6 @@ public class ServerCommunication implements Runnable {
         } finally {
             logger.info("...end of client connection");
             try {
-                scanner.close();
                 sc.close();
             } catch (IOException ignored) {
             }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.communication;
+
+/**
+ * How the server handles its connections.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public enum ServerMode {
+
+    /**
+     * A fixed pool of threads, each one serving a client for its whole
+     * session. The other clients wait until a thread is free.
+     */
+    THREADS,
+    /**
+     * A platform thread per connection. No limit on the number of clients,
+     * and the blocking code of the thread mode.
+     */
+    THREAD_PER_CONNECTION,
+    /**
+     * A virtual thread per connection, if the JVM has them (Java 21), a
+     * platform thread otherwise. The blocking code of the thread mode, the
+     * virtual threads sharing a few carrier threads.
+     */
+    VIRTUAL_THREAD_PER_CONNECTION,
+    /**
+     * A few event loops multiplexing all the connections on selectors, the
+     * commands being run by a pool of workers.
+     *
+     * @see SelectorEngine
+     */
+    SELECTOR;
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiChanges;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Log of the last changes of the active POIs, numbered by a version.
+ *
+ * Each added, updated or removed POI takes the next version. The log keeps
+ * the last changes in a ring: a client knowing a version still in the ring
+ * gets only the POIs changed since, the other ones need all the POIs.
+ *
+ * The first version is the creation time of the log in microseconds, so a
+ * version given by another list, as the one of a server restarted since, is
+ * unknown to this one rather than mistaken for one of its own.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class ChangeLog {
+
+    /**
+     * Default number of changes kept.
+     */
+    public static final int DEFAULT_CAPACITY = 16384;
+    private final Poi[] pois;
+    private final boolean[] removals;
+    /**
+     * Version of the log before the first change.
+     */
+    private final long first;
+    private long version;
+
+    /**
+     * Creates a log keeping the default number of changes.
+     */
+    public ChangeLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a log.
+     *
+     * @param capacity Number of changes kept.
+     */
+    public ChangeLog(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.pois = new Poi[capacity];
+        this.removals = new boolean[capacity];
+        this.first = System.currentTimeMillis() * 1000;
+        this.version = first;
+    }
+
+    /**
+     * Records a change, once it is done in the list.
+     *
+     * @param poi The added, updated or removed POI.
+     * @param removed true if the POI has been removed.
+     */
+    public synchronized void record(Poi poi, boolean removed) {
+        version++;
+        int index = (int) (version % pois.length);
+        pois[index] = poi;
+        removals[index] = removed;
+    }
+
+    /**
+     * Gets the version of the last change.
+     *
+     * @return The version.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the changes of an area since a version.
+     *
+     * A POI changed several times is only given once, as it is now. A POI
+     * which left the area, or is not active anymore, is given as removed.
+     *
+     * @param area The area.
+     * @param since Version known by the client.
+     * @param list The list, to check that the changed POIs are still active.
+     * @return The changes, or null if the version is unknown or too old.
+     */
+    public PoiChanges getChanges(GeoArea area, long since, PoiList list) {
+        Poi[] changed;
+        boolean[] removed;
+        long current;
+        synchronized (this) {
+            if (since > version || since < first || since < version - pois.length) {
+                return null;
+            }
+            current = version;
+            int count = (int) (version - since);
+            changed = new Poi[count];
+            removed = new boolean[count];
+            for (int i = 0; i < count; i++) { // Newest first.
+                int index = (int) ((version - i) % pois.length);
+                changed[i] = pois[index];
+                removed[i] = removals[index];
+            }
+        }
+
+        // Last change of each POI, and the POIs which were in the area.
+        LinkedHashMap<Long, Integer> last = new LinkedHashMap<Long, Integer>();
+        HashSet<Long> inArea = new HashSet<Long>();
+        for (int i = 0; i < changed.length; i++) {
+            Long id = changed[i].getId();
+            if (!last.containsKey(id)) {
+                last.put(id, i);
+            }
+            if (area.contains(changed[i].getLat(), changed[i].getLon())) {
+                inArea.add(id);
+            }
+        }
+
+        ArrayList<Poi> updated = new ArrayList<Poi>();
+        ArrayList<Long> removedIds = new ArrayList<Long>();
+        for (Map.Entry<Long, Integer> entry : last.entrySet()) {
+            Long id = entry.getKey();
+            if (!inArea.contains(id)) {
+                continue;
+            }
+            Poi poi = changed[entry.getValue()];
+            if (!removed[entry.getValue()] && list.getPoi(id) == poi && area.contains(poi.getLat(), poi.getLon())) {
+                updated.add(poi);
+            } else {
+                removedIds.add(id);
+            }
+        }
+        return new PoiChanges(current, false, updated, removedIds);
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Append only store of POIs, kept in columns of primitive values.
+ *
+ * A POI takes 41 bytes: the coordinates are stored as micro-degree integers
+ * (about 11 cm of precision), the dates as milliseconds, the type as its
+ * ordinal. There is no object per POI, so millions of POIs cost almost nothing
+ * to the garbage collector. The columns are either in the heap, off-heap in
+ * direct buffers, or in a memory-mapped temporary file which the system pages
+ * out when the memory is needed.
+ *
+ * The POIs are read through flyweight views. The reads are lock free, the
+ * appends and the updates of the counters are serialized.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class ColumnarPoiStore {
+
+    /**
+     * Where the columns are allocated.
+     */
+    public enum Storage {
+
+        /**
+         * Arrays in the heap.
+         */
+        HEAP,
+        /**
+         * Direct buffers, outside of the heap.
+         */
+        DIRECT,
+        /**
+         * A temporary file mapped in memory, outside of the heap. The file
+         * is deleted once mapped, or at exit if the system does not allow
+         * it.
+         */
+        MAPPED
+    }
+    /**
+     * System property giving the default storage. (heap, direct or mapped)
+     */
+    public static final String STORAGE_PROPERTY = "bipbip.history.storage";
+    /**
+     * Bytes of a POI in the columns.
+     */
+    private static final int ROW_SIZE = 41;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MICRO_DEGREE = 1000000.0;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final PoiType[] TYPES = PoiType.values();
+    private final Storage storage;
+    private final Object lock = new Object();
+    /**
+     * Current columns, replaced when the store grows.
+     */
+    private volatile Columns columns;
+    /**
+     * Number of POIs, published after the values of a new POI are written.
+     */
+    private volatile int size;
+
+    /**
+     * Columns of the store.
+     */
+    private static final class Columns {
+
+        private final int capacity;
+        private final LongBuffer ids;
+        private final LongBuffer dates;
+        private final LongBuffer removedDates;
+        private final IntBuffer latitudes;
+        private final IntBuffer longitudes;
+        private final IntBuffer confirmations;
+        private final IntBuffer refutations;
+        private final ByteBuffer types;
+
+        private Columns(Storage storage, int capacity) {
+            this.capacity = capacity;
+            if (storage == Storage.MAPPED) {
+                // One file, a mapping per column: a mapping is at most 2 GB.
+                try {
+                    File file = File.createTempFile("bipbip-columns", ".bin");
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.setLength((long) capacity * ROW_SIZE);
+                        FileChannel channel = raf.getChannel();
+                        ids = map(channel, 0, capacity * 8).asLongBuffer();
+                        dates = map(channel, capacity * 8L, capacity * 8).asLongBuffer();
+                        removedDates = map(channel, capacity * 16L, capacity * 8).asLongBuffer();
+                        latitudes = map(channel, capacity * 24L, capacity * 4).asIntBuffer();
+                        longitudes = map(channel, capacity * 28L, capacity * 4).asIntBuffer();
+                        confirmations = map(channel, capacity * 32L, capacity * 4).asIntBuffer();
+                        refutations = map(channel, capacity * 36L, capacity * 4).asIntBuffer();
+                        types = map(channel, capacity * 40L, capacity);
+                    } finally {
+                        raf.close(); // The mappings stay valid.
+                        if (!file.delete()) {
+                            file.deleteOnExit();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to map the columns", e);
+                }
+            } else if (storage == Storage.DIRECT) {
+                ids = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+                dates = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+                removedDates = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+                latitudes = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                longitudes = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                confirmations = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                refutations = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                types = ByteBuffer.allocateDirect(capacity);
+            } else {
+                ids = LongBuffer.allocate(capacity);
+                dates = LongBuffer.allocate(capacity);
+                removedDates = LongBuffer.allocate(capacity);
+                latitudes = IntBuffer.allocate(capacity);
+                longitudes = IntBuffer.allocate(capacity);
+                confirmations = IntBuffer.allocate(capacity);
+                refutations = IntBuffer.allocate(capacity);
+                types = ByteBuffer.allocate(capacity);
+            }
+        }
+
+        private static ByteBuffer map(FileChannel channel, long position, int size) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_WRITE, position, size).order(ByteOrder.nativeOrder());
+        }
+
+        private void copyTo(Columns other, int count) {
+            for (int i = 0; i < count; i++) {
+                other.ids.put(i, ids.get(i));
+                other.dates.put(i, dates.get(i));
+                other.removedDates.put(i, removedDates.get(i));
+                other.latitudes.put(i, latitudes.get(i));
+                other.longitudes.put(i, longitudes.get(i));
+                other.confirmations.put(i, confirmations.get(i));
+                other.refutations.put(i, refutations.get(i));
+                other.types.put(i, types.get(i));
+            }
+        }
+    }
+
+    /**
+     * Creates an empty store, allocated as defined by the STORAGE_PROPERTY
+     * system property. (heap by default)
+     *
+     * @see #STORAGE_PROPERTY
+     */
+    public ColumnarPoiStore() {
+        this(Storage.valueOf(System.getProperty(STORAGE_PROPERTY, Storage.HEAP.name()).toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * Creates an empty store.
+     *
+     * @param storage Where the columns are allocated.
+     * @throws IllegalStateException If the columns of a mapped store cannot
+     * be mapped. The same happens when it grows.
+     */
+    public ColumnarPoiStore(Storage storage) {
+        Objects.requireNonNull(storage);
+
+        this.storage = storage;
+        this.columns = new Columns(storage, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Gets where the columns are allocated.
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Gets the number of POIs in the store.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copies a POI at the end of the store.
+     *
+     * The coordinates are rounded to the micro-degree.
+     *
+     * @param poi POI to copy.
+     * @return The view of the stored POI.
+     * @throws IllegalStateException If the store is full, or a mapped store
+     * cannot grow.
+     */
+    public Poi add(Poi poi) {
+        synchronized (lock) {
+            int row = size;
+            Columns c = columns;
+            if (row == c.capacity) {
+                if (row == Integer.MAX_VALUE / 8) {
+                    throw new IllegalStateException("Store full");
+                }
+                Columns bigger = new Columns(storage, (int) Math.min((long) row * 2, Integer.MAX_VALUE / 8));
+                c.copyTo(bigger, row);
+                columns = bigger;
+                c = bigger;
+            }
+
+            c.ids.put(row, poi.getId());
+            c.dates.put(row, poi.getDate().getTime());
+            c.removedDates.put(row, poi.getRemovedDate() == null ? NO_DATE : poi.getRemovedDate().getTime());
+            c.latitudes.put(row, (int) Math.round(poi.getLat() * MICRO_DEGREE));
+            c.longitudes.put(row, (int) Math.round(poi.getLon() * MICRO_DEGREE));
+            c.confirmations.put(row, poi.getConfirmations());
+            c.refutations.put(row, poi.getRefutations());
+            c.types.put(row, (byte) poi.getType().ordinal());
+            size = row + 1;
+
+            return new View(row);
+        }
+    }
+
+    /**
+     * Gets the view of a POI.
+     *
+     * @param row Index of the POI, in the insertion order.
+     * @return The view.
+     */
+    public Poi get(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + " Size: " + size);
+        }
+        return new View(row);
+    }
+
+    /**
+     * Gets the date of a POI, without creating any object.
+     *
+     * @param row Index of the POI.
+     * @return The date, in milliseconds.
+     */
+    public long getDate(int row) {
+        return columns.dates.get(row);
+    }
+
+    /**
+     * Gets the removed date of a POI, without creating any object.
+     *
+     * @param row Index of the POI.
+     * @return The removed date in milliseconds, or Long.MIN_VALUE if the POI
+     * has no removed date.
+     */
+    public long getRemovedDate(int row) {
+        return columns.removedDates.get(row);
+    }
+
+    /**
+     * Adds the views of all the POIs to a collection.
+     *
+     * @param result Collection to fill.
+     */
+    public void collectAll(Collection<? super Poi> result) {
+        collect(size, result);
+    }
+
+    /**
+     * Adds the views of the first POIs to a collection.
+     *
+     * @param count Number of POIs, at most the size read before.
+     * @param result Collection to fill.
+     */
+    public void collect(int count, Collection<? super Poi> result) {
+        for (int row = 0; row < count; row++) {
+            result.add(new View(row));
+        }
+    }
+
+    /**
+     * Flyweight view of a stored POI.
+     *
+     * Two views are equal if they have the same type, position and date.
+     */
+    private final class View implements Poi {
+
+        private final int row;
+
+        private View(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public long getId() {
+            return columns.ids.get(row);
+        }
+
+        @Override
+        public void setId(long id) {
+            synchronized (lock) {
+                columns.ids.put(row, id);
+            }
+        }
+
+        @Override
+        public double getLat() {
+            return columns.latitudes.get(row) / MICRO_DEGREE;
+        }
+
+        @Override
+        public double getLon() {
+            return columns.longitudes.get(row) / MICRO_DEGREE;
+        }
+
+        @Override
+        public PoiType getType() {
+            return TYPES[columns.types.get(row)];
+        }
+
+        @Override
+        public Date getDate() {
+            return new Date(columns.dates.get(row));
+        }
+
+        @Override
+        public int getConfirmations() {
+            return columns.confirmations.get(row);
+        }
+
+        @Override
+        public int getRefutations() {
+            return columns.refutations.get(row);
+        }
+
+        @Override
+        public void setConfirmations(int confirmations) {
+            synchronized (lock) {
+                columns.confirmations.put(row, confirmations);
+            }
+        }
+
+        @Override
+        public void setRefutations(int refutations) {
+            synchronized (lock) {
+                columns.refutations.put(row, refutations);
+            }
+        }
+
+        @Override
+        public int incrementConfirmations() {
+            synchronized (lock) {
+                int confirmations = columns.confirmations.get(row) + 1;
+                columns.confirmations.put(row, confirmations);
+                return confirmations;
+            }
+        }
+
+        @Override
+        public int incrementRefutations() {
+            synchronized (lock) {
+                int refutations = columns.refutations.get(row) + 1;
+                columns.refutations.put(row, refutations);
+                return refutations;
+            }
+        }
+
+        @Override
+        public Date getRemovedDate() {
+            long removedDate = columns.removedDates.get(row);
+            return removedDate == NO_DATE ? null : new Date(removedDate);
+        }
+
+        @Override
+        public void setRemovedDate(Date removedDate) {
+            synchronized (lock) {
+                columns.removedDates.put(row, removedDate == null ? NO_DATE : removedDate.getTime());
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Poi other = (Poi) obj;
+            return Double.doubleToLongBits(getLat()) == Double.doubleToLongBits(other.getLat())
+                    && Double.doubleToLongBits(getLon()) == Double.doubleToLongBits(other.getLon())
+                    && getType() == other.getType() && getDate().equals(other.getDate());
+        }
+
+        @Override
+        public int hashCode() {
+            // As AbstractReportedPoi, the identifier can change.
+            int hash = 3;
+            hash = 29 * hash + (int) (Double.doubleToLongBits(getLat()) ^ (Double.doubleToLongBits(getLat()) >>> 32));
+            hash = 29 * hash + (int) (Double.doubleToLongBits(getLon()) ^ (Double.doubleToLongBits(getLon()) >>> 32));
+            hash = 29 * hash + getType().hashCode();
+            hash = 29 * hash + getDate().hashCode();
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "POI " + getId() + " " + getType() + " coordinates:" + getLat() + "," + getLon() + " date:" + getDate();
+        }
+    }
+}
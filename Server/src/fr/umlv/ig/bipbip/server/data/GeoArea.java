@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+/**
+ * Circular area around a position.
+ *
+ * Everything that only depends on the center and the radius is computed once,
+ * so testing a point is cheap: a bounding box rejection first, then the
+ * equirectangular approximation without any trigonometric call for the short
+ * radius, or the haversine formula for the large ones.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public final class GeoArea {
+
+    private final double latitude;
+    private final double longitude;
+    private final double radius;
+    private final double minLatitude;
+    private final double maxLatitude;
+    private final double minLongitude;
+    private final double maxLongitude;
+    private final double longitudeDelta;
+    private final double cosLatitude;
+    private final double sinLatitude;
+    private final double squaredRadiusInDegree;
+    private final boolean approximated;
+
+    /**
+     * Creates an area.
+     *
+     * @param latitude latitude position of the center.
+     * @param longitude longitude position of the center.
+     * @param radius Radius of the area, in meter.
+     */
+    public GeoArea(double latitude, double longitude, double radius) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+
+        double latitudeDelta = GeoDistance.latitudeDelta(radius);
+        this.minLatitude = latitude - latitudeDelta;
+        this.maxLatitude = latitude + latitudeDelta;
+        this.longitudeDelta = GeoDistance.longitudeDelta(latitude, radius);
+        if (longitudeDelta >= 180) {
+            this.minLongitude = -180;
+            this.maxLongitude = 180;
+        } else {
+            this.minLongitude = wrapLongitude(longitude - longitudeDelta);
+            this.maxLongitude = wrapLongitude(longitude + longitudeDelta);
+        }
+
+        this.cosLatitude = Math.cos(Math.toRadians(latitude));
+        this.sinLatitude = Math.sin(Math.toRadians(latitude));
+        this.squaredRadiusInDegree = latitudeDelta * latitudeDelta;
+        this.approximated = radius <= GeoDistance.EQUIRECTANGULAR_MAX_DISTANCE;
+    }
+
+    private static double wrapLongitude(double longitude) {
+        if (longitude > 180) {
+            return longitude - 360;
+        }
+        if (longitude < -180) {
+            return longitude + 360;
+        }
+        return longitude;
+    }
+
+    /**
+     * Gets the latitude of the center.
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * Gets the longitude of the center.
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Gets the radius of the area, in meter.
+     */
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * Gets the south border of the bounding box.
+     */
+    public double getMinLatitude() {
+        return minLatitude;
+    }
+
+    /**
+     * Gets the north border of the bounding box.
+     */
+    public double getMaxLatitude() {
+        return maxLatitude;
+    }
+
+    /**
+     * Gets the west border of the bounding box.
+     *
+     * Greater than the east border if the box crosses the 180th meridian.
+     */
+    public double getMinLongitude() {
+        return minLongitude;
+    }
+
+    /**
+     * Gets the east border of the bounding box.
+     */
+    public double getMaxLongitude() {
+        return maxLongitude;
+    }
+
+    /**
+     * Tests if a point is inside the bounding box of the area.
+     *
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @return true if the point is in the box.
+     */
+    public boolean inBoundingBox(double latitude, double longitude) {
+        if (latitude < minLatitude || latitude > maxLatitude) {
+            return false;
+        }
+        return longitudeDelta >= 180 || Math.abs(GeoDistance.longitudeDifference(this.longitude, longitude)) <= longitudeDelta;
+    }
+
+    /**
+     * Tests if a point is inside the area.
+     *
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @return true if the distance between the point and the center is less
+     * or equal to the radius.
+     */
+    public boolean contains(double latitude, double longitude) {
+        if (!inBoundingBox(latitude, longitude)) {
+            return false;
+        }
+        if (!approximated) {
+            return GeoDistance.haversine(this.latitude, this.longitude, latitude, longitude) <= radius;
+        }
+
+        // Equirectangular approximation, with the cosine of the mean latitude
+        // linearized around the center.
+        double y = latitude - this.latitude;
+        double cosMeanLatitude = cosLatitude - sinLatitude * Math.toRadians(y / 2);
+        double x = GeoDistance.longitudeDifference(this.longitude, longitude) * cosMeanLatitude;
+        return x * x + y * y <= squaredRadiusInDegree;
+    }
+
+    /**
+     * Gets the distance between the center of the area and a point.
+     *
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @return The distance in meter.
+     */
+    public double distanceTo(double latitude, double longitude) {
+        return GeoDistance.distance(this.latitude, this.longitude, latitude, longitude);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+/**
+ * Distance computations between geographic coordinates.
+ *
+ * All the coordinates are in degree, all the distances in meter. The earth is
+ * considered as a sphere of radius EARTH_RADIUS.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public final class GeoDistance {
+
+    /**
+     * Mean radius of the earth, in meter.
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+    /**
+     * Number of meter in one degree of latitude.
+     */
+    public static final double METER_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+    /**
+     * Maximum distance for which the equirectangular approximation is used.
+     *
+     * Under 50 km, the relative error of the approximation is under 1e-5
+     * below the 60th parallel, half a meter at most, and under 1e-4 up to the
+     * 80th, a few meters.
+     */
+    public static final double EQUIRECTANGULAR_MAX_DISTANCE = 50000;
+
+    private GeoDistance() {
+    }
+
+    /**
+     * Gets the exact distance between two points, using the haversine formula.
+     *
+     * @param latitude1 latitude position of the first point.
+     * @param longitude1 longitude position of the first point.
+     * @param latitude2 latitude position of the second point.
+     * @param longitude2 longitude position of the second point.
+     * @return The distance in meter.
+     */
+    public static double haversine(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+        double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double a = sinLatitude * sinLatitude
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sinLongitude * sinLongitude;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Gets the distance between two close points, using the equirectangular
+     * approximation.
+     *
+     * Only accurate for short distances.
+     *
+     * @param latitude1 latitude position of the first point.
+     * @param longitude1 longitude position of the first point.
+     * @param latitude2 latitude position of the second point.
+     * @param longitude2 longitude position of the second point.
+     * @return The distance in meter.
+     *
+     * @see #EQUIRECTANGULAR_MAX_DISTANCE
+     */
+    public static double equirectangular(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double x = longitudeDifference(longitude1, longitude2) * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+        double y = latitude2 - latitude1;
+        return Math.sqrt(x * x + y * y) * METER_PER_DEGREE;
+    }
+
+    /**
+     * Gets the distance between two points.
+     *
+     * Uses the equirectangular approximation for the close points, and the
+     * haversine formula otherwise.
+     *
+     * @param latitude1 latitude position of the first point.
+     * @param longitude1 longitude position of the first point.
+     * @param latitude2 latitude position of the second point.
+     * @param longitude2 longitude position of the second point.
+     * @return The distance in meter.
+     */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double distance = equirectangular(latitude1, longitude1, latitude2, longitude2);
+        if (distance <= EQUIRECTANGULAR_MAX_DISTANCE) {
+            return distance;
+        }
+        return haversine(latitude1, longitude1, latitude2, longitude2);
+    }
+
+    /**
+     * Gets the difference between two longitudes, in the range [-180, 180].
+     *
+     * @param longitude1 First longitude.
+     * @param longitude2 Second longitude.
+     * @return longitude2 - longitude1, wrapped around the 180th meridian.
+     */
+    public static double longitudeDifference(double longitude1, double longitude2) {
+        double difference = longitude2 - longitude1;
+        if (difference > 180) {
+            difference -= 360;
+        } else if (difference < -180) {
+            difference += 360;
+        }
+        return difference;
+    }
+
+    /**
+     * Gets the latitude half height of a box containing a circle.
+     *
+     * @param radius Radius of the circle, in meter.
+     * @return The latitude delta, in degree.
+     */
+    public static double latitudeDelta(double radius) {
+        return radius / METER_PER_DEGREE;
+    }
+
+    /**
+     * Gets the longitude half width of a box containing a circle.
+     *
+     * @param latitude Latitude of the center of the circle.
+     * @param radius Radius of the circle, in meter.
+     * @return The longitude delta, in degree. 180 if the circle contains a
+     * pole.
+     */
+    public static double longitudeDelta(double latitude, double radius) {
+        double latitudeDelta = latitudeDelta(radius);
+        double maxLatitude = Math.abs(latitude) + latitudeDelta;
+        if (maxLatitude >= 90) {
+            return 180;
+        }
+        // Width of the box at the latitude the closest to the pole.
+        double delta = latitudeDelta / Math.cos(Math.toRadians(maxLatitude));
+        return Math.min(180, delta);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uniform grid spatial index.
+ *
+ * The earth is cut in cells of the same size in degrees. Each cell keeps the
+ * list of the POIs it contains, so a lookup only touches the cells covering
+ * the requested area instead of the whole collection.
+ *
+ * Each cell is a concurrent hash map keyed on the identity of the POIs: the
+ * writers only contend when they touch the same cell, the readers never block
+ * the writers (their iteration is weakly consistent), and removing a POI does
+ * not depend on the number of POIs.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class GridSpatialIndex implements SpatialIndex {
+
+    /**
+     * Default size of a cell, in degree.
+     *
+     * 0.1 degree of latitude is about 11 km, so a 20 km lookup touches around
+     * twenty cells and a 500 m lookup at most four.
+     */
+    public static final double DEFAULT_CELL_SIZE = 0.1;
+    private final double cellSize;
+    private final int latitudeCells;
+    private final int longitudeCells;
+    private final ConcurrentHashMap<Long, ConcurrentMap<PoiKey, Poi>> cells = new ConcurrentHashMap<Long, ConcurrentMap<PoiKey, Poi>>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Creates a grid index with the default cell size.
+     */
+    public GridSpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Creates a grid index.
+     *
+     * @param cellSize Size of a cell, in degree.
+     */
+    public GridSpatialIndex(double cellSize) {
+        if (!(cellSize > 0 && cellSize <= 90)) {
+            throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+        }
+        this.cellSize = cellSize;
+        this.latitudeCells = (int) Math.ceil(180 / cellSize);
+        this.longitudeCells = (int) Math.ceil(360 / cellSize);
+    }
+
+    /**
+     * Gets the size of a cell.
+     *
+     * @return The size of a cell, in degree.
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    private int latitudeIndex(double latitude) {
+        int index = (int) Math.floor((latitude + 90) / cellSize);
+        if (index < 0) {
+            return 0;
+        }
+        if (index >= latitudeCells) {
+            return latitudeCells - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the longitude index of the cell, without wrapping it around the
+     * 180th meridian.
+     */
+    private int longitudeIndex(double longitude) {
+        return (int) Math.floor((longitude + 180) / cellSize);
+    }
+
+    private int wrapLongitudeIndex(int index) {
+        index %= longitudeCells;
+        return index < 0 ? index + longitudeCells : index;
+    }
+
+    /**
+     * Gets the key of a cell: its row-major number, so that neighbouring cells
+     * hash apart.
+     */
+    private long key(int latitudeIndex, int longitudeIndex) {
+        return (long) latitudeIndex * longitudeCells + longitudeIndex;
+    }
+
+    private long keyOf(Poi poi) {
+        return key(latitudeIndex(poi.getLat()), wrapLongitudeIndex(longitudeIndex(poi.getLon())));
+    }
+
+    /**
+     * Gets a cell, creating it if needed.
+     *
+     * Cells are never removed, so a writer cannot add a POI to a cell that is
+     * no more referenced by the grid.
+     */
+    private ConcurrentMap<PoiKey, Poi> getOrCreateCell(Long key) {
+        ConcurrentMap<PoiKey, Poi> cell = cells.get(key);
+        if (cell == null) {
+            ConcurrentMap<PoiKey, Poi> newCell = new ConcurrentHashMap<PoiKey, Poi>(16, 0.75f, 4);
+            cell = cells.putIfAbsent(key, newCell);
+            if (cell == null) {
+                cell = newCell;
+            }
+        }
+        return cell;
+    }
+
+    @Override
+    public void add(Poi poi) {
+        if (getOrCreateCell(keyOf(poi)).put(new PoiKey(poi), poi) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds many POIs, cell by cell: each cell is touched once, and created
+     * with the right capacity.
+     */
+    @Override
+    public void addAll(Collection<? extends Poi> pois) {
+        HashMap<Long, ArrayList<Poi>> byCell = new HashMap<Long, ArrayList<Poi>>();
+        for (Poi poi : pois) {
+            Long key = keyOf(poi);
+            ArrayList<Poi> cellPois = byCell.get(key);
+            if (cellPois == null) {
+                cellPois = new ArrayList<Poi>();
+                byCell.put(key, cellPois);
+            }
+            cellPois.add(poi);
+        }
+
+        for (Map.Entry<Long, ArrayList<Poi>> entry : byCell.entrySet()) {
+            ConcurrentMap<PoiKey, Poi> cell = cells.get(entry.getKey());
+            if (cell == null) {
+                ConcurrentMap<PoiKey, Poi> newCell = new ConcurrentHashMap<PoiKey, Poi>(entry.getValue().size() * 4 / 3 + 16, 0.75f, 4);
+                cell = cells.putIfAbsent(entry.getKey(), newCell);
+                if (cell == null) {
+                    cell = newCell;
+                }
+            }
+
+            int added = 0;
+            for (Poi poi : entry.getValue()) {
+                if (cell.put(new PoiKey(poi), poi) == null) {
+                    added++;
+                }
+            }
+            size.addAndGet(added);
+        }
+    }
+
+    @Override
+    public boolean remove(Poi poi) {
+        ConcurrentMap<PoiKey, Poi> cell = cells.get(keyOf(poi));
+        if (cell == null || cell.remove(new PoiKey(poi)) == null) {
+            return false;
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (ConcurrentMap<PoiKey, Poi> cell : cells.values()) {
+            for (PoiKey key : cell.keySet()) {
+                if (cell.remove(key) != null) {
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void collectCandidates(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, Collection<? super Poi> result) {
+        int minLatitudeIndex = latitudeIndex(minLatitude);
+        int maxLatitudeIndex = latitudeIndex(maxLatitude);
+        int minLongitudeIndex = longitudeIndex(minLongitude);
+        int maxLongitudeIndex = longitudeIndex(maxLongitude);
+        if (maxLongitudeIndex < minLongitudeIndex) {
+            // Crossing the 180th meridian.
+            maxLongitudeIndex += longitudeCells;
+        }
+        if (maxLongitudeIndex - minLongitudeIndex >= longitudeCells) {
+            maxLongitudeIndex = minLongitudeIndex + longitudeCells - 1;
+        }
+
+        // Scanning the whole map is cheaper when the box covers more cells
+        // than the grid has.
+        long boxCells = (long) (maxLatitudeIndex - minLatitudeIndex + 1) * (maxLongitudeIndex - minLongitudeIndex + 1);
+        if (boxCells > cells.size()) {
+            for (Map.Entry<Long, ConcurrentMap<PoiKey, Poi>> entry : cells.entrySet()) {
+                long key = entry.getKey();
+                int latitudeIndex = (int) (key / longitudeCells);
+                int longitudeIndex = (int) (key % longitudeCells);
+                if (latitudeIndex < minLatitudeIndex || latitudeIndex > maxLatitudeIndex) {
+                    continue;
+                }
+                if (wrapLongitudeIndex(longitudeIndex - minLongitudeIndex) > maxLongitudeIndex - minLongitudeIndex) {
+                    continue;
+                }
+                result.addAll(entry.getValue().values());
+            }
+            return;
+        }
+
+        for (int latitudeIndex = minLatitudeIndex; latitudeIndex <= maxLatitudeIndex; latitudeIndex++) {
+            for (int longitudeIndex = minLongitudeIndex; longitudeIndex <= maxLongitudeIndex; longitudeIndex++) {
+                ConcurrentMap<PoiKey, Poi> cell = cells.get(key(latitudeIndex, wrapLongitudeIndex(longitudeIndex)));
+                if (cell != null) {
+                    result.addAll(cell.values());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void collectAll(Collection<? super Poi> result) {
+        for (ConcurrentMap<PoiKey, Poi> cell : cells.values()) {
+            result.addAll(cell.values());
+        }
+    }
+
+    /**
+     * Key of a POI inside a cell.
+     *
+     * Compares the POIs by identity, two equal POIs are still two different
+     * entries of the index.
+     */
+    private static final class PoiKey {
+
+        private final Poi poi;
+
+        private PoiKey(Poi poi) {
+            this.poi = poi;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PoiKey && ((PoiKey) obj).poi == poi;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(poi);
+        }
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Archive of the old removed POIs, on the disk.
+ *
+ * The POIs are written in immutable segment files, one segment per day of
+ * removal and per archiving run. The header of a segment gives the range of
+ * the lifetimes of its POIs, so a history query only reads the segments
+ * overlapping the requested date. The read segments are kept in a bounded
+ * cache, the least recently used being dropped first.
+ *
+ * The segments of an archiving run are committed at once by a manifest
+ * listing all the segments: the segments of a run interrupted by a crash are
+ * deleted when the archive is opened again.
+ *
+ * The POIs read from the archive are read only: changing them does not change
+ * the files.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class HistoryArchive {
+
+    private static final Logger logger = Logger.getLogger(HistoryArchive.class.getName());
+    /**
+     * Default number of segments kept in memory.
+     */
+    public static final int DEFAULT_CACHED_SEGMENTS = 8;
+    /**
+     * Duration of the partitions, in milliseconds. (One day)
+     */
+    public static final long PARTITION_DURATION = 24L * 60 * 60 * 1000;
+    private static final int MAGIC = 0x42495048; // "BIPH"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "history-";
+    private static final String SUFFIX = ".seg";
+    private static final int MANIFEST_MAGIC = 0x4249504D; // "BIPM"
+    private static final String MANIFEST_FILE = "history.manifest";
+    private final File directory;
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    private final Map<File, ColumnarPoiStore> cache;
+    private int sequence;
+    /**
+     * Removed date limit of the last archiving run.
+     */
+    private volatile long cutoff = Long.MIN_VALUE;
+
+    /**
+     * Header of a segment file.
+     */
+    private static final class Segment {
+
+        private final File file;
+        private final int count;
+        private final long minDate;
+        private final long maxRemovedDate;
+        private final long maxId;
+
+        private Segment(File file, int count, long minDate, long maxRemovedDate, long maxId) {
+            this.file = file;
+            this.count = count;
+            this.minDate = minDate;
+            this.maxRemovedDate = maxRemovedDate;
+            this.maxId = maxId;
+        }
+    }
+
+    /**
+     * Receives the POIs read from the archive, one at a time.
+     */
+    public interface Visitor {
+
+        /**
+         * Visits an archived POI.
+         *
+         * @param poi The POI. Read only.
+         * @throws IOException Stops the reading of the archive.
+         */
+        void visit(Poi poi) throws IOException;
+    }
+
+    /**
+     * Opens an archive, with the default cache size.
+     *
+     * @param directory Directory of the segment files. Created if needed.
+     * @throws IOException If the directory cannot be read.
+     */
+    public HistoryArchive(File directory) throws IOException {
+        this(directory, DEFAULT_CACHED_SEGMENTS);
+    }
+
+    /**
+     * Opens an archive.
+     *
+     * Only the headers of the existing segments are read.
+     *
+     * @param directory Directory of the segment files. Created if needed.
+     * @param cachedSegments Maximum number of segments kept in memory.
+     * @throws IOException If the directory cannot be read.
+     */
+    public HistoryArchive(File directory, final int cachedSegments) throws IOException {
+        Objects.requireNonNull(directory);
+        if (cachedSegments < 1) {
+            throw new IllegalArgumentException("Invalid cache size: " + cachedSegments);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the history directory " + directory);
+        }
+        this.directory = directory;
+        this.cache = new LinkedHashMap<File, ColumnarPoiStore>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, ColumnarPoiStore> eldest) {
+                return size() > cachedSegments;
+            }
+        };
+
+        // Without manifest, all the segments are committed: they are written
+        // by a version without manifest.
+        Set<String> committed = null;
+        File manifest = new File(directory, MANIFEST_FILE);
+        if (manifest.exists()) {
+            committed = new HashSet<String>();
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+            try {
+                if (input.readInt() != MANIFEST_MAGIC) {
+                    throw new IOException("Not a history manifest: " + manifest);
+                }
+                int version = input.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Invalid manifest version! Found: " + version + " Expected: " + VERSION);
+                }
+                cutoff = input.readLong();
+                for (int count = input.readInt(); count > 0; count--) {
+                    committed.add(input.readUTF());
+                }
+            } finally {
+                input.close();
+            }
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list the history directory " + directory);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                sequence++;
+                if (committed == null || committed.remove(name)) {
+                    segments.add(readHeader(file));
+                } else if (file.delete()) {
+                    logger.log(Level.WARNING, "Deleted the history segment {0} of an interrupted archiving", file);
+                } else {
+                    throw new IOException("Unable to delete the uncommitted history segment " + file);
+                }
+            }
+        }
+        if (committed != null && !committed.isEmpty()) {
+            throw new IOException("Missing history segments in " + directory + ": " + committed);
+        }
+    }
+
+    private static Segment readHeader(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return readHeader(file, input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static Segment readHeader(File file, DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a history segment: " + file);
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Invalid segment version! Found: " + version + " Expected: " + VERSION);
+        }
+        return new Segment(file, input.readInt(), input.readLong(), input.readLong(), input.readLong());
+    }
+
+    /**
+     * Writes removed POIs to new segments, committed at once.
+     *
+     * @param pois The removed POIs.
+     * @param limit Removed date limit of the archiving run.
+     * @throws IOException If a segment cannot be written. Nothing is
+     * committed.
+     *
+     * @see #getCutoff()
+     */
+    public synchronized void write(List<Poi> pois, long limit) throws IOException {
+        // Grouping by day of removal.
+        TreeMap<Long, List<Poi>> partitions = new TreeMap<Long, List<Poi>>();
+        for (Poi poi : pois) {
+            Long partition = poi.getRemovedDate().getTime() / PARTITION_DURATION;
+            List<Poi> partitionPois = partitions.get(partition);
+            if (partitionPois == null) {
+                partitionPois = new ArrayList<Poi>();
+                partitions.put(partition, partitionPois);
+            }
+            partitionPois.add(poi);
+        }
+
+        ArrayList<Segment> written = new ArrayList<Segment>();
+        long newCutoff = Math.max(cutoff, limit);
+        try {
+            for (Map.Entry<Long, List<Poi>> entry : partitions.entrySet()) {
+                written.add(writeSegment(entry.getKey(), entry.getValue()));
+            }
+            ArrayList<Segment> all = new ArrayList<Segment>(segments);
+            all.addAll(written);
+            writeManifest(all, newCutoff);
+        } catch (IOException e) {
+            for (Segment segment : written) {
+                if (!segment.file.delete()) {
+                    logger.log(Level.WARNING, "Unable to delete the uncommitted history segment {0}", segment.file);
+                }
+            }
+            throw e;
+        }
+        segments.addAll(written);
+        cutoff = newCutoff;
+    }
+
+    private void writeManifest(List<Segment> committed, long cutoff) throws IOException {
+        File manifest = new File(directory, MANIFEST_FILE);
+        File temporary = new File(directory, MANIFEST_FILE + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(temporary);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            output.writeInt(MANIFEST_MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(cutoff);
+            output.writeInt(committed.size());
+            for (Segment segment : committed) {
+                output.writeUTF(segment.file.getName());
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        Files.move(temporary.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Segment writeSegment(long partition, List<Poi> pois) throws IOException {
+        long minDate = Long.MAX_VALUE;
+        long maxRemovedDate = Long.MIN_VALUE;
+        long maxId = Poi.UNDEFINED_ID;
+        for (Poi poi : pois) {
+            minDate = Math.min(minDate, poi.getDate().getTime());
+            maxRemovedDate = Math.max(maxRemovedDate, poi.getRemovedDate().getTime());
+            maxId = Math.max(maxId, poi.getId());
+        }
+
+        File file;
+        do {
+            file = new File(directory, PREFIX + partition + "-" + sequence++ + SUFFIX);
+        } while (file.exists());
+        File temporary = new File(directory, file.getName() + ".tmp");
+
+        FileOutputStream fileOutput = new FileOutputStream(temporary);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(pois.size());
+            output.writeLong(minDate);
+            output.writeLong(maxRemovedDate);
+            output.writeLong(maxId);
+            for (Poi poi : pois) {
+                output.writeLong(poi.getId());
+                output.writeLong(poi.getDate().getTime());
+                output.writeLong(poi.getRemovedDate().getTime());
+                output.writeDouble(poi.getLat());
+                output.writeDouble(poi.getLon());
+                output.writeInt(poi.getConfirmations());
+                output.writeInt(poi.getRefutations());
+                output.writeByte(poi.getType().ordinal());
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Unable to create the history segment " + file);
+        }
+        return new Segment(file, pois.size(), minDate, maxRemovedDate, maxId);
+    }
+
+    private ColumnarPoiStore load(Segment segment) throws IOException {
+        synchronized (cache) {
+            ColumnarPoiStore store = cache.get(segment.file);
+            if (store != null) {
+                return store;
+            }
+
+            store = new ColumnarPoiStore(ColumnarPoiStore.Storage.HEAP);
+            PoiType[] types = PoiType.values();
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            try {
+                readHeader(segment.file, input);
+                for (int i = 0; i < segment.count; i++) {
+                    store.add(readPoi(segment.file, input, types));
+                }
+            } finally {
+                input.close();
+            }
+
+            cache.put(segment.file, store);
+            return store;
+        }
+    }
+
+    private static Poi readPoi(File file, DataInputStream input, PoiType[] types) throws IOException {
+        long id = input.readLong();
+        Date date = new Date(input.readLong());
+        Date removedDate = new Date(input.readLong());
+        double latitude = input.readDouble();
+        double longitude = input.readDouble();
+        int confirmations = input.readInt();
+        int refutations = input.readInt();
+        int type = input.readByte();
+        if (type < 0 || type >= types.length) {
+            throw new IOException("Invalid POI type in " + file);
+        }
+
+        Poi poi = types[type].constructPoi(latitude, longitude, date, confirmations);
+        poi.setId(id);
+        poi.setRefutations(refutations);
+        poi.setRemovedDate(removedDate);
+        return poi;
+    }
+
+    /**
+     * Reads the archived POIs whose lifetime overlaps a range of time.
+     *
+     * The segments are streamed from the disk without going through the
+     * cache, so the memory used does not depend on the size of the archive.
+     * Only the segments overlapping the range are read.
+     *
+     * @param from Start of the range, in milliseconds, inclusive.
+     * @param to End of the range, in milliseconds, exclusive.
+     * @param visitor Receives the POIs.
+     * @throws IOException If a segment cannot be read, or if the visitor
+     * fails.
+     */
+    public void scan(long from, long to, Visitor visitor) throws IOException {
+        Objects.requireNonNull(visitor);
+
+        PoiType[] types = PoiType.values();
+        for (Segment segment : segments) {
+            if (segment.minDate >= to || segment.maxRemovedDate <= from) {
+                continue;
+            }
+
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 64 * 1024));
+            try {
+                readHeader(segment.file, input);
+                for (int i = 0; i < segment.count; i++) {
+                    Poi poi = readPoi(segment.file, input, types);
+                    if (poi.getDate().getTime() < to && poi.getRemovedDate().getTime() > from) {
+                        visitor.visit(poi);
+                    }
+                }
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the archived POIs alive at a time to a collection.
+     *
+     * Only the segments overlapping the time are read. A segment that cannot
+     * be read is logged and skipped.
+     *
+     * @param time The time, in milliseconds.
+     * @param result Collection to fill.
+     */
+    public void collectAlive(long time, Collection<? super Poi> result) {
+        for (Segment segment : segments) {
+            if (segment.minDate > time || segment.maxRemovedDate <= time) {
+                continue;
+            }
+
+            ColumnarPoiStore store;
+            try {
+                store = load(segment);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unable to read the history segment " + segment.file, e);
+                continue;
+            }
+            for (int row = 0; row < store.size(); row++) {
+                if (store.getDate(row) <= time && store.getRemovedDate(row) > time) {
+                    result.add(store.get(row));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the removed date limit of the last archiving run: the POIs
+     * removed before may already be archived.
+     *
+     * @return The limit in milliseconds, or Long.MIN_VALUE if nothing has
+     * been archived with a manifest.
+     */
+    public long getCutoff() {
+        return cutoff;
+    }
+
+    /**
+     * Finds the POIs already archived.
+     *
+     * Only the segments of the days of removal of the POIs are read.
+     *
+     * @param pois Removed POIs.
+     * @return The identifiers of the archived ones.
+     * @throws IOException If a segment cannot be read.
+     */
+    public Set<Long> findArchived(Collection<? extends Poi> pois) throws IOException {
+        HashSet<Long> partitions = new HashSet<Long>();
+        for (Poi poi : pois) {
+            partitions.add(poi.getRemovedDate().getTime() / PARTITION_DURATION);
+        }
+
+        HashSet<Long> ids = new HashSet<Long>();
+        for (Segment segment : segments) {
+            // All the POIs of a segment are removed the same day.
+            if (partitions.contains(segment.maxRemovedDate / PARTITION_DURATION)) {
+                ColumnarPoiStore store = load(segment);
+                for (int row = 0; row < store.size(); row++) {
+                    ids.add(store.get(row).getId());
+                }
+            }
+        }
+
+        HashSet<Long> archived = new HashSet<Long>();
+        for (Poi poi : pois) {
+            if (ids.contains(poi.getId())) {
+                archived.add(poi.getId());
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Gets the lowest date of the archived POIs.
+     *
+     * @return The date in milliseconds, or Long.MAX_VALUE if the archive is
+     * empty.
+     */
+    public long getMinDate() {
+        long minDate = Long.MAX_VALUE;
+        for (Segment segment : segments) {
+            minDate = Math.min(minDate, segment.minDate);
+        }
+        return minDate;
+    }
+
+    /**
+     * Gets the greatest identifier of the archived POIs.
+     *
+     * @return The identifier, or Poi.UNDEFINED_ID if the archive is empty.
+     */
+    public long getMaxId() {
+        long maxId = Poi.UNDEFINED_ID;
+        for (Segment segment : segments) {
+            maxId = Math.max(maxId, segment.maxId);
+        }
+        return maxId;
+    }
+
+    /**
+     * Gets the number of archived POIs.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+}
@@ -18,10 +18,10 @@ package fr.umlv.ig.bipbip.server.data;
 
 import fr.umlv.ig.bipbip.poi.Poi;
 import fr.umlv.ig.bipbip.poi.PoiEvent;
-import fr.umlv.ig.bipbip.poi.PoiListener;
 import fr.umlv.ig.bipbip.poi.PoiType;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
 import javax.swing.table.AbstractTableModel;
 
 /**
@@ -33,7 +33,12 @@ public class PoiActiveTableModel extends AbstractTableModel implements PoiTableM
 
     private final String[] columnNames = {"Date", "Type", "+", "-", "X", "Y"};
     private final Class[] columnClass = {Date.class, PoiType.class, Integer.class, Integer.class, Double.class, Double.class};
-    private final PoiList poiList;
+    private volatile PoiList poiList;
+    private final PoiEventHandler handler = new PoiEventHandler();
+    /**
+     * Snapshot of the active points, refreshed on each change of the list.
+     */
+    private volatile List<Poi> poiData;
 
     public PoiList getPoiList() {
         return poiList;
@@ -46,7 +51,24 @@ public class PoiActiveTableModel extends AbstractTableModel implements PoiTableM
      */
     public PoiActiveTableModel(PoiList poiList) {
         this.poiList = poiList;
-        this.poiList.addPoiListener(new PoiEventHandler()); // Listening the changes in the poilist.
+        this.poiData = poiList.getPois();
+        this.poiList.addPoiListener(handler, PoiEventBus.SWING_EXECUTOR); // Listening the changes in the poilist.
+    }
+
+    /**
+     * Displays another list of POI.
+     *
+     * Must be called from the event dispatch thread.
+     *
+     * @param poiList The new list.
+     */
+    public void setPoiList(PoiList poiList) {
+        Objects.requireNonNull(poiList);
+
+        this.poiList.removePoiListener(handler);
+        this.poiList = poiList;
+        poiList.addPoiListener(handler, PoiEventBus.SWING_EXECUTOR);
+        refresh();
     }
 
     @Override
@@ -66,12 +88,12 @@ public class PoiActiveTableModel extends AbstractTableModel implements PoiTableM
 
     @Override
     public int getRowCount() {
-        return poiList.getPois().size();
+        return poiData.size();
     }
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        Poi poi = (Poi) poiList.getPois().get(rowIndex);
+        Poi poi = (Poi) poiData.get(rowIndex);
 
         switch (columnIndex) {
             case 0:
@@ -93,24 +115,37 @@ public class PoiActiveTableModel extends AbstractTableModel implements PoiTableM
 
     @Override
     public List<Poi> getPoints() {
-        return poiList.getPois();
+        return poiData;
+    }
+
+    /**
+     * Takes a new snapshot of the active points and refreshes the table.
+     */
+    private void refresh() {
+        poiData = poiList.getPois();
+        fireTableDataChanged();
     }
 
-    private class PoiEventHandler implements PoiListener {
+    private class PoiEventHandler implements PoiResyncListener {
 
         @Override
         public void poiAdded(PoiEvent e) {
-            PoiActiveTableModel.this.fireTableDataChanged();
+            refresh();
         }
 
         @Override
         public void poiUpdated(PoiEvent e) {
-            PoiActiveTableModel.this.fireTableDataChanged();
+            refresh();
         }
 
         @Override
         public void poiRemoved(PoiEvent e) {
-            PoiActiveTableModel.this.fireTableDataChanged();
+            refresh();
+        }
+
+        @Override
+        public void poisReloaded() {
+            refresh();
         }
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reader of the CSV datasets.
+ *
+ * The first line names the columns, in any order. The type, latitude and
+ * longitude columns are required, the date, removedDate, confirmations and
+ * refutations columns are optional. The other columns are ignored, as the id
+ * one: the identifiers of another database mean nothing here.
+ *
+ * The separator is a comma, or a semicolon if the header has no comma. The
+ * values can be quoted. The types are the names or the titles of PoiType, the
+ * dates are ISO-8601 timestamps in UTC, as written by PoiExporter.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class PoiCsvReader {
+
+    private PoiCsvReader() {
+    }
+
+    /**
+     * Reads the POIs of a CSV dataset.
+     *
+     * @param input Input stream to read, in UTF-8.
+     * @return The POIs, in the order of the file.
+     * @throws IOException If the input cannot be read or is not valid.
+     */
+    public static List<Poi> read(InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 64 * 1024);
+        String header = reader.readLine();
+        if (header == null) {
+            throw new IOException("Empty dataset");
+        }
+        if (!header.isEmpty() && header.charAt(0) == '\uFEFF') { // Byte order mark.
+            header = header.substring(1);
+        }
+        char separator = header.indexOf(',') < 0 && header.indexOf(';') >= 0 ? ';' : ',';
+
+        List<String> columns = split(header, separator);
+        int type = column(columns, "type");
+        int latitude = column(columns, "latitude", "lat");
+        int longitude = column(columns, "longitude", "lon", "lng");
+        int date = column(columns, "date");
+        int removedDate = column(columns, "removeddate");
+        int confirmations = column(columns, "confirmations");
+        int refutations = column(columns, "refutations");
+        if (type < 0 || latitude < 0 || longitude < 0) {
+            throw new IOException("The type, latitude and longitude columns are required");
+        }
+
+        ArrayList<Poi> pois = new ArrayList<Poi>();
+        Date now = new Date();
+        String line;
+        int number = 1;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            List<String> values = split(line, separator);
+            try {
+                Poi poi = parseType(value(values, type)).constructPoi(
+                        Double.parseDouble(value(values, latitude)),
+                        Double.parseDouble(value(values, longitude)),
+                        date < 0 || value(values, date).isEmpty() ? now : new Date(TimestampCodec.ISO.parse(value(values, date))));
+                if (confirmations >= 0 && !value(values, confirmations).isEmpty()) {
+                    poi.setConfirmations(Integer.parseInt(value(values, confirmations)));
+                }
+                if (refutations >= 0 && !value(values, refutations).isEmpty()) {
+                    poi.setRefutations(Integer.parseInt(value(values, refutations)));
+                }
+                if (removedDate >= 0 && !value(values, removedDate).isEmpty()) {
+                    poi.setRemovedDate(new Date(TimestampCodec.ISO.parse(value(values, removedDate))));
+                }
+                pois.add(poi);
+            } catch (IllegalArgumentException e) { // Also the NumberFormatException.
+                throw new IOException("Invalid line " + number + ": " + e.getLocalizedMessage(), e);
+            }
+        }
+        return pois;
+    }
+
+    private static int column(List<String> columns, String... names) {
+        for (int i = 0; i < columns.size(); i++) {
+            for (String name : names) {
+                if (columns.get(i).trim().equalsIgnoreCase(name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String value(List<String> values, int column) {
+        if (column >= values.size()) {
+            throw new IllegalArgumentException("Missing column " + (column + 1));
+        }
+        return values.get(column).trim();
+    }
+
+    private static PoiType parseType(String text) {
+        for (PoiType type : PoiType.values()) {
+            if (type.name().equalsIgnoreCase(text) || type.toString().equalsIgnoreCase(text)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown type " + text);
+    }
+
+    /**
+     * Splits a line in values, the quotes removed.
+     */
+    private static List<String> split(String line, char separator) {
+        ArrayList<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == separator) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+}
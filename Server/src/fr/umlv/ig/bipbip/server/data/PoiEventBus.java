@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiEvent;
+import fr.umlv.ig.bipbip.poi.PoiListener;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Asynchronous delivery of the POI events to the listeners.
+ *
+ * Publishing an event only queues it, so a slow listener does not slow down
+ * the thread that modified the POIs. Each listener has its own queue and its
+ * own executor, the events of a listener being delivered in order, by batch.
+ *
+ * While an event waits, a new event on the same POI is merged with it: many
+ * updates become one update, an update followed by a removal becomes a removal,
+ * and an addition followed by a removal is forgotten. A queue is bounded: when
+ * it is full, the waiting events of a PoiResyncListener and the next ones
+ * until its delivery are replaced by one reload, the events of another
+ * listener on the other POIs are dropped and counted.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class PoiEventBus {
+
+    private static final Logger logger = Logger.getLogger(PoiEventBus.class.getName());
+    /**
+     * Default maximum number of waiting events per listener.
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+    /**
+     * Executor delivering the events in the Swing event dispatch thread.
+     */
+    public static final Executor SWING_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            SwingUtilities.invokeLater(command);
+        }
+    };
+    private final int capacity;
+    private final Executor defaultExecutor;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private enum Kind {
+
+        ADDED, UPDATED, REMOVED
+    }
+
+    /**
+     * Identity of a POI.
+     */
+    private static final class PoiKey {
+
+        private final Poi poi;
+
+        private PoiKey(Poi poi) {
+            this.poi = poi;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PoiKey && ((PoiKey) obj).poi == poi;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(poi);
+        }
+    }
+
+    private static final class Pending {
+
+        private Kind kind;
+        private PoiEvent event;
+
+        private Pending(Kind kind, PoiEvent event) {
+            this.kind = kind;
+            this.event = event;
+        }
+    }
+
+    /**
+     * Queue of a listener.
+     */
+    private final class Subscription implements Runnable {
+
+        private final PoiListener listener;
+        private final Executor executor;
+        private final LinkedHashMap<PoiKey, Pending> pending = new LinkedHashMap<PoiKey, Pending>();
+        private boolean scheduled;
+        /**
+         * true if the listener must read all the POIs again, in place of the
+         * waiting events.
+         */
+        private boolean overflowed;
+        private volatile boolean cancelled;
+
+        private Subscription(PoiListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        private void offer(Kind kind, PoiEvent event) {
+            synchronized (this) {
+                if (overflowed) { // Seen by the reload.
+                    coalesced.incrementAndGet();
+                    return;
+                }
+                PoiKey key = new PoiKey(event.getPoi());
+                Pending previous = pending.get(key);
+                if (previous == null) {
+                    if (pending.size() >= capacity) {
+                        if (!(listener instanceof PoiResyncListener)) {
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                        coalesced.addAndGet(pending.size() + 1);
+                        pending.clear();
+                        overflowed = true;
+                        // Already scheduled, the queue being full.
+                        return;
+                    }
+                    pending.put(key, new Pending(kind, event));
+                } else {
+                    coalesced.incrementAndGet();
+                    merge(key, previous, kind, event);
+                }
+
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                logger.log(Level.SEVERE, "Unable to deliver the POI events", e);
+                synchronized (this) {
+                    dropped.addAndGet(pending.size());
+                    pending.clear();
+                    overflowed = false;
+                    scheduled = false;
+                }
+            }
+        }
+
+        private void merge(PoiKey key, Pending previous, Kind kind, PoiEvent event) {
+            switch (previous.kind) {
+                case ADDED:
+                    if (kind == Kind.REMOVED) {
+                        // Never seen by the listener.
+                        pending.remove(key);
+                        return;
+                    }
+                    break;
+                case UPDATED:
+                    previous.kind = kind;
+                    break;
+                case REMOVED:
+                    if (kind == Kind.ADDED) {
+                        previous.kind = Kind.UPDATED;
+                    }
+                    break;
+            }
+            previous.event = event;
+        }
+
+        /**
+         * Delivers the waiting events, or the reload replacing them, then
+         * schedules the delivery of the events that arrived in the meantime.
+         */
+        @Override
+        public void run() {
+            ArrayList<Pending> batch;
+            boolean reload;
+            synchronized (this) {
+                batch = new ArrayList<Pending>(pending.values());
+                pending.clear();
+                reload = overflowed;
+                overflowed = false;
+            }
+
+            if (reload && !cancelled) {
+                try {
+                    ((PoiResyncListener) listener).poisReloaded();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "POI listener failure", e);
+                }
+                delivered.incrementAndGet();
+            }
+
+            for (Pending p : batch) {
+                if (cancelled) {
+                    break;
+                }
+                try {
+                    switch (p.kind) {
+                        case ADDED:
+                            listener.poiAdded(p.event);
+                            break;
+                        case UPDATED:
+                            listener.poiUpdated(p.event);
+                            break;
+                        case REMOVED:
+                            listener.poiRemoved(p.event);
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "POI listener failure", e);
+                }
+                delivered.incrementAndGet();
+            }
+
+            synchronized (this) {
+                if ((pending.isEmpty() && !overflowed) || cancelled) {
+                    pending.clear();
+                    overflowed = false;
+                    scheduled = false;
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        private synchronized int size() {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Creates a bus with the default capacity.
+     */
+    public PoiEventBus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a bus.
+     *
+     * The listeners registered without executor are called by a single
+     * daemon thread of the bus, started when needed.
+     *
+     * @param capacity Maximum number of waiting events per listener.
+     */
+    public PoiEventBus(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.defaultExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "POI events");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Registers a listener, called by the thread of the bus.
+     *
+     * @param listener The listener.
+     */
+    public void subscribe(PoiListener listener) {
+        subscribe(listener, defaultExecutor);
+    }
+
+    /**
+     * Registers a listener.
+     *
+     * @param listener The listener. Reloaded rather than losing events if it
+     * is a PoiResyncListener.
+     * @param executor Executor calling the listener.
+     *
+     * @see #SWING_EXECUTOR
+     */
+    public void subscribe(PoiListener listener, Executor executor) {
+        Objects.requireNonNull(listener);
+        Objects.requireNonNull(executor);
+
+        subscriptions.add(new Subscription(listener, executor));
+    }
+
+    /**
+     * Unregisters a listener. Its waiting events are dropped.
+     *
+     * @param listener The listener.
+     */
+    public void unsubscribe(PoiListener listener) {
+        Objects.requireNonNull(listener);
+
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscription.cancelled = true;
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Queues an addition event.
+     *
+     * @param event The event.
+     */
+    public void publishAdded(PoiEvent event) {
+        publish(Kind.ADDED, event);
+    }
+
+    /**
+     * Queues an update event.
+     *
+     * @param event The event.
+     */
+    public void publishUpdated(PoiEvent event) {
+        publish(Kind.UPDATED, event);
+    }
+
+    /**
+     * Queues a removal event.
+     *
+     * @param event The event.
+     */
+    public void publishRemoved(PoiEvent event) {
+        publish(Kind.REMOVED, event);
+    }
+
+    private void publish(Kind kind, PoiEvent event) {
+        published.incrementAndGet();
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(kind, event);
+        }
+    }
+
+    /**
+     * Gets the number of events waiting to be delivered, for all the
+     * listeners.
+     */
+    public int getPendingEvents() {
+        int size = 0;
+        for (Subscription subscription : subscriptions) {
+            size += subscription.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of published events.
+     */
+    public long getPublishedEvents() {
+        return published.get();
+    }
+
+    /**
+     * Gets the number of events delivered to a listener.
+     */
+    public long getDeliveredEvents() {
+        return delivered.get();
+    }
+
+    /**
+     * Gets the number of events merged with a waiting event, or replaced by a
+     * reload.
+     */
+    public long getCoalescedEvents() {
+        return coalesced.get();
+    }
+
+    /**
+     * Gets the number of events dropped because a queue was full.
+     */
+    public long getDroppedEvents() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Streaming export of POIs, to CSV or to GeoJSON.
+ *
+ * The POIs are written as soon as they are visited, nothing is kept in
+ * memory. A POI is exported if its lifetime overlaps the time range and if it
+ * is inside the bounding box. The dates are ISO-8601 timestamps in UTC.
+ *
+ * The CSV has a header line, then one line per POI. The GeoJSON is a feature
+ * collection, with one feature per line.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class PoiExporter implements HistoryArchive.Visitor, Closeable {
+
+    /**
+     * Output formats.
+     */
+    public enum Format {
+
+        CSV, GEOJSON
+    }
+    private static final String CSV_HEADER = "id,type,latitude,longitude,date,removedDate,confirmations,refutations";
+    private final Writer writer;
+    private final Format format;
+    private final StringBuilder line = new StringBuilder(256);
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private double minLatitude = -90;
+    private double minLongitude = -180;
+    private double maxLatitude = 90;
+    private double maxLongitude = 180;
+    private long count;
+
+    /**
+     * Creates an exporter and writes the beginning of the document.
+     *
+     * @param output Output stream, closed with the exporter.
+     * @param format Output format.
+     * @throws IOException If the output cannot be written.
+     */
+    public PoiExporter(OutputStream output, Format format) throws IOException {
+        Objects.requireNonNull(output);
+        Objects.requireNonNull(format);
+
+        this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 64 * 1024);
+        this.format = format;
+        switch (format) {
+            case CSV:
+                writer.write(CSV_HEADER);
+                writer.write('\n');
+                break;
+            case GEOJSON:
+                writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+                break;
+        }
+    }
+
+    /**
+     * Exports only the POIs alive during a range of time.
+     *
+     * @param from Start of the range, inclusive. null for no start.
+     * @param to End of the range, exclusive. null for no end.
+     */
+    public void setTimeRange(Date from, Date to) {
+        this.from = from == null ? Long.MIN_VALUE : from.getTime();
+        this.to = to == null ? Long.MAX_VALUE : to.getTime();
+    }
+
+    /**
+     * Exports only the POIs inside a bounding box.
+     *
+     * If the west border is greater than the east one, the box crosses the
+     * antimeridian.
+     *
+     * @param minLatitude South border of the box.
+     * @param minLongitude West border of the box.
+     * @param maxLatitude North border of the box.
+     * @param maxLongitude East border of the box.
+     */
+    public void setArea(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        if (minLatitude > maxLatitude) {
+            throw new IllegalArgumentException("Invalid latitudes: " + minLatitude + " > " + maxLatitude);
+        }
+        this.minLatitude = minLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLatitude = maxLatitude;
+        this.maxLongitude = maxLongitude;
+    }
+
+    /**
+     * Exports the POIs of a snapshot, the active ones first.
+     *
+     * The records are read one at a time from the mapped file.
+     *
+     * @param snapshot The snapshot.
+     * @throws IOException If the output cannot be written.
+     */
+    public void export(PoiSnapshot snapshot) throws IOException {
+        for (int i = 0; i < snapshot.getActiveCount(); i++) {
+            visit(snapshot.getActive(i));
+        }
+        for (int i = 0; i < snapshot.getRemovedCount(); i++) {
+            visit(snapshot.getRemoved(i));
+        }
+    }
+
+    /**
+     * Exports the POIs of a snapshot, then the ones of a history archive.
+     *
+     * The removed POIs of the snapshot already archived, by an archiving run
+     * done after the snapshot, are exported once.
+     *
+     * @param snapshot The snapshot.
+     * @param archive The archive.
+     * @throws IOException If the archive cannot be read or the output cannot
+     * be written.
+     */
+    public void export(PoiSnapshot snapshot, HistoryArchive archive) throws IOException {
+        for (int i = 0; i < snapshot.getActiveCount(); i++) {
+            visit(snapshot.getActive(i));
+        }
+        long cutoff = archive.getCutoff();
+        ArrayList<Poi> maybeArchived = new ArrayList<Poi>();
+        for (int i = 0; i < snapshot.getRemovedCount(); i++) {
+            Poi poi = snapshot.getRemoved(i);
+            if (poi.getRemovedDate().getTime() < cutoff) {
+                maybeArchived.add(poi);
+            } else {
+                visit(poi);
+            }
+        }
+        Set<Long> archived = maybeArchived.isEmpty() ? Collections.<Long>emptySet() : archive.findArchived(maybeArchived);
+        for (Poi poi : maybeArchived) {
+            if (!archived.contains(poi.getId())) {
+                visit(poi);
+            }
+        }
+        export(archive);
+    }
+
+    /**
+     * Exports the POIs of a history archive.
+     *
+     * @param archive The archive.
+     * @throws IOException If the archive cannot be read or the output cannot
+     * be written.
+     */
+    public void export(HistoryArchive archive) throws IOException {
+        archive.scan(from, to, this);
+    }
+
+    /**
+     * Exports a POI, if it matches the filters.
+     *
+     * @param poi The POI.
+     * @throws IOException If the output cannot be written.
+     */
+    @Override
+    public void visit(Poi poi) throws IOException {
+        long date = poi.getDate().getTime();
+        Date removedDate = poi.getRemovedDate();
+        if (date >= to || (removedDate != null && removedDate.getTime() <= from)) {
+            return;
+        }
+        double latitude = poi.getLat();
+        double longitude = poi.getLon();
+        if (latitude < minLatitude || latitude > maxLatitude) {
+            return;
+        }
+        if (minLongitude <= maxLongitude
+                ? longitude < minLongitude || longitude > maxLongitude
+                : longitude < minLongitude && longitude > maxLongitude) {
+            return;
+        }
+
+        line.setLength(0);
+        switch (format) {
+            case CSV:
+                line.append(poi.getId()).append(',').append(poi.getType().name()).append(',');
+                line.append(latitude).append(',').append(longitude).append(',');
+                line.append(TimestampCodec.ISO.format(date)).append(',');
+                if (removedDate != null) {
+                    line.append(TimestampCodec.ISO.format(removedDate.getTime()));
+                }
+                line.append(',').append(poi.getConfirmations()).append(',').append(poi.getRefutations()).append('\n');
+                break;
+            case GEOJSON:
+                if (count > 0) {
+                    line.append(',');
+                }
+                line.append("\n{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
+                line.append(longitude).append(',').append(latitude).append("]},\"properties\":{\"id\":");
+                line.append(poi.getId()).append(",\"type\":\"").append(poi.getType().name());
+                line.append("\",\"date\":\"").append(TimestampCodec.ISO.format(date)).append("\",\"removedDate\":");
+                if (removedDate == null) {
+                    line.append("null");
+                } else {
+                    line.append('"').append(TimestampCodec.ISO.format(removedDate.getTime())).append('"');
+                }
+                line.append(",\"confirmations\":").append(poi.getConfirmations());
+                line.append(",\"refutations\":").append(poi.getRefutations()).append("}}");
+                break;
+        }
+        writer.append(line);
+        count++;
+    }
+
+    /**
+     * Gets the number of exported POIs.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes the end of the document and closes the output.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (format == Format.GEOJSON) {
+                writer.write("\n]}\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
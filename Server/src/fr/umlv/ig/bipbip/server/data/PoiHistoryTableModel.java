@@ -18,7 +18,6 @@ package fr.umlv.ig.bipbip.server.data;
 
 import fr.umlv.ig.bipbip.poi.Poi;
 import fr.umlv.ig.bipbip.poi.PoiEvent;
-import fr.umlv.ig.bipbip.poi.PoiListener;
 import fr.umlv.ig.bipbip.poi.PoiType;
 import java.util.ArrayList;
 import java.util.Date;
@@ -45,7 +44,7 @@ public class PoiHistoryTableModel extends AbstractTableModel implements PoiTable
      */
     public PoiHistoryTableModel(PoiList poiList) {
         this.poiList = poiList;
-        this.poiList.addPoiListener(new PoiEventHandler()); // Listening the changes in the poilist.
+        this.poiList.addPoiListener(new PoiEventHandler(), PoiEventBus.SWING_EXECUTOR); // Listening the changes in the poilist.
         
         this.currentFilterDate = new Date();
         firstPoiDate = new Date();
@@ -82,8 +81,11 @@ public class PoiHistoryTableModel extends AbstractTableModel implements PoiTable
      */
     public void setCurrentFilterDate(Date currentFilterDate) {
         this.currentFilterDate = currentFilterDate;
-        firstPoiDate = new Date();
-        poiData = poiList.getAllPois(currentFilterDate, firstPoiDate);
+        firstPoiDate = poiList.getFirstPoiDate();
+        if (firstPoiDate == null) { // No POI.
+            firstPoiDate = new Date();
+        }
+        poiData = poiList.getAllPois(currentFilterDate);
         
         this.fireTableDataChanged();
     }
@@ -132,7 +134,7 @@ public class PoiHistoryTableModel extends AbstractTableModel implements PoiTable
         return poiData;
     }
 
-    private class PoiEventHandler implements PoiListener {
+    private class PoiEventHandler implements PoiResyncListener {
 
         @Override
         public void poiAdded(PoiEvent e) {
@@ -148,5 +150,10 @@ public class PoiHistoryTableModel extends AbstractTableModel implements PoiTable
         public void poiRemoved(PoiEvent e) {
             PoiHistoryTableModel.this.fireTableDataChanged();
         }
+
+        @Override
+        public void poisReloaded() {
+            PoiHistoryTableModel.this.fireTableDataChanged();
+        }
     }
 }
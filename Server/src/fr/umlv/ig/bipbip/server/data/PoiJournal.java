@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append only journal of the changes of a list of POI.
+ *
+ * Every record holds the absolute new values (the new number of
+ * confirmations, not "one more confirmation"), so replaying a record twice, or
+ * replaying records already contained in a snapshot, gives the same result.
+ *
+ * The records are appended to a memory buffer. A thread that needs its
+ * records on the disk calls sync: the first thread writes and forces the
+ * pending records, outside of the lock. The threads arriving meanwhile wait
+ * for it, then one of them writes and forces all their records at once (group
+ * commit).
+ *
+ * If a write fails, the records not written are kept ahead of the new ones,
+ * and the next sync writes them again at the same place of the file.
+ *
+ * The journal is split in segment files. A checkpoint starts a new segment,
+ * writes a snapshot, then deletes the previous segments.
+ *
+ * Record: length (int), operation (byte), values, CRC32 of the operation and
+ * the values (int).
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class PoiJournal {
+
+    private static final Logger logger = Logger.getLogger(PoiJournal.class.getName());
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final byte ADDED = 1;
+    private static final byte CONFIRMED = 2;
+    private static final byte REFUTED = 3;
+    private static final byte REMOVED = 4;
+    private static final byte EDITED = 5;
+    private final File directory;
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    /**
+     * Records not written yet. Guarded by appendLock.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /**
+     * Buffer being written. Guarded by flushing.
+     */
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /**
+     * Number of bytes appended since the opening. Guarded by appendLock.
+     */
+    private long appendedPosition;
+    private volatile long syncedPosition;
+    /**
+     * If a thread is writing the records. Guarded by syncLock.
+     */
+    private boolean flushing;
+    /**
+     * Number of times the records were forced to the disk. Guarded by
+     * flushing.
+     */
+    private volatile long forceCount;
+    /**
+     * Position in the segment of the next write. Guarded by flushing.
+     */
+    private long writePosition;
+    private final CRC32 crc = new CRC32();
+    private long segment;
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    /**
+     * Changes read from a journal.
+     */
+    public interface Replayer {
+
+        /**
+         * A POI has been added.
+         *
+         * @param poi The POI, with its identifier.
+         */
+        void added(Poi poi);
+
+        /**
+         * A POI has been confirmed.
+         *
+         * @param id Identifier of the POI.
+         * @param confirmations New number of confirmations.
+         */
+        void confirmed(long id, int confirmations);
+
+        /**
+         * A POI has been refuted.
+         *
+         * @param id Identifier of the POI.
+         * @param refutations New number of refutations.
+         */
+        void refuted(long id, int refutations);
+
+        /**
+         * A POI has been removed.
+         *
+         * @param poi The POI, with its identifier and its removed date.
+         */
+        void removed(Poi poi);
+
+        /**
+         * A POI has been replaced.
+         *
+         * @param poi The new POI, with the identifier of the replaced one.
+         */
+        void edited(Poi poi);
+    }
+
+    /**
+     * Opens a journal. The new records go to a new segment.
+     *
+     * @param directory Directory of the segments. Created if needed.
+     * @throws IOException If the journal cannot be opened.
+     */
+    public PoiJournal(File directory) throws IOException {
+        Objects.requireNonNull(directory);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the journal directory " + directory);
+        }
+        this.directory = directory;
+
+        List<Long> segments = listSegments();
+        segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        open();
+    }
+
+    private List<Long> listSegments() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list the journal directory " + directory);
+        }
+        ArrayList<Long> segments = new ArrayList<Long>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.log(Level.WARNING, "Ignoring the file {0}", f);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, PREFIX + segment + SUFFIX);
+    }
+
+    private void open() throws IOException {
+        file = new RandomAccessFile(segmentFile(segment), "rw");
+        channel = file.getChannel();
+        writePosition = channel.size();
+    }
+
+    /**
+     * Reads all the segments, the oldest first.
+     *
+     * A truncated or corrupted record ends the reading of its segment: it is
+     * the last record written before a crash.
+     *
+     * @param replayer Receiver of the changes.
+     * @throws IOException If a segment cannot be read.
+     */
+    public void replay(Replayer replayer) throws IOException {
+        replay(replayer, 0);
+    }
+
+    /**
+     * Reads the segments from a segment, the oldest first.
+     *
+     * @param replayer Receiver of the changes.
+     * @param from First segment read. The older ones are ignored.
+     * @throws IOException If a segment cannot be read.
+     *
+     * @see #replay(Replayer)
+     */
+    public void replay(Replayer replayer, long from) throws IOException {
+        PoiType[] types = PoiType.values();
+        for (long s : listSegments()) {
+            if (s < from || s >= segment) {
+                continue; // Contained in the snapshot, or written by this instance.
+            }
+            File segmentFile = segmentFile(s);
+            ByteBuffer buffer;
+            RandomAccessFile input = new RandomAccessFile(segmentFile, "r");
+            try {
+                if (input.length() > Integer.MAX_VALUE) {
+                    throw new IOException("Journal segment too big: " + segmentFile);
+                }
+                buffer = ByteBuffer.allocate((int) input.length());
+                FileChannel inputChannel = input.getChannel();
+                while (buffer.hasRemaining() && inputChannel.read(buffer, buffer.position()) >= 0) {
+                    // Reading the whole segment.
+                }
+                buffer.flip();
+            } finally {
+                input.close();
+            }
+
+            CRC32 checksum = new CRC32();
+            int count = 0;
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                try {
+                    if (buffer.remaining() < 4) {
+                        throw new EOFException();
+                    }
+                    int length = buffer.getInt();
+                    if (length < 1 || buffer.remaining() < length + 4) {
+                        throw new EOFException();
+                    }
+                    checksum.reset();
+                    checksum.update(buffer.array(), buffer.position(), length);
+                    byte operation = buffer.get();
+                    if (length != recordLength(operation)) {
+                        throw new EOFException();
+                    }
+                    switch (operation) {
+                        case ADDED:
+                        case EDITED:
+                        case REMOVED:
+                            long id = buffer.getLong();
+                            int type = buffer.get();
+                            double latitude = buffer.getDouble();
+                            double longitude = buffer.getDouble();
+                            Date date = new Date(buffer.getLong());
+                            int confirmations = buffer.getInt();
+                            int refutations = buffer.getInt();
+                            Date removedDate = operation == REMOVED ? new Date(buffer.getLong()) : null;
+                            if ((int) checksum.getValue() != buffer.getInt() || type < 0 || type >= types.length) {
+                                throw new EOFException();
+                            }
+                            Poi poi = types[type].constructPoi(latitude, longitude, date, confirmations);
+                            poi.setId(id);
+                            poi.setRefutations(refutations);
+                            poi.setRemovedDate(removedDate);
+                            if (operation == ADDED) {
+                                replayer.added(poi);
+                            } else if (operation == EDITED) {
+                                replayer.edited(poi);
+                            } else {
+                                replayer.removed(poi);
+                            }
+                            break;
+                        case CONFIRMED:
+                        case REFUTED:
+                            id = buffer.getLong();
+                            int value = buffer.getInt();
+                            if ((int) checksum.getValue() != buffer.getInt()) {
+                                throw new EOFException();
+                            }
+                            if (operation == CONFIRMED) {
+                                replayer.confirmed(id, value);
+                            } else {
+                                replayer.refuted(id, value);
+                            }
+                            break;
+                        default:
+                            throw new EOFException();
+                    }
+                    count++;
+                } catch (EOFException e) {
+                    logger.log(Level.WARNING, "Incomplete record at {0} of {1}, ignoring the end of the segment", new Object[]{start, segmentFile});
+                    break;
+                }
+            }
+            logger.log(Level.INFO, "{0} records replayed from {1}", new Object[]{count, segmentFile});
+        }
+    }
+
+    /**
+     * Gets the length of a record, operation included.
+     *
+     * @param operation The operation.
+     * @return The length, or -1 for an unknown operation.
+     */
+    private static int recordLength(byte operation) {
+        switch (operation) {
+            case ADDED:
+            case EDITED:
+                return 1 + 8 + 1 + 8 + 8 + 8 + 4 + 4;
+            case REMOVED:
+                return 1 + 8 + 1 + 8 + 8 + 8 + 4 + 4 + 8;
+            case CONFIRMED:
+            case REFUTED:
+                return 1 + 8 + 4;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Starts a record. Must be called with appendLock.
+     */
+    private void begin(byte operation) {
+        int length = recordLength(operation);
+        if (pending.remaining() < 4 + length + 4) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + 4 + length + 4));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        pending.putInt(length);
+        pending.put(operation);
+    }
+
+    /**
+     * Ends a record. Must be called with appendLock.
+     */
+    private long end(byte operation) {
+        int length = recordLength(operation);
+        int start = pending.position() - length;
+        crc.reset();
+        crc.update(pending.array(), start, length);
+        pending.putInt((int) crc.getValue());
+        appendedPosition += 4 + length + 4;
+        return appendedPosition;
+    }
+
+    private long appendPoi(byte operation, Poi poi) {
+        synchronized (appendLock) {
+            begin(operation);
+            pending.putLong(poi.getId());
+            pending.put((byte) poi.getType().ordinal());
+            pending.putDouble(poi.getLat());
+            pending.putDouble(poi.getLon());
+            pending.putLong(poi.getDate().getTime());
+            pending.putInt(poi.getConfirmations());
+            pending.putInt(poi.getRefutations());
+            if (operation == REMOVED) {
+                pending.putLong(poi.getRemovedDate().getTime());
+            }
+            return end(operation);
+        }
+    }
+
+    private long appendCounter(byte operation, long id, int value) {
+        synchronized (appendLock) {
+            begin(operation);
+            pending.putLong(id);
+            pending.putInt(value);
+            return end(operation);
+        }
+    }
+
+    /**
+     * Appends the addition of a POI.
+     *
+     * @param poi The POI, with its identifier.
+     * @return The position to give to sync.
+     */
+    public long added(Poi poi) {
+        return appendPoi(ADDED, poi);
+    }
+
+    /**
+     * Appends the confirmation of a POI.
+     *
+     * @param poi The POI, with its new number of confirmations.
+     * @return The position to give to sync.
+     */
+    public long confirmed(Poi poi) {
+        return appendCounter(CONFIRMED, poi.getId(), poi.getConfirmations());
+    }
+
+    /**
+     * Appends the refutation of a POI.
+     *
+     * @param poi The POI, with its new number of refutations.
+     * @return The position to give to sync.
+     */
+    public long refuted(Poi poi) {
+        return appendCounter(REFUTED, poi.getId(), poi.getRefutations());
+    }
+
+    /**
+     * Appends the removal of a POI.
+     *
+     * @param poi The POI, with its removed date.
+     * @return The position to give to sync.
+     */
+    public long removed(Poi poi) {
+        return appendPoi(REMOVED, poi);
+    }
+
+    /**
+     * Appends the replacement of a POI.
+     *
+     * @param poi The new POI, with the identifier of the replaced one.
+     * @return The position to give to sync.
+     */
+    public long edited(Poi poi) {
+        return appendPoi(EDITED, poi);
+    }
+
+    /**
+     * Waits until the records appended before a position are on the disk.
+     *
+     * @param position Position returned by an append.
+     * @throws IOException If the records cannot be written.
+     */
+    public void sync(long position) throws IOException {
+        if (syncedPosition >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            // The thread writing may be writing our records.
+            awaitFlush(position);
+            if (syncedPosition >= position) {
+                return;
+            }
+            flushing = true;
+        }
+        try {
+            flush(true);
+        } finally {
+            synchronized (syncLock) {
+                flushing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until no thread is writing the records, or until the records
+     * appended before a position are written. Must be called with syncLock.
+     */
+    private void awaitFlush(long position) {
+        boolean interrupted = false;
+        while (flushing && syncedPosition < position) {
+            try {
+                syncLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true; // The write ends soon.
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the pending records. Must be called by the thread which set
+     * flushing, or with syncLock once no thread is writing.
+     */
+    private void flush(boolean force) throws IOException {
+        long target;
+        synchronized (appendLock) {
+            ByteBuffer full = pending;
+            pending = writing;
+            writing = full;
+            target = appendedPosition;
+        }
+
+        writing.flip();
+        try {
+            while (writing.hasRemaining()) {
+                writePosition += channel.write(writing, writePosition);
+            }
+        } catch (IOException e) {
+            keepUnwritten();
+            throw e;
+        }
+        writing.clear();
+        if (force) {
+            channel.force(false);
+            forceCount++;
+        }
+        syncedPosition = target;
+    }
+
+    /**
+     * Puts the records of a failed write back in front of the pending ones.
+     * Must be called by the thread writing.
+     */
+    private void keepUnwritten() {
+        synchronized (appendLock) {
+            writing.compact();
+            pending.flip();
+            if (writing.remaining() < pending.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(writing.position() + pending.remaining());
+                writing.flip();
+                bigger.put(writing);
+                writing = bigger;
+            }
+            writing.put(pending);
+            pending.clear();
+            ByteBuffer unwritten = writing;
+            writing = pending;
+            pending = unwritten;
+        }
+    }
+
+    /**
+     * Gets the number of times the records were forced to the disk since the
+     * opening, each one being a group commit.
+     */
+    public long getForceCount() {
+        return forceCount;
+    }
+
+    /**
+     * Starts a new segment, after writing all the pending records.
+     *
+     * @return The new segment, to give to deleteSegmentsBefore once a
+     * snapshot containing all the previous changes is written.
+     * @throws IOException If the segment cannot be created.
+     */
+    public long rotate() throws IOException {
+        synchronized (syncLock) {
+            awaitFlush(Long.MAX_VALUE);
+            flush(true);
+            synchronized (appendLock) {
+                // No append while changing the file.
+                file.close();
+                segment++;
+                open();
+                return segment;
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments older than a segment.
+     *
+     * @param segment The first segment to keep.
+     * @throws IOException If a segment cannot be deleted.
+     */
+    public void deleteSegmentsBefore(long segment) throws IOException {
+        for (long s : listSegments()) {
+            if (s < segment && !segmentFile(s).delete()) {
+                throw new IOException("Unable to delete " + segmentFile(s));
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records and closes the journal.
+     *
+     * @throws IOException If the records cannot be written.
+     */
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            awaitFlush(Long.MAX_VALUE);
+            flush(true);
+            file.close();
+        }
+    }
+}
@@ -17,14 +17,26 @@
 package fr.umlv.ig.bipbip.server.data;
 
 import fr.umlv.ig.bipbip.poi.*;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Generic collection of point of interests.
  *
- * The implementation rely on a synchronized array list. (No concurrency
- * problem).
+ * The active POIs are kept in a concurrent spatial index per type, so the area
+ * lookups only touch the POIs of the requested type around the requested
+ * position, and the writers of different areas do not contend. The removed POIs are copied to a columnar
+ * store, they only cost a few bytes each and are read through flyweight views.
+ * The lifetimes of all the POIs are kept in a temporal index for the history
+ * queries. The old removed POIs can be moved to an archive on the disk, in
+ * order to keep in memory only the recent history. The area lookups never hold
+ * a global lock.
+ *
+ * Each POI gets an identifier when it enters the list, and the active POIs can
+ * be looked up by identifier in constant time.
  *
  * @author Damien Girard <dgirard@nativesoft.fr>
  */
@@ -32,26 +44,43 @@ public class PoiList {
 
     /**
      * Contains the currently active POIs.
+     *
+     * They stay objects, unlike the removed ones: there are only the current
+     * events, merged and counted in place by the submissions, while the
+     * history grows for years.
+     */
+    private final TypePartitionedIndex activePoints;
+    /**
+     * Contains the removed POIs that are not archived.
+     *
+     * Replaced when the old POIs are archived. Appends are done under
+     * historyLock.
+     */
+    private volatile ColumnarPoiStore removedPoints;
+    private final Object historyLock = new Object();
+    /**
+     * Archive of the old removed POIs. Can be null.
+     */
+    private volatile HistoryArchive historyArchive;
+    /**
+     * Lifetimes of the active and removed POIs.
      */
-    private final List<Poi> activePoints = Collections.synchronizedList(new ArrayList<Poi>());
+    private final TemporalIndex lifetimes = new TemporalIndex();
     /**
-     * Contains all the removed POIs.
+     * Active POIs by identifier.
      */
-    private final List<Poi> removedPoints = Collections.synchronizedList(new ArrayList<Poi>());
-    private final ConcurrentLinkedQueue<PoiListener> listeners = new ConcurrentLinkedQueue<PoiListener>();
+    private final ConcurrentHashMap<Long, Poi> activePointsById = new ConcurrentHashMap<Long, Poi>();
+    /**
+     * Last identifier given to a POI.
+     */
+    private final AtomicLong lastId = new AtomicLong(Poi.UNDEFINED_ID);
+    private final PoiEventBus eventBus = new PoiEventBus();
     /**
      * Precision of the searches operations on the POI collection.
      *
      * In meter
      */
     public static final double PRECISION = 500;
-    /**
-     * Number of meter in one mile.
-     *
-     * 1 mile = 1852 m
-     */
-    private static final int NB_METER_OF_NAUTICAL_MILE = 1852;
-
     /**
      * Get the distance from the first point to the second point in meter.
      *
@@ -60,26 +89,64 @@ public class PoiList {
      * @param latitude2 latitude position of the second point.
      * @param longitude2 longitude position of the second point.
      * @return The distance in meter
+     *
+     * @see GeoDistance#distance(double, double, double, double)
      */
     public static double getDistanceInMeter(double latitude1, double longitude1, double latitude2, double longitude2) {
-        return NB_METER_OF_NAUTICAL_MILE * 60 * Math.acos(Math.sin(latitude1) * Math.sin(latitude2) + Math.cos(latitude1) * Math.cos(latitude2) * Math.cos(longitude2 - longitude1));
+        return GeoDistance.distance(latitude1, longitude1, latitude2, longitude2);
     }
 
     /**
-     * Create an empty list of POI.
+     * Create an empty list of POI, indexed by a grid per type.
      */
     public PoiList() {
+        this(new TypePartitionedIndex());
+    }
+
+    /**
+     * Create an empty list of POI.
+     *
+     * @param spatialIndex Empty spatial index used for the area lookups.
+     */
+    public PoiList(TypePartitionedIndex spatialIndex) {
+        this(spatialIndex, new ColumnarPoiStore());
+    }
+
+    /**
+     * Create an empty list of POI.
+     *
+     * @param spatialIndex Empty spatial index used for the area lookups.
+     * @param removedStore Empty store of the removed POIs.
+     */
+    public PoiList(TypePartitionedIndex spatialIndex, ColumnarPoiStore removedStore) {
+        Objects.requireNonNull(spatialIndex);
+        Objects.requireNonNull(removedStore);
+
+        this.activePoints = spatialIndex;
+        this.removedPoints = removedStore;
     }
 
     /**
      * Adds a POI listener to the collection.
      *
+     * The listener is called asynchronously, by the thread of the event bus.
+     *
      * @param listener The PoiListener to be added.
      */
     public void addPoiListener(PoiListener listener) {
-        Objects.requireNonNull(listener);
+        eventBus.subscribe(listener);
+    }
 
-        listeners.add(listener);
+    /**
+     * Adds a POI listener to the collection, called by an executor.
+     *
+     * @param listener The PoiListener to be added.
+     * @param executor Executor calling the listener.
+     *
+     * @see PoiEventBus#SWING_EXECUTOR
+     */
+    public void addPoiListener(PoiListener listener, Executor executor) {
+        eventBus.subscribe(listener, executor);
     }
 
     /**
@@ -88,9 +155,16 @@ public class PoiList {
      * @param listener The PoiListener to be removed.
      */
     public void removePoiListener(PoiListener listener) {
-        Objects.requireNonNull(listener);
+        eventBus.unsubscribe(listener);
+    }
 
-        listeners.remove(listener);
+    /**
+     * Gets the event bus delivering the events to the listeners.
+     *
+     * @return The event bus.
+     */
+    public PoiEventBus getEventBus() {
+        return eventBus;
     }
 
     /**
@@ -99,9 +173,7 @@ public class PoiList {
      * @param e Event.
      */
     protected void firePoiAdded(final PoiEvent e) {
-        for (final PoiListener listener : listeners) {
-            listener.poiAdded(e);
-        }
+        eventBus.publishAdded(e);
     }
 
     /**
@@ -110,9 +182,7 @@ public class PoiList {
      * @param e Event.
      */
     protected void firePoiUpdated(final PoiEvent e) {
-        for (final PoiListener listener : listeners) {
-            listener.poiUpdated(e);
-        }
+        eventBus.publishUpdated(e);
     }
 
     /**
@@ -121,9 +191,7 @@ public class PoiList {
      * @param e Event.
      */
     protected void firePoiRemoved(final PoiEvent e) {
-        for (final PoiListener listener : listeners) {
-            listener.poiRemoved(e);
-        }
+        eventBus.publishRemoved(e);
     }
 
     /**
@@ -135,23 +203,102 @@ public class PoiList {
      * @param p POI to add.
      */
     public void addPoi(Poi p) {
-        activePoints.add(p);
+        insertPoi(p);
 
         firePoiAdded(new PoiEvent(this, p));
     }
 
     /**
-     * Remove simply the point from the collection.
+     * Adds the point to the active points, without firing any event.
      *
      * @param p POI to add.
      */
+    protected void insertPoi(Poi p) {
+        registerId(p);
+        activePointsById.put(p.getId(), p);
+        activePoints.add(p);
+        lifetimes.add(p);
+    }
+
+    /**
+     * Adds many points to the active points, without firing any event.
+     *
+     * Faster than inserting the points one by one.
+     *
+     * @param pois POIs to add.
+     */
+    protected void insertPois(Collection<? extends Poi> pois) {
+        for (Poi p : pois) {
+            registerId(p);
+            activePointsById.put(p.getId(), p);
+        }
+        activePoints.addAll(pois);
+        lifetimes.addAll(pois);
+    }
+
+    /**
+     * Gives an identifier to a POI that does not have one yet, or makes sure
+     * that the identifier of the POI will never be given to another POI.
+     *
+     * @param p The POI.
+     */
+    private void registerId(Poi p) {
+        long id = p.getId();
+        if (id == Poi.UNDEFINED_ID) {
+            p.setId(lastId.incrementAndGet());
+            return;
+        }
+
+        long last;
+        do {
+            last = lastId.get();
+        } while (id > last && !lastId.compareAndSet(last, id));
+    }
+
+    /**
+     * Remove simply the point from the collection.
+     *
+     * Does nothing if the point is not active, so a point removed
+     * concurrently by two threads goes only once to the history.
+     *
+     * @param p POI to remove.
+     */
     public void removePoi(Poi p) {
-        activePoints.remove(p);
+        if (deletePoi(p)) {
+            firePoiRemoved(new PoiEvent(this, p));
+        }
+    }
 
-        p.setRemovedDate(new Date());
-        removedPoints.add(p);
+    /**
+     * Moves the point from the active points to the removed points, without
+     * firing any event.
+     *
+     * @param p POI to remove.
+     * @return false if the point was not active.
+     */
+    protected boolean deletePoi(Poi p) {
+        return deletePoi(p, new Date());
+    }
+
+    /**
+     * Moves the point from the active points to the removed points, without
+     * firing any event.
+     *
+     * @param p POI to remove.
+     * @param removedDate Date of the removal.
+     * @return false if the point was not active.
+     */
+    protected boolean deletePoi(Poi p, Date removedDate) {
+        if (!activePoints.remove(p)) {
+            return false;
+        }
+        activePointsById.remove(p.getId(), p);
 
-        firePoiRemoved(new PoiEvent(this, p));
+        p.setRemovedDate(removedDate);
+        synchronized (historyLock) {
+            lifetimes.replace(p, removedPoints.add(p));
+        }
+        return true;
     }
 
     /**
@@ -170,13 +317,28 @@ public class PoiList {
      * @return A list of all POI contained in the area.
      */
     public ArrayList<Poi> getPoisInArea(double latitude, double longitude, double radiusArea, PoiType type, Date date) {
+        return getPoisInArea(new GeoArea(latitude, longitude, radiusArea), type, date);
+    }
+
+    /**
+     * Looks up POIs inside an area with the specified POI type.
+     *
+     * @param area The area.
+     * @param type Type of the POI. Can be null to avoid the filter on this
+     * attribut.
+     * @param date Date of the POI. Can be null to avoid the filter on this
+     * attribut.
+     *
+     * @return A list of all POI contained in the area.
+     */
+    public ArrayList<Poi> getPoisInArea(GeoArea area, PoiType type, Date date) {
+        ArrayList<Poi> candidates = new ArrayList<Poi>();
+        activePoints.collectCandidates(type, area.getMinLatitude(), area.getMinLongitude(), area.getMaxLatitude(), area.getMaxLongitude(), candidates);
+
         ArrayList<Poi> result = new ArrayList<Poi>();
-        synchronized (activePoints) {
-            for (Poi poi : activePoints) {
-                double calcDistance = getDistanceInMeter(latitude, longitude, poi.getLat(), poi.getLon());
-                if (calcDistance <= radiusArea && (type == null || poi.getType().equals(type)) && (date == null || poi.getDate().equals(date))) {
-                    result.add(poi);
-                }
+        for (Poi poi : candidates) {
+            if ((date == null || poi.getDate().equals(date)) && area.contains(poi.getLat(), poi.getLon())) {
+                result.add(poi);
             }
         }
         return result;
@@ -216,55 +378,176 @@ public class PoiList {
     }
 
     /**
-     * Gets the points.
+     * Gets an active point by its identifier.
+     *
+     * @param id Identifier of the POI.
+     * @return The POI, or null if there is no active POI with this identifier.
+     */
+    public Poi getPoi(long id) {
+        return activePointsById.get(id);
+    }
+
+    /**
+     * Gets a snapshot of the points.
+     *
+     * Be aware that this method have a complexity of "n".
+     *
+     * @return A new list, that is not updated by the later changes.
      */
     public List<Poi> getPois() {
-        return activePoints;
+        ArrayList<Poi> result = new ArrayList<Poi>(activePoints.size());
+        activePoints.collectAll(result);
+        return result;
     }
 
     /**
-     * Gets the removed points.
+     * Gets the removed points that are not archived.
+     *
+     * @return A new list of views on the removed points.
      */
     public List<Poi> getRemovedPois() {
+        ArrayList<Poi> result = new ArrayList<Poi>(removedPoints.size());
+        removedPoints.collectAll(result);
+        return result;
+    }
+
+    /**
+     * Gets the store of the removed points that are not archived.
+     *
+     * Rows are only appended to the store, and the store is only replaced by
+     * archiveHistory.
+     */
+    protected ColumnarPoiStore getRemovedStore() {
         return removedPoints;
     }
 
     /**
-     * Gets all points at a date.
+     * Gets all points alive at a date.
+     *
+     * A point is alive from its date, included, to its removed date,
+     * excluded.
      *
      * @param date Date to display all points.
-     * @param outMinDate The minimum date value.
+     * @return A list that contains all points, including the removed one.
+     */
+    public ArrayList<Poi> getAllPois(Date date) {
+        ArrayList<Poi> result = new ArrayList<Poi>();
+        lifetimes.collectAlive(date.getTime(), result);
+        HistoryArchive archive = historyArchive;
+        if (archive != null) {
+            archive.collectAlive(date.getTime(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the date of the oldest point, active or removed.
      *
-     * Be aware that this method have a complexity of "n".
+     * @return The date, or null if there is no point.
+     */
+    public Date getFirstPoiDate() {
+        long minDate = lifetimes.getMinDate();
+        HistoryArchive archive = historyArchive;
+        if (archive != null) {
+            minDate = Math.min(minDate, archive.getMinDate());
+        }
+        return minDate == Long.MAX_VALUE ? null : new Date(minDate);
+    }
+
+    /**
+     * Sets the archive of the old removed POIs.
+     *
+     * The identifiers of the archived POIs are never given again.
      *
-     * @return A set that contains all points, including the removed one.
+     * @param archive The archive, or null to keep all the history in memory.
      */
-    public ArrayList<Poi> getAllPois(Date date, Date outMinDate) {
-        ArrayList<Poi> result = new ArrayList<Poi>();
+    public void setHistoryArchive(HistoryArchive archive) {
+        if (archive != null) {
+            long maxId = archive.getMaxId();
+            long last;
+            do {
+                last = lastId.get();
+            } while (maxId > last && !lastId.compareAndSet(last, maxId));
+        }
+        this.historyArchive = archive;
+    }
+
+    /**
+     * Gets the archive of the old removed POIs.
+     *
+     * @return The archive, or null if there is none.
+     */
+    public HistoryArchive getHistoryArchive() {
+        return historyArchive;
+    }
+
+    /**
+     * Moves the POIs removed before a date to the archive.
+     *
+     * The files are written without blocking the other operations. The POIs
+     * are then dropped from the memory.
+     *
+     * The POIs already archived, by a run interrupted before the POIs were
+     * dropped from the memory, or from the snapshot of the journal, are
+     * dropped without being archived again.
+     *
+     * @param before Removed date limit.
+     * @return The number of archived POIs.
+     * @throws IOException If the archive cannot be written. Nothing is dropped
+     * from the memory.
+     * @throws IllegalStateException If there is no archive.
+     */
+    public synchronized int archiveHistory(Date before) throws IOException {
+        HistoryArchive archive = historyArchive;
+        if (archive == null) {
+            throw new IllegalStateException("No history archive");
+        }
 
-        synchronized (activePoints) {
-            for (Poi poi : activePoints) {
-                if (poi.getDate().compareTo(date) <= 0) {
-                    result.add(poi);
-                    if (poi.getDate().compareTo(outMinDate) < 0) {
-                        outMinDate.setTime(poi.getDate().getTime());
-                    }
+        // The rows are only appended, and the store is only replaced here.
+        ColumnarPoiStore store = removedPoints;
+        int count = store.size();
+        long limit = before.getTime();
+        long cutoff = archive.getCutoff();
+        ArrayList<Poi> archived = new ArrayList<Poi>();
+        ArrayList<Poi> maybeArchived = new ArrayList<Poi>();
+        for (int row = 0; row < count; row++) {
+            long removedDate = store.getRemovedDate(row);
+            if (removedDate < cutoff) {
+                maybeArchived.add(store.get(row));
+            } else if (removedDate < limit) {
+                archived.add(store.get(row));
+            }
+        }
+        if (!maybeArchived.isEmpty()) {
+            Set<Long> ids = archive.findArchived(maybeArchived);
+            for (Poi poi : maybeArchived) {
+                if (!ids.contains(poi.getId())) {
+                    archived.add(poi);
                 }
             }
+            limit = Math.max(limit, cutoff);
+        }
+        if (archived.isEmpty() && maybeArchived.isEmpty()) {
+            return 0;
+        }
+        if (!archived.isEmpty()) {
+            archive.write(archived, limit);
         }
 
-        synchronized (removedPoints) {
-            for (Poi poi : removedPoints) {
-                if (poi.getDate().compareTo(date) <= 0 && poi.getRemovedDate().compareTo(date) >= 0) {
-                    result.add(poi);
-                    if (poi.getDate().compareTo(outMinDate) < 0) {
-                        outMinDate.setTime(poi.getDate().getTime());
-                    }
+        // Keeping the other rows, including the ones appended in the meantime.
+        synchronized (historyLock) {
+            ColumnarPoiStore kept = new ColumnarPoiStore(store.getStorage());
+            for (int row = 0; row < store.size(); row++) {
+                Poi poi = store.get(row);
+                if (row < count && store.getRemovedDate(row) < limit) {
+                    lifetimes.remove(poi);
+                } else {
+                    lifetimes.add(kept.add(poi));
                 }
             }
+            removedPoints = kept;
         }
-
-        return result;
+        return archived.size();
     }
 
     /**
@@ -280,18 +563,100 @@ public class PoiList {
      * Updates (replace) a POI in the collection.
      *
      * Removes the previous Poi and add the new one at the right place. Keeps
-     * the sortedSet in a consistent state.
+     * the spatial index in a consistent state.
      *
      * Fires a removed and added events.
      */
     public void updatePoi(Poi oldPoi, Poi newPoi) {
-        activePoints.remove(oldPoi);
-        activePoints.add(newPoi);
+        replacePoi(oldPoi, newPoi);
 
         this.firePoiRemoved(new PoiEvent(this, oldPoi));
         this.firePoiAdded(new PoiEvent(this, newPoi));
     }
 
+    /**
+     * Updates (replace) a POI in the collection, found by its identifier.
+     *
+     * @param id Identifier of the POI to replace.
+     * @param newPoi New POI.
+     * @return false if there is no active POI with this identifier.
+     */
+    public boolean updatePoi(long id, Poi newPoi) {
+        Poi oldPoi = getPoi(id);
+        if (oldPoi == null) {
+            return false;
+        }
+        updatePoi(oldPoi, newPoi);
+        return true;
+    }
+
+    /**
+     * Replaces an active point, without firing any event.
+     *
+     * The previous point does not go to the removed points, and the new point
+     * takes its identifier.
+     *
+     * @param oldPoi POI to replace.
+     * @param newPoi New POI.
+     */
+    protected void replacePoi(Poi oldPoi, Poi newPoi) {
+        activePoints.remove(oldPoi);
+        activePointsById.remove(oldPoi.getId(), oldPoi);
+        newPoi.setId(oldPoi.getId());
+        activePointsById.put(newPoi.getId(), newPoi);
+        activePoints.add(newPoi);
+        synchronized (historyLock) {
+            lifetimes.replace(oldPoi, newPoi);
+        }
+    }
+
+    /**
+     * Puts back a POI read from a database.
+     *
+     * The POI goes to the removed points if it has a removed date. No event
+     * is fired.
+     *
+     * @param p POI to restore.
+     */
+    protected void restorePoi(Poi p) {
+        if (p.getRemovedDate() == null) {
+            insertPoi(p);
+        } else {
+            registerId(p);
+            synchronized (historyLock) {
+                lifetimes.add(removedPoints.add(p));
+            }
+        }
+    }
+
+    /**
+     * Puts back many POIs read from a database.
+     *
+     * Faster than restoring the POIs one by one.
+     *
+     * @param pois POIs to restore.
+     *
+     * @see #restorePoi(Poi)
+     */
+    protected void restorePois(Collection<? extends Poi> pois) {
+        ArrayList<Poi> restored = new ArrayList<Poi>(pois.size());
+        ArrayList<Poi> active = new ArrayList<Poi>();
+        for (Poi p : pois) {
+            registerId(p);
+            if (p.getRemovedDate() == null) {
+                activePointsById.put(p.getId(), p);
+                active.add(p);
+                restored.add(p);
+            } else {
+                synchronized (historyLock) {
+                    restored.add(removedPoints.add(p));
+                }
+            }
+        }
+        activePoints.addAll(active);
+        lifetimes.addAll(restored);
+    }
+
     /**
      * Dummy POI.
      *
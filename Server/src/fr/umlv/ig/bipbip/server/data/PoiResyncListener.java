@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.PoiListener;
+
+/**
+ * Listener able to read all the POIs again, in place of the events it could
+ * not keep up with.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ *
+ * @see PoiEventBus
+ */
+public interface PoiResyncListener extends PoiListener {
+
+    /**
+     * Invoked in place of the events dropped because the listener was too
+     * slow: any POI may have been added, updated or removed meanwhile. The
+     * events following this one are delivered as usual.
+     */
+    public void poisReloaded();
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Binary snapshot of a list of POI.
+ *
+ * The file is a header followed by fixed-width records: the active POIs first,
+ * then the removed POIs, each group sorted by a Z-order key of the
+ * coordinates, so the POIs close on the map are close in the file.
+ *
+ * An opened snapshot is memory-mapped and nothing is decoded up front: the
+ * records are read through flyweight views, only when a value is asked. The
+ * mapping is private, so a view can be modified without changing the file.
+ * The views are meant for the exports and the loading: their setters share
+ * one lock.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class PoiSnapshot {
+
+    private static final int MAGIC = 0x42495053; // "BIPS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    /**
+     * Size of a record: id, date, removed date, latitude, longitude,
+     * confirmations, refutations, type, and 4 reserved bytes.
+     */
+    private static final int RECORD_SIZE = 56;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final PoiType[] TYPES = PoiType.values();
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int activeCount;
+    private final int removedCount;
+    private final long maxId;
+    private final Object lock = new Object();
+
+    private PoiSnapshot(File file, MappedByteBuffer buffer, int activeCount, int removedCount, long maxId) {
+        this.file = file;
+        this.buffer = buffer;
+        this.activeCount = activeCount;
+        this.removedCount = removedCount;
+        this.maxId = maxId;
+    }
+
+    /**
+     * Opens a snapshot.
+     *
+     * Only the header is read. The file can be replaced afterwards, the
+     * mapping keeps the opened version.
+     *
+     * @param file The snapshot file.
+     * @return The snapshot.
+     * @throws IOException If the file cannot be read or is not a valid
+     * snapshot.
+     */
+    public static PoiSnapshot open(File file) throws IOException {
+        Objects.requireNonNull(file);
+
+        // The private mapping needs a file opened for writing, but never writes it.
+        RandomAccessFile input = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.PRIVATE, 0, length);
+
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a POI snapshot: " + file);
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Invalid snapshot version! Found: " + version + " Expected: " + VERSION);
+            }
+            int recordSize = buffer.getInt(8);
+            int activeCount = buffer.getInt(12);
+            int removedCount = buffer.getInt(16);
+            long maxId = buffer.getLong(24);
+            if (recordSize != RECORD_SIZE || activeCount < 0 || removedCount < 0
+                    || HEADER_SIZE + ((long) activeCount + removedCount) * RECORD_SIZE != length) {
+                throw new IOException("Corrupted snapshot: " + file);
+            }
+
+            return new PoiSnapshot(file, buffer, activeCount, removedCount, maxId);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * The file is synchronized to the disk before returning.
+     *
+     * @param activePois The active POIs.
+     * @param removedPois The removed POIs.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Collection<Poi> activePois, Collection<Poi> removedPois, File file) throws IOException {
+        if (HEADER_SIZE + ((long) activePois.size() + removedPois.size()) * RECORD_SIZE > Integer.MAX_VALUE) {
+            throw new IOException("Too many POIs for a snapshot");
+        }
+        List<Entry> active = sort(activePois);
+        List<Entry> removed = sort(removedPois);
+
+        long maxId = Poi.UNDEFINED_ID;
+        for (Entry entry : active) {
+            maxId = Math.max(maxId, entry.poi.getId());
+        }
+        for (Entry entry : removed) {
+            maxId = Math.max(maxId, entry.poi.getId());
+        }
+
+        FileOutputStream fileOutput = new FileOutputStream(file);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput, 64 * 1024));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(RECORD_SIZE);
+            output.writeInt(active.size());
+            output.writeInt(removed.size());
+            output.writeInt(0);
+            output.writeLong(maxId);
+            writeRecords(output, active);
+            writeRecords(output, removed);
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+    }
+
+    private static void writeRecords(DataOutputStream output, List<Entry> entries) throws IOException {
+        for (Entry entry : entries) {
+            Poi poi = entry.poi;
+            output.writeLong(poi.getId());
+            output.writeLong(poi.getDate().getTime());
+            output.writeLong(poi.getRemovedDate() == null ? NO_DATE : poi.getRemovedDate().getTime());
+            output.writeDouble(poi.getLat());
+            output.writeDouble(poi.getLon());
+            output.writeInt(poi.getConfirmations());
+            output.writeInt(poi.getRefutations());
+            output.writeInt(poi.getType().ordinal());
+            output.writeInt(0);
+        }
+    }
+
+    private static List<Entry> sort(Collection<Poi> pois) {
+        ArrayList<Entry> entries = new ArrayList<Entry>(pois.size());
+        for (Poi poi : pois) {
+            entries.add(new Entry(spatialKey(poi.getLat(), poi.getLon()), poi));
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Position of a point on the Z-order curve: the bits of the quantized
+     * latitude and longitude, interleaved.
+     */
+    static long spatialKey(double latitude, double longitude) {
+        long y = (long) ((Math.max(-90, Math.min(90, latitude)) + 90) / 180 * 0x7fffffffL);
+        long x = (long) ((Math.max(-180, Math.min(180, longitude)) + 180) / 360 * 0x7fffffffL);
+        return spread(y) << 1 | spread(x);
+    }
+
+    private static long spread(long value) {
+        value &= 0x7fffffffL;
+        value = (value | value << 16) & 0x0000ffff0000ffffL;
+        value = (value | value << 8) & 0x00ff00ff00ff00ffL;
+        value = (value | value << 4) & 0x0f0f0f0f0f0f0f0fL;
+        value = (value | value << 2) & 0x3333333333333333L;
+        value = (value | value << 1) & 0x5555555555555555L;
+        return value;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final long key;
+        private final Poi poi;
+
+        private Entry(long key, Poi poi) {
+            this.key = key;
+            this.poi = poi;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return key < other.key ? -1 : key == other.key ? 0 : 1;
+        }
+    }
+
+    /**
+     * Gets the snapshot file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of active POIs.
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Gets the number of removed POIs.
+     */
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * Gets the greatest identifier of the POIs.
+     *
+     * @return The identifier, or Poi.UNDEFINED_ID if the snapshot is empty.
+     */
+    public long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Gets the view of an active POI.
+     *
+     * @param index Index of the POI, lower than getActiveCount().
+     * @return The view.
+     */
+    public Poi getActive(int index) {
+        if (index < 0 || index >= activeCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + " Active: " + activeCount);
+        }
+        return new View(HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    /**
+     * Gets the view of a removed POI.
+     *
+     * @param index Index of the POI, lower than getRemovedCount().
+     * @return The view.
+     */
+    public Poi getRemoved(int index) {
+        if (index < 0 || index >= removedCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + " Removed: " + removedCount);
+        }
+        return new View(HEADER_SIZE + (activeCount + index) * RECORD_SIZE);
+    }
+
+    /**
+     * Flyweight view of a record.
+     *
+     * Two views are equal if they have the same type, position and date.
+     */
+    private final class View implements Poi {
+
+        private final int offset;
+
+        private View(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public long getId() {
+            return buffer.getLong(offset);
+        }
+
+        @Override
+        public void setId(long id) {
+            synchronized (lock) {
+                buffer.putLong(offset, id);
+            }
+        }
+
+        @Override
+        public Date getDate() {
+            return new Date(buffer.getLong(offset + 8));
+        }
+
+        @Override
+        public Date getRemovedDate() {
+            long removedDate = buffer.getLong(offset + 16);
+            return removedDate == NO_DATE ? null : new Date(removedDate);
+        }
+
+        @Override
+        public void setRemovedDate(Date removedDate) {
+            synchronized (lock) {
+                buffer.putLong(offset + 16, removedDate == null ? NO_DATE : removedDate.getTime());
+            }
+        }
+
+        @Override
+        public double getLat() {
+            return buffer.getDouble(offset + 24);
+        }
+
+        @Override
+        public double getLon() {
+            return buffer.getDouble(offset + 32);
+        }
+
+        @Override
+        public int getConfirmations() {
+            return buffer.getInt(offset + 40);
+        }
+
+        @Override
+        public void setConfirmations(int confirmations) {
+            synchronized (lock) {
+                buffer.putInt(offset + 40, confirmations);
+            }
+        }
+
+        @Override
+        public int incrementConfirmations() {
+            synchronized (lock) {
+                int confirmations = buffer.getInt(offset + 40) + 1;
+                buffer.putInt(offset + 40, confirmations);
+                return confirmations;
+            }
+        }
+
+        @Override
+        public int getRefutations() {
+            return buffer.getInt(offset + 44);
+        }
+
+        @Override
+        public void setRefutations(int refutations) {
+            synchronized (lock) {
+                buffer.putInt(offset + 44, refutations);
+            }
+        }
+
+        @Override
+        public int incrementRefutations() {
+            synchronized (lock) {
+                int refutations = buffer.getInt(offset + 44) + 1;
+                buffer.putInt(offset + 44, refutations);
+                return refutations;
+            }
+        }
+
+        @Override
+        public PoiType getType() {
+            int type = buffer.getInt(offset + 48);
+            if (type < 0 || type >= TYPES.length) {
+                throw new IllegalStateException("Invalid POI type in " + file);
+            }
+            return TYPES[type];
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Poi other = (Poi) obj;
+            return Double.doubleToLongBits(getLat()) == Double.doubleToLongBits(other.getLat())
+                    && Double.doubleToLongBits(getLon()) == Double.doubleToLongBits(other.getLon())
+                    && getType() == other.getType() && getDate().equals(other.getDate());
+        }
+
+        @Override
+        public int hashCode() {
+            // As AbstractReportedPoi, the identifier can change.
+            int hash = 3;
+            hash = 29 * hash + (int) (Double.doubleToLongBits(getLat()) ^ (Double.doubleToLongBits(getLat()) >>> 32));
+            hash = 29 * hash + (int) (Double.doubleToLongBits(getLon()) ^ (Double.doubleToLongBits(getLon()) >>> 32));
+            hash = 29 * hash + getType().hashCode();
+            hash = 29 * hash + getDate().hashCode();
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "POI " + getId() + " " + getType() + " coordinates:" + getLat() + "," + getLon() + " date:" + getDate();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.xml.stream.*;
+
+/**
+ * Streaming reader of the XML databases.
+ *
+ * One thread reads the file and only collects the raw values of the POIs. The
+ * values are converted by batch in a fork-join pool, while the reading goes
+ * on.
+ *
+ * The version 1 files, whose dates have no time of day, are still read. The
+ * version 2 files have ISO-8601 timestamps, with milliseconds.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class PoiXmlReader {
+
+    /**
+     * Number of POIs converted by a task.
+     */
+    private static final int BATCH_SIZE = 4096;
+    private static final int ID = 0;
+    private static final int TYPE = 1;
+    private static final int LATITUDE = 2;
+    private static final int LONGITUDE = 3;
+    private static final int DATE = 4;
+    private static final int CONFIRMATIONS = 5;
+    private static final int REFUTATIONS = 6;
+    private static final int REMOVED_DATE = 7;
+    private static final int FIELDS = 8;
+
+    private PoiXmlReader() {
+    }
+
+    /**
+     * Reads the POIs of a XML database.
+     *
+     * @param input Input stream to read.
+     * @return The POIs, in the order of the file.
+     */
+    public static List<Poi> read(InputStream input) throws XMLStreamException, XMLDatabaseException {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return read(input, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<Poi> read(InputStream input, ForkJoinPool pool) throws XMLStreamException, XMLDatabaseException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE); // Not used, and slower.
+        XMLStreamReader reader = factory.createXMLStreamReader(input, "UTF8");
+
+        int version = 1; // Not written by the first files.
+        ArrayList<Future<List<Poi>>> tasks = new ArrayList<Future<List<Poi>>>();
+        ArrayList<String[]> batch = new ArrayList<String[]>(BATCH_SIZE);
+        String[] current = null;
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    if (name.equals("points")) {
+                        String value = reader.getAttributeValue(null, "version");
+                        if (value != null) {
+                            try {
+                                version = Integer.parseInt(value);
+                            } catch (NumberFormatException e) {
+                                version = -1;
+                            }
+                            if (version < 1 || version > ServerPoiList.XML_VERSION) {
+                                throw new XMLDatabaseException("Invalid file version! Found: " + value + " Expected: " + ServerPoiList.XML_VERSION);
+                            }
+                        }
+                    } else if (name.equals("poi")) {
+                        current = new String[FIELDS];
+                        current[ID] = reader.getAttributeValue(null, "id");
+                        current[TYPE] = reader.getAttributeValue(null, "type");
+                        current[LATITUDE] = reader.getAttributeValue(null, "latitude");
+                        current[LONGITUDE] = reader.getAttributeValue(null, "longitude");
+                        current[DATE] = reader.getAttributeValue(null, "date");
+                    } else if (current != null && name.equals("confirmations")) {
+                        current[CONFIRMATIONS] = reader.getElementText();
+                    } else if (current != null && name.equals("refutations")) {
+                        current[REFUTATIONS] = reader.getElementText();
+                    } else if (current != null && name.equals("removedDate")) {
+                        current[REMOVED_DATE] = reader.getElementText();
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (reader.getLocalName().equals("poi") && current != null) {
+                        batch.add(current);
+                        current = null;
+                        if (batch.size() == BATCH_SIZE) {
+                            tasks.add(pool.submit(new ConversionTask(batch, version)));
+                            batch = new ArrayList<String[]>(BATCH_SIZE);
+                        }
+                    }
+                    break;
+            }
+        }
+        reader.close();
+        if (!batch.isEmpty()) {
+            tasks.add(pool.submit(new ConversionTask(batch, version)));
+        }
+
+        ArrayList<Poi> pois = new ArrayList<Poi>(tasks.size() * BATCH_SIZE);
+        for (Future<List<Poi>> task : tasks) {
+            try {
+                pois.addAll(task.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof XMLDatabaseException) {
+                    throw (XMLDatabaseException) e.getCause();
+                }
+                throw new XMLDatabaseException("Invalid POI", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XMLDatabaseException("Interrupted", e);
+            }
+        }
+        return pois;
+    }
+
+    /**
+     * Converts the raw values of a batch of POIs.
+     */
+    private static final class ConversionTask implements Callable<List<Poi>> {
+
+        private final List<String[]> batch;
+        private final int version;
+        /**
+         * Date format of the version 1. Not thread safe, so one per task.
+         */
+        private DateFormat dateFormat;
+
+        private ConversionTask(List<String[]> batch, int version) {
+            this.batch = batch;
+            this.version = version;
+        }
+
+        @Override
+        public List<Poi> call() throws XMLDatabaseException {
+            ArrayList<Poi> pois = new ArrayList<Poi>(batch.size());
+            for (String[] fields : batch) {
+                pois.add(convert(fields));
+            }
+            return pois;
+        }
+
+        private Poi convert(String[] fields) throws XMLDatabaseException {
+            // Woot, the beautiful non understandable error message.
+            // Can be translated: You're fucked :)
+            if (fields[TYPE] == null) {
+                throw new XMLDatabaseException("Type undefined");
+            }
+            if (fields[DATE] == null) {
+                throw new XMLDatabaseException("Date undefined");
+            }
+
+            PoiType type;
+            try {
+                type = PoiType.valueOf(fields[TYPE]);
+            } catch (IllegalArgumentException e) {
+                throw new XMLDatabaseException("Invalid type " + fields[TYPE], e);
+            }
+            double latitude = fields[LATITUDE] == null ? 0.0 : Double.parseDouble(fields[LATITUDE]);
+            double longitude = fields[LONGITUDE] == null ? 0.0 : Double.parseDouble(fields[LONGITUDE]);
+
+            Poi poi = type.constructPoi(latitude, longitude, parseDate(fields[DATE]));
+            if (fields[ID] != null) { // Not defined by the older files.
+                try {
+                    poi.setId(Long.parseLong(fields[ID]));
+                } catch (NumberFormatException e) {
+                    throw new XMLDatabaseException("Invalid id " + fields[ID], e);
+                }
+            }
+            if (fields[CONFIRMATIONS] != null) {
+                poi.setConfirmations(Integer.parseInt(fields[CONFIRMATIONS].trim()));
+            }
+            if (fields[REFUTATIONS] != null) {
+                poi.setRefutations(Integer.parseInt(fields[REFUTATIONS].trim()));
+            }
+            if (fields[REMOVED_DATE] != null) {
+                poi.setRemovedDate(parseDate(fields[REMOVED_DATE].trim()));
+            }
+            return poi;
+        }
+
+        private Date parseDate(String text) throws XMLDatabaseException {
+            if (version >= 2) {
+                try {
+                    return new Date(TimestampCodec.ISO.parse(text));
+                } catch (IllegalArgumentException e) {
+                    throw new XMLDatabaseException("Unparsable date format " + text, e);
+                }
+            }
+
+            if (dateFormat == null) {
+                dateFormat = DateFormat.getDateInstance(DateFormat.LONG, Locale.US);
+            }
+            try {
+                return dateFormat.parse(text);
+            } catch (ParseException e) {
+                throw new XMLDatabaseException("Unparsable date format " + text, e);
+            }
+        }
+    }
+}
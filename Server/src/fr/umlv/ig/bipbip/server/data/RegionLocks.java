@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks of geographic regions.
+ *
+ * The earth is cut in regions of the same size in degrees, each region being
+ * mapped to one of a fixed number of locks. Locking an area locks all the
+ * regions it covers, always in the same order, so two threads working on
+ * overlapping areas are serialized while the threads working on different
+ * areas run in parallel (unless their regions share the same stripe).
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class RegionLocks {
+
+    /**
+     * Default size of a region, in degree. (About 5 km)
+     */
+    public static final double DEFAULT_REGION_SIZE = 0.05;
+    /**
+     * Default number of locks.
+     */
+    public static final int DEFAULT_STRIPES = 256;
+    private final double regionSize;
+    private final int longitudeRegions;
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Creates the locks with the default region size and number of stripes.
+     */
+    public RegionLocks() {
+        this(DEFAULT_REGION_SIZE, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates the locks.
+     *
+     * @param regionSize Size of a region, in degree.
+     * @param stripes Number of locks.
+     */
+    public RegionLocks(double regionSize, int stripes) {
+        if (!(regionSize > 0 && regionSize <= 90)) {
+            throw new IllegalArgumentException("Invalid region size: " + regionSize);
+        }
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Invalid number of stripes: " + stripes);
+        }
+        this.regionSize = regionSize;
+        this.longitudeRegions = (int) Math.ceil(360 / regionSize);
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private int stripe(int latitudeIndex, int longitudeIndex) {
+        longitudeIndex %= longitudeRegions;
+        if (longitudeIndex < 0) {
+            longitudeIndex += longitudeRegions;
+        }
+        int hash = latitudeIndex * 31 + longitudeIndex * 0x9E3779B1;
+        hash ^= hash >>> 16;
+        return (hash & 0x7FFFFFFF) % stripes.length;
+    }
+
+    /**
+     * Locks all the regions covering the bounding boxes of areas.
+     *
+     * @param areas Areas to lock.
+     * @return The locked stripes, to give back to unlock.
+     */
+    public int[] lock(GeoArea... areas) {
+        int[] indexes = new int[0];
+        int count = 0;
+        for (GeoArea area : areas) {
+            int minLatitudeIndex = (int) Math.floor((area.getMinLatitude() + 90) / regionSize);
+            int maxLatitudeIndex = (int) Math.floor((area.getMaxLatitude() + 90) / regionSize);
+            int minLongitudeIndex = (int) Math.floor((area.getMinLongitude() + 180) / regionSize);
+            int maxLongitudeIndex = (int) Math.floor((area.getMaxLongitude() + 180) / regionSize);
+            if (maxLongitudeIndex < minLongitudeIndex) {
+                // Crossing the 180th meridian.
+                maxLongitudeIndex += longitudeRegions;
+            }
+
+            long regions = (long) (maxLatitudeIndex - minLatitudeIndex + 1) * (maxLongitudeIndex - minLongitudeIndex + 1);
+            if (count + regions >= stripes.length) {
+                // Huge area, every stripe is needed.
+                indexes = new int[stripes.length];
+                for (int i = 0; i < indexes.length; i++) {
+                    indexes[i] = i;
+                }
+                count = indexes.length;
+                break;
+            }
+
+            indexes = Arrays.copyOf(indexes, count + (int) regions);
+            for (int latitudeIndex = minLatitudeIndex; latitudeIndex <= maxLatitudeIndex; latitudeIndex++) {
+                for (int longitudeIndex = minLongitudeIndex; longitudeIndex <= maxLongitudeIndex; longitudeIndex++) {
+                    indexes[count++] = stripe(latitudeIndex, longitudeIndex);
+                }
+            }
+        }
+
+        // Always locking in the same order, in order to avoid dead locks.
+        Arrays.sort(indexes, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                indexes[unique++] = indexes[i];
+            }
+        }
+        int[] locked = Arrays.copyOf(indexes, unique);
+
+        for (int i = 0; i < locked.length; i++) {
+            stripes[locked[i]].lock();
+        }
+        return locked;
+    }
+
+    /**
+     * Locks all the regions of the earth.
+     *
+     * @return The locked stripes, to give back to unlock.
+     */
+    public int[] lockAll() {
+        int[] locked = new int[stripes.length];
+        for (int i = 0; i < locked.length; i++) {
+            locked[i] = i;
+            stripes[i].lock();
+        }
+        return locked;
+    }
+
+    /**
+     * Unlocks the stripes locked by lock.
+     *
+     * @param locked The value returned by lock.
+     */
+    public void unlock(int[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            stripes[locked[i]].unlock();
+        }
+    }
+}
@@ -17,16 +17,30 @@
 package fr.umlv.ig.bipbip.server.data;
 
 import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiChanges;
 import fr.umlv.ig.bipbip.poi.PoiEvent;
-import fr.umlv.ig.bipbip.poi.PoiType;
+import fr.umlv.ig.bipbip.protocol.TimestampCodec;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.DateFormat;
-import java.text.ParseException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.stream.*;
@@ -47,6 +61,62 @@ public class ServerPoiList extends PoiList {
      * After X refutations, delete the POI.
      */
     public static final int NB_REFUTATION_FOR_DELETE = 3;
+    /**
+     * Locks of the areas being modified.
+     *
+     * Looking for the POIs around a new one and inserting it is done under the
+     * locks of the area, so two clients reporting the same POI at the same time
+     * cannot create two POIs.
+     */
+    private final RegionLocks regionLocks = new RegionLocks();
+    /**
+     * Number of insertions, removals and replacements of active POIs. Tells a
+     * merge whether its spatial join is still exact.
+     */
+    private final AtomicLong structuralChanges = new AtomicLong();
+    /**
+     * Last changes, for the clients asking what changed since their last
+     * request.
+     */
+    private final ChangeLog changes = new ChangeLog();
+    /**
+     * Prefix of the snapshots inside the journal directory. A snapshot is
+     * named after the first journal segment that it does not contain.
+     */
+    public static final String SNAPSHOT_PREFIX = "snapshot-";
+    /**
+     * Suffix of the snapshots inside the journal directory.
+     */
+    public static final String SNAPSHOT_SUFFIX = ".bin";
+    /**
+     * Name of the XML snapshot written by the older versions.
+     */
+    public static final String XML_SNAPSHOT_FILE = "snapshot.xml";
+    /**
+     * Journal of the changes. Can be null.
+     */
+    private volatile PoiJournal journal;
+    private File journalDirectory;
+    /**
+     * List replacing this one, set while all the regions are locked. The
+     * changes of the clients still using this list are made on it.
+     */
+    private volatile ServerPoiList successor;
+
+    /**
+     * Creates an empty list of POI, indexed by a grid per type.
+     */
+    public ServerPoiList() {
+    }
+
+    /**
+     * Creates an empty list of POI.
+     *
+     * @param spatialIndex Empty spatial index used for the area lookups.
+     */
+    public ServerPoiList(TypePartitionedIndex spatialIndex) {
+        super(spatialIndex);
+    }
 
     /**
      * Increment the number of refutation of a POI.
@@ -59,7 +129,33 @@ public class ServerPoiList extends PoiList {
      * @see #NB_REFUTATION_FOR_DELETE
      */
     public void notSeen(Poi poi) {
-        ArrayList<Poi> pois = getPoisInArea(poi.getLat(), poi.getLon(), PRECISION, poi.getType(), poi.getDate());
+        notSeen(poi, 1);
+    }
+
+    /**
+     * Increment the number of refutation of a POI whose date has been
+     * truncated.
+     *
+     * @param poi The not seen POI.
+     * @param dateUnit Milliseconds of the unit the date of the POI has been
+     * truncated to: the POIs with a date in the same unit match.
+     *
+     * @see #notSeen(Poi)
+     */
+    public void notSeen(Poi poi, long dateUnit) {
+        if (poi.getId() != Poi.UNDEFINED_ID) {
+            notSeen(poi.getId());
+            return;
+        }
+
+        long start = poi.getDate().getTime();
+        ArrayList<Poi> pois = getPoisInArea(poi.getLat(), poi.getLon(), PRECISION, poi.getType(), null);
+        for (Iterator<Poi> it = pois.iterator(); it.hasNext();) {
+            long date = it.next().getDate().getTime();
+            if (date < start || date - start >= dateUnit) {
+                it.remove();
+            }
+        }
         if (pois.isEmpty()) { // POI not found.
             logger.log(Level.WARNING, "Not seen: Requested POI not found. latitude:{0} longitude:{1} type:{2}", new Object[]{poi.getLat(), poi.getLon(), poi.getType()});
             return;
@@ -67,49 +163,1030 @@ public class ServerPoiList extends PoiList {
 
         // POI get, marking it as notSeen.
         for (Poi p : pois) {
-            int newRefutations = p.getRefutations() + 1;
-            if (newRefutations >= NB_REFUTATION_FOR_DELETE) {
-                removePoi(p);
-            } else {
-                p.setRefutations(newRefutations);
-                firePoiUpdated(new PoiEvent(this, p));
+            ServerPoiList next = refute(p);
+            if (next != null) { // Replaced meanwhile.
+                next.notSeen(poi, dateUnit);
+                return;
             }
         }
     }
+
+    /**
+     * Increment the number of refutation of a POI, found by its identifier.
+     *
+     * @param id Identifier of the not seen POI.
+     * @return false if there is no active POI with this identifier.
+     *
+     * @see #notSeen(Poi)
+     */
+    public boolean notSeen(long id) {
+        Poi poi = getPoi(id);
+        if (poi == null) { // POI not found.
+            logger.log(Level.WARNING, "Not seen: Requested POI not found. id:{0}", id);
+            return false;
+        }
+
+        ServerPoiList next = refute(poi);
+        if (next != null) { // Replaced meanwhile, the identifier is not known by the new list.
+            next.notSeen(poi.getType().constructPoi(poi.getLat(), poi.getLon(), poi.getDate()));
+        }
+        return true;
+    }
+
+    /**
+     * Marks an active POI as not seen.
+     *
+     * @param p The POI.
+     * @return The list replacing this one, or null if the POI has been
+     * marked.
+     */
+    private ServerPoiList refute(Poi p) {
+        int refutations;
+        PoiJournal j;
+        long position = 0;
+
+        int[] locked = regionLocks.lock(new GeoArea(p.getLat(), p.getLon(), 0));
+        ServerPoiList next = successor;
+        if (next != null) {
+            regionLocks.unlock(locked);
+            return next;
+        }
+        try {
+            refutations = p.incrementRefutations();
+            j = journal;
+            if (j != null) {
+                position = j.refuted(p);
+            }
+        } finally {
+            regionLocks.unlock(locked);
+        }
+        sync(j, position);
+
+        if (refutations >= NB_REFUTATION_FOR_DELETE) {
+            removePoi(p, true); // Does nothing if another client removed it first.
+        } else {
+            firePoiUpdated(new PoiEvent(this, p));
+        }
+        return null;
+    }
     /**
      * Version of the xml file.
+     *
+     * The version 1 had dates without time of day.
+     */
+    static final Integer XML_VERSION = 2;
+    /**
+     * Number of POIs looked up by a task of a merge.
      */
-    private static final Integer XML_VERSION = 1;
+    private static final int JOIN_BATCH_SIZE = 4096;
 
     /**
      * Adds a POI.
      *
      * If the POI already exists, then the number of confirmations is increased.
+     * The lookup and the insertion are atomic.
      *
      * @param poi POI to add.
      *
-     * @see #addPrecision
+     * @see #PRECISION
      */
     @Override
     public void addPoi(Poi poi) {
-        ArrayList<Poi> poisAround = getPoisInArea(poi.getLat(), poi.getLon(), PRECISION, poi.getType());
+        GeoArea area = new GeoArea(poi.getLat(), poi.getLon(), PRECISION);
+        ArrayList<Poi> poisAround;
+        PoiJournal j;
+        long position = 0;
+
+        int[] locked = regionLocks.lock(area);
+        ServerPoiList next = successor;
+        if (next != null) { // Replaced meanwhile.
+            regionLocks.unlock(locked);
+            next.addPoi(poi);
+            return;
+        }
+        try {
+            j = journal;
+            poisAround = getPoisInArea(area, poi.getType(), null);
+            if (poisAround.isEmpty()) {
+                insertPoi(poi);
+                if (j != null) {
+                    position = j.added(poi);
+                }
+            } else {
+                // POI founds, incrementing the number of confirmations.
+                for (Poi p : poisAround) {
+                    p.incrementConfirmations();
+                    if (j != null) {
+                        position = j.confirmed(p);
+                    }
+                }
+            }
+        } finally {
+            regionLocks.unlock(locked);
+        }
+        sync(j, position);
+
+        // Firing the events outside of the locks.
         if (poisAround.isEmpty()) {
-            super.addPoi(poi);
             logger.log(Level.FINE, "Added " + poi);
+            firePoiAdded(new PoiEvent(this, poi));
             return;
         }
-
-        // POI founds, incrementing the number of confirmations.
         for (Poi p : poisAround) {
-            logger.log(Level.FINE, "Confirmed " + poi);
-            p.setConfirmations(p.getConfirmations() + 1);
-            firePoiUpdated(new PoiEvent(this, poi));
+            logger.log(Level.FINE, "Confirmed " + p);
+            firePoiUpdated(new PoiEvent(this, p));
+        }
+    }
+
+    @Override
+    protected void insertPoi(Poi p) {
+        super.insertPoi(p);
+        structuralChanges.incrementAndGet();
+    }
+
+    @Override
+    protected void insertPois(Collection<? extends Poi> pois) {
+        super.insertPois(pois);
+        structuralChanges.incrementAndGet();
+    }
+
+    @Override
+    protected boolean deletePoi(Poi p, Date removedDate) {
+        if (!super.deletePoi(p, removedDate)) {
+            return false;
+        }
+        structuralChanges.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    protected void replacePoi(Poi oldPoi, Poi newPoi) {
+        super.replacePoi(oldPoi, newPoi);
+        structuralChanges.incrementAndGet();
+    }
+
+    /**
+     * Merges a dataset into the list.
+     *
+     * Every active POI of the dataset is handled as by addPoi: the POIs of
+     * the same type within PRECISION are confirmed, or the POI is added. The
+     * removed POIs of the dataset are ignored, and the added POIs get new
+     * identifiers.
+     *
+     * The dataset is joined with the list in parallel, without any lock, and
+     * the POIs of the dataset close to each other are merged together. Then
+     * the changes are applied in one batch, with all the regions locked: the
+     * matches are checked again, since the list may have changed meanwhile,
+     * and the new POIs are indexed all at once.
+     *
+     * @param dataset POIs to merge. The added ones are inserted as they are,
+     * so they must not be shared with another list.
+     * @return The report of the merge.
+     * @throws IllegalStateException If the list has been replaced.
+     */
+    public MergeReport merge(List<? extends Poi> dataset) {
+        checkNotReplaced();
+        long start = System.nanoTime();
+
+        ArrayList<Poi> incoming = new ArrayList<Poi>(dataset.size());
+        for (Poi poi : dataset) {
+            if (poi.getRemovedDate() == null) {
+                incoming.add(poi);
+            }
+        }
+
+        // Spatial join with the list.
+        long changes = structuralChanges.get();
+        List<ArrayList<Poi>> matches = join(incoming);
+
+        // The new POIs close to each other are one POI.
+        TypePartitionedIndex pendingIndex = new TypePartitionedIndex();
+        ArrayList<Poi> matched = new ArrayList<Poi>();
+        ArrayList<ArrayList<Poi>> matchedPois = new ArrayList<ArrayList<Poi>>();
+        ArrayList<Poi> pending = new ArrayList<Poi>();
+        for (int i = 0; i < incoming.size(); i++) {
+            Poi poi = incoming.get(i);
+            GeoArea area = new GeoArea(poi.getLat(), poi.getLon(), PRECISION);
+            ArrayList<Poi> candidates = new ArrayList<Poi>();
+            pendingIndex.collectCandidates(poi.getType(), area.getMinLatitude(), area.getMinLongitude(), area.getMaxLatitude(), area.getMaxLongitude(), candidates);
+            boolean merged = false;
+            for (Poi candidate : candidates) {
+                if (area.contains(candidate.getLat(), candidate.getLon())) {
+                    candidate.incrementConfirmations();
+                    merged = true;
+                }
+            }
+            if (matches.get(i) != null) {
+                matched.add(poi);
+                matchedPois.add(matches.get(i));
+            } else if (!merged) {
+                poi.setId(Poi.UNDEFINED_ID);
+                pendingIndex.add(poi);
+                pending.add(poi);
+            }
+        }
+
+        // Applying the changes.
+        LinkedHashSet<Poi> confirmed = new LinkedHashSet<Poi>();
+        ArrayList<Poi> added = new ArrayList<Poi>(pending.size());
+        PoiJournal j;
+        long position = 0;
+        long blockedStart = System.nanoTime();
+        int[] locked = regionLocks.lockAll();
+        try {
+            checkNotReplaced();
+            j = journal;
+            // Nothing to check again if no POI has been added or removed
+            // since the join.
+            boolean changed = structuralChanges.get() != changes;
+            for (int i = 0; i < matched.size(); i++) {
+                ArrayList<Poi> poisAround = matchedPois.get(i);
+                if (changed) {
+                    poisAround = new ArrayList<Poi>();
+                    for (Poi p : matchedPois.get(i)) {
+                        if (getPoi(p.getId()) == p) { // Still active.
+                            poisAround.add(p);
+                        }
+                    }
+                }
+                if (poisAround.isEmpty()) { // Removed meanwhile.
+                    Poi poi = matched.get(i);
+                    poisAround = getPoisInArea(new GeoArea(poi.getLat(), poi.getLon(), PRECISION), poi.getType(), null);
+                    if (poisAround.isEmpty()) {
+                        poi.setId(Poi.UNDEFINED_ID);
+                        added.add(poi);
+                        continue;
+                    }
+                }
+                for (Poi p : poisAround) {
+                    p.incrementConfirmations();
+                    if (j != null) {
+                        position = j.confirmed(p);
+                    }
+                    confirmed.add(p);
+                }
+            }
+            for (Poi poi : pending) {
+                if (!changed) {
+                    added.add(poi);
+                    continue;
+                }
+                // Added by a client meanwhile?
+                ArrayList<Poi> poisAround = getPoisInArea(new GeoArea(poi.getLat(), poi.getLon(), PRECISION), poi.getType(), null);
+                if (poisAround.isEmpty()) {
+                    added.add(poi);
+                    continue;
+                }
+                for (Poi p : poisAround) {
+                    p.incrementConfirmations();
+                    if (j != null) {
+                        position = j.confirmed(p);
+                    }
+                    confirmed.add(p);
+                }
+            }
+
+            insertPois(added);
+            if (j != null) {
+                for (Poi poi : added) {
+                    position = j.added(poi);
+                }
+            }
+        } finally {
+            regionLocks.unlock(locked);
+        }
+        long blockedTime = System.nanoTime() - blockedStart;
+        sync(j, position);
+
+        // Firing the events outside of the locks.
+        for (Poi poi : added) {
+            firePoiAdded(new PoiEvent(this, poi));
+        }
+        for (Poi p : confirmed) {
+            firePoiUpdated(new PoiEvent(this, p));
+        }
+
+        MergeReport report = new MergeReport(dataset.size(), dataset.size() - incoming.size(), added.size(), confirmed.size(), System.nanoTime() - start, blockedTime);
+        logger.log(Level.INFO, "Merged {0} POIs: {1} new, {2} merged, {3} existing POIs confirmed, {4} removed ignored", new Object[]{report.getRead(), report.getAdded(), report.getMerged(), report.getConfirmed(), report.getIgnored()});
+        return report;
+    }
+
+    /**
+     * Looks up the POIs around each POI of a dataset, in parallel.
+     *
+     * @param pois The dataset.
+     * @return The POIs of the same type within PRECISION of each POI of the
+     * dataset, or null if there is none.
+     */
+    private List<ArrayList<Poi>> join(List<Poi> pois) {
+        ArrayList<ArrayList<Poi>> matches = new ArrayList<ArrayList<Poi>>(pois.size());
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            ArrayList<Future<List<ArrayList<Poi>>>> tasks = new ArrayList<Future<List<ArrayList<Poi>>>>();
+            for (int from = 0; from < pois.size(); from += JOIN_BATCH_SIZE) {
+                tasks.add(pool.submit(new JoinTask(pois.subList(from, Math.min(pois.size(), from + JOIN_BATCH_SIZE)))));
+            }
+            for (Future<List<ArrayList<Poi>>> task : tasks) {
+                matches.addAll(task.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to join the dataset", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return matches;
+    }
+
+    /**
+     * Looks up the POIs around a batch of POIs.
+     */
+    private final class JoinTask implements Callable<List<ArrayList<Poi>>> {
+
+        private final List<Poi> batch;
+
+        private JoinTask(List<Poi> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public List<ArrayList<Poi>> call() {
+            ArrayList<ArrayList<Poi>> matches = new ArrayList<ArrayList<Poi>>(batch.size());
+            for (Poi poi : batch) {
+                ArrayList<Poi> poisAround = getPoisInArea(new GeoArea(poi.getLat(), poi.getLon(), PRECISION), poi.getType(), null);
+                matches.add(poisAround.isEmpty() ? null : poisAround);
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * Removes a POI.
+     *
+     * @param poi POI to remove.
+     * @throws IllegalStateException If the list has been replaced.
+     */
+    @Override
+    public void removePoi(Poi poi) {
+        removePoi(poi, false);
+    }
+
+    /**
+     * Removes a POI.
+     *
+     * @param poi POI to remove.
+     * @param refuted true if the POI is removed by its refutations, which
+     * have been made before the replacement of the list.
+     */
+    private void removePoi(Poi poi, boolean refuted) {
+        boolean removed;
+        PoiJournal j;
+        long position = 0;
+
+        int[] locked = regionLocks.lock(new GeoArea(poi.getLat(), poi.getLon(), 0));
+        try {
+            if (successor != null) {
+                if (refuted) {
+                    return; // Refuted in the replaced database.
+                }
+                checkNotReplaced();
+            }
+            j = journal;
+            removed = deletePoi(poi);
+            if (removed && j != null) {
+                position = j.removed(poi);
+            }
+        } finally {
+            regionLocks.unlock(locked);
+        }
+        sync(j, position);
+
+        if (removed) {
+            firePoiRemoved(new PoiEvent(this, poi));
+        }
+    }
+
+    /**
+     * Updates (replace) a POI.
+     *
+     * @param oldPoi POI to replace.
+     * @param newPoi New POI.
+     * @throws IllegalStateException If the list has been replaced.
+     */
+    @Override
+    public void updatePoi(Poi oldPoi, Poi newPoi) {
+        PoiJournal j;
+        long position = 0;
+
+        int[] locked = regionLocks.lock(new GeoArea(oldPoi.getLat(), oldPoi.getLon(), 0), new GeoArea(newPoi.getLat(), newPoi.getLon(), 0));
+        try {
+            checkNotReplaced();
+            j = journal;
+            replacePoi(oldPoi, newPoi);
+            if (j != null) {
+                position = j.edited(newPoi);
+            }
+        } finally {
+            regionLocks.unlock(locked);
+        }
+        sync(j, position);
+
+        firePoiRemoved(new PoiEvent(this, oldPoi));
+        firePoiAdded(new PoiEvent(this, newPoi));
+    }
+
+    @Override
+    protected void firePoiAdded(PoiEvent e) {
+        changes.record(e.getPoi(), false);
+        super.firePoiAdded(e);
+    }
+
+    @Override
+    protected void firePoiUpdated(PoiEvent e) {
+        changes.record(e.getPoi(), false);
+        super.firePoiUpdated(e);
+    }
+
+    @Override
+    protected void firePoiRemoved(PoiEvent e) {
+        changes.record(e.getPoi(), true);
+        super.firePoiRemoved(e);
+    }
+
+    /**
+     * Gets the version of the list, increased by each change of an active
+     * POI.
+     *
+     * Read before the POIs, it is the version to give with them: the
+     * changes done meanwhile are given again by the next request.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return changes.getVersion();
+    }
+
+    /**
+     * Gets the changes of the POIs around a position since a version.
+     *
+     * @param latitude latitude position of the point.
+     * @param longitude longitude position of the point.
+     * @param radiusArea radius of the area.
+     * @param since Version returned by a previous request.
+     * @return The changes since the version, or all the POIs of the area if
+     * the version is unknown or too old.
+     *
+     * @see ChangeLog#getChanges(GeoArea, long, PoiList)
+     */
+    public PoiChanges getChangesInArea(double latitude, double longitude, double radiusArea, long since) {
+        GeoArea area = new GeoArea(latitude, longitude, radiusArea);
+        PoiChanges delta = changes.getChanges(area, since, this);
+        if (delta != null) {
+            return delta;
+        }
+        long version = changes.getVersion(); // Before the POIs.
+        return new PoiChanges(version, true, getPoisInArea(area, null, null), Collections.<Long>emptyList());
+    }
+
+    /**
+     * Waits until the journal records are on the disk.
+     *
+     * A failure is logged: the change is done in memory, but can be lost by
+     * a crash.
+     *
+     * @param j The journal, read with the region locked. Can be null.
+     * @param position Position returned by the journal, 0 if nothing has
+     * been journaled.
+     */
+    private void sync(PoiJournal j, long position) {
+        if (j == null || position == 0) {
+            return;
+        }
+        try {
+            j.sync(position);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to write the journal", e);
+        }
+    }
+
+    /**
+     * Refuses the changes of the administrator on a replaced list: they would
+     * be lost with it.
+     *
+     * @throws IllegalStateException If the list has been replaced.
+     */
+    private void checkNotReplaced() {
+        if (successor != null) {
+            throw new IllegalStateException("The list has been replaced");
+        }
+    }
+
+    /**
+     * Gets the journal of the changes.
+     *
+     * @return The journal, or null if the changes are not journaled.
+     */
+    public PoiJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Makes this list the successor of another one.
+     *
+     * The journal and the history archive of the previous list are moved to
+     * this list. A snapshot of this list is written first, while the previous
+     * one is still in use. Then, with all the regions of the previous list
+     * locked, the journal is rotated, the snapshot is named after the new
+     * segment and the list is swapped: a recovery finds either the previous
+     * list with its journal, or this one with every change made on it.
+     *
+     * The changes of the clients still using the previous list are then made
+     * on this one, and the changes of the administrator are refused.
+     *
+     * If the snapshot cannot be written, the previous list keeps its journal
+     * and is not swapped. The files of the previous list are deleted once it
+     * is swapped.
+     *
+     * @param previous The replaced list.
+     * @param swap Makes this list the one in use, called with all the regions
+     * of the previous list locked.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public void takeOver(ServerPoiList previous, Runnable swap) throws IOException {
+        Objects.requireNonNull(previous);
+        Objects.requireNonNull(swap);
+
+        setHistoryArchive(previous.getHistoryArchive());
+        long segment;
+        synchronized (previous) { // No checkpoint of the previous list meanwhile.
+            PoiJournal j = previous.journal;
+            File directory = previous.journalDirectory;
+            if (j == null) {
+                int[] locked = previous.regionLocks.lockAll();
+                try {
+                    previous.successor = this;
+                    swap.run();
+                } finally {
+                    previous.regionLocks.unlock(locked);
+                }
+                return;
+            }
+
+            // This list is not in use yet, it does not change meanwhile.
+            State state = captureState();
+            File temporary = new File(directory, SNAPSHOT_PREFIX + "reload" + SNAPSHOT_SUFFIX + ".tmp");
+            PoiSnapshot.write(state.activePois, state.removedPois, temporary);
+
+            int[] locked = previous.regionLocks.lockAll();
+            try {
+                segment = j.rotate();
+                Files.move(temporary.toPath(), new File(directory, SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                synchronized (this) {
+                    journalDirectory = directory;
+                    journal = j;
+                }
+                previous.journal = null;
+                previous.successor = this;
+                swap.run();
+            } finally {
+                previous.regionLocks.unlock(locked);
+                if (temporary.exists() && !temporary.delete()) {
+                    logger.log(Level.WARNING, "Unable to delete {0}", temporary);
+                }
+            }
+        }
+
+        // The old files are deleted by the next checkpoint if this fails.
+        try {
+            synchronized (this) {
+                deleteBefore(segment);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to delete the files of the replaced list", e);
+        }
+    }
+
+    /**
+     * Loads the list of POI from a journal directory.
+     *
+     * The last snapshot is read, then the journal is replayed on it. The
+     * later changes are journaled in the same directory.
+     *
+     * @param directory The journal directory. Created if needed.
+     * @return The recovered list.
+     *
+     * @see #checkpoint()
+     */
+    public static ServerPoiList recover(File directory) throws IOException, XMLStreamException, XMLDatabaseException {
+        ServerPoiList poiList;
+        File snapshot = findSnapshot(directory);
+        File xmlSnapshot = new File(directory, XML_SNAPSHOT_FILE);
+        if (snapshot != null) {
+            poiList = readFromSnapshot(snapshot);
+        } else if (xmlSnapshot.exists()) {
+            FileInputStream input = new FileInputStream(xmlSnapshot);
+            try {
+                poiList = readFromFile(input);
+            } finally {
+                input.close();
+            }
+        } else {
+            poiList = new ServerPoiList();
+        }
+
+        // The segments older than the snapshot can be the ones of a replaced
+        // list.
+        PoiJournal journal = new PoiJournal(directory);
+        journal.replay(poiList.new JournalReplayer(), snapshot != null ? snapshotSegment(snapshot) : 0);
+        poiList.journalDirectory = directory;
+        poiList.journal = journal;
+        return poiList;
+    }
+
+    /**
+     * Finds the most recent binary snapshot of a journal directory.
+     *
+     * The snapshot is the state of the list at the last checkpoint. The
+     * changes made afterwards are only in the journal.
+     *
+     * @param directory The journal directory.
+     * @return The snapshot, or null if there is none.
+     */
+    public static File findSnapshot(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+
+        File snapshot = null;
+        long lastSegment = -1;
+        for (File file : files) {
+            long segment = snapshotSegment(file);
+            if (segment > lastSegment) {
+                lastSegment = segment;
+                snapshot = file;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gets the journal segment of a snapshot file.
+     *
+     * @return The segment, or -1 if the file is not a snapshot.
+     */
+    private static long snapshotSegment(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SNAPSHOT_PREFIX) || !name.endsWith(SNAPSHOT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Result of a checkpoint.
+     */
+    public static final class Checkpoint {
+
+        private final File file;
+        private final int poiCount;
+        private final long duration;
+        private final long blockedTime;
+
+        private Checkpoint(File file, int poiCount, long duration, long blockedTime) {
+            this.file = file;
+            this.poiCount = poiCount;
+            this.duration = duration;
+            this.blockedTime = blockedTime;
+        }
+
+        /**
+         * Gets the written snapshot.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Gets the number of POIs in the snapshot, active and removed.
+         */
+        public int getPoiCount() {
+            return poiCount;
+        }
+
+        /**
+         * Gets the duration of the checkpoint, in nanoseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Gets the time during which the writers were blocked, in
+         * nanoseconds.
+         */
+        public long getBlockedTime() {
+            return blockedTime;
+        }
+    }
+
+    /**
+     * Result of a merge.
+     */
+    public static final class MergeReport {
+
+        private final int read;
+        private final int ignored;
+        private final int added;
+        private final int confirmed;
+        private final long duration;
+        private final long blockedTime;
+
+        private MergeReport(int read, int ignored, int added, int confirmed, long duration, long blockedTime) {
+            this.read = read;
+            this.ignored = ignored;
+            this.added = added;
+            this.confirmed = confirmed;
+            this.duration = duration;
+            this.blockedTime = blockedTime;
+        }
+
+        /**
+         * Gets the number of POIs of the dataset.
+         */
+        public int getRead() {
+            return read;
+        }
+
+        /**
+         * Gets the number of removed POIs of the dataset, ignored.
+         */
+        public int getIgnored() {
+            return ignored;
+        }
+
+        /**
+         * Gets the number of POIs of the dataset added to the list.
+         */
+        public int getAdded() {
+            return added;
+        }
+
+        /**
+         * Gets the number of POIs of the dataset merged with another POI, of
+         * the list or of the dataset.
+         */
+        public int getMerged() {
+            return read - ignored - added;
+        }
+
+        /**
+         * Gets the number of POIs of the list that have been confirmed.
+         */
+        public int getConfirmed() {
+            return confirmed;
+        }
+
+        /**
+         * Gets the duration of the merge, in nanoseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Gets the time during which the writers were blocked, in
+         * nanoseconds.
+         */
+        public long getBlockedTime() {
+            return blockedTime;
+        }
+    }
+
+    /**
+     * Consistent copy of the list of POI.
+     *
+     * The POIs are not copied, only the lists are. A POI modified after the
+     * copy can be saved with its new values, which is harmless as the journal
+     * records are absolute values: replaying the change does nothing.
+     */
+    private static final class State {
+
+        private final List<Poi> activePois;
+        private final List<Poi> removedPois;
+        private final long blockedTime;
+
+        private State(List<Poi> activePois, List<Poi> removedPois, long blockedTime) {
+            this.activePois = activePois;
+            this.removedPois = removedPois;
+            this.blockedTime = blockedTime;
+        }
+    }
+
+    /**
+     * Copies the lists of active and removed POIs, so a POI cannot be in both
+     * lists or in none of them.
+     *
+     * The writers are only blocked while the list of active POIs is copied
+     * and the number of removed POIs is read. The removed POIs are only
+     * appended to their store, so its rows before this number are read
+     * afterwards.
+     */
+    private State captureState() {
+        long start = System.nanoTime();
+        List<Poi> activePois;
+        ColumnarPoiStore removedStore;
+        int removedCount;
+        int[] locked = regionLocks.lockAll();
+        try {
+            activePois = getPois();
+            removedStore = getRemovedStore();
+            removedCount = removedStore.size();
+        } finally {
+            regionLocks.unlock(locked);
+        }
+        long blockedTime = System.nanoTime() - start;
+
+        ArrayList<Poi> removedPois = new ArrayList<Poi>(removedCount);
+        removedStore.collect(removedCount, removedPois);
+        return new State(activePois, removedPois, blockedTime);
+    }
+
+    /**
+     * Writes a snapshot of the list in the journal directory, and deletes the
+     * journal segments contained in the snapshot.
+     *
+     * The writers are only blocked while the lists of POIs are copied, the
+     * file being written afterwards. It is written in a temporary file, then
+     * renamed.
+     *
+     * The previous snapshots are deleted too. A snapshot still mapped in
+     * memory may not be deletable on some systems, it is then deleted by a
+     * later checkpoint.
+     *
+     * @return The result of the checkpoint.
+     * @throws IllegalStateException If the list has no journal.
+     */
+    public synchronized Checkpoint checkpoint() throws IOException {
+        PoiJournal j = journal;
+        if (j == null) {
+            throw new IllegalStateException("No journal");
+        }
+        long start = System.nanoTime();
+
+        // The changes made after the rotation go to the new segment, and are
+        // replayed over the snapshot, even the ones that the snapshot already
+        // contains.
+        long segment = j.rotate();
+        State state = captureState();
+
+        File snapshot = new File(journalDirectory, SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX);
+        File temporary = new File(journalDirectory, snapshot.getName() + ".tmp");
+        PoiSnapshot.write(state.activePois, state.removedPois, temporary);
+        Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        deleteBefore(segment);
+
+        return new Checkpoint(snapshot, state.activePois.size() + state.removedPois.size(), System.nanoTime() - start, state.blockedTime);
+    }
+
+    /**
+     * Deletes the journal segments and the snapshots older than a snapshot.
+     *
+     * @param segment The segment of the snapshot.
+     */
+    private void deleteBefore(long segment) throws IOException {
+        journal.deleteSegmentsBefore(segment);
+
+        File[] files = journalDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long fileSegment = snapshotSegment(file);
+                if ((fileSegment >= 0 && fileSegment < segment) || file.getName().equals(XML_SNAPSHOT_FILE)) {
+                    if (!file.delete()) {
+                        logger.log(Level.WARNING, "Unable to delete the old snapshot {0}", file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the list of POI to a binary snapshot.
+     *
+     * @param file The file to write.
+     *
+     * @see PoiSnapshot
+     */
+    public void saveToSnapshot(File file) throws IOException {
+        State state = captureState();
+        PoiSnapshot.write(state.activePois, state.removedPois, file);
+    }
+
+    /**
+     * Reads a list of POI from a binary snapshot.
+     *
+     * The active POIs are decoded into regular POIs: the views on the mapped
+     * records share one lock, and the active POIs are the ones confirmed and
+     * refuted concurrently. The removed POIs are copied into the store of
+     * the removed POIs.
+     *
+     * @param file The file to read.
+     * @return The list.
+     *
+     * @see PoiSnapshot
+     */
+    public static ServerPoiList readFromSnapshot(File file) throws IOException {
+        PoiSnapshot snapshot = PoiSnapshot.open(file);
+        ArrayList<Poi> pois = new ArrayList<Poi>(snapshot.getActiveCount() + snapshot.getRemovedCount());
+        for (int i = 0; i < snapshot.getActiveCount(); i++) {
+            Poi view = snapshot.getActive(i);
+            Poi poi = view.getType().constructPoi(view.getLat(), view.getLon(), view.getDate(), view.getConfirmations());
+            poi.setId(view.getId());
+            poi.setRefutations(view.getRefutations());
+            pois.add(poi);
+        }
+        for (int i = 0; i < snapshot.getRemovedCount(); i++) {
+            pois.add(snapshot.getRemoved(i));
+        }
+
+        ServerPoiList poiList = new ServerPoiList();
+        poiList.restorePois(pois);
+        return poiList;
+    }
+
+    /**
+     * Applies the journal records.
+     *
+     * The records can be older than the snapshot: a record on a removed POI
+     * does not bring it back.
+     */
+    private class JournalReplayer implements PoiJournal.Replayer {
+
+        private final HashSet<Long> removedIds = new HashSet<Long>();
+
+        private JournalReplayer() {
+            for (Poi poi : getRemovedPois()) {
+                removedIds.add(poi.getId());
+            }
+        }
+
+        @Override
+        public void added(Poi poi) {
+            Poi existing = getPoi(poi.getId());
+            if (existing != null) {
+                replacePoi(existing, poi);
+            } else if (!removedIds.contains(poi.getId())) {
+                insertPoi(poi);
+            }
+        }
+
+        @Override
+        public void confirmed(long id, int confirmations) {
+            Poi poi = getPoi(id);
+            if (poi != null && poi.getConfirmations() < confirmations) {
+                poi.setConfirmations(confirmations);
+            }
+        }
+
+        @Override
+        public void refuted(long id, int refutations) {
+            Poi poi = getPoi(id);
+            if (poi != null && poi.getRefutations() < refutations) {
+                poi.setRefutations(refutations);
+            }
+        }
+
+        @Override
+        public void removed(Poi poi) {
+            Poi existing = getPoi(poi.getId());
+            if (existing != null) {
+                deletePoi(existing, poi.getRemovedDate());
+            } else if (!removedIds.contains(poi.getId())) {
+                restorePoi(poi);
+            }
+            removedIds.add(poi.getId());
+        }
+
+        @Override
+        public void edited(Poi poi) {
+            added(poi);
         }
     }
 
     /**
      * Save the list of POI to a XML file.
      *
+     * Only the POIs in memory are saved: the archived POIs stay in the
+     * history archive, which is kept when the file is loaded back. They are
+     * exported by BipbipExport.
+     *
      * @param output Output stream to write.
      */
     public void saveToFile(OutputStream output) throws XMLStreamException {
@@ -121,12 +1198,14 @@ public class ServerPoiList extends PoiList {
         writer.writeStartElement("points");
         writer.writeAttribute("version", XML_VERSION.toString());
 
-        // Date formatter.
-        DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.LONG, Locale.US);
-
         // Writing the POIs.
-        writePoi(writer, dateFormat, this.getPois());
-        writePoi(writer, dateFormat, this.getRemovedPois());
+        State state = captureState();
+        writePoi(writer, state.activePois);
+        writePoi(writer, state.removedPois);
+        HistoryArchive archive = getHistoryArchive();
+        if (archive != null && archive.size() > 0) {
+            logger.log(Level.INFO, "{0} archived POIs not saved, they stay in the history archive", archive.size());
+        }
 
         writer.writeEndElement();
 
@@ -136,116 +1215,47 @@ public class ServerPoiList extends PoiList {
         writer.close();
     }
 
-    private void writePoi(XMLStreamWriter writer, DateFormat dateFormat, List<Poi> points) throws XMLStreamException {
-        synchronized (points) {
-            for (Poi poi : points) {
-                writer.writeStartElement("poi");
-                writer.writeAttribute("type", poi.getType().name());
-                writer.writeAttribute("latitude", ((Double) poi.getLat()).toString());
-                writer.writeAttribute("longitude", ((Double) poi.getLon()).toString());
-                writer.writeAttribute("date", dateFormat.format(poi.getDate()));
+    private void writePoi(XMLStreamWriter writer, List<Poi> points) throws XMLStreamException {
+        for (Poi poi : points) {
+            writer.writeStartElement("poi");
+            writer.writeAttribute("id", ((Long) poi.getId()).toString());
+            writer.writeAttribute("type", poi.getType().name());
+            writer.writeAttribute("latitude", ((Double) poi.getLat()).toString());
+            writer.writeAttribute("longitude", ((Double) poi.getLon()).toString());
+            writer.writeAttribute("date", TimestampCodec.ISO.format(poi.getDate().getTime()));
 
-                writer.writeStartElement("confirmations");
-                writer.writeCharacters(((Integer) poi.getConfirmations()).toString());
-                writer.writeEndElement();
+            writer.writeStartElement("confirmations");
+            writer.writeCharacters(((Integer) poi.getConfirmations()).toString());
+            writer.writeEndElement();
 
-                writer.writeStartElement("refutations");
-                writer.writeCharacters(((Integer) poi.getRefutations()).toString());
-                writer.writeEndElement();
-
-                if (poi.getRemovedDate() != null) {
-                    writer.writeStartElement("removedDate");
-                    writer.writeCharacters(dateFormat.format(poi.getRemovedDate()));
-                    writer.writeEndElement();
-                }
+            writer.writeStartElement("refutations");
+            writer.writeCharacters(((Integer) poi.getRefutations()).toString());
+            writer.writeEndElement();
 
+            if (poi.getRemovedDate() != null) {
+                writer.writeStartElement("removedDate");
+                writer.writeCharacters(TimestampCodec.ISO.format(poi.getRemovedDate().getTime()));
                 writer.writeEndElement();
             }
+
+            writer.writeEndElement();
         }
     }
 
-    public static ServerPoiList readFromFile(FileInputStream input) throws XMLStreamException, XMLDatabaseException {
+    /**
+     * Reads a list of POI from a XML file.
+     *
+     * The files of the version 1 are read too, and are written in the
+     * current version by the next save.
+     *
+     * @param input Input stream to read.
+     * @return The list.
+     *
+     * @see PoiXmlReader
+     */
+    public static ServerPoiList readFromFile(InputStream input) throws XMLStreamException, XMLDatabaseException {
         ServerPoiList poiList = new ServerPoiList();
-
-        XMLInputFactory factory = XMLInputFactory.newInstance();
-        XMLStreamReader reader = factory.createXMLStreamReader(input, "UTF8");
-
-        DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.LONG, Locale.US);
-        Poi currentPoi = null;
-
-        // Parsing, gooo!
-        // As this fckin StaX does not support XSD, and I do not have the time to
-        // rewrite everything, I do some sanity check in this code.
-        while (reader.hasNext()) {
-            switch (reader.next()) {
-                case XMLStreamConstants.START_ELEMENT:
-                    if (reader.getLocalName().equals("points")) {
-                        for (int i = 0; i < reader.getAttributeCount(); i++) {
-                            if (reader.getAttributeLocalName(i).equals("version")) {
-                                // Checking version.
-                                if (reader.getAttributeValue(i).equals(XML_VERSION.toString()) == false) {
-                                    throw new XMLDatabaseException("Invalid file version! Found: " + reader.getAttributeValue(i) + " Expected: " + XML_VERSION.toString());
-                                }
-                            }
-                        }
-                    } else if (reader.getLocalName().equals("poi")) {
-                        // New Poi.
-                        Double latitude = 0.0, longitude = 0.0;
-                        Date date = null;
-                        PoiType poiType = null;
-
-                        for (int i = 0; i < reader.getAttributeCount(); i++) {
-                            if (reader.getAttributeLocalName(i).equals("latitude")) {
-                                latitude = Double.parseDouble(reader.getAttributeValue(i));
-                            } else if (reader.getAttributeLocalName(i).equals("longitude")) {
-                                longitude = Double.parseDouble(reader.getAttributeValue(i));
-                            } else if (reader.getAttributeLocalName(i).equals("date")) {
-                                try {
-                                    date = dateFormat.parse(reader.getAttributeValue(i));
-                                } catch (ParseException e) {
-                                    throw new XMLDatabaseException("Unparsable date format " + reader.getAttributeValue(i), e);
-                                }
-                            } else if (reader.getAttributeLocalName(i).equals("type")) {
-                                poiType = Enum.valueOf(PoiType.class, reader.getAttributeValue(i));
-                            }
-                        }
-
-                        // Woot, the beautiful non understandable error message.
-                        // Can be translated: You're fucked :)
-                        if (poiType == null) {
-                            throw new XMLDatabaseException("Type undefined");
-                        }
-                        if (date == null) {
-                            throw new XMLDatabaseException("Date undefined");
-                        }
-
-                        // Everything is created.
-                        currentPoi = poiType.constructPoi(latitude, longitude, date);
-                    } else if (reader.getLocalName().equals("confirmations")) {
-                        currentPoi.setConfirmations(Integer.parseInt(reader.getElementText()));
-                    } else if (reader.getLocalName().equals("refutations")) {
-                        currentPoi.setRefutations(Integer.parseInt(reader.getElementText()));
-                    } else if (reader.getLocalName().equals("removedDate")) {
-                        try {
-                            currentPoi.setRemovedDate(dateFormat.parse(reader.getElementText()));
-                        } catch (ParseException e) {
-                            throw new XMLDatabaseException("Unparsable date format " + reader.getElementText(), e);
-                        }
-                    }
-                    break;
-                case XMLStreamConstants.END_ELEMENT:
-                    if (reader.getLocalName().equals("poi") && currentPoi != null) {
-                        if (currentPoi.getRemovedDate() == null) {
-                            poiList.getPois().add(currentPoi);
-                        } else {
-                            poiList.getRemovedPois().add(currentPoi);
-                        }
-                        currentPoi = null;
-                    }
-                    break;
-            }
-        }
-
+        poiList.restorePois(PoiXmlReader.read(input));
         return poiList;
     }
 }
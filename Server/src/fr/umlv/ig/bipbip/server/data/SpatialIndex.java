@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import java.util.Collection;
+
+/**
+ * Spatial index of points of interest, keyed on latitude and longitude.
+ *
+ * The index only returns candidates: a POI returned by a lookup is inside the
+ * cells covering the requested bounding box, but may be outside the box
+ * itself. The caller is responsible of the exact distance check.
+ *
+ * Implementations must be thread safe.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public interface SpatialIndex {
+
+    /**
+     * Adds a POI to the index.
+     *
+     * @param poi POI to add.
+     */
+    void add(Poi poi);
+
+    /**
+     * Adds many POIs to the index.
+     *
+     * Faster than adding the POIs one by one, when loading a database.
+     *
+     * @param pois POIs to add.
+     */
+    void addAll(Collection<? extends Poi> pois);
+
+    /**
+     * Removes a POI from the index.
+     *
+     * @param poi POI to remove.
+     * @return true if the POI was indexed.
+     */
+    boolean remove(Poi poi);
+
+    /**
+     * Removes all the POIs of the index.
+     */
+    void clear();
+
+    /**
+     * Gets the number of indexed POIs.
+     *
+     * @return The number of POI.
+     */
+    int size();
+
+    /**
+     * Collects the POIs that may be inside the bounding box.
+     *
+     * A minimum longitude greater than the maximum longitude means that the
+     * box crosses the 180th meridian.
+     *
+     * @param minLatitude South border of the box.
+     * @param minLongitude West border of the box.
+     * @param maxLatitude North border of the box.
+     * @param maxLongitude East border of the box.
+     * @param result Collection where the candidates are added.
+     */
+    void collectCandidates(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, Collection<? super Poi> result);
+
+    /**
+     * Collects all the indexed POIs.
+     *
+     * @param result Collection where the POIs are added.
+     */
+    void collectAll(Collection<? super Poi> result);
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of the lifetimes of the POIs.
+ *
+ * The lifetime of a POI is the interval [date, removedDate), without end for
+ * an active POI. The intervals are kept in an AVL tree ordered by start, each
+ * node knowing the greatest end of its subtree, so the POIs alive at a time
+ * are found without visiting the subtrees that are already over.
+ *
+ * The POIs are identified by their date and their identifier, so both must be
+ * defined and must not change while the POI is in the index.
+ *
+ * The writers do not lock the tree: their changes are queued, and applied in
+ * order by the next reader, or by a writer once many changes are waiting and
+ * nobody else is using the tree. A writer only waits for the tree when far
+ * too many changes are waiting. The changes of one POI must be ordered by
+ * the caller.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class TemporalIndex {
+
+    /**
+     * Number of waiting changes from which a writer applies them, if the tree
+     * is not in use.
+     */
+    private static final int MAX_PENDING_CHANGES = 4096;
+    /**
+     * Number of waiting changes from which a writer waits to apply them.
+     */
+    private static final int MAX_QUEUED_CHANGES = 16 * MAX_PENDING_CHANGES;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<Change>();
+    private final AtomicInteger pendingChanges = new AtomicInteger();
+    private Node root;
+    private int size;
+
+    private static final class Node {
+
+        private final long start;
+        private final long id;
+        private long end;
+        private Poi poi;
+        private long maxEnd;
+        private int height;
+        private Node left;
+        private Node right;
+
+        private Node(long start, long id, long end, Poi poi) {
+            this.start = start;
+            this.id = id;
+            this.end = end;
+            this.poi = poi;
+            this.maxEnd = end;
+            this.height = 1;
+        }
+
+        private int compareTo(long start, long id) {
+            if (this.start != start) {
+                return this.start < start ? -1 : 1;
+            }
+            if (this.id != id) {
+                return this.id < id ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Waiting change of the tree: a removal, an addition, or both at once.
+     */
+    private static final class Change {
+
+        private final boolean removes;
+        private final long removedStart;
+        private final long removedId;
+        private final Node added;
+
+        private Change(Poi removed, Node added) {
+            this.removes = removed != null;
+            this.removedStart = removes ? start(removed) : 0;
+            this.removedId = removes ? removed.getId() : 0;
+            this.added = added;
+        }
+    }
+
+    private static long start(Poi poi) {
+        return poi.getDate().getTime();
+    }
+
+    private static long end(Poi poi) {
+        return poi.getRemovedDate() == null ? Long.MAX_VALUE : poi.getRemovedDate().getTime();
+    }
+
+    /**
+     * Adds a POI, or replaces the POI with the same date and identifier.
+     *
+     * @param poi The POI.
+     */
+    public void add(Poi poi) {
+        queue(new Change(null, new Node(start(poi), poi.getId(), end(poi), poi)));
+    }
+
+    /**
+     * Adds many POIs at once.
+     *
+     * The tree is rebuilt from the sorted intervals, which is much faster than
+     * adding the POIs one by one when loading a database.
+     *
+     * @param pois The POIs. A POI replaces the POI with the same date and
+     * identifier.
+     */
+    public void addAll(Collection<? extends Poi> pois) {
+        ArrayList<Node> nodes = new ArrayList<Node>(pois.size());
+        for (Poi poi : pois) {
+            nodes.add(new Node(start(poi), poi.getId(), end(poi), poi));
+        }
+
+        lock.writeLock().lock();
+        try {
+            applyChanges();
+            // The new nodes are after the old ones, and the sort is stable.
+            ArrayList<Node> all = new ArrayList<Node>(size + nodes.size());
+            collectNodes(root, all);
+            all.addAll(nodes);
+            Node[] sorted = sort(all);
+
+            int count = 0;
+            for (Node node : sorted) {
+                if (count > 0 && sorted[count - 1].compareTo(node.start, node.id) == 0) {
+                    sorted[count - 1] = node;
+                } else {
+                    sorted[count++] = node;
+                }
+            }
+            root = build(sorted, 0, count);
+            size = count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sorts nodes by start and identifier, with a stable merge sort on
+     * primitive arrays: comparing the nodes themselves would read them all
+     * over the heap.
+     */
+    private static Node[] sort(List<Node> nodes) {
+        int count = nodes.size();
+        long[] starts = new long[count];
+        long[] ids = new long[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            Node node = nodes.get(i);
+            starts[i] = node.start;
+            ids[i] = node.id;
+            order[i] = i;
+        }
+        mergeSort(order, new int[count], 0, count, starts, ids);
+
+        Node[] sorted = new Node[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = nodes.get(order[i]);
+        }
+        return sorted;
+    }
+
+    private static void mergeSort(int[] order, int[] buffer, int from, int to, long[] starts, long[] ids) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle, starts, ids);
+        mergeSort(order, buffer, middle, to, starts, ids);
+        int left = order[middle - 1];
+        int right = order[middle];
+        if (starts[left] < starts[right] || (starts[left] == starts[right] && ids[left] <= ids[right])) {
+            return; // Already sorted.
+        }
+
+        System.arraycopy(order, from, buffer, from, to - from);
+        int i = from;
+        int j = middle;
+        for (int k = from; k < to; k++) {
+            if (j >= to) {
+                order[k] = buffer[i++];
+            } else if (i >= middle) {
+                order[k] = buffer[j++];
+            } else {
+                int a = buffer[i];
+                int b = buffer[j];
+                if (starts[b] < starts[a] || (starts[b] == starts[a] && ids[b] < ids[a])) {
+                    order[k] = b;
+                    j++;
+                } else {
+                    order[k] = a;
+                    i++;
+                }
+            }
+        }
+    }
+
+    private static void collectNodes(Node node, Collection<Node> result) {
+        while (node != null) {
+            collectNodes(node.left, result);
+            result.add(node);
+            node = node.right;
+        }
+    }
+
+    /**
+     * Builds a balanced tree from sorted nodes.
+     */
+    private static Node build(Node[] nodes, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        Node node = nodes[middle];
+        node.left = build(nodes, from, middle);
+        node.right = build(nodes, middle + 1, to);
+        update(node);
+        return node;
+    }
+
+    /**
+     * Removes a POI.
+     *
+     * @param poi The POI.
+     */
+    public void remove(Poi poi) {
+        queue(new Change(poi, null));
+    }
+
+    /**
+     * Replaces a POI by another one, atomically.
+     *
+     * Used when an active POI is moved to the removed points.
+     *
+     * @param oldPoi The POI to remove.
+     * @param newPoi The POI to add.
+     */
+    public void replace(Poi oldPoi, Poi newPoi) {
+        queue(new Change(oldPoi, new Node(start(newPoi), newPoi.getId(), end(newPoi), newPoi)));
+    }
+
+    private void queue(Change change) {
+        changes.add(change);
+        int pending = pendingChanges.incrementAndGet();
+        if (pending < MAX_PENDING_CHANGES) {
+            return;
+        }
+        if (pending >= MAX_QUEUED_CHANGES) {
+            lock.writeLock().lock();
+        } else if (!lock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            applyChanges();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the changes queued until now, not the ones queued meanwhile.
+     * Called with the write lock held.
+     */
+    private void applyChanges() {
+        for (int count = pendingChanges.get(); count > 0; count--) {
+            Change change = changes.poll();
+            pendingChanges.decrementAndGet();
+            if (change.removes) {
+                root = delete(root, change.removedStart, change.removedId);
+            }
+            Node node = change.added;
+            if (node != null) {
+                root = insert(root, node.start, node.id, node.end, node.poi);
+            }
+        }
+    }
+
+    /**
+     * Takes the read lock, once the waiting changes are applied.
+     */
+    private void lockForReading() {
+        if (pendingChanges.get() == 0) {
+            lock.readLock().lock();
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            applyChanges();
+            lock.readLock().lock(); // Downgrading.
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of POIs.
+     */
+    public int size() {
+        lockForReading();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the lowest date of all the POIs.
+     *
+     * @return The date in milliseconds, or Long.MAX_VALUE if there is no POI.
+     */
+    public long getMinDate() {
+        lockForReading();
+        try {
+            if (root == null) {
+                return Long.MAX_VALUE;
+            }
+            Node node = root;
+            while (node.left != null) {
+                node = node.left;
+            }
+            return node.start;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the POIs alive at a time to a collection.
+     *
+     * @param time The time, in milliseconds.
+     * @param result Collection to fill.
+     */
+    public void collectAlive(long time, Collection<? super Poi> result) {
+        lockForReading();
+        try {
+            collectAlive(root, time, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void collectAlive(Node node, long time, Collection<? super Poi> result) {
+        while (node != null && node.maxEnd > time) {
+            collectAlive(node.left, time, result);
+            if (node.start > time) {
+                // Everything on the right starts later.
+                return;
+            }
+            if (node.end > time) {
+                result.add(node.poi);
+            }
+            node = node.right;
+        }
+    }
+
+    private Node insert(Node node, long start, long id, long end, Poi poi) {
+        if (node == null) {
+            size++;
+            return new Node(start, id, end, poi);
+        }
+        int comparison = node.compareTo(start, id);
+        if (comparison == 0) {
+            node.end = end;
+            node.poi = poi;
+        } else if (comparison > 0) {
+            node.left = insert(node.left, start, id, end, poi);
+        } else {
+            node.right = insert(node.right, start, id, end, poi);
+        }
+        return balance(node);
+    }
+
+    private Node delete(Node node, long start, long id) {
+        if (node == null) {
+            return null;
+        }
+        int comparison = node.compareTo(start, id);
+        if (comparison > 0) {
+            node.left = delete(node.left, start, id);
+        } else if (comparison < 0) {
+            node.right = delete(node.right, start, id);
+        } else {
+            size--;
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+            Node successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            successor.right = deleteMin(node.right);
+            successor.left = node.left;
+            node = successor;
+        }
+        return balance(node);
+    }
+
+    private Node deleteMin(Node node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        node.left = deleteMin(node.left);
+        return balance(node);
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static void update(Node node) {
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+        long maxEnd = node.end;
+        if (node.left != null && node.left.maxEnd > maxEnd) {
+            maxEnd = node.left.maxEnd;
+        }
+        if (node.right != null && node.right.maxEnd > maxEnd) {
+            maxEnd = node.right.maxEnd;
+        }
+        node.maxEnd = maxEnd;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        update(right);
+        return right;
+    }
+
+    private static Node balance(Node node) {
+        update(node);
+        int factor = height(node.left) - height(node.right);
+        if (factor > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (factor < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+}
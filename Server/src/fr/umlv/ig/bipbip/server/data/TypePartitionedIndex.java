@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 Damien Girard <dgirard@nativesoft.fr>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.umlv.ig.bipbip.server.data;
+
+import fr.umlv.ig.bipbip.poi.Poi;
+import fr.umlv.ig.bipbip.poi.PoiType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Objects;
+
+/**
+ * Spatial index with one partition per type of POI.
+ *
+ * A lookup on a type only reads the partition of this type. A lookup on all
+ * the types reads every partition.
+ *
+ * @author Damien Girard <dgirard@nativesoft.fr>
+ */
+public class TypePartitionedIndex implements SpatialIndex {
+
+    private final EnumMap<PoiType, SpatialIndex> partitions;
+
+    /**
+     * Creates an index with a grid per type.
+     */
+    public TypePartitionedIndex() {
+        partitions = new EnumMap<PoiType, SpatialIndex>(PoiType.class);
+        for (PoiType type : PoiType.values()) {
+            partitions.put(type, new GridSpatialIndex());
+        }
+    }
+
+    /**
+     * Creates an index.
+     *
+     * @param partitions Empty spatial index of each type.
+     */
+    public TypePartitionedIndex(EnumMap<PoiType, SpatialIndex> partitions) {
+        Objects.requireNonNull(partitions);
+        for (PoiType type : PoiType.values()) {
+            if (partitions.get(type) == null) {
+                throw new IllegalArgumentException("No spatial index for " + type);
+            }
+        }
+
+        this.partitions = new EnumMap<PoiType, SpatialIndex>(partitions);
+    }
+
+    /**
+     * Gets the partition of a type.
+     *
+     * @param type Type of POI.
+     * @return The index of the POIs of this type.
+     */
+    public SpatialIndex getPartition(PoiType type) {
+        return partitions.get(type);
+    }
+
+    @Override
+    public void add(Poi poi) {
+        partitions.get(poi.getType()).add(poi);
+    }
+
+    @Override
+    public void addAll(Collection<? extends Poi> pois) {
+        EnumMap<PoiType, ArrayList<Poi>> byType = new EnumMap<PoiType, ArrayList<Poi>>(PoiType.class);
+        for (PoiType type : PoiType.values()) {
+            byType.put(type, new ArrayList<Poi>());
+        }
+        for (Poi poi : pois) {
+            byType.get(poi.getType()).add(poi);
+        }
+        for (PoiType type : PoiType.values()) {
+            partitions.get(type).addAll(byType.get(type));
+        }
+    }
+
+    @Override
+    public boolean remove(Poi poi) {
+        return partitions.get(poi.getType()).remove(poi);
+    }
+
+    @Override
+    public void clear() {
+        for (SpatialIndex partition : partitions.values()) {
+            partition.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (SpatialIndex partition : partitions.values()) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void collectCandidates(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, Collection<? super Poi> result) {
+        for (SpatialIndex partition : partitions.values()) {
+            partition.collectCandidates(minLatitude, minLongitude, maxLatitude, maxLongitude, result);
+        }
+    }
+
+    /**
+     * Collects the POIs of a type that may be inside the bounding box.
+     *
+     * @param type Type of the POIs. null for all the types.
+     * @param minLatitude South border of the box.
+     * @param minLongitude West border of the box.
+     * @param maxLatitude North border of the box.
+     * @param maxLongitude East border of the box.
+     * @param result Collection where the candidates are added.
+     *
+     * @see #collectCandidates(double, double, double, double, Collection)
+     */
+    public void collectCandidates(PoiType type, double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, Collection<? super Poi> result) {
+        if (type == null) {
+            collectCandidates(minLatitude, minLongitude, maxLatitude, maxLongitude, result);
+        } else {
+            partitions.get(type).collectCandidates(minLatitude, minLongitude, maxLatitude, maxLongitude, result);
+        }
+    }
+
+    @Override
+    public void collectAll(Collection<? super Poi> result) {
+        for (SpatialIndex partition : partitions.values()) {
+            partition.collectAll(result);
+        }
+    }
+}
@@ -351,8 +351,10 @@ public class PoiEditJFrame extends JDialog {
      * Saves the changes applied to the Poi.
      */
     private void editPoi() {
-        // Adding a new POI to the collection.
-        poiList.updatePoi(editedPoi, createPoiFromData());
+        // Replacing the POI in the collection.
+        if (!poiList.updatePoi(editedPoi.getId(), createPoiFromData())) {
+            JOptionPane.showMessageDialog(this, "The POI has been removed in the meantime.", "Error", JOptionPane.ERROR_MESSAGE);
+        }
 
         // Over.
         this.setVisible(false);
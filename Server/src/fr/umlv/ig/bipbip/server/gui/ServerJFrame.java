@@ -18,10 +18,14 @@ package fr.umlv.ig.bipbip.server.gui;
 
 import fr.umlv.ig.bipbip.poi.Poi;
 import fr.umlv.ig.bipbip.poi.PoiEvent;
-import fr.umlv.ig.bipbip.poi.PoiListener;
 import fr.umlv.ig.bipbip.poi.swing.JPoi;
 import fr.umlv.ig.bipbip.server.communication.Server;
 import fr.umlv.ig.bipbip.server.data.PoiActiveTableModel;
+import fr.umlv.ig.bipbip.server.data.PoiCsvReader;
+import fr.umlv.ig.bipbip.server.data.PoiEventBus;
+import fr.umlv.ig.bipbip.server.data.PoiResyncListener;
+import fr.umlv.ig.bipbip.server.data.PoiTableModel;
+import fr.umlv.ig.bipbip.server.data.PoiXmlReader;
 import fr.umlv.ig.bipbip.server.data.ServerPoiList;
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -30,6 +34,7 @@ import java.awt.event.*;
 import java.io.*;
 import java.text.DateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -43,6 +48,7 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.TableRowSorter;
 import javax.xml.stream.XMLStreamException;
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
+import org.openstreetmap.gui.jmapviewer.interfaces.MapMarker;
 
 /**
  * Server window.
@@ -59,6 +65,7 @@ public class ServerJFrame extends JFrame {
     private ServerPoiList serverPoiList;
     private final LogListModel clientCommandLogList;
     private final PoiActiveTableModel poiTableModel;
+    private final PoiEventHandler poiEventHandler = new PoiEventHandler();
     // For the JMapPanel
     private final HashMap<Poi, JPoi> poiToJPoi = new HashMap<Poi, JPoi>();
     //
@@ -69,6 +76,7 @@ public class ServerJFrame extends JFrame {
     private JMenu menuFile;
     private JMenuItem menuFileOpen;
     private JMenuItem menuFileSave;
+    private JMenuItem menuFileMerge;
     private JMenuItem menuFileQuit;
     // Connection menu.
     private JMenu menuConnection;
@@ -101,6 +109,7 @@ public class ServerJFrame extends JFrame {
     private JTable poiTable;
     // File chooser
     JFileChooser databaseFileChooser;
+    JFileChooser datasetFileChooser;
     // PoiHistory
     PoiHistoryJFrame historyJFrame = null;
 
@@ -137,7 +146,7 @@ public class ServerJFrame extends JFrame {
 
         // Registering the pois table.
         poiTableModel = new PoiActiveTableModel(serverPoiList);
-        serverPoiList.addPoiListener(new PoiEventHandler());
+        serverPoiList.addPoiListener(poiEventHandler, PoiEventBus.SWING_EXECUTOR);
 
         // Creation of the GUI.
 
@@ -159,6 +168,10 @@ public class ServerJFrame extends JFrame {
         menuFileSave.setMnemonic('s');
         menuFile.add(menuFileSave);
 
+        menuFileMerge = new JMenuItem("Merge a dataset");
+        menuFileMerge.setMnemonic('m');
+        menuFile.add(menuFileMerge);
+
         // Separator.
         menuFile.add(new JSeparator());
 
@@ -207,15 +220,13 @@ public class ServerJFrame extends JFrame {
         map = new JMapViewer();
 
         // Filling the map with the already defined POI.
-        synchronized (serverPoiList.getPois()) {
-            for (Poi poi : serverPoiList.getPois()) {
-                // Storing the JPOI
-                JPoi jpoi = new JPoi(poi);
-                poiToJPoi.put(poi, jpoi);
-
-                // Displaying the marker.
-                map.addMapMarker(jpoi);
-            }
+        for (Poi poi : serverPoiList.getPois()) {
+            // Storing the JPOI
+            JPoi jpoi = new JPoi(poi);
+            poiToJPoi.put(poi, jpoi);
+
+            // Displaying the marker.
+            map.addMapMarker(jpoi);
         }
 
         verticalSplitPane.setLeftComponent(map);
@@ -245,6 +256,8 @@ public class ServerJFrame extends JFrame {
         // File chooser
         databaseFileChooser = new JFileChooser();
         databaseFileChooser.setFileFilter(new FileNameExtensionFilter("XML file", "xml"));
+        datasetFileChooser = new JFileChooser();
+        datasetFileChooser.setFileFilter(new FileNameExtensionFilter("XML or CSV file", "xml", "csv"));
 
         // Table
         poiTable = new JPoiTable(map, poiTableModel);
@@ -390,6 +403,14 @@ public class ServerJFrame extends JFrame {
             }
         });
 
+        menuFileMerge.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mergeDataset();
+            }
+        });
+
         listElementSelected();
     }
 
@@ -404,83 +425,147 @@ public class ServerJFrame extends JFrame {
 
     /**
      * Asks the user to open a database file.
+     *
+     * The file is loaded in background, then the new database replaces the
+     * served one. The server keeps running meanwhile.
      */
     private void openDatabase() {
-        boolean serverIsRunning = server.getConnected();
-
         databaseFileChooser.setDialogTitle("Open a database");
-        if (databaseFileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            FileInputStream inputStream;
-            try {
-                inputStream = new FileInputStream(databaseFileChooser.getSelectedFile());
-            } catch (FileNotFoundException ex) {
-                JOptionPane.showMessageDialog(this, ex.getLocalizedMessage(), "Error while opening the database", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
+        if (databaseFileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File file = databaseFileChooser.getSelectedFile();
+
+        menuFileOpen.setEnabled(false); // One loading at a time.
+        new SwingWorker<ServerPoiList, Void>() {
 
-            // If the server is running, telling the user that it has to be stopped
-            // in order to load the new database.
-            // (No concurrency problem so)
-            if (serverIsRunning) {
-                if (JOptionPane.showConfirmDialog(this, "You must stop the server in order to load the new database.\n\nDo you want to stop the server and open the new database?", "Open a database", JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE) == JOptionPane.CANCEL_OPTION) {
-                    return;
+            @Override
+            protected ServerPoiList doInBackground() throws Exception {
+                ServerPoiList newPoiList;
+                FileInputStream inputStream = new FileInputStream(file);
+                try {
+                    newPoiList = ServerPoiList.readFromFile(inputStream);
+                } finally {
+                    try {
+                        inputStream.close();
+                    } catch (IOException ignored) {
+                    }
                 }
 
-                // Disconnecting.
-                server.disconnect();
+                server.setPoiList(newPoiList);
+                return newPoiList;
             }
 
-            try {
-                // Opening the file.
-                serverPoiList = ServerPoiList.readFromFile(inputStream);
-                poiTable.setModel(new PoiActiveTableModel(serverPoiList));
-            } catch (XMLStreamException e) {
-                JOptionPane.showMessageDialog(this, e.getLocalizedMessage(), "Error while opening the database", JOptionPane.ERROR_MESSAGE);
-                return;
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, e.getLocalizedMessage(), "Error while opening the database", JOptionPane.ERROR_MESSAGE);
-                return;
-            } finally {
+            @Override
+            protected void done() {
+                menuFileOpen.setEnabled(true);
                 try {
-                    inputStream.close();
-                } catch (IOException e) {
+                    displayPoiList(get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(ServerJFrame.this, e.getCause().getLocalizedMessage(), "Error while opening the database", JOptionPane.ERROR_MESSAGE);
                 }
             }
+        }.execute();
+    }
+
+    /**
+     * Displays a new list of POI, in place of the current one.
+     *
+     * @param newPoiList The new list.
+     */
+    private void displayPoiList(ServerPoiList newPoiList) {
+        // Registering the new list. (MVC)
+        // Registered before the filling of the map, so no POI is missed. A POI
+        // added meanwhile is notified again, and replaces its marker.
+        serverPoiList.removePoiListener(poiEventHandler);
+        serverPoiList = newPoiList;
+        serverPoiList.addPoiListener(poiEventHandler, PoiEventBus.SWING_EXECUTOR);
+        poiTableModel.setPoiList(serverPoiList);
+        displayMarkers();
+
+        // Closing the history window.
+        if (historyJFrame != null) {
+            historyJFrame.setVisible(false);
+            historyJFrame = null;
+        }
+    }
 
-            // Database loaded. Reseting the GUI.
-            poiToJPoi.clear();
-            map.getMapMarkerList().clear();
+    /**
+     * Replaces the markers of the map by the ones of the active POIs.
+     */
+    private void displayMarkers() {
+        // Filling the map with the POI, at once.
+        poiToJPoi.clear();
+        ArrayList<MapMarker> markers = new ArrayList<MapMarker>();
+        for (Poi poi : serverPoiList.getPois()) {
+            // Storing the JPOI
+            JPoi jpoi = new JPoi(poi);
+            poiToJPoi.put(poi, jpoi);
+            markers.add(jpoi);
+        }
+        map.setMapMarkerList(markers);
+        map.repaint();
+    }
 
-            // Registering the new list. (MVC)
-            serverPoiList.addPoiListener(new PoiEventHandler());
+    /**
+     * Asks the user to merge a dataset, XML or CSV, into the database.
+     *
+     * The dataset is read and merged in background, the server keeps
+     * running.
+     */
+    private void mergeDataset() {
+        datasetFileChooser.setDialogTitle("Merge a dataset");
+        if (datasetFileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File file = datasetFileChooser.getSelectedFile();
+        final ServerPoiList mergedPoiList = server.getPoiList();
 
-            // Filling the map with the new defined POI.
-            synchronized (serverPoiList.getPois()) {
-                for (Poi poi : serverPoiList.getPois()) {
-                    // Storing the JPOI
-                    JPoi jpoi = new JPoi(poi);
-                    poiToJPoi.put(poi, jpoi);
+        menuFileMerge.setEnabled(false); // One merge at a time.
+        new SwingWorker<ServerPoiList.MergeReport, Void>() {
 
-                    // Displaying the marker.
-                    map.addMapMarker(jpoi);
+            @Override
+            protected ServerPoiList.MergeReport doInBackground() throws Exception {
+                List<Poi> dataset;
+                FileInputStream inputStream = new FileInputStream(file);
+                try {
+                    if (file.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+                        dataset = PoiCsvReader.read(inputStream);
+                    } else {
+                        dataset = PoiXmlReader.read(inputStream);
+                    }
+                } finally {
+                    try {
+                        inputStream.close();
+                    } catch (IOException ignored) {
+                    }
                 }
-            }
 
-            // Updating the JTables
-            map.repaint();
-
-            // Closing the history window.
-            if (historyJFrame != null) {
-                historyJFrame.setVisible(false);
-                historyJFrame = null;
+                return mergedPoiList.merge(dataset);
             }
 
-            if (serverIsRunning) {
-                if (JOptionPane.showConfirmDialog(this, "Database loaded.\n\nDo you want to restart the server?", "Open a database", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.YES_OPTION) {
-                    server.serve();
+            @Override
+            protected void done() {
+                menuFileMerge.setEnabled(true);
+                try {
+                    ServerPoiList.MergeReport report = get();
+                    // Too many events for the queues of the event bus, the
+                    // map and the table are filled again.
+                    displayPoiList(serverPoiList);
+                    JOptionPane.showMessageDialog(ServerJFrame.this, "Dataset merged\n\n"
+                            + report.getRead() + " POIs read\n"
+                            + report.getAdded() + " new POIs\n"
+                            + report.getMerged() + " POIs merged, " + report.getConfirmed() + " existing POIs confirmed\n"
+                            + report.getIgnored() + " removed POIs ignored", "Merge a dataset", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(ServerJFrame.this, e.getCause().getLocalizedMessage(), "Error while merging the dataset", JOptionPane.ERROR_MESSAGE);
                 }
             }
-        }
+        }.execute();
     }
 
     /**
@@ -569,7 +654,7 @@ public class ServerJFrame extends JFrame {
         }
         index = poiTable.convertRowIndexToModel(index); // Converting the value from the sorted display to the model one.
 
-        Poi poi = (Poi) serverPoiList.getPois().get(index);
+        Poi poi = ((PoiTableModel) poiTable.getModel()).getPoints().get(index);
 
         PoiEditJFrame frame = new PoiEditJFrame(this, serverPoiList, poi);
         frame.setVisible(true);
@@ -592,7 +677,7 @@ public class ServerJFrame extends JFrame {
         Poi[] poiToDeletes = new Poi[selectedRows.length];
         for (int i = 0; i < selectedRows.length; i++) {
             int index = poiTable.convertRowIndexToModel(selectedRows[i]);
-            poiToDeletes[i] = (Poi) serverPoiList.getPois().get(index);
+            poiToDeletes[i] = ((PoiTableModel) poiTable.getModel()).getPoints().get(index);
         }
 
         for (Poi poi : poiToDeletes) {
@@ -622,13 +707,16 @@ public class ServerJFrame extends JFrame {
     /**
      * Handles the updates of the poi collection on the map.
      */
-    private class PoiEventHandler implements PoiListener {
+    private class PoiEventHandler implements PoiResyncListener {
 
         @Override
         public void poiAdded(PoiEvent e) {
             // Storing the JPoi
             JPoi jpoi = new JPoi(e.getPoi());
-            poiToJPoi.put(e.getPoi(), jpoi);
+            JPoi previous = poiToJPoi.put(e.getPoi(), jpoi);
+            if (previous != null) { // Already displayed by a reload.
+                map.removeMapMarker(previous);
+            }
 
             // Displaying the marker.
             map.addMapMarker(jpoi);
@@ -644,6 +732,11 @@ public class ServerJFrame extends JFrame {
             // Removing the marker.
             map.removeMapMarker(poiToJPoi.get(e.getPoi()));
         }
+
+        @Override
+        public void poisReloaded() {
+            displayMarkers();
+        }
     }
 
     /**